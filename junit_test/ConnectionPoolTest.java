@@ -0,0 +1,206 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Runs tests on the ConnectionPool
+ **/
+public class ConnectionPoolTest
+{
+	/**
+	 * Pool under test
+	 **/
+	private ConnectionPool pool;
+
+	/**
+	 * Creates a small pool of in-memory databases for each test
+	 **/
+	@Before
+	public void setUp() throws ClassNotFoundException
+	{
+		Class.forName("org.sqlite.JDBC");
+		pool = new ConnectionPool("jdbc:sqlite::memory:", 2);
+	}
+
+	/**
+	 * Closes the pool after each test
+	 **/
+	@After
+	public void tearDown() throws SQLException
+	{
+		pool.close();
+	}
+
+	/**
+	 * Tests that nested checkouts by one thread share a connection
+	 **/
+	@Test
+	public void reentrantCheckout() throws SQLException
+	{
+		Connection outer = pool.acquire();
+		Connection inner = pool.acquire();
+		assertSame(outer, inner);
+		pool.release();
+		assertEquals(0, pool.getIdleCount());
+		pool.release();
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(1, pool.getOpenCount());
+	}
+
+	/**
+	 * Tests that released connections are reused rather than reopened
+	 **/
+	@Test
+	public void reuseConnection() throws SQLException
+	{
+		Connection first = pool.acquire();
+		pool.release();
+		Connection second = pool.acquire();
+		pool.release();
+		assertSame(first, second);
+		assertFalse(second.isClosed());
+		assertEquals(1, pool.getOpenCount());
+	}
+
+	/**
+	 * Tests that concurrent threads are handed distinct connections
+	 **/
+	@Test
+	public void separateThreads() throws Exception
+	{
+		final Connection mine = pool.acquire();
+		final Connection[] theirs = new Connection[1];
+		Thread other = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					theirs[0] = pool.acquire();
+					pool.release();
+				}
+				catch (SQLException e)
+				{
+					theirs[0] = null;
+				}
+			}
+		};
+		other.start();
+		other.join();
+		assertNotNull(theirs[0]);
+		assertNotSame(mine, theirs[0]);
+		assertEquals(2, pool.getOpenCount());
+		pool.release();
+	}
+
+	/**
+	 * Tests that a connection abandoned by a dead thread is reclaimed
+	 **/
+	@Test
+	public void reclaimAbandoned() throws Exception
+	{
+		final Connection[] leaked = new Connection[2];
+		for (int i=0;i<2;++i)
+		{
+			final int index = i;
+			Thread leaker = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						leaked[index] = pool.acquire();
+					}
+					catch (SQLException e)
+					{
+						leaked[index] = null;
+					}
+				}
+			};
+			leaker.start();
+			leaker.join();
+		}
+		assertEquals(2, pool.getOpenCount());
+		Connection reclaimed = pool.acquire();
+		assertTrue(reclaimed == leaked[0] || reclaimed == leaked[1]);
+		pool.release();
+	}
+
+	/**
+	 * Tests that an open transaction is rolled back when its connection is released
+	 **/
+	@Test
+	public void rollbackOnRelease() throws SQLException
+	{
+		Connection db = pool.acquire();
+		db.setAutoCommit(false);
+		pool.release();
+		assertTrue(db.getAutoCommit());
+	}
+
+	/**
+	 * Tests that every new connection is configured with the setup statements
+	 **/
+	@Test
+	public void setupConnection() throws SQLException
+	{
+		ConnectionPool configured = new ConnectionPool("jdbc:sqlite::memory:", 2, new String[] {"PRAGMA cache_size=1234"});
+		Connection db = configured.acquire();
+		Statement stmt = db.createStatement();
+		ResultSet results = stmt.executeQuery("PRAGMA cache_size");
+		assertTrue(results.next());
+		assertEquals(1234, results.getInt(1));
+		results.close();
+		stmt.close();
+		configured.release();
+		configured.close();
+	}
+
+	/**
+	 * Tests that connections opened with driver settings honour them, here
+	 * by refusing to write
+	 **/
+	@Test
+	public void readOnlyConnections() throws Exception
+	{
+		File file = File.createTempFile("pool", ".db");
+		file.deleteOnExit();
+		Connection setup = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+		Statement create = setup.createStatement();
+		create.executeUpdate("CREATE TABLE Thing(id INTEGER)");
+		create.executeUpdate("INSERT INTO Thing VALUES(1)");
+		create.close();
+		setup.close();
+
+		Properties readOnly = new Properties();
+		readOnly.setProperty("open_mode", "1"); //SQLITE_OPEN_READONLY
+		ConnectionPool readers = new ConnectionPool("jdbc:sqlite:" + file.getPath(), 1, new String[0], readOnly);
+		Statement stmt = readers.acquire().createStatement();
+		try
+		{
+			ResultSet results = stmt.executeQuery("SELECT COUNT(*) FROM Thing");
+			assertTrue(results.next());
+			assertEquals(1, results.getInt(1));
+			results.close();
+			stmt.executeUpdate("INSERT INTO Thing VALUES(2)");
+			fail("Read-only connection accepted a write");
+		}
+		catch (SQLException expected)
+		{
+		}
+		finally
+		{
+			stmt.close();
+			readers.release();
+			readers.close();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Runs tests on the CsvReader
+ **/
+public class CsvReaderTest
+{
+	/**
+	 * Tests that plain and quoted fields are split correctly
+	 **/
+	@Test
+	public void readFields() throws IOException
+	{
+		CsvReader reader = new CsvReader(new StringReader("a,b,,c\n\"x, y\",\"say \"\"hi\"\"\",z\n"));
+		assertArrayEquals(new String[]{"a", "b", "", "c"}, reader.readRecord());
+		assertArrayEquals(new String[]{"x, y", "say \"hi\"", "z"}, reader.readRecord());
+		assertNull(reader.readRecord());
+	}
+
+	/**
+	 * Tests that line breaks of every style end records, blank lines are
+	 * skipped, and quoted line breaks are kept
+	 **/
+	@Test
+	public void readLines() throws IOException
+	{
+		CsvReader reader = new CsvReader(new StringReader("one\r\n\r\ntwo\r\"three\nlines\",4\nlast"));
+		assertArrayEquals(new String[]{"one"}, reader.readRecord());
+		assertEquals(1, reader.getLineNumber());
+		assertArrayEquals(new String[]{"two"}, reader.readRecord());
+		assertEquals(3, reader.getLineNumber());
+		assertArrayEquals(new String[]{"three\nlines", "4"}, reader.readRecord());
+		assertEquals(4, reader.getLineNumber());
+		assertArrayEquals(new String[]{"last"}, reader.readRecord());
+		assertEquals(6, reader.getLineNumber());
+		assertNull(reader.readRecord());
+	}
+}
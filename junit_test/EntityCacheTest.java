@@ -0,0 +1,87 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+/**
+ * Runs tests on the EntityCache
+ **/
+public class EntityCacheTest
+{
+	/**
+	 * Cache under test
+	 **/
+	private EntityCache<FoodItem> cache;
+
+	/**
+	 * Creates a small, empty cache for each test
+	 **/
+	@Before
+	public void setUp()
+	{
+		cache = new EntityCache<FoodItem>(2)
+		{
+			protected FoodItem copy(FoodItem item)
+			{
+				return new FoodItem(item);
+			}
+		};
+	}
+
+	/**
+	 * Creates an item with the given id
+	 **/
+	private FoodItem item(int id) throws BadStateException, BadArgumentException
+	{
+		FoodItem item = new FoodItem("Chips", 100, 10);
+		item.setId(id);
+		return item;
+	}
+
+	/**
+	 * Tests that cached objects are handed out as copies
+	 **/
+	@Test
+	public void copyOnGet() throws BadStateException, BadArgumentException
+	{
+		FoodItem original = item(1);
+		cache.put(original);
+		original.setPrice(200);
+		FoodItem first = cache.get(1);
+		assertEquals(100, first.getPrice());
+		first.setPrice(300);
+		FoodItem second = cache.get(1);
+		assertNotSame(first, second);
+		assertEquals(100, second.getPrice());
+		assertNull(cache.get(2));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	/**
+	 * Tests that the least recently used object is evicted
+	 **/
+	@Test
+	public void evictObject() throws BadStateException, BadArgumentException
+	{
+		cache.put(item(1));
+		cache.put(item(2));
+		cache.get(1);
+		cache.put(item(3));
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+	}
+
+	/**
+	 * Tests that invalidated objects are forgotten
+	 **/
+	@Test
+	public void invalidateObject() throws BadStateException, BadArgumentException
+	{
+		cache.put(item(1));
+		cache.invalidate(1);
+		assertNull(cache.get(1));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,81 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+/**
+ * Runs tests on the ExportWriter
+ **/
+public class ExportWriterTest
+{
+	/**
+	 * Tests that CSV output is headed by the columns and quotes fields only
+	 * where needed
+	 **/
+	@Test
+	public void writeCsv() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExportWriter out = new ExportWriter(Channels.newChannel(bytes), ExportWriter.Format.CSV, new String[]{"id", "name", "note"});
+		out.writeField(1);
+		out.writeField("Chips, salted");
+		out.writeField(null);
+		out.endRecord();
+		out.writeField(2L);
+		out.writeField("Say \"cheese\"");
+		out.writeField("caf\u00e9");
+		out.endRecord();
+		assertEquals(2, out.getRecords());
+		out.close();
+		assertEquals("id,name,note\n1,\"Chips, salted\",\n2,\"Say \"\"cheese\"\"\",caf\u00e9\n", bytes.toString("UTF-8"));
+	}
+
+	/**
+	 * Tests that NDJSON output has one escaped object per line
+	 **/
+	@Test
+	public void writeNdjson() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExportWriter out = new ExportWriter(Channels.newChannel(bytes), ExportWriter.Format.NDJSON, new String[]{"id", "name"});
+		out.writeField(1);
+		out.writeField("a \"b\"\\\n");
+		out.endRecord();
+		out.writeField(2);
+		out.writeField(null);
+		out.endRecord();
+		out.close();
+		assertEquals("{\"id\":1,\"name\":\"a \\\"b\\\"\\\\\\n\"}\n{\"id\":2,\"name\":null}\n", bytes.toString("UTF-8"));
+	}
+
+	/**
+	 * Tests that output larger than the buffer arrives whole
+	 **/
+	@Test
+	public void writeLarge() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExportWriter out = new ExportWriter(Channels.newChannel(bytes), ExportWriter.Format.CSV, new String[]{"n"});
+		for (int n=0;n<100000;++n)
+		{
+			out.writeField(n);
+			out.endRecord();
+		}
+		out.close();
+		String[] lines = bytes.toString("UTF-8").split("\n");
+		assertEquals(100001, lines.length);
+		assertEquals("99999", lines[100000]);
+	}
+
+	/**
+	 * Tests that a record missing fields can't be finished
+	 **/
+	@Test(expected=IllegalStateException.class)
+	public void shortRecord() throws IOException
+	{
+		ExportWriter out = new ExportWriter(Channels.newChannel(new ByteArrayOutputStream()), ExportWriter.Format.CSV, new String[]{"a", "b"});
+		out.writeField(1);
+		out.endRecord();
+	}
+}
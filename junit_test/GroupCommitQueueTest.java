@@ -0,0 +1,109 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.ArrayList;
+
+/**
+ * Runs tests on the GroupCommitQueue
+ **/
+public class GroupCommitQueueTest
+{
+	/**
+	 * A queue that records each batch it is asked to write, optionally
+	 * taking its time about it
+	 **/
+	private static class RecordingQueue extends GroupCommitQueue<Integer>
+	{
+		/** The batches written, in order */
+		public final ArrayList<ArrayList<Integer>> batches = new ArrayList<ArrayList<Integer>>();
+
+		/** How long each write takes, in milliseconds */
+		private final long writeTime;
+
+		public RecordingQueue(int capacity, int maxBatch, long maxDelay, long writeTime)
+		{
+			super("Test writer", capacity, maxBatch, maxDelay);
+			this.writeTime = writeTime;
+		}
+
+		protected void write(ArrayList<Integer> batch)
+		{
+			try
+			{
+				Thread.sleep(writeTime);
+			}
+			catch (InterruptedException ignored)
+			{
+			}
+			synchronized (batches)
+			{
+				batches.add(new ArrayList<Integer>(batch));
+			}
+		}
+	}
+
+	/**
+	 * Tests that records arriving within the delay are written together, in
+	 * order, and that flushing waits for them
+	 **/
+	@Test
+	public void groupRecords() throws InterruptedException
+	{
+		RecordingQueue queue = new RecordingQueue(100, 4, 200, 0);
+		for (int i=0;i<10;++i)
+			queue.submit(i);
+		queue.flush();
+		assertEquals(10, queue.getWritten());
+		assertEquals(3, queue.getBatches());
+		ArrayList<Integer> all = new ArrayList<Integer>();
+		for (ArrayList<Integer> batch : queue.batches)
+		{
+			assertTrue(batch.size() <= 4);
+			all.addAll(batch);
+		}
+		for (int i=0;i<10;++i)
+			assertEquals(i, (int)all.get(i));
+		queue.close();
+	}
+
+	/**
+	 * Tests that producers wait for room once the queue is full
+	 **/
+	@Test
+	public void backpressure() throws InterruptedException
+	{
+		RecordingQueue queue = new RecordingQueue(2, 1, 0, 50);
+		for (int i=0;i<6;++i)
+		{
+			queue.submit(i);
+			assertTrue(queue.size() <= 2);
+		}
+		assertTrue(queue.getWritten() >= 3);
+		queue.close();
+		assertEquals(6, queue.getWritten());
+	}
+
+	/**
+	 * Tests that closing writes what is left without waiting out the delay
+	 * and refuses anything more
+	 **/
+	@Test
+	public void closeDrains() throws InterruptedException
+	{
+		RecordingQueue queue = new RecordingQueue(100, 100, 60000, 0);
+		queue.submit(1);
+		queue.submit(2);
+		long started = System.currentTimeMillis();
+		queue.close();
+		assertTrue(System.currentTimeMillis() - started < 10000);
+		assertEquals(2, queue.getWritten());
+		assertTrue(queue.isClosed());
+		try
+		{
+			queue.submit(3);
+			fail("Closed queue accepted a record");
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+	}
+}
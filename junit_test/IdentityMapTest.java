@@ -0,0 +1,70 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+/**
+ * Runs tests on the IdentityMap
+ **/
+public class IdentityMapTest
+{
+	/**
+	 * Map under test
+	 **/
+	private IdentityMap map;
+
+	/**
+	 * Creates an empty map for each test
+	 **/
+	@Before
+	public void setUp()
+	{
+		map = new IdentityMap();
+	}
+
+	/**
+	 * Tests that the first instance recorded for an id is kept
+	 **/
+	@Test
+	public void canonicalInstance() throws BadStateException, BadArgumentException
+	{
+		FoodItem first = new FoodItem("Chips", 100, 10);
+		first.setId(1);
+		FoodItem second = new FoodItem("Chips", 100, 10);
+		second.setId(1);
+		assertSame(first, map.canonical(first));
+		assertSame(first, map.canonical(second));
+		assertSame(first, map.get(FoodItem.class, 1));
+		assertEquals(1, map.size());
+	}
+
+	/**
+	 * Tests that instances of different types with the same id are kept apart
+	 **/
+	@Test
+	public void separateTypes() throws BadStateException, BadArgumentException
+	{
+		FoodItem item = new FoodItem("Chips", 100, 10);
+		item.setId(1);
+		Customer customer = new Customer("Jo", 100);
+		customer.setId(1);
+		map.put(item);
+		map.put(customer);
+		assertSame(item, map.get(FoodItem.class, 1));
+		assertSame(customer, map.get(Customer.class, 1));
+		assertNull(map.get(Manager.class, 1));
+		assertFalse(map.contains(Manager.class, 1));
+		assertEquals(2, map.size());
+	}
+
+	/**
+	 * Tests that only the outermost scope reports its exit
+	 **/
+	@Test
+	public void nestedScopes()
+	{
+		map.enter();
+		map.enter();
+		assertFalse(map.exit());
+		assertTrue(map.exit());
+	}
+}
@@ -66,6 +66,29 @@ public class ManagerMachineManagementScreenTest {
 		Assert.assertTrue( id == -1 );
 	}
 
+	@Test
+	public void sharedNextLayoutTest() throws SQLException, BadArgumentException,
+		BadStateException {
+		TestUtilities helper = new TestUtilities( true );
+		ArrayList<VendingMachine> vms = helper.machines;
+		ManagerMachineManagementScreen test = new ManagerMachineManagementScreen( vms );
+		Assert.assertSame( vms.get(0).getNextLayout(), test.getSharedNextLayout() );
+		test = new ManagerMachineManagementScreen( new ArrayList<VendingMachine>() );
+		Assert.assertNull( test.getSharedNextLayout() );
+	}
+
+	@Test
+	public void sharedNextLayoutTestBad() throws BadArgumentException {
+		ArrayList<VendingMachine> vms = new ArrayList<VendingMachine>();
+		vms.add( new VendingMachine( new Location( 14623, "New York", new String[0] ), 7, 1, 2, true, new LayoutLoader() {
+			public VMLayout[] loadLayouts( int currentLayoutId, int nextLayoutId ) throws SQLException {
+				throw new SQLException( "The database has gone away" );
+			}
+		} ) );
+		ManagerMachineManagementScreen test = new ManagerMachineManagementScreen( vms );
+		Assert.assertNull( test.getSharedNextLayout() );
+	}
+
 	@Test
 	public void activateTests() throws SQLException, BadArgumentException,
 		BadStateException {
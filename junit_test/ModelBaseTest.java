@@ -68,6 +68,30 @@ public class ModelBaseTest
 		assertEquals(homePlate.getId(), 21);
 		homePlate.setId(20); //failed to make it to home
 	}
+
+	@Test
+	public void testDirtyTracking()
+	{
+		ReBase infield=new ReBase();
+		assertTrue(infield.isDirty());
+		assertTrue(infield.isDirty("anything"));
+		infield.markClean();
+		assertFalse(infield.isDirty());
+		infield.markDirty("shortstop");
+		assertTrue(infield.isDirty("shortstop"));
+		assertFalse(infield.isDirty("catcher"));
+		assertEquals(1, infield.getDirtyFields().size());
+		ReBase copy=new ReBase(infield);
+		infield.markClean();
+		assertTrue(copy.isDirty("shortstop"));
+		copy.markDirty("catcher");
+		copy.markClean("shortstop");
+		assertFalse(copy.isDirty("shortstop"));
+		assertTrue(copy.isDirty("catcher"));
+		ReBase fresh=new ReBase();
+		fresh.markClean("anything");
+		assertTrue(fresh.isDirty("anything"));
+	}
 }
 
 class ReBase extends ModelBase
@@ -0,0 +1,73 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Runs tests on the SchemaMigrator
+ **/
+public class SchemaMigratorTest
+{
+	/**
+	 * Connection to an in-memory database
+	 **/
+	private Connection db;
+
+	/**
+	 * Opens a fresh in-memory database for each test
+	 **/
+	@Before
+	public void setUp() throws ClassNotFoundException, SQLException
+	{
+		Class.forName("org.sqlite.JDBC");
+		db = DriverManager.getConnection("jdbc:sqlite::memory:");
+	}
+
+	/**
+	 * Closes the database after each test
+	 **/
+	@After
+	public void tearDown() throws SQLException
+	{
+		db.close();
+	}
+
+	/**
+	 * Tests that migrations are applied once each, in order
+	 **/
+	@Test
+	public void applyInOrder() throws SQLException
+	{
+		String[][] first = {{"CREATE TABLE A(x INTEGER)"}};
+		assertEquals(1, new SchemaMigrator(first).migrate(db));
+		assertEquals(1, SchemaMigrator.getVersion(db));
+		String[][] both = {{"CREATE TABLE A(x INTEGER)"}, {"CREATE INDEX AX ON A(x)"}};
+		assertEquals(1, new SchemaMigrator(both).migrate(db));
+		assertEquals(2, SchemaMigrator.getVersion(db));
+		assertEquals(0, new SchemaMigrator(both).migrate(db));
+	}
+
+	/**
+	 * Tests that a failed migration is rolled back along with its version
+	 **/
+	@Test
+	public void rollbackFailure() throws SQLException
+	{
+		String[][] broken = {{"CREATE TABLE A(x INTEGER)"}, {"CREATE TABLE B(y INTEGER)", "CREATE TABLE A(x INTEGER)"}};
+		try
+		{
+			new SchemaMigrator(broken).migrate(db);
+			fail("Expected the second migration to fail");
+		}
+		catch (SQLException expected)
+		{
+		}
+		assertEquals(1, SchemaMigrator.getVersion(db));
+		assertTrue(db.getAutoCommit());
+		String[][] fixed = {{"CREATE TABLE A(x INTEGER)"}, {"CREATE TABLE B(y INTEGER)"}};
+		assertEquals(1, new SchemaMigrator(fixed).migrate(db));
+	}
+}
@@ -0,0 +1,102 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Runs tests on the StatementCache
+ **/
+public class StatementCacheTest
+{
+	/**
+	 * Connection to an in-memory database
+	 **/
+	private Connection db;
+
+	/**
+	 * Cache under test
+	 **/
+	private StatementCache cache;
+
+	/**
+	 * Opens a fresh in-memory database for each test
+	 **/
+	@Before
+	public void setUp() throws ClassNotFoundException, SQLException
+	{
+		Class.forName("org.sqlite.JDBC");
+		db = DriverManager.getConnection("jdbc:sqlite::memory:");
+		cache = new StatementCache(db, 2);
+	}
+
+	/**
+	 * Closes the database after each test
+	 **/
+	@After
+	public void tearDown() throws SQLException
+	{
+		cache.close();
+		db.close();
+	}
+
+	/**
+	 * Tests that a released statement is handed out again
+	 **/
+	@Test
+	public void reuseStatement() throws SQLException
+	{
+		PreparedStatement first = cache.prepare("SELECT ?");
+		cache.release(first);
+		PreparedStatement second = cache.prepare("SELECT ?");
+		cache.release(second);
+		assertSame(first, second);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	/**
+	 * Tests that nested use of the same SQL doesn't disturb the outer results
+	 **/
+	@Test
+	public void nestedStatement() throws SQLException
+	{
+		PreparedStatement outer = cache.prepare("SELECT ?");
+		outer.setInt(1, 1);
+		ResultSet outerResults = outer.executeQuery();
+		PreparedStatement inner = cache.prepare("SELECT ?");
+		assertNotSame(outer, inner);
+		inner.setInt(1, 2);
+		ResultSet innerResults = inner.executeQuery();
+		assertTrue(innerResults.next());
+		assertEquals(2, innerResults.getInt(1));
+		innerResults.close();
+		cache.release(inner);
+		assertTrue(outerResults.next());
+		assertEquals(1, outerResults.getInt(1));
+		outerResults.close();
+		cache.release(outer);
+		assertEquals(1, cache.size());
+	}
+
+	/**
+	 * Tests that the least recently used statement is evicted
+	 **/
+	@Test
+	public void evictStatement() throws SQLException
+	{
+		cache.release(cache.prepare("SELECT 1"));
+		cache.release(cache.prepare("SELECT 2"));
+		cache.release(cache.prepare("SELECT 1"));
+		cache.release(cache.prepare("SELECT 3"));
+		assertEquals(2, cache.size());
+		cache.release(cache.prepare("SELECT 1"));
+		assertEquals(2, cache.getHits());
+		cache.release(cache.prepare("SELECT 2"));
+		assertEquals(4, cache.getMisses());
+	}
+}
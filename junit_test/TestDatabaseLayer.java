@@ -1,22 +1,39 @@
 import static org.junit.Assert.*;
+import static org.junit.Assume.*;
 import org.junit.Test;
 import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.GregorianCalendar;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Arrays;
 
 /**
- * Runs tests on the DatabaseLayer
+ * Runs tests on the DatabaseLayer, and on the MemoryStorageEngine that
+ * stands in for it
  * @author Matthew Koontz
  **/
+@RunWith(Parameterized.class)
 public class TestDatabaseLayer
 {
 	/**
-	 * DatabaseLayer instance
+	 * Storage engine under test
 	 **/
-	private DatabaseLayer dbl;
+	private StorageEngine dbl;
 
 	/**
 	 * Set of items to use in tests
@@ -48,15 +65,54 @@ public class TestDatabaseLayer
 	 **/
 	private TestUtilities testUtil;
 
+	/**
+	 * Lists the storage engines to run every test against
+	 **/
+	@Parameters(name = "{1}")
+	public static Collection<Object[]> engines()
+	{
+		return Arrays.asList(new Object[][]{
+			{DatabaseLayer.getInstance(), "sqlite"},
+			{new MemoryStorageEngine(), "memory"}
+		});
+	}
+
+	/**
+	 * Runs the tests against a storage engine
+	 * @param engine The storage engine to test
+	 * @param name What the engine is called in test reports
+	 **/
+	public TestDatabaseLayer(StorageEngine engine, String name)
+	{
+		dbl = engine;
+	}
+
+	/**
+	 * Tells whether the engine under test is the SQLite database
+	 **/
+	private boolean isOnDisk()
+	{
+		return dbl instanceof DatabaseLayer;
+	}
+
+	/**
+	 * Fetches the SQLite database, skipping the current test when another
+	 * engine is under test, for tests that look at how things are stored
+	 **/
+	private DatabaseLayer onDisk()
+	{
+		assumeTrue(isOnDisk());
+		return (DatabaseLayer)dbl;
+	}
+
 	/**
 	 * Clears the database and initializes test objects for each test
 	 **/
 	@Before
 	public void setUp() throws SQLException, BadStateException, BadArgumentException
 	{
-		dbl = DatabaseLayer.getInstance();
 		dbl.nuke();
-		testUtil = new TestUtilities();
+		testUtil = new TestUtilities(dbl, false);
 		items = testUtil.items;
 		machines = testUtil.machines;
 		customers = testUtil.customers;
@@ -967,4 +1023,1296 @@ public class TestDatabaseLayer
 			TestUtilities.locationEquals(test, same);
 		}
 	}
+
+	/**
+	 * Tests that repeated queries are served from the statement cache
+	 **/
+	@Test
+	public void statementCache() throws SQLException, BadStateException, BadArgumentException
+	{
+		DatabaseLayer database = onDisk();
+		testUtil.noTestAddFoodItems();
+		int id = items.get(0).getId();
+		database.setEntityCaching(false);
+		try
+		{
+			dbl.getFoodItemById(id);
+			long hits = database.getStatementCacheHits();
+			long misses = database.getStatementCacheMisses();
+			for (int i=0;i<10;++i)
+				TestUtilities.foodItemEquals(dbl.getFoodItemById(id), items.get(0));
+			assertEquals(hits + 10, database.getStatementCacheHits());
+			assertEquals(misses, database.getStatementCacheMisses());
+		}
+		finally
+		{
+			database.setEntityCaching(true);
+		}
+	}
+
+	/**
+	 * Tests that transactions at the same machine share one copy of it
+	 **/
+	@Test
+	public void getTransactionSharedMachine() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		ArrayList<Transaction> test = dbl.getTransactionsByVendingMachine(machines.get(0));
+		assertEquals(2, test.size());
+		assertSame(test.get(0).getMachine(), test.get(1).getMachine());
+		TestUtilities.vendingMachineEquals(test.get(0).getMachine(), machines.get(0));
+		for (Transaction trans : test)
+		{
+			Transaction same = trans.getId() == transactions.get(0).getId() ? transactions.get(0) : transactions.get(2);
+			TestUtilities.transactionEquals(trans, same);
+		}
+	}
+
+	/**
+	 * Tests that the layouts of the machines loaded together share their items
+	 **/
+	@Test
+	public void getVendingMachineSharedItems() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		HashMap<Integer, FoodItem> seen = new HashMap<Integer, FoodItem>();
+		for (VendingMachine machine : dbl.getVendingMachinesAll())
+		{
+			for (VMLayout layout : new VMLayout[] {machine.getCurrentLayout(), machine.getNextLayout()})
+			{
+				for (Row[] line : layout.getRows())
+				{
+					for (Row row : line)
+					{
+						if (row == null)
+							continue;
+						FoodItem item = row.getProduct();
+						if (seen.containsKey(item.getId()))
+							assertSame(seen.get(item.getId()), item);
+						else
+							seen.put(item.getId(), item);
+					}
+				}
+			}
+		}
+		assertEquals(items.size(), seen.size());
+	}
+
+	/**
+	 * Tests that objects loaded within a session are the same instances
+	 **/
+	@Test
+	public void sessionSharesInstances() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		dbl.beginSession();
+		try
+		{
+			FoodItem item = dbl.getFoodItemById(items.get(0).getId());
+			assertSame(item, dbl.getFoodItemById(items.get(0).getId()));
+			assertTrue(dbl.getFoodItemsAll().contains(item));
+			VendingMachine machine = dbl.getVendingMachineById(machines.get(0).getId());
+			assertSame(machine, dbl.getTransactionsByVendingMachine(machine).get(0).getMachine());
+			Customer customer = dbl.getCustomerById(customers.get(0).getId());
+			assertSame(customer, dbl.getCustomerById(customers.get(0).getId()));
+		}
+		finally
+		{
+			dbl.endSession();
+		}
+	}
+
+	/**
+	 * Tests that objects loaded outside of a session are fresh instances
+	 **/
+	@Test
+	public void noSessionFreshInstances() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		dbl.beginSession();
+		FoodItem inside = dbl.getFoodItemById(items.get(0).getId());
+		dbl.endSession();
+		FoodItem outside = dbl.getFoodItemById(items.get(0).getId());
+		assertNotSame(inside, outside);
+		assertEquals(inside, outside);
+		assertNotSame(outside, dbl.getFoodItemById(items.get(0).getId()));
+	}
+
+	/**
+	 * Tests that repeated loads of an item are served from the cache
+	 **/
+	@Test
+	public void entityCacheHit() throws SQLException, BadStateException, BadArgumentException
+	{
+		DatabaseLayer database = onDisk();
+		testUtil.noTestAddFoodItems();
+		int id = items.get(0).getId();
+		FoodItem first = dbl.getFoodItemById(id);
+		long hits = database.getFoodItemCache().getHits();
+		FoodItem second = dbl.getFoodItemById(id);
+		assertEquals(hits + 1, database.getFoodItemCache().getHits());
+		assertNotSame(first, second);
+		assertEquals(first, second);
+	}
+
+	/**
+	 * Tests that writing an item replaces its cached copy
+	 **/
+	@Test
+	public void entityCacheInvalidate() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		FoodItem item = dbl.getFoodItemById(items.get(0).getId());
+		item.setPrice(item.getPrice() + 1);
+		dbl.updateOrCreateFoodItem(item);
+		assertEquals(item, dbl.getFoodItemById(item.getId()));
+	}
+
+	/**
+	 * Tests that the cache can be bypassed
+	 **/
+	@Test
+	public void entityCacheBypass() throws SQLException, BadStateException, BadArgumentException
+	{
+		DatabaseLayer database = onDisk();
+		testUtil.noTestAddFoodItems();
+		database.setEntityCaching(false);
+		try
+		{
+			long hits = database.getFoodItemCache().getHits();
+			dbl.getFoodItemById(items.get(0).getId());
+			dbl.getFoodItemById(items.get(0).getId());
+			assertEquals(hits, database.getFoodItemCache().getHits());
+			assertEquals(0, database.getFoodItemCache().size());
+		}
+		finally
+		{
+			database.setEntityCaching(true);
+		}
+	}
+
+	/**
+	 * Tests that a purchase charges the customer and takes an item in one go
+	 **/
+	@Test
+	public void purchase() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		Customer customer = customers.get(0);
+		VendingMachine machine = machines.get(1);
+		Transaction trans = new Transaction(new GregorianCalendar(), machine, customer, items.get(0), new Pair<Integer, Integer>(0,0));
+		assertTrue(dbl.purchase(trans));
+		assertTrue(!trans.isTempId());
+		assertEquals(1825, customer.getMoney());
+		assertEquals(1, machine.getCurrentLayout().getRows()[0][0].getRemainingQuantity());
+		assertEquals(1825, dbl.getCustomerById(customer.getId()).getMoney());
+		assertEquals(1, dbl.getVendingMachineById(machine.getId()).getCurrentLayout().getRows()[0][0].getRemainingQuantity());
+		TestUtilities.transactionEquals(dbl.getTransactionById(trans.getId()), trans);
+	}
+
+	/**
+	 * Tests that saving the customer and machine after a purchase doesn't put
+	 * back money or items that were taken meanwhile by another kiosk
+	 **/
+	@Test
+	public void purchaseNotWrittenBack() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		Customer here = dbl.getCustomerById(customers.get(0).getId());
+		Customer there = dbl.getCustomerById(customers.get(0).getId());
+		VendingMachine machineHere = dbl.getVendingMachineById(machines.get(1).getId(), true);
+		VendingMachine machineThere = dbl.getVendingMachineById(machines.get(1).getId(), true);
+		int money = here.getMoney();
+		Transaction first = new Transaction(new GregorianCalendar(), machineHere, here, items.get(0), new Pair<Integer, Integer>(0,0));
+		Transaction second = new Transaction(new GregorianCalendar(), machineThere, there, items.get(0), new Pair<Integer, Integer>(0,0));
+		assertTrue(dbl.purchase(first));
+		assertTrue(dbl.purchase(second));
+
+		here.setName("Elsewhere");
+		dbl.updateOrCreateCustomer(here);
+		machineHere.getCurrentLayout().setNextVisit(new GregorianCalendar(2013, 5, 1));
+		dbl.updateOrCreateVendingMachine(machineHere);
+		Customer stored = dbl.getCustomerById(here.getId());
+		assertEquals("Elsewhere", stored.getName());
+		assertEquals(money - first.getBalance() - second.getBalance(), stored.getMoney());
+		assertEquals(0, dbl.getVendingMachineById(machineHere.getId()).getCurrentLayout().getRows()[0][0].getRemainingQuantity());
+	}
+
+	/**
+	 * Tests that a purchase that can't be afforded or is sold out writes
+	 * nothing
+	 **/
+	@Test
+	public void purchaseDeclined() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		customers.get(0).setMoney(100);
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		Customer poor = customers.get(0);
+		Transaction unaffordable = new Transaction(new GregorianCalendar(), machines.get(1), poor, items.get(0), new Pair<Integer, Integer>(0,0));
+		assertFalse(dbl.purchase(unaffordable));
+		assertTrue(unaffordable.isTempId());
+		assertEquals(100, dbl.getCustomerById(poor.getId()).getMoney());
+		assertEquals(2, dbl.getVendingMachineById(machines.get(1).getId()).getCurrentLayout().getRows()[0][0].getRemainingQuantity());
+
+		Customer rich = customers.get(1);
+		Transaction soldOut = new Transaction(new GregorianCalendar(), machines.get(0), rich, items.get(2), new Pair<Integer, Integer>(1,0));
+		assertFalse(dbl.purchase(soldOut));
+		assertEquals(rich.getMoney(), dbl.getCustomerById(rich.getId()).getMoney());
+		assertEquals(0, dbl.getTransactionsAll().size());
+	}
+
+	/**
+	 * Tests that a purchase from a slot outside the machine is refused
+	 **/
+	@Test(expected=BadArgumentException.class)
+	public void purchaseOutsideMachine() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		Transaction trans = new Transaction(new GregorianCalendar(), machines.get(1), customers.get(0), items.get(0), new Pair<Integer, Integer>(0,0));
+		trans.getRow().first = -1; //pairs can be changed after they are checked
+		dbl.purchase(trans);
+	}
+
+	/**
+	 * Reads the rowid of every link between a layout and its rows, straight
+	 * from the database file
+	 **/
+	private ArrayList<Long> linkRowIds(int layoutId) throws SQLException
+	{
+		ArrayList<Long> ids = new ArrayList<Long>();
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		PreparedStatement stmt = db.prepareStatement("SELECT rowid FROM VMLayoutVMRowLink WHERE layoutId=? ORDER BY rowid");
+		stmt.setInt(1, layoutId);
+		ResultSet results = stmt.executeQuery();
+		while (results.next())
+			ids.add(results.getLong(1));
+		results.close();
+		stmt.close();
+		db.close();
+		return ids;
+	}
+
+	/**
+	 * Tests that saving a layout leaves the links of unchanged slots alone
+	 **/
+	@Test
+	public void updateLayoutIncrementally() throws SQLException, BadStateException, BadArgumentException
+	{
+		onDisk();
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		VendingMachine machine = machines.get(1);
+		int layoutId = machine.getCurrentLayout().getId();
+		ArrayList<Long> before = linkRowIds(layoutId);
+		machine.getCurrentLayout().getRows()[1][1].decrementRemainingQuantity();
+		dbl.updateOrCreateVendingMachine(machine);
+		assertEquals(before, linkRowIds(layoutId));
+		TestUtilities.vendingMachineEquals(machine, dbl.getVendingMachineById(machine.getId()));
+	}
+
+	/**
+	 * Tests that moving, emptying and refilling slots is saved correctly
+	 **/
+	@Test
+	public void updateLayoutSlots() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		VendingMachine machine = machines.get(1);
+		Row[][] rows = machine.getCurrentLayout().getRows();
+		Row moved = rows[0][0];
+		rows[0][0] = rows[0][1];
+		rows[0][1] = moved;
+		rows[1][0] = null;
+		rows[1][1] = new Row(items.get(2), 3, new GregorianCalendar(2013, 2, 1));
+		dbl.updateOrCreateVendingMachine(machine);
+		assertTrue(!rows[1][1].isTempId());
+		if (isOnDisk())
+			assertEquals(4, linkRowIds(machine.getCurrentLayout().getId()).size());
+		TestUtilities.vendingMachineEquals(machine, dbl.getVendingMachineById(machine.getId()));
+	}
+
+	/**
+	 * Tests that a new machine whose save fails partway keeps temporary ids
+	 * for everything it brought along, so that saving it again works
+	 **/
+	@Test
+	public void failedSaveLeavesTempIds() throws SQLException, BadStateException, BadArgumentException
+	{
+		onDisk();
+		testUtil.noTestAddFoodItems();
+		VendingMachine machine = machines.get(1);
+		executeDirectly("CREATE TRIGGER refuseMachines BEFORE INSERT ON VendingMachine BEGIN SELECT RAISE(ABORT, 'refused'); END");
+		try
+		{
+			dbl.updateOrCreateVendingMachine(machine);
+			fail("the machine was saved regardless");
+		}
+		catch (SQLException expected)
+		{
+		}
+		finally
+		{
+			executeDirectly("DROP TRIGGER refuseMachines");
+		}
+		assertTrue(machine.isTempId());
+		assertTrue(machine.getLocation().isTempId());
+		assertTrue(machine.getCurrentLayout().isTempId());
+		assertTrue(machine.getNextLayout().isTempId());
+		assertTrue(machine.getCurrentLayout().getRows()[1][1].isTempId());
+
+		dbl.updateOrCreateVendingMachine(machine);
+		assertEquals(4, linkRowIds(machine.getCurrentLayout().getId()).size());
+		TestUtilities.vendingMachineEquals(machine, dbl.getVendingMachineById(machine.getId()));
+	}
+
+	/**
+	 * Runs a statement straight against the database file, behind the
+	 * DatabaseLayer's back
+	 **/
+	private void executeDirectly(String sql) throws SQLException
+	{
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		Statement stmt = db.createStatement();
+		stmt.executeUpdate(sql);
+		stmt.close();
+		db.close();
+	}
+
+	/**
+	 * Tests that everything loaded from the database starts out clean
+	 **/
+	@Test
+	public void loadedClean() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddManagers();
+		assertFalse(dbl.getFoodItemById(items.get(0).getId()).isDirty());
+		assertFalse(dbl.getManagerById(managers.get(0).getId()).isDirty());
+		VendingMachine machine = dbl.getVendingMachineById(machines.get(1).getId());
+		assertFalse(machine.isDirty());
+		assertFalse(machine.getLocation().isDirty());
+		assertFalse(machine.getCurrentLayout().isDirty());
+		machine.getCurrentLayout().getRows()[0][0].decrementRemainingQuantity();
+		assertTrue(machine.getCurrentLayout().isDirty());
+		assertFalse(machine.getNextLayout().isDirty());
+	}
+
+	/**
+	 * Tests that saving unchanged objects writes nothing, and saving a
+	 * changed one only writes the fields that changed
+	 **/
+	@Test
+	public void saveOnlyDirty() throws SQLException, BadStateException, BadArgumentException
+	{
+		onDisk();
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		FoodItem item = dbl.getFoodItemById(items.get(0).getId());
+		VendingMachine machine = dbl.getVendingMachineById(machines.get(1).getId());
+		executeDirectly("UPDATE Item SET price=1 WHERE itemId=" + item.getId());
+		executeDirectly("UPDATE VendingMachine SET stockingInterval=99 WHERE machineId=" + machine.getId());
+
+		dbl.updateOrCreateFoodItem(item);
+		dbl.updateOrCreateVendingMachine(machine);
+		assertEquals(1, dbl.getFoodItemById(item.getId()).getPrice());
+		assertEquals(99, dbl.getVendingMachineById(machine.getId()).getStockingInterval());
+
+		item.setName("Renamed");
+		dbl.updateOrCreateFoodItem(item);
+		FoodItem stored = dbl.getFoodItemById(item.getId());
+		assertEquals("Renamed", stored.getName());
+		assertEquals(1, stored.getPrice());
+		assertFalse(item.isDirty());
+	}
+
+	/**
+	 * Tests that streaming transactions in small batches visits the same
+	 * transactions, in the same order, as loading them all
+	 **/
+	@Test
+	public void visitTransactions() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		final ArrayList<Transaction> visited = new ArrayList<Transaction>();
+		TransactionVisitor collector = new TransactionVisitor()
+		{
+			public void visit(Transaction transaction)
+			{
+				visited.add(transaction);
+			}
+		};
+		dbl.setFetchSize(1);
+		try
+		{
+			assertEquals(transactions.size(), dbl.visitTransactionsAll(collector));
+		}
+		finally
+		{
+			dbl.setFetchSize(DatabaseLayer.DEFAULT_FETCH_SIZE);
+		}
+		ArrayList<Transaction> all = dbl.getTransactionsAll();
+		assertEquals(all.size(), visited.size());
+		for (int i=0;i<all.size();++i)
+			TestUtilities.transactionEquals(all.get(i), visited.get(i));
+
+		visited.clear();
+		Customer customer = transactions.get(0).getCustomer();
+		assertEquals(dbl.getTransactionsByCustomer(customer).size(), dbl.visitTransactionsByCustomer(customer, collector));
+		for (Transaction transaction : visited)
+			assertEquals(customer.getId(), transaction.getCustomer().getId());
+	}
+
+	/**
+	 * Tests that a visitor that gives up part way leaves the database usable
+	 **/
+	@Test
+	public void visitTransactionsAborted() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		try
+		{
+			dbl.visitTransactionsAll(new TransactionVisitor()
+			{
+				public void visit(Transaction transaction)
+				{
+					throw new IllegalStateException("Stop");
+				}
+			});
+			fail("Visitor's exception was swallowed");
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+		assertEquals(transactions.size(), dbl.getTransactionsAll().size());
+	}
+
+	/**
+	 * Tests that paging through transactions visits each of them once, in
+	 * order of timestamp
+	 **/
+	@Test
+	public void transactionPages() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		ArrayList<Transaction> paged = new ArrayList<Transaction>();
+		String token = null;
+		int pages = 0;
+		do
+		{
+			TransactionPage page = dbl.getTransactionsPageAll(2, token);
+			assertTrue(page.getTransactions().size() <= 2);
+			paged.addAll(page.getTransactions());
+			token = page.getNextToken();
+			++pages;
+		}
+		while (token != null);
+		assertEquals(2, pages);
+		assertEquals(transactions.size(), paged.size());
+		for (int i=1;i<paged.size();++i)
+			assertTrue(paged.get(i-1).getTimestamp().compareTo(paged.get(i).getTimestamp()) <= 0);
+		TestUtilities.transactionEquals(transactions.get(1), paged.get(0));
+
+		TransactionPage machinePage = dbl.getTransactionsPageByVendingMachine(machines.get(0), 1, null);
+		assertEquals(1, machinePage.getTransactions().size());
+		TestUtilities.transactionEquals(transactions.get(2), machinePage.getTransactions().get(0));
+		machinePage = dbl.getTransactionsPageByVendingMachine(machines.get(0), 1, machinePage.getNextToken());
+		TestUtilities.transactionEquals(transactions.get(0), machinePage.getTransactions().get(0));
+		assertFalse(machinePage.hasNext());
+
+		TransactionPage statePage = dbl.getTransactionsPageByState(machines.get(0).getLocation().getState(), 10, null);
+		assertEquals(dbl.getTransactionsByState(machines.get(0).getLocation().getState()).size(), statePage.getTransactions().size());
+		assertFalse(statePage.hasNext());
+	}
+
+	/**
+	 * Tests that a garbled page token is rejected
+	 **/
+	@Test(expected=BadArgumentException.class)
+	public void transactionPageBadToken() throws SQLException, BadStateException, BadArgumentException
+	{
+		dbl.getTransactionsPageAll(10, "not a token");
+	}
+
+	/**
+	 * Tests that sales totals match what the transactions add up to
+	 **/
+	@Test
+	public void salesTotals() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		ArrayList<SalesTotal> none = dbl.getSalesTotals(SalesGrouping.FLEET, null, null);
+		assertEquals(1, none.size());
+		assertEquals(0, none.get(0).getUnits());
+		assertEquals(0, none.get(0).getRevenue());
+
+		testUtil.noTestAddTransactions();
+		long revenue = 0;
+		for (Transaction transaction : transactions)
+			revenue += transaction.getBalance();
+		SalesTotal fleet = dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0);
+		assertEquals(transactions.size(), fleet.getUnits());
+		assertEquals(revenue, fleet.getRevenue());
+
+		ArrayList<SalesTotal> byMachine = dbl.getSalesTotals(SalesGrouping.MACHINE, null, null);
+		assertEquals(2, byMachine.size());
+		assertEquals(machines.get(0).getId(), byMachine.get(0).getKey());
+		assertEquals(2, byMachine.get(0).getUnits());
+		assertEquals(transactions.get(0).getBalance() + transactions.get(2).getBalance(), byMachine.get(0).getRevenue());
+
+		ArrayList<SalesTotal> byState = dbl.getSalesTotals(SalesGrouping.STATE, null, null);
+		int units = 0;
+		for (SalesTotal total : byState)
+		{
+			assertNotNull(total.getName());
+			units += total.getUnits();
+		}
+		assertEquals(transactions.size(), units);
+
+		ArrayList<SalesTotal> byDay = dbl.getSalesTotals(SalesGrouping.DAY, null, null);
+		assertEquals(3, byDay.size());
+		GregorianCalendar midnight = (GregorianCalendar)transactions.get(1).getTimestamp().clone();
+		midnight.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		midnight.set(GregorianCalendar.MINUTE, 0);
+		midnight.set(GregorianCalendar.SECOND, 0);
+		midnight.set(GregorianCalendar.MILLISECOND, 0);
+		assertEquals(midnight.getTimeInMillis() + midnight.get(GregorianCalendar.DST_OFFSET), byDay.get(0).getKey());
+
+		GregorianCalendar from = transactions.get(2).getTimestamp();
+		ArrayList<SalesTotal> since = dbl.getSalesTotals(SalesGrouping.ITEM, from, null);
+		assertEquals(2, since.size());
+		assertEquals(1, dbl.getSalesTotals(SalesGrouping.WEEK, from, null).size());
+	}
+
+	/**
+	 * Reads the total units in the daily rollups, straight from the database
+	 * file
+	 **/
+	private int rolledUpUnits() throws SQLException
+	{
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		Statement stmt = db.createStatement();
+		ResultSet results = stmt.executeQuery("SELECT SUM(units) FROM DailySales");
+		int units = results.getInt(1);
+		results.close();
+		stmt.close();
+		db.close();
+		return units;
+	}
+
+	/**
+	 * Tests that the daily rollups follow each recorded sale and are what
+	 * whole-day totals are read from
+	 **/
+	@Test
+	public void salesRollups() throws SQLException, BadStateException, BadArgumentException
+	{
+		onDisk();
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		assertEquals(transactions.size(), rolledUpUnits());
+
+		Transaction changed = transactions.get(0);
+		long before = dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0).getRevenue();
+		changed = new Transaction(changed.getTimestamp(), changed.getMachine(), changed.getCustomer(), changed.getProduct(), changed.getRow(), changed.getBalance() + 100);
+		changed.setId(transactions.get(0).getId());
+		dbl.updateOrCreateTransaction(changed);
+		assertEquals(transactions.size(), rolledUpUnits());
+		assertEquals(before + 100, dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0).getRevenue());
+
+		GregorianCalendar newYear = new GregorianCalendar(2013, 0, 1, 12, 0);
+		GregorianCalendar afterLast = (GregorianCalendar)transactions.get(0).getTimestamp().clone();
+		afterLast.add(GregorianCalendar.MINUTE, 1);
+		assertEquals(3, dbl.getSalesTotals(SalesGrouping.FLEET, newYear, afterLast).get(0).getUnits());
+
+		executeDirectly("DELETE FROM DailySales");
+		assertEquals(0, dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0).getUnits());
+		assertEquals(1, dbl.getSalesTotals(SalesGrouping.FLEET, newYear, afterLast).get(0).getUnits());
+		assertEquals(transactions.size(), dbl.getSalesTotals(SalesGrouping.CUSTOMER, null, null).size());
+		assertTrue(dbl.rebuildSalesRollups() > 0);
+		assertEquals(transactions.size(), dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0).getUnits());
+
+		GregorianCalendar from = (GregorianCalendar)transactions.get(2).getTimestamp().clone();
+		from.add(GregorianCalendar.MINUTE, 1);
+		SalesTotal partial = dbl.getSalesTotals(SalesGrouping.FLEET, from, afterLast).get(0);
+		assertEquals(1, partial.getUnits());
+		assertEquals(changed.getBalance(), partial.getRevenue());
+	}
+
+	/**
+	 * Tests that bulk importing items writes the valid records and reports
+	 * the rest by line
+	 **/
+	@Test
+	public void bulkImportItems() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		String csv = "name,price,freshLength,active\nApple,100,7,true\n\"Nuts, salted\",250,90,0\nBroken,-5,1,true\nPear,abc,1,true\nPlum,75,3\n";
+		ImportReport report = dbl.bulkImport(ImportKind.ITEMS, new StringReader(csv), null);
+		assertEquals(2, report.getImported());
+		assertEquals(3, report.getErrors().size());
+		assertTrue(report.getErrors().get(0).startsWith("Line 4:"));
+		ArrayList<FoodItem> stored = dbl.getFoodItemsAll();
+		assertEquals(2, stored.size());
+		assertEquals("Nuts, salted", stored.get(1).getName());
+		assertEquals(250, stored.get(1).getPrice());
+		assertFalse(stored.get(1).isActive());
+	}
+
+	/**
+	 * Tests that an interrupted import carries on from its checkpoint and
+	 * forgets it once complete
+	 **/
+	@Test
+	public void bulkImportResume() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		onDisk();
+		executeDirectly("INSERT INTO ImportCheckpoint(name, records) VALUES('customers.csv', 2)");
+		String csv = "name,money\nAnn,100\nBob,200\nCat,300\n";
+		ImportReport report = dbl.bulkImport(ImportKind.CUSTOMERS, new StringReader(csv), "customers.csv");
+		assertEquals(2, report.getResumed());
+		assertEquals(1, report.getImported());
+		ArrayList<Customer> stored = dbl.getCustomersAll();
+		assertEquals(1, stored.size());
+		assertEquals("Cat", stored.get(0).getName());
+
+		report = dbl.bulkImport(ImportKind.CUSTOMERS, new StringReader(csv), "customers.csv");
+		assertEquals(0, report.getResumed());
+		assertEquals(3, report.getImported());
+	}
+
+	/**
+	 * Tests that imported machines can be loaded, with empty layouts of the
+	 * given size
+	 **/
+	@Test
+	public void bulkImportMachines() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		String csv = "zipCode,state,stockingInterval,height,width,depth,active\n14623,New York,7,3,2,5,true\n14623,New York,0,3,2,5,true\n";
+		ImportReport report = dbl.bulkImport(ImportKind.MACHINES, new StringReader(csv), null);
+		assertEquals(1, report.getImported());
+		assertEquals(1, report.getErrors().size());
+		ArrayList<VendingMachine> stored = dbl.getVendingMachinesAll();
+		assertEquals(1, stored.size());
+		VendingMachine machine = stored.get(0);
+		assertEquals(7, machine.getStockingInterval());
+		assertEquals("New York", machine.getLocation().getState());
+		assertEquals(3, machine.getCurrentLayout().getRows().length);
+		assertEquals(2, machine.getCurrentLayout().getRows()[0].length);
+		assertEquals(5, machine.getNextLayout().getDepth());
+		assertNull(machine.getCurrentLayout().getRows()[0][0]);
+	}
+
+	/**
+	 * Tests that imported transactions must refer to existing objects and
+	 * are added to the rollups
+	 **/
+	@Test
+	public void bulkImportTransactions() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		int machine = machines.get(0).getId();
+		int customer = customers.get(0).getId();
+		int item = items.get(0).getId();
+		String csv = "timestamp,machineId,customerId,productId,rowX,rowY,balance\n"
+			+ "1360000000000," + machine + "," + customer + "," + item + ",0,0,150\n"
+			+ "1360000060000," + machine + "," + customer + "," + item + ",0,0,150\n"
+			+ "1360000000000," + machine + ",9999," + item + ",0,0,150\n";
+		ImportReport report = dbl.bulkImport(ImportKind.TRANSACTIONS, new StringReader(csv), null);
+		assertEquals(2, report.getImported());
+		assertEquals(1, report.getErrors().size());
+		assertEquals(2, dbl.getTransactionsAll().size());
+		if (isOnDisk())
+			assertEquals(2, rolledUpUnits());
+		assertEquals(300, dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0).getRevenue());
+	}
+
+	/**
+	 * Tests that a file with the wrong header is refused outright
+	 **/
+	@Test(expected=BadArgumentException.class)
+	public void bulkImportBadHeader() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		dbl.bulkImport(ImportKind.ITEMS, new StringReader("name,cost\nApple,100\n"), null);
+	}
+
+	/**
+	 * Tests that transactions in a time range are exported with their
+	 * machine's location and their item's name, and that the daily rollups
+	 * can be exported too
+	 **/
+	@Test
+	public void exportTransactions() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		String csv = "timestamp,machineId,customerId,productId,rowX,rowY,balance\n"
+			+ "1360000000000," + machines.get(0).getId() + "," + customers.get(0).getId() + "," + items.get(0).getId() + ",0,0,150\n"
+			+ "1370000000000," + machines.get(0).getId() + "," + customers.get(0).getId() + "," + items.get(0).getId() + ",0,0,150\n";
+		dbl.bulkImport(ImportKind.TRANSACTIONS, new StringReader(csv), null);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExportWriter out = new ExportWriter(Channels.newChannel(bytes), ExportWriter.Format.CSV, ExportKind.TRANSACTIONS.getColumns());
+		GregorianCalendar to = new GregorianCalendar();
+		to.setTimeInMillis(1365000000000L);
+		assertEquals(1, dbl.export(ExportKind.TRANSACTIONS, null, to, out));
+		out.close();
+		String[] lines = bytes.toString("UTF-8").split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].startsWith("transactionId,timestamp,time,machineId,zipCode,state,"));
+		assertTrue(lines[1].contains(",1360000000000,2013-02-04T17:46:40Z," + machines.get(0).getId() + "," + machines.get(0).getLocation().getZipCode() + ","));
+		assertTrue(lines[1].contains("," + items.get(0).getName() + ","));
+
+		bytes.reset();
+		out = new ExportWriter(Channels.newChannel(bytes), ExportWriter.Format.NDJSON, ExportKind.DAILY_SALES.getColumns());
+		assertEquals(2, dbl.export(ExportKind.DAILY_SALES, null, null, out));
+		out.close();
+		assertEquals(2, bytes.toString("UTF-8").split("\n").length);
+		assertTrue(bytes.toString("UTF-8").contains("\"units\":1,\"revenue\":150}"));
+	}
+
+	/**
+	 * Tests that a writer with the wrong columns is refused
+	 **/
+	@Test(expected=BadArgumentException.class)
+	public void exportWrongColumns() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		ExportWriter out = new ExportWriter(Channels.newChannel(new ByteArrayOutputStream()), ExportWriter.Format.CSV, new String[]{"transactionId"});
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		dbl.export(ExportKind.TRANSACTIONS, null, null, out);
+	}
+
+	/**
+	 * Tests that queued purchases are written in the background, that those
+	 * turned down by the database are undone in memory, and that stopping
+	 * write-behind writes whatever is still queued
+	 **/
+	@Test
+	public void writeBehindPurchases() throws SQLException, BadStateException, BadArgumentException, InterruptedException
+	{
+		onDisk();
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		VendingMachine machine = machines.get(1);
+		Row row = machine.getCurrentLayout().getRows()[0][0];
+		Customer broke = customers.get(1);
+		int brokeMoney = broke.getMoney();
+		executeDirectly("UPDATE Customer SET money=0 WHERE customerId=" + broke.getId());
+		Customer customer = customers.get(0);
+		dbl.startWriteBehind(8, 4, 20);
+		try
+		{
+			assertTrue(dbl.isWriteBehind());
+			PendingPurchase declined = dbl.purchaseLater(new Transaction(new GregorianCalendar(), machine, broke, items.get(0), new Pair<Integer, Integer>(0,0)));
+			Transaction trans = new Transaction(new GregorianCalendar(), machine, customer, items.get(0), new Pair<Integer, Integer>(0,0));
+			PendingPurchase accepted = dbl.purchaseLater(trans);
+			assertEquals(0, row.getRemainingQuantity());
+			dbl.flushPurchases();
+			assertTrue(declined.isDone());
+			assertTrue(accepted.isDone());
+			assertFalse(declined.await());
+			assertEquals(brokeMoney, broke.getMoney());
+			assertTrue(accepted.await());
+			assertFalse(trans.isTempId());
+			assertEquals(1, row.getRemainingQuantity());
+			assertEquals(1825, dbl.getCustomerById(customer.getId()).getMoney());
+
+			PendingPurchase last = dbl.purchaseLater(new Transaction(new GregorianCalendar(), machine, customer, items.get(0), new Pair<Integer, Integer>(0,0)));
+			PendingPurchase soldOut = dbl.purchaseLater(new Transaction(new GregorianCalendar(), machine, customer, items.get(0), new Pair<Integer, Integer>(0,0)));
+			assertTrue(soldOut.isDone());
+			assertFalse(soldOut.await());
+			dbl.stopWriteBehind();
+			assertFalse(dbl.isWriteBehind());
+			assertTrue(last.isDone());
+			assertTrue(last.await());
+		}
+		finally
+		{
+			dbl.stopWriteBehind();
+		}
+		assertEquals(1650, customer.getMoney());
+		assertEquals(1650, dbl.getCustomerById(customer.getId()).getMoney());
+		assertEquals(0, dbl.getVendingMachineById(machine.getId()).getCurrentLayout().getRows()[0][0].getRemainingQuantity());
+		assertEquals(2, dbl.getTransactionsAll().size());
+		assertEquals(2, rolledUpUnits());
+	}
+
+	/**
+	 * Tests that without write-behind, a purchase made later is written
+	 * straight away
+	 **/
+	@Test
+	public void purchaseLaterWithoutWriteBehind() throws SQLException, BadStateException, BadArgumentException, InterruptedException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		assertFalse(dbl.isWriteBehind());
+		Transaction trans = new Transaction(new GregorianCalendar(), machines.get(1), customers.get(0), items.get(0), new Pair<Integer, Integer>(0,0));
+		PendingPurchase pending = dbl.purchaseLater(trans);
+		assertTrue(pending.isDone());
+		assertTrue(pending.await());
+		TestUtilities.transactionEquals(dbl.getTransactionById(trans.getId()), trans);
+		assertEquals(1825, dbl.getCustomerById(customers.get(0).getId()).getMoney());
+	}
+
+	/**
+	 * Tests that saving the customer and machine after a purchase made with
+	 * purchaseLater(), whether recorded or turned down, doesn't put back
+	 * money or items that were taken meanwhile by another kiosk
+	 **/
+	@Test
+	public void purchaseLaterNotWrittenBack() throws SQLException, BadStateException, BadArgumentException, InterruptedException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		customers.get(0).setMoney(items.get(0).getPrice()); //enough for one
+		testUtil.noTestAddCustomers();
+		Customer here = dbl.getCustomerById(customers.get(0).getId());
+		Customer there = dbl.getCustomerById(customers.get(0).getId());
+		VendingMachine machineHere = dbl.getVendingMachineById(machines.get(1).getId(), true);
+		VendingMachine machineThere = dbl.getVendingMachineById(machines.get(1).getId(), true);
+		assertTrue(dbl.purchaseLater(new Transaction(new GregorianCalendar(), machineHere, here, items.get(0), new Pair<Integer, Integer>(0,0))).await());
+		assertFalse(dbl.purchaseLater(new Transaction(new GregorianCalendar(), machineThere, there, items.get(0), new Pair<Integer, Integer>(0,0))).await());
+		assertEquals(items.get(0).getPrice(), there.getMoney());
+
+		here.setName("Elsewhere");
+		dbl.updateOrCreateCustomer(here);
+		there.setName("Somewhere else");
+		dbl.updateOrCreateCustomer(there);
+		machineHere.getCurrentLayout().setNextVisit(new GregorianCalendar(2013, 5, 1));
+		dbl.updateOrCreateVendingMachine(machineHere);
+		machineThere.getCurrentLayout().setNextVisit(new GregorianCalendar(2013, 6, 1));
+		dbl.updateOrCreateVendingMachine(machineThere);
+		assertEquals(0, dbl.getCustomerById(here.getId()).getMoney());
+		assertEquals(1, dbl.getVendingMachineById(machineHere.getId()).getCurrentLayout().getRows()[0][0].getRemainingQuantity());
+	}
+
+	/**
+	 * Tests that a report cut short leaves the thread free to write again,
+	 * rather than stuck on the read-only connection reports use
+	 **/
+	@Test
+	public void writeAfterAbortedReport() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		try
+		{
+			dbl.visitTransactionsAll(new TransactionVisitor()
+			{
+				public void visit(Transaction transaction)
+				{
+					throw new IllegalStateException("Stop");
+				}
+			});
+			fail("Visitor's exception was swallowed");
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+		Customer customer = customers.get(0);
+		customer.setMoney(1234);
+		dbl.updateOrCreateCustomer(customer);
+		assertEquals(1234, dbl.getCustomerById(customer.getId()).getMoney());
+		assertEquals(customers.size(), dbl.getCustomersAll().size());
+	}
+
+	/**
+	 * Tests that machines fetched without their layouts only load them when
+	 * they are needed, and then match machines fetched with them
+	 **/
+	@Test
+	public void lazyLayouts() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		ArrayList<VendingMachine> lazy = dbl.getVendingMachinesAll();
+		ArrayList<VendingMachine> eager = dbl.getVendingMachinesAll(true);
+		assertEquals(machines.size(), lazy.size());
+		for (VendingMachine machine : lazy)
+			assertFalse(machine.areLayoutsLoaded());
+		for (VendingMachine machine : eager)
+			assertTrue(machine.areLayoutsLoaded());
+
+		lazy.get(0).getCurrentLayout();
+		assertTrue(lazy.get(0).areLayoutsLoaded());
+		for (int i=0;i<lazy.size();++i)
+		{
+			TestUtilities.vendingMachineEquals(eager.get(i), lazy.get(i));
+			assertTrue(lazy.get(i).areLayoutsLoaded());
+		}
+		assertTrue(dbl.getVendingMachineById(machines.get(0).getId(), true).areLayoutsLoaded());
+	}
+
+	/**
+	 * Tests that saving a machine whose layouts were never needed leaves them
+	 * alone
+	 **/
+	@Test
+	public void saveWithoutLayouts() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		VendingMachine machine = dbl.getVendingMachineById(machines.get(0).getId());
+		machine.makeActive(false);
+		dbl.updateOrCreateVendingMachine(machine);
+		assertFalse(machine.areLayoutsLoaded());
+
+		VendingMachine saved = dbl.getVendingMachineById(machine.getId(), true);
+		assertFalse(saved.isActive());
+		machines.get(0).makeActive(false);
+		TestUtilities.vendingMachineEquals(machines.get(0), saved);
+	}
+
+	/**
+	 * Tests that machine summaries agree with the machines they summarize,
+	 * and that inactive ones can be left out
+	 **/
+	@Test
+	public void machineSummaries() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		VendingMachine inactive = machines.get(1);
+		inactive.makeActive(false);
+		dbl.updateOrCreateVendingMachine(inactive);
+
+		ArrayList<MachineSummary> all = dbl.getMachineSummaries(false);
+		assertEquals(machines.size(), all.size());
+		for (MachineSummary summary : all)
+		{
+			VendingMachine machine = dbl.getVendingMachineById(summary.getId(), true);
+			assertEquals(machine.isActive(), summary.isActive());
+			assertEquals(machine.getStockingInterval(), summary.getStockingInterval());
+			assertEquals(machine.getLocation().getZipCode(), summary.getZipCode());
+			assertEquals(machine.getLocation().getState(), summary.getState());
+			assertEquals(machine.getCurrentLayout().getNextVisit().getTimeInMillis(), summary.getNextVisit().getTimeInMillis());
+			int slots = 0;
+			int stocked = 0;
+			for (Row[] line : machine.getCurrentLayout().getRows())
+			{
+				for (Row row : line)
+				{
+					++slots;
+					if (row != null)
+						stocked += row.getRemainingQuantity();
+				}
+			}
+			assertEquals(stocked * 100 / (slots * machine.getCurrentLayout().getDepth()), summary.getFillPercentage());
+		}
+
+		ArrayList<MachineSummary> active = dbl.getMachineSummaries(true);
+		assertEquals(machines.size() - 1, active.size());
+		for (MachineSummary summary : active)
+		{
+			assertTrue(summary.isActive());
+			assertFalse(summary.getId() == inactive.getId());
+		}
+	}
+
+	/**
+	 * Tests that saving a location only rewrites the nearby businesses that
+	 * changed, and that they load back in the same order
+	 **/
+	@Test
+	public void updateNearbyBusinesses() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		VendingMachine machine = dbl.getVendingMachineById(machines.get(1).getId());
+		Location location = machine.getLocation();
+		String[] before = location.getNearbyBusinesses();
+		ArrayList<Long> stored = isOnDisk() ? businessRowIds(location.getId()) : null;
+		if (isOnDisk())
+			assertEquals(before.length, stored.size());
+
+		String[] after = new String[before.length];
+		System.arraycopy(before, 0, after, 0, before.length - 1);
+		after[before.length - 1] = "Moxxi's";
+		location.setNearbyBusinesses(after);
+		dbl.updateOrCreateVendingMachine(machine);
+
+		if (isOnDisk())
+		{
+			ArrayList<Long> updated = businessRowIds(location.getId());
+			assertEquals(stored.subList(0, before.length - 1), updated.subList(0, before.length - 1));
+			assertEquals(before.length, updated.size());
+		}
+		Location reloaded = dbl.getLocationById(location.getId());
+		assertArrayEquals(after, reloaded.getNearbyBusinesses());
+		assertNull(dbl.getLocationById(-1));
+	}
+
+	/**
+	 * Reads the rowid of every nearby business of a location, straight from
+	 * the database file
+	 **/
+	private ArrayList<Long> businessRowIds(int locationId) throws SQLException
+	{
+		ArrayList<Long> ids = new ArrayList<Long>();
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		PreparedStatement stmt = db.prepareStatement("SELECT rowid FROM NearbyBusiness WHERE locationId=? ORDER BY rowid");
+		stmt.setInt(1, locationId);
+		ResultSet results = stmt.executeQuery();
+		while (results.next())
+			ids.add(results.getLong(1));
+		results.close();
+		stmt.close();
+		db.close();
+		return ids;
+	}
+
+	/**
+	 * Tests that archived transactions are moved out of the live database
+	 * but still found by every query for transactions
+	 **/
+	@Test
+	public void archiveTransactions() throws SQLException, BadStateException, BadArgumentException, IOException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		SalesTotal before = dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0);
+		assertEquals(2, dbl.archiveTransactions(transactions.get(0).getTimestamp()));
+		if (isOnDisk())
+			assertEquals(1, liveTransactions());
+
+		assertEquals(transactions.size(), dbl.getTransactionsAll().size());
+		TestUtilities.transactionEquals(transactions.get(1), dbl.getTransactionById(transactions.get(1).getId()));
+		assertEquals(2, dbl.getTransactionsByVendingMachine(machines.get(0)).size());
+		assertEquals(transactions.size(), dbl.visitTransactionsAll(new TransactionVisitor()
+		{
+			public void visit(Transaction transaction) {}
+		}));
+
+		TransactionPage page = dbl.getTransactionsPageAll(2, null);
+		TestUtilities.transactionEquals(transactions.get(1), page.getTransactions().get(0));
+		TestUtilities.transactionEquals(transactions.get(2), page.getTransactions().get(1));
+		page = dbl.getTransactionsPageAll(2, page.getNextToken());
+		TestUtilities.transactionEquals(transactions.get(0), page.getTransactions().get(0));
+		assertFalse(page.hasNext());
+
+		SalesTotal after = dbl.getSalesTotals(SalesGrouping.FLEET, null, null).get(0);
+		assertEquals(before.getUnits(), after.getUnits());
+		assertEquals(before.getRevenue(), after.getRevenue());
+		assertEquals(transactions.size(), dbl.getSalesTotals(SalesGrouping.CUSTOMER, null, null).size());
+		GregorianCalendar from = (GregorianCalendar)transactions.get(2).getTimestamp().clone();
+		from.add(GregorianCalendar.MINUTE, 1);
+		assertEquals(1, dbl.getSalesTotals(SalesGrouping.FLEET, from, null).get(0).getUnits());
+		dbl.rebuildSalesRollups();
+		if (isOnDisk())
+			assertEquals(transactions.size(), rolledUpUnits());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExportWriter out = new ExportWriter(Channels.newChannel(bytes), ExportWriter.Format.CSV, ExportKind.TRANSACTIONS.getColumns());
+		assertEquals(transactions.size(), dbl.export(ExportKind.TRANSACTIONS, null, null, out));
+		out.close();
+
+		GregorianCalendar later = (GregorianCalendar)transactions.get(0).getTimestamp().clone();
+		later.add(GregorianCalendar.SECOND, 1);
+		assertEquals(1, dbl.archiveTransactions(later));
+		if (isOnDisk())
+			assertEquals(0, liveTransactions());
+		assertEquals(transactions.size(), dbl.getTransactionsAll().size());
+		try
+		{
+			dbl.updateOrCreateTransaction(transactions.get(0));
+			fail("An archived transaction was changed");
+		}
+		catch (BadArgumentException expected) {}
+	}
+
+	/**
+	 * Tests that more months can be archived than SQLite can attach at once
+	 **/
+	@Test
+	public void archiveManyMonths() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		for (int month=0;month<14;++month)
+			dbl.updateOrCreateTransaction(new Transaction(new GregorianCalendar(2010, month, 15), machines.get(0), customers.get(0), items.get(0), new Pair<Integer, Integer>(0,0)));
+		assertEquals(14, dbl.archiveTransactions(new GregorianCalendar(2012, 0, 1)));
+		assertEquals(14, dbl.getTransactionsAll().size());
+		assertEquals(14, dbl.getTransactionsAll().size());
+		assertEquals(14, dbl.getSalesTotals(SalesGrouping.CUSTOMER, null, null).get(0).getUnits());
+	}
+
+	/**
+	 * Tests that months archived behind the DatabaseLayer's back, as by
+	 * another process sharing the database file, are still found
+	 **/
+	@Test
+	public void archivedElsewhere() throws SQLException, BadStateException, BadArgumentException
+	{
+		onDisk();
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		testUtil.noTestAddCustomers();
+		testUtil.noTestAddTransactions();
+		assertEquals(2, dbl.archiveTransactions(transactions.get(0).getTimestamp()));
+
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		try
+		{
+			Statement stmt = db.createStatement();
+			ArrayList<String> catalog = new ArrayList<String>();
+			ResultSet results = stmt.executeQuery("SELECT month, start, end, path FROM TransactionArchive");
+			while (results.next())
+				catalog.add("INSERT INTO TransactionArchive(month, start, end, path) VALUES(" + results.getInt(1) + ", " + results.getLong(2) + ", " + results.getLong(3) + ", '" + results.getString(4) + "')");
+			results.close();
+			stmt.executeUpdate("DELETE FROM TransactionArchive");
+			assertEquals(1, dbl.getTransactionsAll().size()); //as if nothing had been archived here
+
+			for (String month : catalog)
+				stmt.executeUpdate(month);
+			stmt.close();
+		}
+		finally
+		{
+			db.close();
+		}
+		assertEquals(transactions.size(), dbl.getTransactionsAll().size());
+		assertEquals(transactions.size(), dbl.getSalesTotals(SalesGrouping.CUSTOMER, null, null).size());
+	}
+
+	/**
+	 * Counts the transactions left in the live database, straight from the
+	 * database file
+	 **/
+	private int liveTransactions() throws SQLException
+	{
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		Statement stmt = db.createStatement();
+		ResultSet results = stmt.executeQuery("SELECT COUNT(*) FROM VMTransaction");
+		int count = results.getInt(1);
+		results.close();
+		stmt.close();
+		db.close();
+		return count;
+	}
+
+	/**
+	 * Tests that collecting garbage deletes the layouts and rows restocking
+	 * leaves behind, and only those, so storage stops growing with restocks
+	 **/
+	@Test
+	public void collectGarbage() throws SQLException, BadStateException, BadArgumentException
+	{
+		testUtil.noTestAddFoodItems();
+		testUtil.noTestAddVendingMachines();
+		VendingMachine machine = dbl.getVendingMachineById(machines.get(0).getId(), true);
+		machine.swapInNextLayout(new VMLayout(machine.getNextLayout(), true));
+		dbl.updateOrCreateVendingMachine(machine);
+		dbl.collectGarbage(Integer.MAX_VALUE);
+		int layouts = isOnDisk() ? countDirectly("VMLayout") : 0;
+		int rows = isOnDisk() ? countDirectly("VMRow") : 0;
+
+		for (int restock=0;restock<3;++restock)
+		{
+			machine.swapInNextLayout(new VMLayout(machine.getNextLayout(), true));
+			dbl.updateOrCreateVendingMachine(machine);
+		}
+		if (isOnDisk())
+			assertTrue(countDirectly("VMRow") > rows);
+
+		GarbageReport report = dbl.collectGarbage(Integer.MAX_VALUE);
+		assertEquals(6, report.getLayouts());
+		if (isOnDisk())
+		{
+			assertEquals(layouts, countDirectly("VMLayout"));
+			assertEquals(rows, countDirectly("VMRow"));
+		}
+		assertEquals(0, report.getPagesLeft());
+		TestUtilities.vendingMachineEquals(machine, dbl.getVendingMachineById(machine.getId(), true));
+
+		GarbageReport nothing = dbl.collectGarbage(0);
+		assertEquals(0, nothing.getLayouts());
+		assertEquals(0, nothing.getRows());
+	}
+
+	/**
+	 * Tests that collecting garbage converts a database made before
+	 * incremental vacuuming was turned on
+	 **/
+	@Test
+	public void collectGarbageConverts() throws SQLException, BadArgumentException
+	{
+		onDisk();
+		executeDirectly("PRAGMA auto_vacuum = NONE; VACUUM");
+		assertEquals(0, pragmaDirectly("auto_vacuum"));
+
+		assertFalse(dbl.collectGarbage(Integer.MAX_VALUE).isDeferred());
+		assertEquals(2, pragmaDirectly("auto_vacuum"));
+	}
+
+	/**
+	 * Reads a numeric pragma straight from the database file
+	 **/
+	private int pragmaDirectly(String pragma) throws SQLException
+	{
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		Statement stmt = db.createStatement();
+		ResultSet results = stmt.executeQuery("PRAGMA " + pragma);
+		int value = results.getInt(1);
+		results.close();
+		stmt.close();
+		db.close();
+		return value;
+	}
+
+	/**
+	 * Counts the rows of a table, straight from the database file
+	 **/
+	private int countDirectly(String table) throws SQLException
+	{
+		Connection db = DriverManager.getConnection("jdbc:sqlite:" + DatabaseLayer.DEFAULT_DB_LOCATION);
+		Statement stmt = db.createStatement();
+		ResultSet results = stmt.executeQuery("SELECT COUNT(*) FROM " + table);
+		int count = results.getInt(1);
+		results.close();
+		stmt.close();
+		db.close();
+		return count;
+	}
 }
@@ -9,9 +9,9 @@ import java.util.LinkedList;
 public class TestUtilities
 {
 	/**
-	 * DatabaseLayer instance
+	 * Storage engine the objects are added to
 	 **/
-	private DatabaseLayer dbl;
+	private StorageEngine dbl;
 
 	/**
 	 * Set of items to use in tests
@@ -70,7 +70,18 @@ public class TestUtilities
 	 **/
 	public TestUtilities(boolean addItemsToDatabase) throws BadStateException, BadArgumentException, SQLException
 	{
-		dbl = DatabaseLayer.getInstance();
+		this(Storage.getEngine(), addItemsToDatabase);
+	}
+
+	/**
+	 * Generates objects for use in tests.
+	 * @param engine The storage engine to add them to.
+	 * @param addItemsToDatabase If true the items generated are also added to
+	 * the storage engine.
+	 **/
+	public TestUtilities(StorageEngine engine, boolean addItemsToDatabase) throws BadStateException, BadArgumentException, SQLException
+	{
+		dbl = engine;
 
 		initFoodItems();
 		initVendingMachines();
@@ -0,0 +1,135 @@
+import java.util.GregorianCalendar;
+
+/**
+ * One month of archived transactions, kept in a SQLite file of its own so
+ * that the live database stops growing with the history. The file is
+ * attached to a connection under its schema name only when a query needs
+ * the transactions in it.
+ **/
+public class ArchivePartition
+{
+	/** The month, as the year times 100 plus the month of the year (1 to 12). */
+	private final int month;
+
+	/** When the month starts, in milliseconds since the epoch. */
+	private final long start;
+
+	/** When the next month starts, in milliseconds since the epoch. */
+	private final long end;
+
+	/** Where the partition's database file is. */
+	private final String path;
+
+	/**
+	 * Creates a partition.
+	 * @param month The month, as the year times 100 plus the month of the
+	 * year (1 to 12).
+	 * @param start When the month starts, in milliseconds since the epoch.
+	 * @param end When the next month starts, in milliseconds since the
+	 * epoch.
+	 * @param path Where the partition's database file is.
+	 **/
+	public ArchivePartition(int month, long start, long end, String path)
+	{
+		this.month = month;
+		this.start = start;
+		this.end = end;
+		this.path = path;
+	}
+
+	/**
+	 * Creates the partition for the local month that a time falls in.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @param directoryAndStem The path of the live database, less its
+	 * extension, which each partition's file name begins with.
+	 * @return The partition.
+	 **/
+	public static ArchivePartition containing(long time, String directoryAndStem)
+	{
+		GregorianCalendar first = new GregorianCalendar();
+		first.setTimeInMillis(time);
+		first.set(GregorianCalendar.DAY_OF_MONTH, 1);
+		first.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		first.set(GregorianCalendar.MINUTE, 0);
+		first.set(GregorianCalendar.SECOND, 0);
+		first.set(GregorianCalendar.MILLISECOND, 0);
+		GregorianCalendar next = (GregorianCalendar)first.clone();
+		next.add(GregorianCalendar.MONTH, 1);
+
+		int year = first.get(GregorianCalendar.YEAR);
+		int month = first.get(GregorianCalendar.MONTH) + 1;
+		return new ArchivePartition(year * 100 + month, first.getTimeInMillis(), next.getTimeInMillis(), String.format("%s-%04d-%02d.db", directoryAndStem, year, month));
+	}
+
+	/**
+	 * @return The month, as the year times 100 plus the month of the year.
+	 **/
+	public int getMonth()
+	{
+		return month;
+	}
+
+	/**
+	 * @return When the month starts, in milliseconds since the epoch.
+	 **/
+	public long getStart()
+	{
+		return start;
+	}
+
+	/**
+	 * @return When the next month starts, in milliseconds since the epoch.
+	 **/
+	public long getEnd()
+	{
+		return end;
+	}
+
+	/**
+	 * @return Where the partition's database file is.
+	 **/
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return The name the partition's file is attached under.
+	 **/
+	public String getSchema()
+	{
+		return "archive" + month;
+	}
+
+	/**
+	 * Checks whether any of the partition's month falls within a time range.
+	 * @param from The start of the range.
+	 * @param to The end of the range (exclusive).
+	 * @return Whether the two overlap.
+	 **/
+	public boolean overlaps(long from, long to)
+	{
+		return start < to && from < end;
+	}
+
+	/**
+	 * Points a query at the partition's transactions instead of the live
+	 * ones. The archived table keeps the name VMTransaction as an alias, so
+	 * the rest of the query is unchanged.
+	 * @param sql A query selecting FROM VMTransaction.
+	 * @return The same query, selecting from this partition.
+	 **/
+	public String retarget(String sql)
+	{
+		return sql.replace("FROM VMTransaction", "FROM " + getSchema() + ".VMTransaction AS VMTransaction");
+	}
+
+	/**
+	 * @return The month, as yyyy-mm.
+	 **/
+	@Override
+	public String toString()
+	{
+		return String.format("%04d-%02d", month / 100, month % 100);
+	}
+}
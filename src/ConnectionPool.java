@@ -0,0 +1,398 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, thread-safe pool of database connections.
+ * Each thread checks out at most one connection at a time: nested checkouts by the same thread share it, and it only goes back into the pool once every one of them has been released.
+ * Connections are kept open between checkouts, so callers no longer pay for a reconnect on every query.
+ * Each connection also carries a <tt>StatementCache</tt>, so the statements compiled on it survive from one checkout to the next.
+ * Precondition: The database driver must already be loaded.
+ */
+public class ConnectionPool
+{
+	/** Default maximum number of simultaneously open connections. */
+	public static final int DEFAULT_CAPACITY=4;
+
+	/** How long to wait for a connection to be returned to an exhausted pool, in seconds. */
+	private static final int CHECKOUT_TIMEOUT=30;
+
+	/** How long a connection waits on another connection's lock before giving up, in seconds. */
+	private static final int BUSY_TIMEOUT=10;
+
+	/** The JDBC URL to which every connection is opened. */
+	private final String url;
+
+	/** Statements, such as <tt>PRAGMA</tt>s, run on every connection as soon as it is opened. */
+	private final String[] setup;
+
+	/** Driver-specific settings with which every connection is opened. */
+	private final Properties properties;
+
+	/** The maximum number of connections that may ever be open at once. */
+	private final int capacity;
+
+	/** Open connections that nobody has checked out. */
+	private final BlockingQueue<Connection> idle;
+
+	/** Every checked out connection, mapped to the thread holding it. */
+	private final Map<Connection, Thread> owners;
+
+	/** The statement cache belonging to each open connection. */
+	private final Map<Connection, StatementCache> caches;
+
+	/** The calling thread's current checkout, or <tt>null</tt> if it holds none. */
+	private final ThreadLocal<Checkout> checkouts;
+
+	/** Number of connections currently open, whether idle or checked out. */
+	private int opened;
+
+	/** Whether <tt>close()</tt> has been called. */
+	private boolean closed;
+
+	/**
+	 * A single thread's hold on a connection.
+	 */
+	private static class Checkout
+	{
+		/** The connection held. */
+		public final Connection connection;
+
+		/** The statement cache belonging to the connection. */
+		public final StatementCache statements;
+
+		/** Number of outstanding <tt>acquire()</tt>s yet to be <tt>release()</tt>d. */
+		public int depth;
+
+		/**
+		 * Records a fresh checkout.
+		 * @param connection the connection being held
+		 * @param statements the statement cache belonging to the connection
+		 */
+		public Checkout(Connection connection, StatementCache statements)
+		{
+			this.connection=connection;
+			this.statements=statements;
+			depth=1;
+		}
+	}
+
+	/**
+	 * Creates a pool of at most <tt>DEFAULT_CAPACITY</tt> connections.
+	 * No connections are opened until they are first needed.
+	 * @param url the JDBC URL of the database
+	 */
+	public ConnectionPool(String url)
+	{
+		this(url, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a pool of at most <tt>capacity</tt> connections.
+	 * No connections are opened until they are first needed.
+	 * @param url the JDBC URL of the database
+	 * @param capacity the maximum number of simultaneously open connections
+	 * @throws IllegalArgumentException if the <tt>capacity</tt> is not positive
+	 */
+	public ConnectionPool(String url, int capacity)
+	{
+		this(url, capacity, new String[0]);
+	}
+
+	/**
+	 * Creates a pool of at most <tt>capacity</tt> connections, each of which is configured by running some statements as soon as it is opened.
+	 * No connections are opened until they are first needed.
+	 * @param url the JDBC URL of the database
+	 * @param capacity the maximum number of simultaneously open connections
+	 * @param setup the statements with which to configure each connection, such as <tt>PRAGMA</tt>s
+	 * @throws IllegalArgumentException if the <tt>capacity</tt> is not positive
+	 */
+	public ConnectionPool(String url, int capacity, String[] setup)
+	{
+		this(url, capacity, setup, new Properties());
+	}
+
+	/**
+	 * Creates a pool of at most <tt>capacity</tt> connections, each opened with some driver-specific settings and then configured by running some statements.
+	 * No connections are opened until they are first needed.
+	 * @param url the JDBC URL of the database
+	 * @param capacity the maximum number of simultaneously open connections
+	 * @param setup the statements with which to configure each connection, such as <tt>PRAGMA</tt>s
+	 * @param properties the settings to pass to the driver when opening each connection, such as to open it read-only
+	 * @throws IllegalArgumentException if the <tt>capacity</tt> is not positive
+	 */
+	public ConnectionPool(String url, int capacity, String[] setup, Properties properties)
+	{
+		if(capacity<=0)
+			throw new IllegalArgumentException("Capacity must be positive");
+
+		this.url=url;
+		this.setup=setup.clone();
+		this.properties=(Properties)properties.clone();
+		this.capacity=capacity;
+		idle=new ArrayBlockingQueue<Connection>(capacity);
+		owners=new HashMap<Connection, Thread>();
+		caches=new HashMap<Connection, StatementCache>();
+		checkouts=new ThreadLocal<Checkout>();
+		opened=0;
+		closed=false;
+	}
+
+	/**
+	 * Checks out a connection for the calling thread.
+	 * If the thread already holds one, that same connection is returned again.
+	 * Every call must eventually be matched by a call to <tt>release()</tt> from the same thread.
+	 * @return a connection to the database
+	 * @throws SQLException if no connection could be opened, or none became available in time
+	 */
+	public Connection acquire() throws SQLException
+	{
+		Checkout held=checkouts.get();
+		if(held!=null)
+		{
+			++held.depth;
+			return held.connection;
+		}
+
+		Connection connection=idle.poll();
+		if(connection==null)
+			connection=openOrReclaim();
+		if(connection==null)
+		{
+			try
+			{
+				connection=idle.poll(CHECKOUT_TIMEOUT, TimeUnit.SECONDS);
+			}
+			catch(InterruptedException interrupted)
+			{
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a database connection");
+			}
+			if(connection==null)
+				throw new SQLException("Timed out waiting for a database connection");
+		}
+
+		StatementCache statements;
+		synchronized(this)
+		{
+			owners.put(connection, Thread.currentThread());
+			statements=caches.get(connection);
+		}
+		checkouts.set(new Checkout(connection, statements));
+		return connection;
+	}
+
+	/**
+	 * Releases the calling thread's hold on its connection.
+	 * Once every <tt>acquire()</tt> has been matched, the connection goes back into the pool.
+	 * Any transaction the thread left open is rolled back first, so that it can't leak to the next borrower.
+	 * @throws SQLException in case of a database error
+	 */
+	public void release() throws SQLException
+	{
+		Checkout held=checkouts.get();
+		if(held==null || --held.depth>0)
+			return;
+
+		checkouts.remove();
+		synchronized(this)
+		{
+			owners.remove(held.connection);
+		}
+		giveBack(held.connection);
+	}
+
+	/**
+	 * Closes every idle connection and prevents any more from being opened.
+	 * Connections that are still checked out are closed as they are released.
+	 * @throws SQLException in case of a database error
+	 */
+	public void close() throws SQLException
+	{
+		synchronized(this)
+		{
+			closed=true;
+		}
+
+		Connection connection;
+		while((connection=idle.poll())!=null)
+			discard(connection);
+	}
+
+	/**
+	 * Retrieves the statement cache of the connection the calling thread has checked out.
+	 * @return the statement cache
+	 * @throws SQLException if the calling thread holds no connection
+	 */
+	public StatementCache statements() throws SQLException
+	{
+		Checkout held=checkouts.get();
+		if(held==null)
+			throw new SQLException("No database connection has been checked out");
+
+		return held.statements;
+	}
+
+	/**
+	 * @return the number of statement requests, across all connections, served without compiling anything
+	 */
+	public synchronized long getStatementHits()
+	{
+		long hits=0;
+		for(StatementCache cache : caches.values())
+			hits+=cache.getHits();
+		return hits;
+	}
+
+	/**
+	 * @return the number of statement requests, across all connections, that had to compile a statement
+	 */
+	public synchronized long getStatementMisses()
+	{
+		long misses=0;
+		for(StatementCache cache : caches.values())
+			misses+=cache.getMisses();
+		return misses;
+	}
+
+	/**
+	 * @return the maximum number of simultaneously open connections
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return the number of connections currently open, whether idle or checked out
+	 */
+	public synchronized int getOpenCount()
+	{
+		return opened;
+	}
+
+	/**
+	 * @return the number of open connections not currently checked out
+	 */
+	public int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Obtains a connection without waiting: either opens a new one if the pool isn't yet full, or takes back one abandoned by a thread that has since died.
+	 * @return the connection, or <tt>null</tt> if the caller will have to wait for one
+	 * @throws SQLException if the pool has been closed or a new connection couldn't be opened
+	 */
+	private Connection openOrReclaim() throws SQLException
+	{
+		synchronized(this)
+		{
+			if(closed)
+				throw new SQLException("Connection pool has been closed");
+
+			if(opened>=capacity)
+			{
+				for(Map.Entry<Connection, Thread> owner : owners.entrySet())
+					if(!owner.getValue().isAlive()) //its thread died without releasing it
+					{
+						Connection orphan=owner.getKey();
+						owners.remove(orphan);
+						resetForReuse(orphan);
+						try
+						{
+							caches.get(orphan).close(); //its statements may have been left mid-use
+						}
+						catch(SQLException ignored) {}
+						caches.put(orphan, new StatementCache(orphan));
+						return orphan;
+					}
+				return null;
+			}
+			++opened;
+		}
+
+		try
+		{
+			Connection connection=DriverManager.getConnection(url, properties);
+			Statement stmt=connection.createStatement();
+			stmt.setQueryTimeout(BUSY_TIMEOUT); //wait on other connections' locks rather than failing outright
+			for(String sql : setup)
+				stmt.execute(sql);
+			stmt.close();
+			synchronized(this)
+			{
+				caches.put(connection, new StatementCache(connection));
+			}
+			return connection;
+		}
+		catch(SQLException failure)
+		{
+			synchronized(this)
+			{
+				--opened;
+			}
+			throw failure;
+		}
+	}
+
+	/**
+	 * Returns a connection to the idle queue, or closes it if the pool has been closed.
+	 * @param connection the connection no longer in use
+	 * @throws SQLException in case of a database error
+	 */
+	private void giveBack(Connection connection) throws SQLException
+	{
+		resetForReuse(connection);
+
+		boolean shutDown;
+		synchronized(this)
+		{
+			shutDown=closed;
+		}
+		if(shutDown || !idle.offer(connection))
+			discard(connection);
+	}
+
+	/**
+	 * Abandons any transaction left open on a connection.
+	 * @param connection the connection to clean up
+	 */
+	private void resetForReuse(Connection connection)
+	{
+		try
+		{
+			if(!connection.getAutoCommit())
+			{
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+		catch(SQLException ignored) {} //the next borrower will find out soon enough
+	}
+
+	/**
+	 * Closes a connection and forgets about it.
+	 * @param connection the connection to close
+	 * @throws SQLException in case of a database error
+	 */
+	private void discard(Connection connection) throws SQLException
+	{
+		StatementCache statements;
+		synchronized(this)
+		{
+			--opened;
+			statements=caches.remove(connection);
+		}
+		if(statements!=null)
+			statements.close();
+		connection.close();
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads comma-separated values one record at a time.
+ * Fields may be quoted with double quotes, in which case they may contain commas, line breaks, and doubled quotes standing for single ones.
+ * Blank lines are skipped.
+ */
+public class CsvReader
+{
+	/** The source of the text. */
+	private final BufferedReader in;
+
+	/** The line on which the next character will be read. */
+	private int line;
+
+	/** The line on which the most recently read record started. */
+	private int recordLine;
+
+	/** A character read but not yet consumed, or -2 if there is none. */
+	private int pushedBack;
+
+	/**
+	 * Creates a reader.
+	 * @param in the source of the text
+	 */
+	public CsvReader(Reader in)
+	{
+		this.in=in instanceof BufferedReader ? (BufferedReader)in : new BufferedReader(in);
+		line=1;
+		recordLine=0;
+		pushedBack=-2;
+	}
+
+	/**
+	 * Reads the next record.
+	 * @return its fields, or <tt>null</tt> if there are no more records
+	 * @throws IOException if the text could not be read
+	 */
+	public String[] readRecord() throws IOException
+	{
+		int next=read();
+		while(next=='\n') //skip blank lines
+			next=read();
+		if(next==-1)
+			return null;
+
+		recordLine=line;
+		ArrayList<String> fields=new ArrayList<String>();
+		StringBuilder field=new StringBuilder();
+		boolean quoted=false;
+		while(true)
+		{
+			if(quoted)
+			{
+				if(next==-1)
+					quoted=false; //unterminated quote: take what there is
+				else if(next=='"')
+				{
+					next=read();
+					if(next=='"')
+						field.append('"');
+					else
+					{
+						quoted=false;
+						continue;
+					}
+				}
+				else
+					field.append((char)next);
+			}
+			else if(next=='"' && field.length()==0)
+				quoted=true;
+			else if(next==',')
+			{
+				fields.add(field.toString());
+				field.setLength(0);
+			}
+			else if(next=='\n' || next==-1)
+			{
+				fields.add(field.toString());
+				return fields.toArray(new String[fields.size()]);
+			}
+			else
+				field.append((char)next);
+			next=read();
+		}
+	}
+
+	/**
+	 * @return the line number (starting from 1) on which the most recently read record started
+	 */
+	public int getLineNumber()
+	{
+		return recordLine;
+	}
+
+	/**
+	 * Closes the underlying source.
+	 * @throws IOException if it could not be closed
+	 */
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	/**
+	 * Reads one character, turning each line break (whether \n, \r\n, or \r) into a single \n and counting it.
+	 * @return the character, or -1 at the end of the text
+	 * @throws IOException if the text could not be read
+	 */
+	private int read() throws IOException
+	{
+		int next;
+		if(pushedBack!=-2)
+		{
+			next=pushedBack;
+			pushedBack=-2;
+		}
+		else
+			next=in.read();
+
+		if(next=='\r')
+		{
+			int after=in.read();
+			if(after!='\n')
+				pushedBack=after;
+			next='\n';
+		}
+		if(next=='\n')
+			++line;
+		return next;
+	}
+}
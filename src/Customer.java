@@ -75,6 +75,7 @@ public class Customer extends User
 			throw new BadArgumentException("Money must not be negative");
 		
 		this.money=money;
+		markDirty("money");
 	}
 
 	/**
@@ -96,6 +97,7 @@ public class Customer extends User
 		if(change<=money) //balance wouldn't go negative
 		{
 			money-=change;
+			markDirty("money");
 			
 			return true;
 		}
@@ -127,7 +129,9 @@ public class Customer extends User
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof Customer))
+		if(this==another)
+			return true;
+		else if(!(another instanceof Customer))
 			return false;
 		Customer other=(Customer)another;
 		
@@ -21,6 +21,7 @@ public class CustomerCLI {
 	 * The main entry point to the program.
 	 */
 	public static void main(String[] args) {
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.KIOSK);
 		if(args.length != 1) {
 			usage();
 			System.exit(1);
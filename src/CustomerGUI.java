@@ -10,6 +10,7 @@ public class CustomerGUI
 	 **/
 	public static void main(String[] args) throws Exception
 	{
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.KIOSK);
 		GUIUtilities.setNativeLookAndFeel();
 		BaseGUI base = new BaseGUI("HCLC's Smart Vending Machine");
 		CustomerMachinePickerScreen controller = new CustomerMachinePickerScreen();
@@ -1,6 +1,5 @@
 import java.sql.SQLException;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.ArrayList;
 
 /**
@@ -11,7 +10,7 @@ import java.util.ArrayList;
 public class CustomerLoginScreen {
 
 	/** the Database instance */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** VendingMachine the customer is at */
 	private VendingMachine vm;
@@ -71,21 +70,13 @@ public class CustomerLoginScreen {
 
 	/**
 	 * Fetches a list of active vending machines.
-	 * @return the machine instances, which are not to be modified (or <tt>null</tt> on error)
+	 * @return summaries of the machines, to be passed by id to <tt>buildInstance()</tt> (or <tt>null</tt> on error)
 	 */
-	public static ArrayList<VendingMachine> listActiveMachines()
+	public static ArrayList<MachineSummary> listActiveMachines()
 	{
 		try
 		{
-			ArrayList<VendingMachine> ourUniverse=db.getVendingMachinesAll();
-			
-			//only keep active machines:
-			Iterator<VendingMachine> trimmer=ourUniverse.iterator();
-			while(trimmer.hasNext())
-				if(!trimmer.next().isActive())
-					trimmer.remove();
-			
-			return ourUniverse;
+			return db.getMachineSummaries(true); //only active machines
 		}
 		catch(Exception uhOh)
 		{
@@ -105,7 +96,7 @@ public class CustomerLoginScreen {
 		VendingMachine mach=null;
 		try
 		{
-			return new CustomerLoginScreen(db.getVendingMachineById(id));
+			return new CustomerLoginScreen(db.getVendingMachineById(id, true)); //it shows the grid straight away
 		}
 		catch(InstantiationException absentInactive) //not found in database (null) or inactive
 		{
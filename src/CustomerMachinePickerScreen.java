@@ -10,8 +10,8 @@ import java.util.*;
 
 public class CustomerMachinePickerScreen {
 	
-	/** The DatabaseLayer object */
-	private static DatabaseLayer db=DatabaseLayer.getInstance();
+	/** The storage engine */
+	private static StorageEngine db = Storage.getEngine();
 
 	/**
  	 * attempts to find the specified machine in the database
@@ -24,7 +24,7 @@ public class CustomerMachinePickerScreen {
 	{
 		try
 		{
-			VendingMachine vm = db.getVendingMachineById(id);
+			VendingMachine vm = db.getVendingMachineById(id, true);
 			if ( vm == null || !vm.isActive() )
 				return null;
 
@@ -39,17 +39,11 @@ public class CustomerMachinePickerScreen {
 
 	/**
 	 * Fetches a list of active vending machines.
-	 * @return the machine instances, which are not to be modified ( or null on an error )
+	 * @return summaries of the machines, to be passed by id to <tt>tryMachine()</tt> ( or null on an error )
 	 */
-	public static ArrayList<VendingMachine> listActiveMachines() {
+	public static ArrayList<MachineSummary> listActiveMachines() {
 		try {
-			ArrayList<VendingMachine> allMach = db.getVendingMachinesAll();
-			Iterator<VendingMachine> trimmer = allMach.iterator();
-			while ( trimmer.hasNext() ) {
-				if ( !trimmer.next().isActive() )
-					trimmer.remove();
-			}	
-			return allMach;
+			return db.getMachineSummaries(true);
 		}
 		catch ( Exception uhOh ) {
 			ControllerExceptionHandler.registerConcern( 
@@ -139,22 +139,17 @@ public class CustomerMachinePickerScreenGUI extends JPanel {
 		// Displays task into status bar
 		selectButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				try {
-					CustomerLoginScreen next = controller
-							.tryMachine(((VendingMachine) machines
-									.getSelectedValue()).getId());
-					if (next == null)
-						master.getStatusBar().setStatus(
-								"Vending machine not found",
-								StatusBar.STATUS_BAD_COLOR);
-					else {
-						CustomerLoginScreenGUI nextGUI = new CustomerLoginScreenGUI(
-								next, master);
-						master.pushContentPanel(nextGUI);
-					}
-				} catch (BadStateException impossible) {
-					System.err.println("oops?");
-					// I can't think of a way around this...
+				CustomerLoginScreen next = controller
+						.tryMachine(((MachineSummary) machines
+								.getSelectedValue()).getId());
+				if (next == null)
+					master.getStatusBar().setStatus(
+							"Vending machine not found",
+							StatusBar.STATUS_BAD_COLOR);
+				else {
+					CustomerLoginScreenGUI nextGUI = new CustomerLoginScreenGUI(
+							next, master);
+					master.pushContentPanel(nextGUI);
 				}
 			}
 		});
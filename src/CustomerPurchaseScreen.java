@@ -14,7 +14,7 @@ import java.util.Collections;
 public class CustomerPurchaseScreen {
 	
 	/** The Database instance */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** The current Customer */
 	private Customer user;
@@ -86,11 +86,8 @@ public class CustomerPurchaseScreen {
 		{
 			Transaction trans = new Transaction(new GregorianCalendar(), 
 				machine, user, item, product);
-			db.updateOrCreateTransaction( trans );
-			user.setMoney( cash - price );
-			db.updateOrCreateCustomer(user);
-			rows[product.first][product.second].decrementRemainingQuantity();
-			db.updateOrCreateVendingMachine(machine);
+			if ( !db.purchase( trans ) )
+				return "Purchase declined"; //lost a race for the funds or the last item
 		}
 		catch(Exception databaseProblem)
 		{
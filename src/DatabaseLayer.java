@@ -1,22 +1,38 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.GregorianCalendar;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.sql.PreparedStatement;
+import org.sqlite.SQLiteConfig;
 
 /**
  * The DatabaseLayer class contains static methods for accessing the sqlite
  * database. It includes methods to get, update, and create objects in the
- * database.
+ * database. It is the StorageEngine the controllers get by default.
  * 
  * @author Matthew Koontz
  **/
-public class DatabaseLayer
+public class DatabaseLayer implements StorageEngine
 {
 	/** Default location of the database. */
 	public static final String DEFAULT_DB_LOCATION="hclc.db";
@@ -30,19 +46,369 @@ public class DatabaseLayer
 	/** File path to the sqlite database. */
 	private static String dbLocation=DEFAULT_DB_LOCATION;
 
+	/** The settings with which to open every connection. */
+	private static Profile dbProfile=Profile.DEFAULT;
+
+	/** Named trade-offs between durability and speed, applied to every connection. */
+	public static enum Profile
+	{
+		/**
+		 * SQLite's own settings: a rollback journal and fully synchronous commits.
+		 * Readers have to wait whenever anyone is writing.
+		 */
+		DEFAULT(),
+
+		/**
+		 * For the kiosks, which mostly make small purchases.
+		 * Write-ahead logging lets readers carry on while a purchase is being written, and only checkpoints wait on the disk.
+		 * A power cut may lose the last few commits, but never corrupts the database.
+		 */
+		KIOSK("PRAGMA journal_mode=WAL", "PRAGMA synchronous=NORMAL"),
+
+		/**
+		 * For the manager's workstation, which mostly runs large reports.
+		 * Adds a large page cache and keeps temporary sorting tables in memory.
+		 */
+		REPORTING("PRAGMA journal_mode=WAL", "PRAGMA synchronous=NORMAL", "PRAGMA cache_size=16384", "PRAGMA temp_store=MEMORY");
+
+		/** The statements that apply the profile to a connection. */
+		private final String[] pragmas;
+
+		/**
+		 * @param pragmas the statements that apply the profile to a connection
+		 */
+		private Profile(String... pragmas)
+		{
+			this.pragmas=pragmas;
+		}
+	}
+
+	/** Length of a day in milliseconds. */
+	static final long DAY_LENGTH=86400000L;
+
+	/** Number of records written in each database transaction during a bulk import. */
+	static final int IMPORT_BATCH_SIZE=10000;
+
+	/**
+	 * Number of ids bound to each IN (...) list when objects are loaded in
+	 * batches. Short batches are padded by repeating an id, so that every
+	 * batch shares one cached statement.
+	 **/
+	private static final int BATCH_SIZE=64;
+
+	/** The IN (...) list of placeholders for a batch of ids. */
+	private static final String BATCH_PLACEHOLDERS=batchPlaceholders();
+
+	/** Orders the columns of transactions read for a page by timestamp and then id. */
+	private static final Comparator<long[]> PAGE_ORDER=new Comparator<long[]>()
+	{
+		public int compare(long[] one, long[] other)
+		{
+			if (one[1] != other[1])
+				return one[1] < other[1] ? -1 : 1;
+			return one[0] < other[0] ? -1 : one[0] == other[0] ? 0 : 1;
+		}
+	};
+
+	/** Orders sales totals by key and then name, with no name first, as SQLite does. */
+	static final Comparator<SalesTotal> SALES_ORDER=new Comparator<SalesTotal>()
+	{
+		public int compare(SalesTotal one, SalesTotal other)
+		{
+			if (one.getKey() != other.getKey())
+				return one.getKey() < other.getKey() ? -1 : 1;
+			if (one.getName() == null || other.getName() == null)
+				return one.getName() == null ? other.getName() == null ? 0 : -1 : 1;
+			return one.getName().compareTo(other.getName());
+		}
+	};
+
+	/**
+	 * Default number of transactions read and built at a time when they are
+	 * streamed to a TransactionVisitor.
+	 **/
+	public static final int DEFAULT_FETCH_SIZE=500;
+
+	/**
+	 * Changes made to the schema since its tables were first created, oldest
+	 * first. Each is applied once to every database, at startup; see
+	 * SchemaMigrator. Only ever append to this list.
+	 **/
+	private static final String[][] MIGRATIONS = {
+		{ //1: indexes for looking up transactions, layout slots, businesses and machines by their owners
+			"CREATE INDEX IF NOT EXISTS VMTransactionMachine ON VMTransaction(machineId)",
+			"CREATE INDEX IF NOT EXISTS VMTransactionCustomer ON VMTransaction(customerId)",
+			"CREATE INDEX IF NOT EXISTS VMTransactionProduct ON VMTransaction(productId)",
+			"CREATE INDEX IF NOT EXISTS VMTransactionTimestamp ON VMTransaction(timestamp)",
+			"CREATE INDEX IF NOT EXISTS VMLayoutVMRowLinkLayout ON VMLayoutVMRowLink(layoutId)",
+			"CREATE INDEX IF NOT EXISTS NearbyBusinessLocation ON NearbyBusiness(locationId)",
+			"CREATE INDEX IF NOT EXISTS LocationZipCode ON Location(zipCode)",
+			"CREATE INDEX IF NOT EXISTS LocationState ON Location(state)",
+			"CREATE INDEX IF NOT EXISTS VendingMachineLocation ON VendingMachine(locationId)",
+		},
+		{ //2: order each owner's transactions by time (and so rowid), for paging through them
+			"DROP INDEX IF EXISTS VMTransactionMachine",
+			"DROP INDEX IF EXISTS VMTransactionCustomer",
+			"DROP INDEX IF EXISTS VMTransactionProduct",
+			"CREATE INDEX IF NOT EXISTS VMTransactionMachineTime ON VMTransaction(machineId, timestamp)",
+			"CREATE INDEX IF NOT EXISTS VMTransactionCustomerTime ON VMTransaction(customerId, timestamp)",
+			"CREATE INDEX IF NOT EXISTS VMTransactionProductTime ON VMTransaction(productId, timestamp)",
+		},
+		{ //3: units sold and revenue taken per day, machine and item, kept up to date as sales are recorded
+			"CREATE TABLE IF NOT EXISTS DailySales( day INTEGER NOT NULL, machineId INTEGER NOT NULL, productId INTEGER NOT NULL, units INTEGER NOT NULL, revenue INTEGER NOT NULL, PRIMARY KEY(day, machineId, productId))",
+		},
+		{ //4: how far each interrupted bulk import got
+			"CREATE TABLE IF NOT EXISTS ImportCheckpoint( name TEXT PRIMARY KEY, records INTEGER NOT NULL)",
+		},
+		{ //5: the months of transactions moved out into archive files
+			"CREATE TABLE IF NOT EXISTS TransactionArchive( month INTEGER PRIMARY KEY, start INTEGER NOT NULL, end INTEGER NOT NULL, path TEXT NOT NULL)",
+		},
+	};
+
+	/**
+	 * The schema of each archive file, with %s standing for the name it is
+	 * attached under. Transactions keep the ids they had in the live
+	 * database, which never hands an id out twice.
+	 **/
+	private static final String[] ARCHIVE_SCHEMA = {
+		"CREATE TABLE IF NOT EXISTS %s.VMTransaction( transactionId INTEGER PRIMARY KEY, timestamp INTEGER NOT NULL, machineId INTEGER, customerId INTEGER, productId INTEGER, rowX INTEGER NOT NULL, rowY INTEGER NOT NULL, balance INTEGER NOT NULL)",
+		"CREATE INDEX IF NOT EXISTS %s.VMTransactionTimestamp ON VMTransaction(timestamp)",
+		"CREATE INDEX IF NOT EXISTS %s.VMTransactionMachineTime ON VMTransaction(machineId, timestamp)",
+		"CREATE INDEX IF NOT EXISTS %s.VMTransactionCustomerTime ON VMTransaction(customerId, timestamp)",
+		"CREATE INDEX IF NOT EXISTS %s.VMTransactionProductTime ON VMTransaction(productId, timestamp)",
+	};
+
+	/** Most archive files attached to one connection at once, which is as many as SQLite allows. */
+	private static final int MAX_ATTACHED=10;
+
+	/** Number of free pages trimmed from the database file in each step of a garbage collection. */
+	public static final int VACUUM_STEP_PAGES=256;
+
+	/** The layouts some machine still uses, as a selection of their ids. */
+	private static final String LAYOUTS_IN_USE="SELECT currentLayoutId FROM VendingMachine WHERE currentLayoutId IS NOT NULL UNION SELECT nextLayoutId FROM VendingMachine WHERE nextLayoutId IS NOT NULL";
+
+	/** The schema version that introduced the DailySales rollups. */
+	private static final int DAILY_SALES_VERSION=3;
+
 	/** Singleton instance itself. */
 	private static DatabaseLayer instance=null;
 
 	/**
-	 * Instance of the database connection. If nothing is using this it should
-	 * be null.
+	 * Pool of connections to the database. Each thread checks out its own
+	 * connection, which is kept open for reuse once the thread is done with it.
+	 **/
+	private ConnectionPool pool;
+
+	/** Most connections reports and listings may hold open at once. */
+	private static final int READ_POOL_CAPACITY=2;
+
+	/**
+	 * Pool of read-only connections for reports and listings, kept apart from
+	 * the purchases' so that long scans never hold the write lock or take
+	 * all of the connections.
+	 **/
+	private ConnectionPool readPool;
+
+	/**
+	 * Whether each report reads from a single snapshot of the database. Only
+	 * with write-ahead logging, under which an open read doesn't hold up any
+	 * writer; under a rollback journal it would block them until it ended.
+	 **/
+	private boolean readSnapshots;
+
+	/**
+	 * A thread's hold on a connection. Whichever pool the outermost connect()
+	 * or connectForReading() drew from serves every nested call too, so that
+	 * the helpers a method calls share its connection.
+	 **/
+	private static class Hold
+	{
+		/** The pool the connection came from. */
+		public final ConnectionPool pool;
+
+		/** The connection held. */
+		public final Connection connection;
+
+		/** Number of connect() calls yet to be matched by closeConnection(). */
+		public int depth;
+
+		/**
+		 * @param pool The pool the connection came from.
+		 * @param connection The connection held.
+		 **/
+		public Hold(ConnectionPool pool, Connection connection)
+		{
+			this.pool = pool;
+			this.connection = connection;
+			depth = 1;
+		}
+	}
+
+	/** Each thread's hold on a connection, while it has one. */
+	private final ThreadLocal<Hold> holds = new ThreadLocal<Hold>();
+
+	/**
+	 * The objects given generated ids within each thread's transaction, so
+	 * that they can be handed back temporary ids if it is rolled back.
+	 **/
+	private final ThreadLocal<ArrayList<ModelBase>> assignedIds = new ThreadLocal<ArrayList<ModelBase>>();
+
+	/**
+	 * The months of transactions that have been archived, in order. The list
+	 * is replaced rather than changed, and only while archiveLock is held
+	 * for writing.
+	 **/
+	private volatile List<ArchivePartition> partitions = new ArrayList<ArchivePartition>();
+
+	/**
+	 * Held for reading by queries that fan out across the archive, and for
+	 * writing while transactions are moved into it or it is deleted, so that
+	 * no query finds a month's transactions in both places or in neither.
 	 **/
-	private Connection dbInstance;
+	private final ReentrantReadWriteLock archiveLock = new ReentrantReadWriteLock();
 
 	/**
-	 * Number of methods using dbInstance.
+	 * The archive files attached to each pooled connection, least recently
+	 * used first, along with the archive generation each was attached in.
+	 * Only the thread holding a connection touches its entry.
 	 **/
-	private int dbUseCounter;
+	private final Map<Connection, LinkedHashMap<String, Integer>> attachments = new WeakHashMap<Connection, LinkedHashMap<String, Integer>>();
+
+	/**
+	 * Counts how many times the archive files have been deleted, so that a
+	 * connection still attached to a deleted file attaches it afresh.
+	 **/
+	private int archiveGeneration;
+
+	/**
+	 * Each thread's current load session, if it has begun one. Within a
+	 * session, every stored object is represented by a single instance no
+	 * matter how many times it is loaded.
+	 **/
+	private final ThreadLocal<IdentityMap> sessions = new ThreadLocal<IdentityMap>();
+
+	/**
+	 * The layouts of a group of vending machines loaded together without
+	 * them. The first machine to need its layouts has those of the whole
+	 * group fetched, within the session the machines were loaded in, so that
+	 * walking through every machine's grid costs the same handful of queries
+	 * as loading them eagerly would have, and rows and items are still
+	 * shared between the machines just as if they had been.
+	 **/
+	private class LayoutBatch implements LayoutLoader
+	{
+		/**
+		 * The session the machines were loaded in, until the layouts are. The
+		 * layouts are loaded into it while holding its lock, since other
+		 * batches and loaders may share it from other threads.
+		 **/
+		private IdentityMap session;
+
+		/** The ids of the layouts to fetch, until they are fetched. */
+		private ArrayList<Integer> layoutIds;
+
+		/** The layouts, by id, once they are fetched. */
+		private HashMap<Integer, VMLayout> layouts;
+
+		/**
+		 * @param session The session the machines are being loaded in.
+		 **/
+		public LayoutBatch(IdentityMap session)
+		{
+			this.session = session;
+			layoutIds = new ArrayList<Integer>();
+			layouts = null;
+		}
+
+		/**
+		 * Adds a machine's layouts to the group.
+		 * @param currentLayoutId The id of the machine's current layout.
+		 * @param nextLayoutId The id of the machine's next layout.
+		 **/
+		public void add(int currentLayoutId, int nextLayoutId)
+		{
+			layoutIds.add(currentLayoutId);
+			layoutIds.add(nextLayoutId);
+		}
+
+		/** @inheritDoc */
+		@Override
+		public synchronized VMLayout[] loadLayouts(int currentLayoutId, int nextLayoutId) throws SQLException, BadStateException, BadArgumentException
+		{
+			if (layouts == null)
+			{
+				IdentityMap loading = session;
+				synchronized (loading) //other batches from the same session may be loading on other threads
+				{
+					IdentityMap outer = sessions.get();
+					sessions.set(loading);
+					loading.enter();
+					int reading = connectForReading();
+					try
+					{
+						HashMap<Integer, VMLayout> fetched = new HashMap<Integer, VMLayout>();
+						for (int start=0;start<layoutIds.size();start+=BATCH_SIZE)
+							fetched.putAll(loadVMLayouts(BATCH_PLACEHOLDERS, batch(layoutIds, start)));
+						layouts = fetched;
+						layoutIds = null;
+						session = null;
+					}
+					finally
+					{
+						closeReading(reading);
+						loading.exit();
+						if (outer == null)
+							sessions.remove();
+						else
+							sessions.set(outer);
+					}
+				}
+			}
+			return new VMLayout[] {layouts.get(currentLayoutId), layouts.get(nextLayoutId)};
+		}
+	}
+
+	/** Cache of the items, which rarely change but are loaded constantly. */
+	private final EntityCache<FoodItem> itemCache = new EntityCache<FoodItem>()
+	{
+		protected FoodItem copy(FoodItem item)
+		{
+			return new FoodItem(item);
+		}
+	};
+
+	/** Cache of the locations, which rarely change but are loaded constantly. */
+	private final EntityCache<Location> locationCache = new EntityCache<Location>()
+	{
+		protected Location copy(Location location)
+		{
+			return new Location(location);
+		}
+	};
+
+	/** Cache of the managers, which rarely change but are loaded at every login. */
+	private final EntityCache<Manager> managerCache = new EntityCache<Manager>()
+	{
+		protected Manager copy(Manager manager)
+		{
+			return new Manager(manager);
+		}
+	};
+
+	/** Whether the entity caches are consulted at all. */
+	private volatile boolean entityCaching = true;
+
+	/** Number of transactions read and built at a time when streaming them. */
+	private volatile int fetchSize = DEFAULT_FETCH_SIZE;
+
+	/**
+	 * Purchases waiting to be written in the background, or null if each is
+	 * written as it is made.
+	 **/
+	private volatile GroupCommitQueue<PendingPurchase> purchaseQueue = null;
+
+	/** Whether the hook writing out queued purchases at shutdown is in place. */
+	private boolean purchaseQueueHooked = false;
 
 	/**
 	 * Selects a custom database location.
@@ -50,7 +416,7 @@ public class DatabaseLayer
 	 * @param path valid readable/writable path to the database file to create or use
 	 * @return whether the path could be set (i.e. <tt>getInstance()</tt> has never been called
 	 */
-	public static boolean setDatabaseLocation(String path)
+	public static synchronized boolean setDatabaseLocation(String path)
 	{
 		if(instance==null) //instance not yet constructed
 		{
@@ -62,12 +428,30 @@ public class DatabaseLayer
 			return false;
 	}
 
+	/**
+	 * Selects the settings with which to open the database.
+	 * This is only useful if the instance has not yet been constructed; otherwise, it does nothing.
+	 * @param profile the durability and performance settings to use
+	 * @return whether the profile could be set (i.e. <tt>getInstance()</tt> has never been called
+	 */
+	public static synchronized boolean setDatabaseProfile(Profile profile)
+	{
+		if(instance==null) //instance not yet constructed
+		{
+			dbProfile=profile;
+
+			return true;
+		}
+		else
+			return false;
+	}
+
 	/**
 	 * Retrieves singleton instance.
 	 * The database will be located at the default location unless <tt>setDatabaseLocation(String)</tt> has first been used.
 	 * @return the <tt>DatabaseLayer</tt> instance, or <tt>null</tt> upon error
 	 */
-	public static DatabaseLayer getInstance()
+	public static synchronized DatabaseLayer getInstance()
 	{
 		try
 		{
@@ -102,96 +486,906 @@ public class DatabaseLayer
 	 */
 	private DatabaseLayer() throws SQLException
 	{
-		dbUseCounter = 0;
+		pool = new ConnectionPool(DB_DRIVER+dbLocation, ConnectionPool.DEFAULT_CAPACITY, dbProfile.pragmas);
 		initializeDatabase();
+		openReadPool();
+		System.err.println("Opened database " + dbLocation + " with the " + dbProfile + " profile: " + getDatabaseSettings());
+	}
+
+	/**
+	 * Reads back the settings actually in effect on the connections, which
+	 * may differ from those the profile asked for (e.g. an in-memory database
+	 * can't use write-ahead logging).
+	 * @return The journal mode, synchronous level, cache size and temporary
+	 * storage setting.
+	 * @throws SQLException in case of a database error
+	 **/
+	public String getDatabaseSettings() throws SQLException
+	{
+		Connection db = connect();
+		StringBuilder settings = new StringBuilder();
+		Statement stmt = db.createStatement();
+		for (String pragma : new String[] {"journal_mode", "synchronous", "cache_size", "temp_store"})
+		{
+			ResultSet results = stmt.executeQuery("PRAGMA " + pragma);
+			if (results.next())
+				settings.append(settings.length() == 0 ? "" : ", ").append(pragma).append('=').append(results.getString(1));
+			results.close();
+		}
+		stmt.close();
+		closeConnection();
+		return settings.toString();
 	}
 
 	/**
-	 * Connects to the database or returns the current connection.
+	 * Checks out a connection to the database for the current thread, or
+	 * returns the one it already has checked out.
 	 * @return A connection to the database.
 	 **/
 	private Connection connect() throws SQLException
 	{
-		if (dbInstance == null)
-			dbInstance = DriverManager.getConnection(DB_DRIVER+dbLocation);
-		++dbUseCounter;
-		return dbInstance;
+		return checkOut(pool, false);
 	}
 
 	/**
-	 * Decrements the counter for the number of methods using the database.
-	 * If the counter reaches 0 then the connection is closed and
-	 * dbInstance is set to null.
+	 * Checks out a read-only connection for a report or listing, unless the
+	 * current thread already has a connection checked out, in which case
+	 * that is used (so that reads within a write see what it has written).
+	 * Under write-ahead logging, everything read until the matching
+	 * closeConnection() comes from the same snapshot, and writers carry on
+	 * undisturbed meanwhile. Nothing may be written through the connection.
+	 * Must be matched by closeReading() rather than closeConnection().
+	 * @return How deep the thread's hold on its connection now is, to be
+	 * passed to closeReading().
 	 **/
-	private void closeConnection() throws SQLException
+	private int connectForReading() throws SQLException
+	{
+		checkOut(readPool, readSnapshots);
+		return holds.get().depth;
+	}
+
+	/**
+	 * Matches a connectForReading(), along with any nested connect() that a
+	 * helper which failed part-way left unmatched, so that a failed report
+	 * can't leave the thread stuck with a read-only connection.
+	 * @param depth What connectForReading() returned.
+	 **/
+	private void closeReading(int depth) throws SQLException
+	{
+		while (holds.get() != null && holds.get().depth >= depth)
+			closeConnection();
+	}
+
+	/**
+	 * Checks out a connection that can read the transactions of one
+	 * partition, attaching its archive file if need be. A file can't be
+	 * attached in the middle of a database transaction, so archived
+	 * partitions are read outside of any snapshot; they never change once
+	 * written. Must be matched by closeReading().
+	 * @param partition The archived partition, or null for the live
+	 * transactions.
+	 * @return What to pass to closeReading().
+	 **/
+	private int connectToPartition(ArchivePartition partition) throws SQLException
 	{
-		if (--dbUseCounter == 0)
+		if (partition == null)
+			return connectForReading();
+
+		Connection db = checkOut(readPool, false);
+		int depth = holds.get().depth;
+		boolean attached = false;
+		try
 		{
-			dbInstance.close();
-			dbInstance = null;
+			attach(db, partition);
+			attached = true;
 		}
+		finally
+		{
+			if (!attached)
+				closeReading(depth);
+		}
+		return depth;
 	}
 
 	/**
-	 * Creates all of the necessary tables in the database
-	 * @throws SQLException in case of a database error
+	 * Attaches an archive file to a connection under its partition's schema
+	 * name, unless it already is. If the connection already has as many
+	 * files attached as SQLite allows, the one it used least recently is
+	 * detached to make room.
+	 * @param db The connection, which mustn't be in a database transaction
+	 * unless the file is already attached.
+	 * @param partition The partition whose file to attach.
 	 **/
-	private void initializeDatabase() throws SQLException
+	private void attach(Connection db, ArchivePartition partition) throws SQLException
 	{
-		Connection db = connect();
-		Statement stmt = db.createStatement();
-		
-		stmt.addBatch("CREATE TABLE IF NOT EXISTS Location( locationId INTEGER PRIMARY KEY AUTOINCREMENT, zipCode INTEGER, state TEXT);");
+		LinkedHashMap<String, Integer> attached;
+		int generation;
+		synchronized (attachments)
+		{
+			attached = attachments.get(db);
+			if (attached == null)
+			{
+				attached = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+				attachments.put(db, attached);
+			}
+			generation = archiveGeneration;
+		}
 
-		stmt.addBatch("CREATE TABLE IF NOT EXISTS Item( itemId INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, price INTEGER NOT NULL, freshLength INTEGER NOT NULL, active INTEGER NOT NULL);");
+		String schema = partition.getSchema();
+		Integer attachedIn = attached.get(schema);
+		if (attachedIn != null && attachedIn == generation)
+			return;
+		if (!db.getAutoCommit())
+			throw new SQLException("Archived transactions for " + partition + " can't be reached in the middle of a database transaction");
 
-		stmt.addBatch("CREATE TABLE IF NOT EXISTS VMLayout( layoutId INTEGER PRIMARY KEY AUTOINCREMENT, nextVisit INTEGER, depth INTEGER NOT NULL);");
+		Statement stmt = db.createStatement();
+		try
+		{
+			if (attachedIn != null) //the file it was attached from has since been deleted
+			{
+				stmt.execute("DETACH DATABASE " + schema);
+				attached.remove(schema);
+			}
+			if (attached.size() >= MAX_ATTACHED)
+			{
+				String eldest = attached.keySet().iterator().next();
+				stmt.execute("DETACH DATABASE " + eldest);
+				attached.remove(eldest);
+			}
+		}
+		finally
+		{
+			stmt.close();
+		}
 
-		stmt.addBatch(" CREATE TABLE IF NOT EXISTS VMRow( vmRowId INTEGER PRIMARY KEY AUTOINCREMENT, productId INTEGER REFERENCES Item(itemId), expirationDate INTEGER NOT NULL, remainingQuant INTEGER NOT NULL);");
+		PreparedStatement attachStmt = db.prepareStatement("ATTACH DATABASE ? AS " + schema);
+		try
+		{
+			attachStmt.setString(1, partition.getPath());
+			attachStmt.execute();
+		}
+		finally
+		{
+			attachStmt.close();
+		}
+		attached.put(schema, generation);
+	}
 
-		stmt.addBatch(" CREATE TABLE IF NOT EXISTS VMLayoutVMRowLink( layoutId INTEGER REFERENCES VMLayout(layoutId), vmRowId INTEGER REFERENCES VMRow(vmRowId), rowX INTEGER NOT NULL, rowY INTEGER NOT NULL);");
+	/**
+	 * Lists the partitions a query for transactions in a time range has to
+	 * read, pruning archived months that lie wholly outside it. Must be
+	 * called with archiveLock held.
+	 * @param from The start of the range.
+	 * @param to The end of the range (exclusive).
+	 * @return The archived partitions that overlap the range, oldest first,
+	 * followed by null, which stands for the live transactions.
+	 **/
+	private List<ArchivePartition> partitionsFor(long from, long to)
+	{
+		ArrayList<ArchivePartition> overlapping = new ArrayList<ArchivePartition>();
+		for (ArchivePartition partition : partitions)
+			if (partition.overlaps(from, to))
+				overlapping.add(partition);
+		overlapping.add(null);
+		return overlapping;
+	}
 
-		stmt.addBatch("CREATE TABLE IF NOT EXISTS VendingMachine( machineId INTEGER PRIMARY KEY AUTOINCREMENT, active INTEGER NOT NULL, stockingInterval INTEGER NOT NULL, currentLayoutId INTEGER REFERENCES VMLayout(layoutId), nextLayoutId INTEGER REFERENCES VMLayout(layoutId), locationId INTEGER REFERENCES Location(locationId));");
+	/**
+	 * Takes archiveLock for reading, first bringing the catalog of archived
+	 * months up to date if it has changed since it was last read, e.g.
+	 * because another process sharing the database file has archived a new
+	 * month, so that queries don't miss transactions moved out of the live
+	 * database behind this one's back. Checking costs one small query; the
+	 * catalog is only read again when the number of months or the latest
+	 * of them differs. A thread that already holds the lock for reading
+	 * can't take it for writing, so it goes on with the catalog it has.
+	 * Must be matched by unlocking archiveLock's read lock.
+	 **/
+	private void lockArchiveForReading() throws SQLException
+	{
+		boolean refresh = archiveLock.isWriteLockedByCurrentThread() || archiveLock.getReadHoldCount() == 0;
+		archiveLock.readLock().lock();
+		boolean locked = false;
+		try
+		{
+			if (!refresh || isPartitionCatalogCurrent())
+			{
+				locked = true;
+				return;
+			}
+		}
+		finally
+		{
+			if (!locked)
+				archiveLock.readLock().unlock();
+		}
 
-		stmt.addBatch("CREATE TABLE IF NOT EXISTS NearbyBusiness( locationId INTEGER REFERENCES Location(locationId), name TEXT NOT NULL);");
+		archiveLock.writeLock().lock();
+		try
+		{
+			if (!isPartitionCatalogCurrent()) //unless another thread got there first
+			{
+				connect();
+				try
+				{
+					partitions = readPartitionCatalog();
+				}
+				finally
+				{
+					closeConnection();
+				}
+				synchronized (attachments)
+				{
+					++archiveGeneration; //files may have been deleted and made afresh meanwhile
+				}
+			}
+			archiveLock.readLock().lock();
+		}
+		finally
+		{
+			archiveLock.writeLock().unlock();
+		}
+	}
 
-		stmt.addBatch(" CREATE TABLE IF NOT EXISTS Customer( customerId INTEGER PRIMARY KEY AUTOINCREMENT, money INTEGER NOT NULL, name TEXT)");
+	/**
+	 * Checks whether the catalog of archived months read into partitions
+	 * still matches what is stored. Months are only ever added to it, or
+	 * all deleted at once, so comparing the number of them and the latest
+	 * is enough. Must be called with archiveLock held.
+	 * @return Whether partitions is up to date.
+	 **/
+	private boolean isPartitionCatalogCurrent() throws SQLException
+	{
+		List<ArchivePartition> known = partitions;
+		int reading = connectForReading();
+		try
+		{
+			PreparedStatement stmt = prepare("SELECT COUNT(*), MAX(month) FROM TransactionArchive");
+			ResultSet results = stmt.executeQuery();
+			boolean current = results.getInt(1) == known.size() && (known.isEmpty() || results.getInt(2) == known.get(known.size() - 1).getMonth());
+			results.close();
+			release(stmt);
+			return current;
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
 
-		stmt.addBatch(" CREATE TABLE IF NOT EXISTS Manager( managerId INTEGER PRIMARY KEY AUTOINCREMENT, password TEXT NOT NULL, name TEXT)");
+	/**
+	 * Reads the catalog of archived months. Must be called with the
+	 * connection already open.
+	 * @return The archived partitions, oldest first.
+	 **/
+	private List<ArchivePartition> readPartitionCatalog() throws SQLException
+	{
+		ArrayList<ArchivePartition> catalog = new ArrayList<ArchivePartition>();
+		PreparedStatement stmt = prepare("SELECT month, start, end, path FROM TransactionArchive ORDER BY start");
+		ResultSet results = stmt.executeQuery();
+		while (results.next())
+			catalog.add(new ArchivePartition(results.getInt(1), results.getLong(2), results.getLong(3), results.getString(4)));
+		results.close();
+		release(stmt);
+		return catalog;
+	}
 
-		stmt.addBatch("CREATE TABLE IF NOT EXISTS VMTransaction( transactionId INTEGER PRIMARY KEY AUTOINCREMENT, timestamp INTEGER NOT NULL, machineId INTEGER REFERENCES VendingMachine(machineId), customerId INTEGER REFERENCES Customer(customerId), productId INTEGER REFERENCES Item(itemId), rowX INTEGER NOT NULL, rowY INTEGER NOT NULL, balance INTEGER NOT NULL);");
+	/**
+	 * Checks out a connection from the given pool, or returns the one the
+	 * current thread already has checked out.
+	 * @param wanted The pool to draw from if the thread has no connection.
+	 * @param snapshot Whether a newly checked out connection should read
+	 * everything from one snapshot.
+	 * @return A connection to the database.
+	 **/
+	private Connection checkOut(ConnectionPool wanted, boolean snapshot) throws SQLException
+	{
+		Hold hold = holds.get();
+		if (hold != null)
+		{
+			hold.pool.acquire();
+			++hold.depth;
+			return hold.connection;
+		}
 
-		stmt.executeBatch();
-		stmt.close();
-		closeConnection();
+		Connection db = wanted.acquire();
+		if (snapshot)
+		{
+			try
+			{
+				db.setAutoCommit(false); //the snapshot is taken by the first read
+			}
+			catch (SQLException failure)
+			{
+				wanted.release();
+				throw failure;
+			}
+		}
+		holds.set(new Hold(wanted, db));
+		return db;
 	}
 
 	/**
-	 * Deletes all data from database. Meant for testing purposes only!
-	 * DO NOT USE THIS METHOD UNLESS YOU ARE WRITING A TEST!!!
-	 *@throws SQLException in case of a database error
+	 * Opens the pool of read-only connections, with the same settings as the
+	 * others except the journal mode, which only a writer may change.
 	 **/
-	public void nuke() throws SQLException
+	private void openReadPool() throws SQLException
 	{
+		ArrayList<String> pragmas = new ArrayList<String>();
+		for (String pragma : dbProfile.pragmas)
+			if (!pragma.startsWith("PRAGMA journal_mode"))
+				pragmas.add(pragma);
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		readPool = new ConnectionPool(DB_DRIVER+dbLocation, READ_POOL_CAPACITY, pragmas.toArray(new String[pragmas.size()]), config.toProperties());
+
 		Connection db = connect();
 		Statement stmt = db.createStatement();
-		stmt.executeUpdate("DELETE FROM Item; DELETE FROM Location; DELETE FROM VMLayout; DELETE FROM VMRow; DELETE FROM VendingMachine; DELETE FROM NearbyBusiness; DELETE FROM Customer; DELETE FROM Manager; DELETE FROM VMTransaction");
+		ResultSet results = stmt.executeQuery("PRAGMA journal_mode");
+		readSnapshots = results.next() && "wal".equalsIgnoreCase(results.getString(1));
+		results.close();
 		stmt.close();
 		closeConnection();
 	}
 
-	private boolean isFoodItemValid(FoodItem item)
+	/**
+	 * Releases the current thread's hold on its connection. Once every call
+	 * to connect() has been matched, the connection goes back into the pool.
+	 **/
+	private void closeConnection() throws SQLException
 	{
-		if(item.isTempId()) {
-			return false;
+		Hold hold = holds.get();
+		if (hold == null)
+			return;
+		if (--hold.depth > 0)
+		{
+			hold.pool.release();
+			return;
 		}
 
-		try {
-			if(getFoodItemById(item.getId()) == null) {
-				return false;
+		holds.remove();
+		try
+		{
+			if (hold.pool == readPool && !hold.connection.getAutoCommit()) //let go of the snapshot
+			{
+				hold.connection.commit();
+				hold.connection.setAutoCommit(true);
 			}
-		} catch(BadStateException e) {
-			System.err.println("A previously-thought impossible error occurred when checking if a food item was in the database");
+		}
+		finally
+		{
+			hold.pool.release();
+		}
+	}
+
+	/**
+	 * Fetches a compiled statement for the given SQL from the statement cache
+	 * of the current thread's connection, so that SQLite only has to parse and
+	 * plan it the first time. Must be called between connect() and
+	 * closeConnection().
+	 * @param sql The parameterized SQL text.
+	 * @return A statement ready to have its parameters bound. It must be given
+	 * back with release() rather than closed.
+	 **/
+	private PreparedStatement prepare(String sql) throws SQLException
+	{
+		return currentPool().statements().prepare(sql);
+	}
+
+	/**
+	 * Hands a statement obtained from prepare() back to the statement cache.
+	 * @param stmt The statement, whose results must no longer be needed.
+	 **/
+	private void release(PreparedStatement stmt) throws SQLException
+	{
+		currentPool().statements().release(stmt);
+	}
+
+	/**
+	 * Finds the pool the current thread's connection came from.
+	 * @return The pool, or the main pool if the thread holds no connection.
+	 **/
+	private ConnectionPool currentPool()
+	{
+		Hold hold = holds.get();
+		return hold == null ? pool : hold.pool;
+	}
+
+	/**
+	 * Writes some of the columns of one stored row, leaving the others
+	 * alone. Does nothing if there are no columns to write.
+	 * @param table The table holding the row.
+	 * @param keyColumn The table's primary key column.
+	 * @param id The primary key of the row.
+	 * @param columns The new value of each column to write, by column name.
+	 **/
+	private void updateColumns(String table, String keyColumn, int id, LinkedHashMap<String, Object> columns) throws SQLException
+	{
+		if (columns.isEmpty())
+			return;
+		StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+		for (String column : columns.keySet())
+			sql.append(column).append("=?, ");
+		sql.setLength(sql.length() - 2);
+		sql.append(" WHERE ").append(keyColumn).append("=?");
+
+		PreparedStatement updateStmt = prepare(sql.toString());
+		int param = 1;
+		for (Object value : columns.values())
+			updateStmt.setObject(param++, value);
+		updateStmt.setInt(param, id);
+		updateStmt.executeUpdate();
+		release(updateStmt);
+	}
+
+	/**
+	 * Builds the placeholder list bound by bindBatch().
+	 * @return BATCH_SIZE comma-separated question marks.
+	 **/
+	private static String batchPlaceholders()
+	{
+		StringBuilder placeholders = new StringBuilder("?");
+		for (int i=1;i<BATCH_SIZE;++i)
+			placeholders.append(", ?");
+		return placeholders.toString();
+	}
+
+	/**
+	 * Binds one batch of ids to a statement's BATCH_PLACEHOLDERS, padding
+	 * the final batch by repeating its first id.
+	 * @param stmt The statement whose parameters to bind.
+	 * @param ids All of the ids to be loaded.
+	 * @param start The index in ids of the first id in this batch.
+	 **/
+	private static void bindBatch(PreparedStatement stmt, List<Integer> ids, int start) throws SQLException
+	{
+		for (int i=0;i<BATCH_SIZE;++i)
+			stmt.setInt(i+1, ids.get(start + i < ids.size() ? start + i : start));
+	}
+
+	/**
+	 * Copies one batch of ids into the parameters of a BATCH_PLACEHOLDERS
+	 * selection, padding the final batch by repeating its first id.
+	 * @param ids All of the ids to be loaded.
+	 * @param start The index in ids of the first id in this batch.
+	 * @return The parameters of the selection.
+	 **/
+	private static Object[] batch(List<Integer> ids, int start)
+	{
+		Object[] params = new Object[BATCH_SIZE];
+		for (int i=0;i<BATCH_SIZE;++i)
+			params[i] = ids.get(start + i < ids.size() ? start + i : start);
+		return params;
+	}
+
+	/**
+	 * Binds the parameters of a selection passed to one of the load methods.
+	 * @param stmt The statement whose parameters to bind.
+	 * @param first The index of the first parameter to bind.
+	 * @param params The parameter values, in order.
+	 **/
+	private static void bindSelection(PreparedStatement stmt, int first, Object[] params) throws SQLException
+	{
+		for (int i=0;i<params.length;++i)
+			stmt.setObject(first + i, params[i]);
+	}
+
+	/**
+	 * Repeats the parameters of a selection that appears more than once in a
+	 * query.
+	 * @param params The parameter values of one occurrence.
+	 * @param times The number of occurrences.
+	 * @return The parameter values of every occurrence, in order.
+	 **/
+	private static Object[] repeat(Object[] params, int times)
+	{
+		Object[] repeated = new Object[params.length * times];
+		for (int i=0;i<times;++i)
+			System.arraycopy(params, 0, repeated, i * params.length, params.length);
+		return repeated;
+	}
+
+	/**
+	 * @return The number of statements that were served from the statement
+	 * cache without being compiled again.
+	 **/
+	public long getStatementCacheHits()
+	{
+		return pool.getStatementHits() + readPool.getStatementHits();
+	}
+
+	/**
+	 * @return The number of statements that had to be compiled because they
+	 * weren't in the statement cache.
+	 **/
+	public long getStatementCacheMisses()
+	{
+		return pool.getStatementMisses() + readPool.getStatementMisses();
+	}
+
+	/**
+	 * Begins a load session for the current thread, or joins the one it has
+	 * already begun. Until the matching call to endSession(), loading the
+	 * same object twice yields the very same instance, and objects already
+	 * loaded aren't queried for again. Every call must be matched by a call
+	 * to endSession(), preferably in a finally block.
+	 **/
+	public void beginSession()
+	{
+		IdentityMap session = sessions.get();
+		if (session == null)
+		{
+			session = new IdentityMap();
+			sessions.set(session);
+		}
+		session.enter();
+	}
+
+	/**
+	 * Ends the current thread's hold on its load session. Once every call to
+	 * beginSession() has been matched, the session is discarded, and later
+	 * loads build fresh instances again.
+	 **/
+	public void endSession()
+	{
+		IdentityMap session = sessions.get();
+		if (session != null && session.exit())
+			sessions.remove();
+	}
+
+	/**
+	 * Fetches the identity map of the current thread's load session.
+	 * @return The identity map, or an empty one that will be thrown away if
+	 * no session has been begun.
+	 **/
+	private IdentityMap session()
+	{
+		IdentityMap session = sessions.get();
+		return session == null ? new IdentityMap() : session;
+	}
+
+	/**
+	 * Records an object that was just written to the database in the current
+	 * thread's load session, if there is one, so that later loads within the
+	 * session return it rather than a copy.
+	 * @param model The object written, which must have been assigned an id.
+	 **/
+	private void remember(ModelBase model) throws BadStateException
+	{
+		IdentityMap session = sessions.get();
+		if (session != null)
+			session.put(model);
+	}
+
+	/**
+	 * Turns the item, location and manager caches on or off. Turning them off
+	 * empties them, so that every load goes to the database, which is mostly
+	 * useful for testing.
+	 * @param enabled Whether to use the caches.
+	 **/
+	public void setEntityCaching(boolean enabled)
+	{
+		entityCaching = enabled;
+		clearEntityCaches();
+	}
+
+	/**
+	 * @return Whether the item, location and manager caches are in use.
+	 **/
+	public boolean isEntityCaching()
+	{
+		return entityCaching;
+	}
+
+	/**
+	 * Sets how many transactions the visitTransactions methods read and
+	 * build at a time. Larger batches mean fewer queries for the machines,
+	 * customers and items they refer to, at the cost of memory.
+	 * @param size The number of transactions per batch.
+	 * @throws BadArgumentException if the size is not positive.
+	 **/
+	public void setFetchSize(int size) throws BadArgumentException
+	{
+		if (size <= 0)
+			throw new BadArgumentException("Fetch size must be positive");
+		fetchSize = size;
+	}
+
+	/**
+	 * @return The number of transactions streamed at a time.
+	 **/
+	public int getFetchSize()
+	{
+		return fetchSize;
+	}
+
+	/**
+	 * @return The cache of items, for its statistics.
+	 **/
+	public EntityCache<FoodItem> getFoodItemCache()
+	{
+		return itemCache;
+	}
+
+	/**
+	 * @return The cache of locations, for its statistics.
+	 **/
+	public EntityCache<Location> getLocationCache()
+	{
+		return locationCache;
+	}
+
+	/**
+	 * @return The cache of managers, for its statistics.
+	 **/
+	public EntityCache<Manager> getManagerCache()
+	{
+		return managerCache;
+	}
+
+	/**
+	 * Empties the item, location and manager caches.
+	 **/
+	private void clearEntityCaches()
+	{
+		itemCache.clear();
+		locationCache.clear();
+		managerCache.clear();
+	}
+
+	/**
+	 * Looks for an object in the current session, then in its cache.
+	 * An object found in the cache joins the session.
+	 * @param session The identity map of the current session.
+	 * @param type The class of the object.
+	 * @param cache The cache of that class.
+	 * @param id The id of the object.
+	 * @return The object, or null if it has to be loaded from the database.
+	 **/
+	private <T extends ModelBase> T lookUp(IdentityMap session, Class<T> type, EntityCache<T> cache, int id) throws BadStateException
+	{
+		T known = session.get(type, id);
+		if (known == null && entityCaching)
+		{
+			known = cache.get(id);
+			if (known != null)
+				session.put(known);
+		}
+		return known;
+	}
+
+	/**
+	 * Stores a copy of an object just loaded from the database in its cache.
+	 * @param cache The cache of the object's class.
+	 * @param entity The object.
+	 **/
+	private <T extends ModelBase> void cache(EntityCache<T> cache, T entity) throws BadStateException
+	{
+		if (entityCaching)
+			cache.put(entity);
+	}
+
+	/**
+	 * Creates all of the necessary tables in the database
+	 * @throws SQLException in case of a database error
+	 **/
+	private void initializeDatabase() throws SQLException
+	{
+		Connection db = connect();
+		Statement stmt = db.createStatement();
+		stmt.execute("PRAGMA auto_vacuum = INCREMENTAL"); //only takes hold in a brand new file; see collectGarbage()
+		
+		stmt.addBatch("CREATE TABLE IF NOT EXISTS Location( locationId INTEGER PRIMARY KEY AUTOINCREMENT, zipCode INTEGER, state TEXT);");
+
+		stmt.addBatch("CREATE TABLE IF NOT EXISTS Item( itemId INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, price INTEGER NOT NULL, freshLength INTEGER NOT NULL, active INTEGER NOT NULL);");
+
+		stmt.addBatch("CREATE TABLE IF NOT EXISTS VMLayout( layoutId INTEGER PRIMARY KEY AUTOINCREMENT, nextVisit INTEGER, depth INTEGER NOT NULL);");
+
+		stmt.addBatch(" CREATE TABLE IF NOT EXISTS VMRow( vmRowId INTEGER PRIMARY KEY AUTOINCREMENT, productId INTEGER REFERENCES Item(itemId), expirationDate INTEGER NOT NULL, remainingQuant INTEGER NOT NULL);");
+
+		stmt.addBatch(" CREATE TABLE IF NOT EXISTS VMLayoutVMRowLink( layoutId INTEGER REFERENCES VMLayout(layoutId), vmRowId INTEGER REFERENCES VMRow(vmRowId), rowX INTEGER NOT NULL, rowY INTEGER NOT NULL);");
+
+		stmt.addBatch("CREATE TABLE IF NOT EXISTS VendingMachine( machineId INTEGER PRIMARY KEY AUTOINCREMENT, active INTEGER NOT NULL, stockingInterval INTEGER NOT NULL, currentLayoutId INTEGER REFERENCES VMLayout(layoutId), nextLayoutId INTEGER REFERENCES VMLayout(layoutId), locationId INTEGER REFERENCES Location(locationId));");
+
+		stmt.addBatch("CREATE TABLE IF NOT EXISTS NearbyBusiness( locationId INTEGER REFERENCES Location(locationId), name TEXT NOT NULL);");
+
+		stmt.addBatch(" CREATE TABLE IF NOT EXISTS Customer( customerId INTEGER PRIMARY KEY AUTOINCREMENT, money INTEGER NOT NULL, name TEXT)");
+
+		stmt.addBatch(" CREATE TABLE IF NOT EXISTS Manager( managerId INTEGER PRIMARY KEY AUTOINCREMENT, password TEXT NOT NULL, name TEXT)");
+
+		stmt.addBatch("CREATE TABLE IF NOT EXISTS VMTransaction( transactionId INTEGER PRIMARY KEY AUTOINCREMENT, timestamp INTEGER NOT NULL, machineId INTEGER REFERENCES VendingMachine(machineId), customerId INTEGER REFERENCES Customer(customerId), productId INTEGER REFERENCES Item(itemId), rowX INTEGER NOT NULL, rowY INTEGER NOT NULL, balance INTEGER NOT NULL);");
+
+		stmt.executeBatch();
+		stmt.close();
+
+		int applied = new SchemaMigrator(MIGRATIONS).migrate(db);
+		partitions = readPartitionCatalog();
+		if (applied > 0)
+		{
+			if (SchemaMigrator.getVersion(db) - applied < DAILY_SALES_VERSION) //the rollups are new, so fill them from the existing history
+				rebuildSalesRollups();
+		}
+		closeConnection();
+	}
+
+	/**
+	 * Deletes all data from database. Meant for testing purposes only!
+	 * DO NOT USE THIS METHOD UNLESS YOU ARE WRITING A TEST!!!
+	 *@throws SQLException in case of a database error
+	 **/
+	public void nuke() throws SQLException
+	{
+		Connection db = connect();
+		Statement stmt = db.createStatement();
+		stmt.executeUpdate("DELETE FROM Item; DELETE FROM Location; DELETE FROM VMLayout; DELETE FROM VMRow; DELETE FROM VendingMachine; DELETE FROM NearbyBusiness; DELETE FROM Customer; DELETE FROM Manager; DELETE FROM VMTransaction; DELETE FROM DailySales; DELETE FROM ImportCheckpoint");
+		stmt.close();
+		clearEntityCaches();
+		closeConnection();
+
+		archiveLock.writeLock().lock();
+		try
+		{
+			db = connect();
+			stmt = db.createStatement();
+			stmt.executeUpdate("DELETE FROM TransactionArchive");
+			stmt.close();
+			closeConnection();
+			for (ArchivePartition partition : partitions)
+				new File(partition.getPath()).delete();
+			partitions = new ArrayList<ArchivePartition>();
+			synchronized (attachments)
+			{
+				++archiveGeneration;
+			}
+		}
+		finally
+		{
+			archiveLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes the layouts no machine uses any more, and the rows no layout
+	 * holds any more, and then gives the space they took back to the file
+	 * system. Every restock and layout change leaves a layout and its rows
+	 * behind, so without this the database file grows with each one.
+	 * <p>
+	 * The deletions are made in one database transaction. Free pages are
+	 * then trimmed from the file VACUUM_STEP_PAGES at a time, letting go of
+	 * the connection between steps so that other writers aren't held up for
+	 * long. A database created before incremental vacuuming was turned on
+	 * is converted first, by one full VACUUM, which rewrites the whole file;
+	 * if other connections are using the database meanwhile, the conversion
+	 * and trimming are put off until a later collection, as the report says.
+	 * This can take a while on a large fleet, so it is meant to be run by a
+	 * manager or a background job rather than from a kiosk.
+	 * @param maxSteps The most trimming steps to take; any free pages left
+	 * over are reused by later writes or trimmed by a later collection.
+	 * @return What was collected.
+	 * @throws BadArgumentException if the number of steps is negative.
+	 * @throws SQLException in case of a database error, or if the current
+	 * thread is in the middle of a database transaction.
+	 **/
+	public GarbageReport collectGarbage(int maxSteps) throws SQLException, BadArgumentException
+	{
+		if (maxSteps < 0)
+			throw new BadArgumentException("The number of vacuum steps can't be negative");
+
+		Connection db = connect();
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		int layouts;
+		int rows;
+		try
+		{
+			Statement stmt = db.createStatement();
+			stmt.executeUpdate("DELETE FROM VMLayoutVMRowLink WHERE layoutId NOT IN (" + LAYOUTS_IN_USE + ")");
+			layouts = stmt.executeUpdate("DELETE FROM VMLayout WHERE layoutId NOT IN (" + LAYOUTS_IN_USE + ")");
+			rows = stmt.executeUpdate("DELETE FROM VMRow WHERE vmRowId NOT IN (SELECT vmRowId FROM VMLayoutVMRowLink WHERE vmRowId IS NOT NULL)");
+			stmt.close();
+			succeeded = true;
+		}
+		finally
+		{
+			endTransaction(db, started, succeeded);
+			closeConnection();
+		}
+
+		int pages = 0;
+		int pagesLeft;
+		boolean deferred = false;
+		db = connect();
+		try
+		{
+			if (!db.getAutoCommit())
+				throw new SQLException("The database file can't be vacuumed in the middle of a database transaction");
+			if (readPragma(db, "auto_vacuum") != 2) //not yet INCREMENTAL
+			{
+				Statement stmt = db.createStatement();
+				try
+				{
+					stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+					stmt.execute("VACUUM");
+				}
+				catch (SQLException failure)
+				{
+					if (!isBusy(failure))
+						throw failure;
+					deferred = true;
+				}
+				finally
+				{
+					stmt.close();
+				}
+			}
+			pagesLeft = readPragma(db, "freelist_count");
+		}
+		finally
+		{
+			closeConnection();
+		}
+
+		for (int step=0;step<maxSteps && pagesLeft>0 && !deferred;++step)
+		{
+			db = connect();
+			try
+			{
+				Statement stmt = db.createStatement();
+				stmt.executeUpdate("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")"); //steps it to completion, unlike execute()
+				stmt.close();
+				int remaining = readPragma(db, "freelist_count");
+				pages += pagesLeft - remaining;
+				pagesLeft = remaining;
+			}
+			finally
+			{
+				closeConnection();
+			}
+		}
+		return new GarbageReport(layouts, rows, pages, pagesLeft, deferred);
+	}
+
+	/**
+	 * Determines whether a statement failed only because other connections
+	 * held the database for longer than it was willing to wait, so that it
+	 * may well succeed if tried again later.
+	 * @param failure What the statement threw.
+	 * @return Whether the database was busy or locked.
+	 **/
+	private static boolean isBusy(SQLException failure)
+	{
+		String message = failure.getMessage() == null ? "" : failure.getMessage().toLowerCase();
+		return message.contains("busy") || message.contains("locked");
+	}
+
+	/**
+	 * Reads a numeric setting or statistic of the database.
+	 * @param db The current thread's connection.
+	 * @param pragma The name of the pragma.
+	 * @return Its value.
+	 **/
+	private static int readPragma(Connection db, String pragma) throws SQLException
+	{
+		Statement stmt = db.createStatement();
+		ResultSet results = stmt.executeQuery("PRAGMA " + pragma);
+		int value = results.next() ? results.getInt(1) : 0;
+		results.close();
+		stmt.close();
+		return value;
+	}
+
+	private boolean isFoodItemValid(FoodItem item)
+	{
+		if(item.isTempId()) {
+			return false;
+		}
+
+		try {
+			if(getFoodItemById(item.getId()) == null) {
+				return false;
+			}
+		} catch(BadStateException e) {
+			System.err.println("A previously-thought impossible error occurred when checking if a food item was in the database");
 			return false;
 		} catch(SQLException e) {
 			System.err.println("A previously-thought impossible error occurred when checking if a food item was in the database");
@@ -261,1028 +1455,3215 @@ public class DatabaseLayer
 	 **/
 	public FoodItem getFoodItemById(int id) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		FoodItem returnValue = null;
-		Statement stmt = db.createStatement();
-		ResultSet results = stmt.executeQuery("SELECT itemId, name, price, freshLength, active FROM Item WHERE itemId=" + id);
+		IdentityMap session = session();
+		FoodItem returnValue = lookUp(session, FoodItem.class, itemCache, id);
+		if (returnValue != null)
+			return returnValue;
+
+		connect();
+		PreparedStatement stmt = prepare("SELECT itemId, name, price, freshLength, active FROM Item WHERE itemId=?");
+		stmt.setInt(1, id);
+		ResultSet results = stmt.executeQuery();
 		if (results.next())
+			returnValue = readFoodItem(results, session);
+		results.close();
+		release(stmt);
+		closeConnection();
+		return returnValue;
+	}
+
+	/**
+	 * Gets all of the items in the database.
+	 * @return An ArrayList of all of the items in the database.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<FoodItem> getFoodItemsAll() throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<FoodItem> returnSet = new ArrayList<FoodItem>();
+			PreparedStatement stmt = prepare("SELECT itemId, name, price, freshLength, active FROM Item");
+			ResultSet results = stmt.executeQuery();
+			while (results.next())
+				returnSet.add(readFoodItem(results, session));
+			results.close();
+			release(stmt);
+			return returnSet;
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Fetches every item with one of the given ids, in batches. Items already
+	 * loaded in the current session, or cached, aren't queried for again.
+	 * @param ids The ids of the items to fetch.
+	 * @return A map from id to item. Ids with no such item are left out.
+	 * @throws SQLException in case of a database error
+	 **/
+	private HashMap<Integer, FoodItem> getFoodItemsByIds(Collection<Integer> ids) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		IdentityMap session = session();
+		HashMap<Integer, FoodItem> returnSet = new HashMap<Integer, FoodItem>();
+		ArrayList<Integer> idList = new ArrayList<Integer>();
+		for (int id : ids)
+		{
+			FoodItem known = lookUp(session, FoodItem.class, itemCache, id);
+			if (known == null)
+				idList.add(id);
+			else
+				returnSet.put(id, known);
+		}
+		for (int start=0;start<idList.size();start+=BATCH_SIZE)
+		{
+			PreparedStatement stmt = prepare("SELECT itemId, name, price, freshLength, active FROM Item WHERE itemId IN (" + BATCH_PLACEHOLDERS + ")");
+			bindBatch(stmt, idList, start);
+			ResultSet results = stmt.executeQuery();
+			while (results.next())
+			{
+				FoodItem item = readFoodItem(results, session);
+				returnSet.put(item.getId(), item);
+			}
+			results.close();
+			release(stmt);
+		}
+		closeConnection();
+		return returnSet;
+	}
+
+	/**
+	 * Builds the item in the current row of a query's results, unless the
+	 * session already has an instance of it. The query must select itemId,
+	 * name, price, freshLength and active, in that order.
+	 * @param results The results, positioned at the item's row.
+	 * @param session The identity map of the current session.
+	 * @return The session's instance of the item.
+	 **/
+	private FoodItem readFoodItem(ResultSet results, IdentityMap session) throws SQLException, BadStateException, BadArgumentException
+	{
+		FoodItem item = session.get(FoodItem.class, results.getInt(1));
+		if (item == null)
+		{
+			item = new FoodItem(results.getString(2), results.getInt(3), results.getInt(4), results.getInt(5) != 0);
+			item.setId(results.getInt(1));
+			item.markClean();
+			session.put(item);
+			cache(itemCache, item);
+		}
+		return item;
+	}
+
+	/**
+	 * Updates the item in the database. If the item does not already exists
+	 * (determined by the id of the item) then the item is created. If an item
+	 * is created then the id is updated with the auto incremented one. Only
+	 * the fields changed since the item was loaded or last saved are written.
+	 * @param item The item to update
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateFoodItem(FoodItem item) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		if (item.isTempId())
+		{
+			PreparedStatement insertStmt = prepare("INSERT INTO Item(name, price, freshLength, active) VALUES(?, ?, ?, ?)");
+			insertStmt.setString(1, item.getName());
+			insertStmt.setInt(2, item.getPrice());
+			insertStmt.setLong(3, item.getFreshLength());
+			insertStmt.setInt(4, item.isActive() ? 1 : 0);
+			insertStmt.executeUpdate();
+			ResultSet keys = insertStmt.getGeneratedKeys();
+			keys.next();
+			int id = keys.getInt(1);
+			item.setId(id);
+			keys.close();
+			release(insertStmt);
+		}
+		else if (item.isDirty())
+		{
+			LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+			if (item.isDirty("name"))
+				columns.put("name", item.getName());
+			if (item.isDirty("price"))
+				columns.put("price", item.getPrice());
+			if (item.isDirty("freshLength"))
+				columns.put("freshLength", item.getFreshLength());
+			if (item.isDirty("active"))
+				columns.put("active", item.isActive() ? 1 : 0);
+			updateColumns("Item", "itemId", item.getId(), columns);
+		}
+		item.markClean();
+		itemCache.invalidate(item.getId());
+		remember(item);
+		closeConnection();
+	}
+
+	/**
+	 * Fetches every VMLayout whose id is picked out by the given selection.
+	 * The layouts' rows and their items are loaded by a fixed handful of
+	 * queries rather than one per row. Should only be called by the methods
+	 * inside this class that need to work with VMLayouts, which is mostly the
+	 * VendingMachine methods.
+	 * @param selection SQL selecting the ids of the layouts to fetch, such as
+	 * a subquery or a list of placeholders.
+	 * @param params The parameters of the selection.
+	 * @return A map from id to VMLayout. Layouts without any rows are left
+	 * out.
+	 * @throws SQLException in case of a database error.
+	 **/
+	private HashMap<Integer, VMLayout> loadVMLayouts(String selection, Object... params) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		LinkedList<long[]> raw = new LinkedList<long[]>();
+		LinkedHashSet<Integer> productIds = new LinkedHashSet<Integer>();
+		PreparedStatement rowStmt = prepare("SELECT layoutId, VMRow.vmRowId, productId, expirationDate, remainingQuant, rowX, rowY FROM VMLayoutVMRowLink LEFT JOIN VMRow ON VMRow.vmRowId=VMLayoutVMRowLink.vmRowId WHERE layoutId IN (" + selection + ")");
+		bindSelection(rowStmt, 1, params);
+		ResultSet rowResults = rowStmt.executeQuery();
+		while (rowResults.next())
+		{
+			long[] fields = new long[7];
+			for (int col=0;col<fields.length;++col)
+				fields[col] = rowResults.getLong(col+1);
+			if (rowResults.getObject(5) == null) //empty slot
+				fields[1] = -1;
+			else
+				productIds.add((int)fields[2]);
+			raw.add(fields);
+		}
+		rowResults.close();
+		release(rowStmt);
+
+		IdentityMap session = session();
+		HashMap<Integer, FoodItem> products = getFoodItemsByIds(productIds);
+		HashMap<Integer, LinkedList<Pair<Row,Pair<Integer,Integer>>>> slots = new HashMap<Integer, LinkedList<Pair<Row,Pair<Integer,Integer>>>>();
+		for (long[] fields : raw)
+		{
+			Row row = null;
+			if (fields[1] != -1)
+				row = session.get(Row.class, (int)fields[1]);
+			if (fields[1] != -1 && row == null)
+			{
+				GregorianCalendar date = new GregorianCalendar();
+				date.setTimeInMillis(fields[3]);
+				row = new Row(products.get((int)fields[2]), (int)fields[4], date);
+				row.setId((int)fields[1]);
+				session.put(row);
+			}
+			LinkedList<Pair<Row,Pair<Integer,Integer>>> layoutSlots = slots.get((int)fields[0]);
+			if (layoutSlots == null)
+			{
+				layoutSlots = new LinkedList<Pair<Row,Pair<Integer,Integer>>>();
+				slots.put((int)fields[0], layoutSlots);
+			}
+			layoutSlots.add(new Pair<Row,Pair<Integer,Integer>>(row, new Pair<Integer,Integer>((int)fields[5], (int)fields[6])));
+		}
+
+		HashMap<Integer, VMLayout> returnSet = new HashMap<Integer, VMLayout>();
+		PreparedStatement layoutStmt = prepare("SELECT layoutId, depth, nextVisit FROM VMLayout WHERE layoutId IN (" + selection + ")");
+		bindSelection(layoutStmt, 1, params);
+		ResultSet layoutResults = layoutStmt.executeQuery();
+		while (layoutResults.next())
+		{
+			int id = layoutResults.getInt(1);
+			VMLayout known = session.get(VMLayout.class, id);
+			if (known != null)
+			{
+				returnSet.put(id, known);
+				continue;
+			}
+			int depth = layoutResults.getInt(2);
+			long nextVisitInt = layoutResults.getLong(3);
+			GregorianCalendar nextVisit = null;
+			if (!layoutResults.wasNull())
+			{
+				nextVisit = new GregorianCalendar();
+				nextVisit.setTimeInMillis(nextVisitInt);
+			}
+			LinkedList<Pair<Row,Pair<Integer,Integer>>> layoutSlots = slots.get(id);
+			if (layoutSlots == null)
+				continue;
+
+			int maxX = -1;
+			int maxY = -1;
+			for (Pair<Row,Pair<Integer,Integer>> entry : layoutSlots)
+			{
+				maxX = Math.max(maxX, entry.second.first);
+				maxY = Math.max(maxY, entry.second.second);
+			}
+			Row[][] rows = new Row[maxY+1][maxX+1];
+			for (Pair<Row,Pair<Integer,Integer>> entry : layoutSlots)
+				rows[entry.second.second][entry.second.first] = entry.first;
+
+			VMLayout layout = new VMLayout(rows, depth);
+			layout.setNextVisit(nextVisit);
+			layout.setId(id);
+			layout.markClean();
+			session.put(layout);
+			returnSet.put(id, layout);
+		}
+		layoutResults.close();
+		release(layoutStmt);
+		closeConnection();
+		return returnSet;
+	}
+
+	/**
+	 * Updates the VMLayout and its rows if it exists in the database. If it does not exist
+	 * then it and its rows are created. Only the slots that differ from what
+	 * is stored are written: rows changed in memory whose contents differ
+	 * from what is stored are updated (so a quantity taken by a purchase
+	 * elsewhere isn't put back), new
+	 * rows are inserted, and a slot's link is only touched when the row in
+	 * it is a different one. The whole layout is saved in one transaction.
+	 * A layout that hasn't changed since it was loaded or last saved isn't
+	 * touched at all.
+	 * @param layout The VMLayout to update/create.
+	 **/
+	private void updateOrCreateVMLayout(VMLayout layout) throws SQLException, BadStateException, BadArgumentException
+	{
+		if (!layout.isTempId() && !layout.isDirty())
+		{
+			remember(layout);
+			return;
+		}
+
+		Row[][] grid = layout.getRows();
+		for (Row[] line : grid)
+			for (Row row : line)
+				if (row != null && !isFoodItemValid(row.getProduct()))
+					throw new BadArgumentException("FoodItem in Row is not in database, but it must be before the Row can be added");
+
+		Connection db = connect();
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		try
+		{
+			HashMap<Long, long[]> stored = new HashMap<Long, long[]>();
+			if (layout.isTempId())
+			{
+				PreparedStatement insertStmt = prepare("INSERT INTO VMLayout(nextVisit, depth) VALUES(?, ?)");
+				if (layout.getNextVisit() == null)
+					insertStmt.setNull(1, java.sql.Types.INTEGER);
+				else
+					insertStmt.setLong(1, layout.getNextVisit().getTimeInMillis());
+				insertStmt.setInt(2, layout.getDepth());
+				insertStmt.executeUpdate();
+				ResultSet keys = insertStmt.getGeneratedKeys();
+				keys.next();
+				assignId(layout, keys.getInt(1));
+				keys.close();
+				release(insertStmt);
+			}
+			else
+			{
+				LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+				if (layout.isDirty("nextVisit"))
+					columns.put("nextVisit", layout.getNextVisit() == null ? null : layout.getNextVisit().getTimeInMillis());
+				updateColumns("VMLayout", "layoutId", layout.getId(), columns);
+
+				stored = loadSlots(layout.getId());
+			}
+
+			PreparedStatement rowInsertStmt = prepare("INSERT INTO VMRow(productId, expirationDate, remainingQuant) VALUES(?, ?, ?)");
+			PreparedStatement rowUpdateStmt = prepare("UPDATE VMRow SET productId=?, expirationDate=?, remainingQuant=? WHERE vmRowId=?");
+			PreparedStatement linkInsertStmt = prepare("INSERT INTO VMLayoutVMRowLink(vmRowId, layoutId, rowX, rowY) VALUES(?, ?, ?, ?)");
+			PreparedStatement linkUpdateStmt = prepare("UPDATE VMLayoutVMRowLink SET vmRowId=? WHERE layoutId=? AND rowX=? AND rowY=?");
+			for (int y=0;y<grid.length;++y)
+			{
+				for (int x=0;x<grid[y].length;++x)
+				{
+					Row row = grid[y][x];
+					long[] slot = stored.remove(slotKey(x, y));
+					if (row != null && row.isTempId())
+					{
+						bindRow(rowInsertStmt, row);
+						rowInsertStmt.executeUpdate();
+						ResultSet rowKeys = rowInsertStmt.getGeneratedKeys();
+						rowKeys.next();
+						assignId(row, rowKeys.getInt(1));
+						rowKeys.close();
+					}
+					else if (row != null && row.isDirty() && (slot == null || slot[0] != row.getId() || !isRowStored(row, slot)))
+					{
+						bindRow(rowUpdateStmt, row);
+						rowUpdateStmt.setInt(4, row.getId());
+						rowUpdateStmt.addBatch();
+					}
+
+					long rowId = row == null ? -1 : row.getId();
+					if (slot != null && slot[0] == rowId)
+						continue; //same row in the same place
+					PreparedStatement linkStmt = slot == null ? linkInsertStmt : linkUpdateStmt;
+					if (row == null)
+						linkStmt.setNull(1, java.sql.Types.INTEGER);
+					else
+						linkStmt.setInt(1, row.getId());
+					linkStmt.setInt(2, layout.getId());
+					linkStmt.setInt(3, x);
+					linkStmt.setInt(4, y);
+					linkStmt.addBatch();
+				}
+			}
+			rowUpdateStmt.executeBatch();
+			linkInsertStmt.executeBatch();
+			linkUpdateStmt.executeBatch();
+			release(rowInsertStmt);
+			release(rowUpdateStmt);
+			release(linkInsertStmt);
+			release(linkUpdateStmt);
+
+			if (!stored.isEmpty()) //the grid has shrunk
+			{
+				PreparedStatement linkDeleteStmt = prepare("DELETE FROM VMLayoutVMRowLink WHERE layoutId=? AND rowX=? AND rowY=?");
+				for (long key : stored.keySet())
+				{
+					linkDeleteStmt.setInt(1, layout.getId());
+					linkDeleteStmt.setInt(2, (int)(key >> 32));
+					linkDeleteStmt.setInt(3, (int)key);
+					linkDeleteStmt.addBatch();
+				}
+				linkDeleteStmt.executeBatch();
+				release(linkDeleteStmt);
+			}
+			succeeded = true;
+		}
+		finally
+		{
+			endTransaction(db, started, succeeded);
+			closeConnection();
+		}
+		layout.markClean();
+		remember(layout);
+	}
+
+	/**
+	 * Reads what is currently stored in each slot of a layout.
+	 * @param layoutId The id of the layout.
+	 * @return A map from each slot's slotKey() to its vmRowId (or -1 if it
+	 * is empty), productId, expirationDate and remainingQuant, in that order.
+	 **/
+	private HashMap<Long, long[]> loadSlots(int layoutId) throws SQLException
+	{
+		HashMap<Long, long[]> slots = new HashMap<Long, long[]>();
+		PreparedStatement stmt = prepare("SELECT rowX, rowY, VMLayoutVMRowLink.vmRowId, productId, expirationDate, remainingQuant FROM VMLayoutVMRowLink LEFT JOIN VMRow ON VMRow.vmRowId=VMLayoutVMRowLink.vmRowId WHERE layoutId=?");
+		stmt.setInt(1, layoutId);
+		ResultSet results = stmt.executeQuery();
+		while (results.next())
+		{
+			long[] slot = new long[4];
+			for (int col=0;col<slot.length;++col)
+				slot[col] = results.getLong(col+3);
+			if (results.getObject(3) == null) //empty slot
+				slot[0] = -1;
+			slots.put(slotKey(results.getInt(1), results.getInt(2)), slot);
+		}
+		results.close();
+		release(stmt);
+		return slots;
+	}
+
+	/**
+	 * Combines a slot's coordinates into one map key.
+	 * @param x The x value of the slot.
+	 * @param y The y value of the slot.
+	 * @return The key.
+	 **/
+	private static long slotKey(int x, int y)
+	{
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Determines whether a row's contents match what is stored for its slot.
+	 * @param row The row.
+	 * @param slot The stored slot, as read by loadSlots().
+	 * @return Whether nothing needs to be written.
+	 **/
+	private static boolean isRowStored(Row row, long[] slot) throws BadStateException
+	{
+		return slot[1] == row.getProduct().getId() && slot[2] == row.getExpirationDate().getTimeInMillis() && slot[3] == row.getRemainingQuantity();
+	}
+
+	/**
+	 * Binds the contents of a row to the first three parameters of an insert
+	 * or update statement, in the order productId, expirationDate,
+	 * remainingQuant.
+	 * @param stmt The statement to bind the parameters of.
+	 * @param row The row to bind.
+	 **/
+	private static void bindRow(PreparedStatement stmt, Row row) throws SQLException, BadStateException
+	{
+		stmt.setInt(1, row.getProduct().getId());
+		stmt.setLong(2, row.getExpirationDate().getTimeInMillis());
+		stmt.setInt(3, row.getRemainingQuantity());
+	}
+
+	/**
+	 * Gives an object the id generated for it by an insert within a
+	 * transaction begun by beginTransaction(). Should the transaction be
+	 * rolled back, the object gets its temporary id back, so that saving it
+	 * again inserts it afresh rather than updating a row that isn't there.
+	 * @param model The object just inserted.
+	 * @param id The generated id.
+	 **/
+	private void assignId(ModelBase model, int id) throws BadStateException, BadArgumentException
+	{
+		model.setId(id);
+		ArrayList<ModelBase> assigned = assignedIds.get();
+		if (assigned == null)
+		{
+			assigned = new ArrayList<ModelBase>();
+			assignedIds.set(assigned);
+		}
+		assigned.add(model);
+	}
+
+	/**
+	 * Starts a database transaction on the current thread's connection,
+	 * unless one is already under way, in which case the caller's writes
+	 * simply become part of it.
+	 * @param db The current thread's connection.
+	 * @return Whether this call started the transaction, and so must end it.
+	 **/
+	private static boolean beginTransaction(Connection db) throws SQLException
+	{
+		if (!db.getAutoCommit())
+			return false;
+		db.setAutoCommit(false);
+		return true;
+	}
+
+	/**
+	 * Ends a transaction begun by beginTransaction(), committing it if the
+	 * work succeeded and rolling it back otherwise, in which case whatever
+	 * assignId() gave ids to within it gets temporary ids back. Does nothing if the
+	 * transaction was already under way, leaving that to whoever started it.
+	 * @param db The current thread's connection.
+	 * @param started What beginTransaction() returned.
+	 * @param succeeded Whether the work should be committed.
+	 **/
+	private void endTransaction(Connection db, boolean started, boolean succeeded) throws SQLException
+	{
+		if (!started)
+			return;
+		boolean committed = false;
+		try
+		{
+			if (succeeded)
+			{
+				db.commit();
+				committed = true;
+			}
+			else
+				db.rollback();
+		}
+		finally
+		{
+			db.setAutoCommit(true);
+			ArrayList<ModelBase> assigned = assignedIds.get();
+			assignedIds.remove();
+			if (assigned != null && !committed) //those ids were never stored
+				for (ModelBase model : assigned)
+					model.clearId();
+		}
+	}
+
+	/**
+	 * Fetches every Location whose id is picked out by the given selection,
+	 * along with all of their nearby businesses in one query. Only this class
+	 * should ever need to do that.
+	 * @param selection SQL selecting the ids of the locations to fetch, such
+	 * as a subquery or a list of placeholders.
+	 * @param params The parameters of the selection.
+	 * @return A map from id to Location, in the order the locations are
+	 * stored.
+	 * @throws SQLException in case of a database error.
+	 **/
+	private LinkedHashMap<Integer, Location> loadLocations(String selection, Object... params) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		HashMap<Integer, LinkedList<String>> businesses = new HashMap<Integer, LinkedList<String>>();
+		PreparedStatement busStmt = prepare("SELECT locationId, name FROM NearbyBusiness WHERE locationId IN (" + selection + ") ORDER BY locationId, rowid");
+		bindSelection(busStmt, 1, params);
+		ResultSet busSet = busStmt.executeQuery();
+		while (busSet.next())
+		{
+			LinkedList<String> busList = businesses.get(busSet.getInt(1));
+			if (busList == null)
+			{
+				busList = new LinkedList<String>();
+				businesses.put(busSet.getInt(1), busList);
+			}
+			busList.add(busSet.getString(2));
+		}
+		busSet.close();
+		release(busStmt);
+
+		IdentityMap session = session();
+		LinkedHashMap<Integer, Location> returnSet = new LinkedHashMap<Integer, Location>();
+		PreparedStatement locStmt = prepare("SELECT locationId, zipCode, state FROM Location WHERE locationId IN (" + selection + ")");
+		bindSelection(locStmt, 1, params);
+		ResultSet locSet = locStmt.executeQuery();
+		while (locSet.next())
+		{
+			int id = locSet.getInt(1);
+			Location returnValue = session.get(Location.class, id);
+			if (returnValue == null)
+			{
+				LinkedList<String> busList = businesses.get(id);
+				String[] busArray = busList == null ? new String[0] : busList.toArray(new String[0]);
+				returnValue = new Location(locSet.getInt(2), locSet.getString(3), busArray);
+				returnValue.setId(id);
+				returnValue.markClean();
+				session.put(returnValue);
+				cache(locationCache, returnValue);
+			}
+			returnSet.put(id, returnValue);
+		}
+		locSet.close();
+		release(locStmt);
+		closeConnection();
+		return returnSet;
+	}
+
+	/**
+	 * Fetches every location with one of the given ids, in batches. Locations
+	 * already loaded in the current session, or cached, aren't queried for
+	 * again.
+	 * @param ids The ids of the locations to fetch.
+	 * @return A map from id to location. Ids with no such location are left
+	 * out.
+	 * @throws SQLException in case of a database error
+	 **/
+	private HashMap<Integer, Location> getLocationsByIds(Collection<Integer> ids) throws SQLException, BadStateException, BadArgumentException
+	{
+		IdentityMap session = session();
+		HashMap<Integer, Location> returnSet = new HashMap<Integer, Location>();
+		ArrayList<Integer> idList = new ArrayList<Integer>();
+		for (int id : ids)
+		{
+			Location known = lookUp(session, Location.class, locationCache, id);
+			if (known == null)
+				idList.add(id);
+			else
+				returnSet.put(id, known);
+		}
+		for (int start=0;start<idList.size();start+=BATCH_SIZE)
+			returnSet.putAll(loadLocations(BATCH_PLACEHOLDERS, batch(idList, start)));
+		return returnSet;
+	}
+
+	/**
+	 * Fetches the location with the given id, along with its nearby
+	 * businesses.
+	 * @param id The id of the location to fetch.
+	 * @return The location with the given id, or null if there isn't one.
+	 * @throws SQLException in case of a database error.
+	 **/
+	public Location getLocationById(int id) throws SQLException, BadStateException, BadArgumentException
+	{
+		IdentityMap session = session();
+		Location returnValue = lookUp(session, Location.class, locationCache, id);
+		if (returnValue != null)
+			return returnValue;
+
+		return loadLocations("?", id).get(id);
+	}
+
+	/**
+	 * Fetches all of the locations from the database
+	 * @return An ArrayList of all the locations
+	 * @throws SQLException in case of a database error.
+	 **/
+	public ArrayList<Location> getLocationsAll() throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			return new ArrayList<Location>(loadLocations("SELECT locationId FROM Location").values());
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Updates the given location if it exists in the database. If it does not
+	 * exist then it is created. Its nearby businesses are compared against
+	 * the stored ones, and only those that changed are written, in one
+	 * transaction.
+	 * @param location The location to create/update.
+	 * @throws SQLException in case of a database error.
+	 **/
+	private void updateOrCreateLocation(Location location) throws SQLException, BadStateException, BadArgumentException
+	{
+		Connection db = connect();
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		try
+		{
+			boolean created = location.isTempId();
+			if (created)
+			{
+				PreparedStatement insertStmt = prepare("INSERT INTO Location(zipCode, state) VALUES(?, ?)");
+				insertStmt.setInt(1, location.getZipCode());
+				insertStmt.setString(2, location.getState());
+
+				insertStmt.executeUpdate();
+				ResultSet keys = insertStmt.getGeneratedKeys();
+				keys.next();
+				assignId(location, keys.getInt(1));
+				keys.close();
+				release(insertStmt);
+			}
+			else if (location.isDirty())
+			{
+				LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+				if (location.isDirty("zipCode"))
+					columns.put("zipCode", location.getZipCode());
+				if (location.isDirty("state"))
+					columns.put("state", location.getState());
+				updateColumns("Location", "locationId", location.getId(), columns);
+			}
+			if (created || location.isDirty("nearbyBusinesses"))
+				updateNearbyBusinesses(location.getId(), location.getNearbyBusinesses(), created);
+			succeeded = true;
+		}
+		finally
+		{
+			endTransaction(db, started, succeeded);
+			closeConnection();
+		}
+		location.markClean();
+		locationCache.invalidate(location.getId());
+		remember(location);
+	}
+
+	/**
+	 * Brings a location's stored nearby businesses in line with the given
+	 * ones. Stored businesses are kept for as long as they match the given
+	 * ones in order; any that don't are deleted, and whatever is left over
+	 * is inserted after them. Adding or removing a business therefore only
+	 * writes that business, while the order they load back in is preserved.
+	 * Must be called with the connection already open.
+	 * @param locationId The id of the location.
+	 * @param businesses The businesses that should be stored, in order.
+	 * @param created Whether the location was only just inserted, and so has
+	 * none stored yet.
+	 * @throws SQLException in case of a database error.
+	 **/
+	private void updateNearbyBusinesses(int locationId, String[] businesses, boolean created) throws SQLException
+	{
+		int kept = 0;
+		ArrayList<Long> doomed = new ArrayList<Long>();
+		if (!created)
+		{
+			PreparedStatement storedStmt = prepare("SELECT rowid, name FROM NearbyBusiness WHERE locationId=? ORDER BY rowid");
+			storedStmt.setInt(1, locationId);
+			ResultSet stored = storedStmt.executeQuery();
+			while (stored.next())
+			{
+				if (kept < businesses.length && businesses[kept].equals(stored.getString(2)))
+					++kept;
+				else
+					doomed.add(stored.getLong(1));
+			}
+			stored.close();
+			release(storedStmt);
+		}
+
+		if (!doomed.isEmpty())
+		{
+			PreparedStatement delStmt = prepare("DELETE FROM NearbyBusiness WHERE rowid=?");
+			for (long rowid : doomed)
+			{
+				delStmt.setLong(1, rowid);
+				delStmt.addBatch();
+			}
+			delStmt.executeBatch();
+			release(delStmt);
+		}
+
+		if (kept < businesses.length)
+		{
+			PreparedStatement busStmt = prepare("INSERT INTO NearbyBusiness(locationId, name) VALUES(?, ?)");
+			for (int index=kept;index<businesses.length;++index)
+			{
+				busStmt.setInt(1, locationId);
+				busStmt.setString(2, businesses[index]);
+				busStmt.addBatch();
+			}
+			busStmt.executeBatch();
+			release(busStmt);
+		}
+	}
+
+	/**
+	 * Fetches the vending machine with the given id.
+	 * The layouts are only fetched once they are first needed.
+	 * @param id The id of the vending machine to fetch.
+	 * @return The vending machine with the given id or null if the vending
+	 * machine does not exist.
+	 * @throws SQLException in case of a database error
+	 **/
+	public VendingMachine getVendingMachineById(int id) throws SQLException, BadStateException, BadArgumentException
+	{
+		return getVendingMachineById(id, false);
+	}
+
+	/**
+	 * Fetches the vending machine with the given id.
+	 * @param id The id of the vending machine to fetch.
+	 * @param withLayouts Whether to fetch its layouts straight away, rather
+	 * than when they are first needed.
+	 * @return The vending machine with the given id or null if the vending
+	 * machine does not exist.
+	 * @throws SQLException in case of a database error
+	 **/
+	public VendingMachine getVendingMachineById(int id, boolean withLayouts) throws SQLException, BadStateException, BadArgumentException
+	{
+		ArrayList<VendingMachine> returnSet = loadVendingMachines(withLayouts, "?", id);
+		return returnSet.isEmpty() ? null : returnSet.get(0);
+	}
+
+	/**
+	 * Fetches every vending machine with one of the given ids, in batches.
+	 * Machines already loaded in the current session aren't queried for again.
+	 * @param ids The ids of the vending machines to fetch.
+	 * @return A map from id to vending machine. Ids with no such machine are
+	 * left out.
+	 * @throws SQLException in case of a database error
+	 **/
+	private HashMap<Integer, VendingMachine> getVendingMachinesByIds(Collection<Integer> ids) throws SQLException, BadStateException, BadArgumentException
+	{
+		IdentityMap session = session();
+		HashMap<Integer, VendingMachine> returnSet = new HashMap<Integer, VendingMachine>();
+		ArrayList<Integer> idList = new ArrayList<Integer>();
+		for (int id : ids)
+		{
+			VendingMachine known = session.get(VendingMachine.class, id);
+			if (known == null)
+				idList.add(id);
+			else
+				returnSet.put(id, known);
+		}
+		for (int start=0;start<idList.size();start+=BATCH_SIZE)
+			for (VendingMachine machine : loadVendingMachines(false, BATCH_PLACEHOLDERS, batch(idList, start)))
+				returnSet.put(machine.getId(), machine);
+		return returnSet;
+	}
+
+	/**
+	 * Fetches every vending machine whose id is picked out by the given
+	 * selection, together with its location and, if asked for, its layouts,
+	 * rows and items. The whole graph is pulled in by a fixed handful of
+	 * set-based queries, no matter how many machines are selected, and then
+	 * stitched together. The load runs within a session, so that objects
+	 * shared between machines are only built once. Layouts left out are
+	 * fetched for all of the machines at once, in that same session, when
+	 * the first of them is needed.
+	 * @param withLayouts Whether to fetch the layouts straight away.
+	 * @param selection SQL selecting the ids of the machines to fetch, such as
+	 * a subquery or a list of placeholders.
+	 * @param params The parameters of the selection.
+	 * @return An ArrayList of the vending machines, in the order they are
+	 * stored.
+	 * @throws SQLException in case of a database error
+	 **/
+	private ArrayList<VendingMachine> loadVendingMachines(boolean withLayouts, String selection, Object... params) throws SQLException, BadStateException, BadArgumentException
+	{
+		beginSession();
+		try
+		{
+			return loadVendingMachinesInSession(withLayouts, selection, params);
+		}
+		finally
+		{
+			endSession();
+		}
+	}
+
+	/**
+	 * Does the work of loadVendingMachines() once its session has begun.
+	 * @param withLayouts Whether to fetch the layouts straight away.
+	 * @param selection SQL selecting the ids of the machines to fetch.
+	 * @param params The parameters of the selection.
+	 * @return An ArrayList of the vending machines, in the order they are
+	 * stored.
+	 **/
+	private ArrayList<VendingMachine> loadVendingMachinesInSession(boolean withLayouts, String selection, Object[] params) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		IdentityMap session = session();
+		String machineFilter = "FROM VendingMachine WHERE machineId IN (" + selection + ")";
+		LinkedList<int[]> raw = new LinkedList<int[]>();
+		LinkedHashSet<Integer> locationIds = new LinkedHashSet<Integer>();
+		PreparedStatement vmStmt = prepare("SELECT machineId, active, currentLayoutId, nextLayoutId, locationId, stockingInterval " + machineFilter);
+		bindSelection(vmStmt, 1, params);
+		ResultSet vmResults = vmStmt.executeQuery();
+		while (vmResults.next())
+		{
+			int[] fields = new int[6];
+			for (int col=0;col<fields.length;++col)
+				fields[col] = vmResults.getInt(col+1);
+			locationIds.add(fields[4]);
+			raw.add(fields);
+		}
+		vmResults.close();
+		release(vmStmt);
+
+		HashMap<Integer, VMLayout> layouts = null;
+		LayoutBatch batch = null;
+		if (withLayouts)
+			layouts = loadVMLayouts("SELECT currentLayoutId " + machineFilter + " UNION SELECT nextLayoutId " + machineFilter, repeat(params, 2));
+		else
+			batch = new LayoutBatch(session);
+		HashMap<Integer, Location> locations = getLocationsByIds(locationIds);
+
+		ArrayList<VendingMachine> returnSet = new ArrayList<VendingMachine>(raw.size());
+		for (int[] fields : raw)
+		{
+			int id = fields[0];
+			VendingMachine machine = session.get(VendingMachine.class, id);
+			if (machine == null)
+			{
+				boolean active = !(fields[1] == 0);
+				Location loc = locations.get(fields[4]);
+				if (withLayouts)
+					machine = new VendingMachine(loc, fields[5], layouts.get(fields[2]), layouts.get(fields[3]), active);
+				else
+				{
+					batch.add(fields[2], fields[3]);
+					machine = new VendingMachine(loc, fields[5], fields[2], fields[3], active, batch);
+				}
+				machine.setId(id);
+				machine.markClean();
+				session.put(machine);
+			}
+			returnSet.add(machine);
+		}
+		closeConnection();
+		return returnSet;
+	}
+
+	/**
+	 * Fetches all of the vending machines in the database.
+	 * The layouts are only fetched once they are first needed.
+	 * @return ArrayList of all of the vending machines in the database.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesAll() throws SQLException, BadStateException, BadArgumentException
+	{
+		return getVendingMachinesAll(false);
+	}
+
+	/**
+	 * Fetches all of the vending machines in the database.
+	 * @param withLayouts Whether to fetch their layouts straight away, rather
+	 * than when they are first needed.
+	 * @return ArrayList of all of the vending machines in the database.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesAll(boolean withLayouts) throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			return loadVendingMachines(withLayouts, "SELECT machineId FROM VendingMachine");
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Fetches all of the vending machines at a given zip code.
+	 * The layouts are only fetched once they are first needed.
+	 * @param zip The zip code to fetch the vending machines from.
+	 * @return ArrayList of all of the vending machines at the given zip code.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip) throws SQLException, BadStateException, BadArgumentException
+	{
+		return getVendingMachinesByZip(zip, false);
+	}
+
+	/**
+	 * Fetches all of the vending machines at a given zip code.
+	 * @param zip The zip code to fetch the vending machines from.
+	 * @param withLayouts Whether to fetch their layouts straight away, rather
+	 * than when they are first needed.
+	 * @return ArrayList of all of the vending machines at the given zip code.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip, boolean withLayouts) throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			return loadVendingMachines(withLayouts, "SELECT machineId FROM VendingMachine JOIN Location ON Location.locationId = VendingMachine.locationId WHERE Location.zipCode=?", zip);
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Fetches all of the vending machines in a state.
+	 * The layouts are only fetched once they are first needed.
+	 * @param state The state to fetch the vending machines from.
+	 * @return ArrayList of all of the vending machines in the given state.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByState(String state) throws SQLException, BadStateException, BadArgumentException
+	{
+		return getVendingMachinesByState(state, false);
+	}
+
+	/**
+	 * Fetches all of the vending machines in a state.
+	 * @param state The state to fetch the vending machines from.
+	 * @param withLayouts Whether to fetch their layouts straight away, rather
+	 * than when they are first needed.
+	 * @return ArrayList of all of the vending machines in the given state.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByState(String state, boolean withLayouts) throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			return loadVendingMachines(withLayouts, "SELECT machineId FROM VendingMachine JOIN Location ON Location.locationId = VendingMachine.locationId WHERE Location.state=?", state);
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Fetches a summary of each vending machine, for lists to pick a machine
+	 * from. Only the machines, their locations and how full their current
+	 * layouts are get read, in a single query, so this stays quick however
+	 * many machines and rows there are.
+	 * @param onlyActive Whether to leave out the inactive machines.
+	 * @return The summaries, in the order the machines are stored.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<MachineSummary> getMachineSummaries(boolean onlyActive) throws SQLException
+	{
+		int reading = connectForReading();
+		try
+		{
+			PreparedStatement stmt = prepare("SELECT VendingMachine.machineId, VendingMachine.active, VendingMachine.stockingInterval, Location.zipCode, Location.state, VMLayout.nextVisit, VMLayout.depth, COUNT(VMLayoutVMRowLink.layoutId), IFNULL(SUM(VMRow.remainingQuant), 0) FROM VendingMachine LEFT JOIN Location ON Location.locationId=VendingMachine.locationId LEFT JOIN VMLayout ON VMLayout.layoutId=VendingMachine.currentLayoutId LEFT JOIN VMLayoutVMRowLink ON VMLayoutVMRowLink.layoutId=VendingMachine.currentLayoutId LEFT JOIN VMRow ON VMRow.vmRowId=VMLayoutVMRowLink.vmRowId WHERE VendingMachine.active<>0 OR ?=0 GROUP BY VendingMachine.machineId ORDER BY VendingMachine.machineId");
+			stmt.setInt(1, onlyActive ? 1 : 0);
+			ResultSet results = stmt.executeQuery();
+			ArrayList<MachineSummary> returnSet = new ArrayList<MachineSummary>();
+			while (results.next())
+			{
+				GregorianCalendar nextVisit = null;
+				long nextVisitInt = results.getLong(6);
+				if (!results.wasNull())
+				{
+					nextVisit = new GregorianCalendar();
+					nextVisit.setTimeInMillis(nextVisitInt);
+				}
+				long capacity = (long)results.getInt(7) * results.getInt(8);
+				int fill = capacity == 0 ? 0 : (int)(results.getLong(9) * 100 / capacity);
+				returnSet.add(new MachineSummary(results.getInt(1), results.getInt(2) != 0, results.getInt(3), results.getInt(4), results.getString(5), nextVisit, fill));
+			}
+			results.close();
+			release(stmt);
+			return returnSet;
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Updates the given vending machine if it exists in the database (determined
+	 * by id) or creates it if it doesn't exist. If it creates a vending machine
+	 * then it will update the id with the auto incremented one. Will also
+	 * update/create the location, VMLayouts, and Rows that are associated with
+	 * the machine, all in one transaction. Only what has changed since the
+	 * machine was loaded or last saved is written.
+	 * @param vm The vending machine to update or create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateVendingMachine(VendingMachine vm) throws SQLException, BadStateException, BadArgumentException
+	{
+		Connection db = connect();
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		try
+		{
+			boolean layoutsLoaded = vm.areLayoutsLoaded(); //layouts never fetched can't have changed
+			boolean currentLayoutNew = layoutsLoaded && vm.getCurrentLayout().isTempId();
+			boolean nextLayoutNew = layoutsLoaded && vm.getNextLayout().isTempId();
+			boolean locationNew = vm.getLocation().isTempId();
+			if (layoutsLoaded)
+			{
+				updateOrCreateVMLayout(vm.getCurrentLayout());
+				updateOrCreateVMLayout(vm.getNextLayout());
+			}
+			updateOrCreateLocation(vm.getLocation());
+
+			if (vm.isTempId())
+			{
+				PreparedStatement insertStmt = prepare("INSERT INTO VendingMachine(active, stockingInterval, currentLayoutId, nextLayoutId, locationId) VALUES(?, ?, ?, ?, ?)");
+				insertStmt.setInt(1, vm.isActive() ? 1 : 0);
+				insertStmt.setInt(2, vm.getStockingInterval());
+				insertStmt.setInt(3, vm.getCurrentLayout().getId());
+				insertStmt.setInt(4, vm.getNextLayout().getId());
+				insertStmt.setInt(5, vm.getLocation().getId());
+				insertStmt.executeUpdate();
+				ResultSet keys = insertStmt.getGeneratedKeys();
+				keys.next();
+				assignId(vm, keys.getInt(1));
+				keys.close();
+				release(insertStmt);
+			}
+			else
+			{
+				LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+				if (vm.isDirty("active"))
+					columns.put("active", vm.isActive() ? 1 : 0);
+				if (vm.isDirty("stockingInterval"))
+					columns.put("stockingInterval", vm.getStockingInterval());
+				if (vm.isDirty("currentLayout") || currentLayoutNew)
+					columns.put("currentLayoutId", vm.getCurrentLayout().getId());
+				if (vm.isDirty("nextLayout") || nextLayoutNew)
+					columns.put("nextLayoutId", vm.getNextLayout().getId());
+				if (vm.isDirty("location") || locationNew)
+					columns.put("locationId", vm.getLocation().getId());
+				updateColumns("VendingMachine", "machineId", vm.getId(), columns);
+			}
+			succeeded = true;
+		}
+		finally
+		{
+			endTransaction(db, started, succeeded);
+			closeConnection();
+		}
+		vm.markClean();
+		remember(vm);
+	}
+
+	/**
+	 * Fetches the customer with the given id from the database.
+	 * @param id The id of the customer to fetch.
+	 * @return The customer with given id or null if the customer does not
+	 * @throws SQLException in case of a database error
+	 * exist.
+	 **/
+	public Customer getCustomerById(int id) throws SQLException, BadStateException, BadArgumentException
+	{
+		if(id==Customer.CASH_ID) //lock out cash customers specially, since they're not database-backed
+			return new Customer();
+
+		IdentityMap session = session();
+		Customer returnValue = session.get(Customer.class, id);
+		if (returnValue != null)
+			return returnValue;
+
+		connect();
+		PreparedStatement stmt = prepare("SELECT customerId, money, name FROM Customer WHERE customerId=?");
+		stmt.setInt(1, id);
+		ResultSet results = stmt.executeQuery();
+		if (results.next())
+			returnValue = readCustomer(results, session);
+		results.close();
+		release(stmt);
+		closeConnection();
+		return returnValue;
+	}
+
+	/**
+	 * Fetches all of the customers from the database
+	 * @return An ArrayList of all the managers
+	 * @throws SQLException in case of a database error.
+	 **/
+	public ArrayList<Customer> getCustomersAll() throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<Customer> returnSet = new ArrayList<Customer>();
+			PreparedStatement stmt = prepare("SELECT customerId, money, name FROM Customer");
+			ResultSet results = stmt.executeQuery();
+			while (results.next())
+				returnSet.add(readCustomer(results, session));
+			results.close();
+			release(stmt);
+			return returnSet;
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Fetches every customer with one of the given ids, in batches. The cash
+	 * customer id maps to a cash customer. Customers already loaded in the
+	 * current session aren't queried for again.
+	 * @param ids The ids of the customers to fetch.
+	 * @return A map from id to customer. Ids with no such customer are left
+	 * out.
+	 * @throws SQLException in case of a database error
+	 **/
+	private HashMap<Integer, Customer> getCustomersByIds(Collection<Integer> ids) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		IdentityMap session = session();
+		HashMap<Integer, Customer> returnSet = new HashMap<Integer, Customer>();
+		ArrayList<Integer> idList = new ArrayList<Integer>();
+		for (int id : ids)
+		{
+			Customer known = session.get(Customer.class, id);
+			if (id == Customer.CASH_ID) //cash customers aren't database-backed
+				returnSet.put(id, new Customer());
+			else if (known == null)
+				idList.add(id);
+			else
+				returnSet.put(id, known);
+		}
+		for (int start=0;start<idList.size();start+=BATCH_SIZE)
+		{
+			PreparedStatement stmt = prepare("SELECT customerId, money, name FROM Customer WHERE customerId IN (" + BATCH_PLACEHOLDERS + ")");
+			bindBatch(stmt, idList, start);
+			ResultSet results = stmt.executeQuery();
+			while (results.next())
+			{
+				Customer returnValue = readCustomer(results, session);
+				returnSet.put(returnValue.getId(), returnValue);
+			}
+			results.close();
+			release(stmt);
+		}
+		closeConnection();
+		return returnSet;
+	}
+
+	/**
+	 * Builds the customer in the current row of a query's results, unless the
+	 * session already has an instance of it. The query must select
+	 * customerId, money and name, in that order.
+	 * @param results The results, positioned at the customer's row.
+	 * @param session The identity map of the current session.
+	 * @return The session's instance of the customer.
+	 **/
+	private Customer readCustomer(ResultSet results, IdentityMap session) throws SQLException, BadStateException, BadArgumentException
+	{
+		Customer customer = session.get(Customer.class, results.getInt(1));
+		if (customer == null)
+		{
+			customer = new Customer(results.getString(3), results.getInt(2));
+			customer.setId(results.getInt(1));
+			customer.markClean();
+			session.put(customer);
+		}
+		return customer;
+	}
+
+	/**
+	 * Updates the given customer if it exists (determined by id) or creates it
+	 * if it does not exist. Only changed fields are written.
+	 * @param customer The Customer to update/create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateCustomer(Customer customer) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		if (customer.isTempId())
+		{
+			PreparedStatement insertStmt = prepare("INSERT INTO Customer(money, name) VALUES(?, ?)");
+			insertStmt.setInt(1, customer.getMoney());
+			insertStmt.setString(2, customer.getName());
+			insertStmt.executeUpdate();
+			ResultSet keys = insertStmt.getGeneratedKeys();
+			keys.next();
+			customer.setId(keys.getInt(1));
+			keys.close();
+			release(insertStmt);
+		}
+		else if(!customer.isCashCustomer() && customer.isDirty())
+		{
+			LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+			if (customer.isDirty("money"))
+				columns.put("money", customer.getMoney());
+			if (customer.isDirty("name"))
+				columns.put("name", customer.getName());
+			updateColumns("Customer", "customerId", customer.getId(), columns);
+		}
+		//do NOT store cash customers under any circumstances
+		if (!customer.isCashCustomer())
+		{
+			customer.markClean();
+			remember(customer);
+		}
+		closeConnection();
+	}
+
+	/**
+	 * Fetches the manager with the given id.
+	 * @param id The id of the manager to fetch.
+	 * @return The manager with the given id or null if no such manager exists.
+	 * @throws SQLException in case of a database error
+	 **/
+	public Manager getManagerById(int id) throws SQLException, BadStateException, BadArgumentException
+	{
+		IdentityMap session = session();
+		Manager returnValue = lookUp(session, Manager.class, managerCache, id);
+		if (returnValue != null)
+			return returnValue;
+
+		connect();
+		PreparedStatement stmt = prepare("SELECT managerId, password, name FROM Manager WHERE managerId=?");
+		stmt.setInt(1, id);
+		ResultSet results = stmt.executeQuery();
+		if (results.next())
+			returnValue = readManager(results, session);
+		results.close();
+		release(stmt);
+		closeConnection();
+		return returnValue;
+	}
+
+	/**
+	 * Fetches all of the managers from the database
+	 * @return An ArrayList of all the managers
+	 * @throws SQLException in case of a database error.
+	 **/
+	public ArrayList<Manager> getManagersAll() throws SQLException, BadStateException, BadArgumentException
+	{
+		int reading = connectForReading();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<Manager> returnSet = new ArrayList<Manager>();
+			PreparedStatement stmt = prepare("SELECT managerId, password, name FROM Manager");
+			ResultSet results = stmt.executeQuery();
+			while (results.next())
+				returnSet.add(readManager(results, session));
+			results.close();
+			release(stmt);
+			return returnSet;
+		}
+		finally
+		{
+			closeReading(reading);
+		}
+	}
+
+	/**
+	 * Builds the manager in the current row of a query's results, unless the
+	 * session already has an instance of it. The query must select
+	 * managerId, password and name, in that order.
+	 * @param results The results, positioned at the manager's row.
+	 * @param session The identity map of the current session.
+	 * @return The session's instance of the manager.
+	 **/
+	private Manager readManager(ResultSet results, IdentityMap session) throws SQLException, BadStateException, BadArgumentException
+	{
+		Manager manager = session.get(Manager.class, results.getInt(1));
+		if (manager == null)
+		{
+			manager = new Manager(results.getString(3), results.getString(2));
+			manager.setId(results.getInt(1));
+			manager.markClean();
+			session.put(manager);
+			cache(managerCache, manager);
+		}
+		return manager;
+	}
+
+	/**
+	 * Updates the given manager if it exists (determined by id) or creates it
+	 * if it does not exist. Only changed fields are written.
+	 * @param manager The manager to update/create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateManager(Manager manager) throws SQLException, BadStateException, BadArgumentException
+	{
+		connect();
+		if (manager.isTempId())
+		{
+			PreparedStatement insertStmt = prepare("INSERT INTO Manager(password, name) VALUES(?, ?)");
+			insertStmt.setString(1, manager.getPassword());
+			insertStmt.setString(2, manager.getName());
+			insertStmt.executeUpdate();
+			ResultSet keys = insertStmt.getGeneratedKeys();
+			keys.next();
+			manager.setId(keys.getInt(1));
+			keys.close();
+			release(insertStmt);
+		}
+		else if (manager.isDirty())
+		{
+			LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+			if (manager.isDirty("password"))
+				columns.put("password", manager.getPassword());
+			if (manager.isDirty("name"))
+				columns.put("name", manager.getName());
+			updateColumns("Manager", "managerId", manager.getId(), columns);
+		}
+		manager.markClean();
+		managerCache.invalidate(manager.getId());
+		remember(manager);
+		closeConnection();
+	}
+
+	/**
+	 * Fetches the transaction with the given id. I have no idea why you would
+	 * ever use this function but it exists just in case.
+	 * @param id The id of the transaction to fetch
+	 * @return The transaction with the given id or null if no such transaction
+	 * exists.
+	 * @throws SQLException in case of a database error
+	 **/
+	public Transaction getTransactionById(int id) throws SQLException, BadStateException, BadArgumentException
+	{
+		ArrayList<Transaction> transactions = loadTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE transactionId=?", id);
+		return transactions.isEmpty() ? null : transactions.get(0);
+	}
+
+	/**
+	 * Fetches all of the transactions that occurred at the given vending
+	 * machine.
+	 * @param vm The vending machine at which the transactions you desire
+	 * occurred.
+	 * @return An ArrayList containing the transactions that occurred at the
+	 * given vending machine.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByVendingMachine(VendingMachine vm) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE machineId=?", vm.getId());
+	}
+
+	/**
+	 * Fetches all of the transactions that occurred at the given zip code
+	 * @param zipCode The zip code at which the desired transactions occurred.
+	 * @return An ArrayList containing the transactions that occurred at the
+	 * given zip code.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByZipCode(int zipCode) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionsEverywhere("SELECT transactionId, timestamp, VMTransaction.machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction JOIN VendingMachine JOIN Location ON VMTransaction.machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId WHERE Location.zipCode=?", zipCode);
+	}
+
+	/**
+	 * Fetches all of the transactions that occurred in the given state
+	 * @param state The state in which the desired transactions occurred.
+	 * @return An ArrayList containing the transactions that occurred in the
+	 * given state.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByState(String state) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionsEverywhere("SELECT transactionId, timestamp, VMTransaction.machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction JOIN VendingMachine JOIN Location ON VMTransaction.machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId WHERE Location.state=?", state);
+	}
+
+	/**
+	 * Fetches all of the transactions the given customer has made.
+	 * @param customer The customer that performed the transactions you desire.
+	 * @return An ArrayList containing the transactions the given customer
+	 * performed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByCustomer(Customer customer) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE customerId=?", customer.getId());
+	}
+
+	/**
+	 * Fetches all of the transactions the given customer has made.
+	 * @param item The item that was purchased in the transactions you
+	 * desire.
+	 * @return An ArrayList containing the transactions the given customer
+	 * performed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByFoodItem(FoodItem item) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE productId=?", item.getId());
+	}
+
+	/**
+	 * Fetches all of the transactions that have ever occurred.
+	 * @return An ArrayList of all of the transactions.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsAll() throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction");
+	}
+
+	/**
+	 * Streams every transaction that has ever occurred to a visitor, a batch
+	 * at a time, without ever holding all of them in memory.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsAll(TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException
+	{
+		return streamTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction", visitor);
+	}
+
+	/**
+	 * Streams the transactions that occurred at the given vending machine to
+	 * a visitor, a batch at a time.
+	 * @param vm The vending machine at which the transactions occurred.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsByVendingMachine(VendingMachine vm, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException
+	{
+		return streamTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE machineId=?", visitor, vm.getId());
+	}
+
+	/**
+	 * Streams the transactions the given customer has made to a visitor, a
+	 * batch at a time.
+	 * @param customer The customer that performed the transactions.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsByCustomer(Customer customer, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException
+	{
+		return streamTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE customerId=?", visitor, customer.getId());
+	}
+
+	/**
+	 * Streams the transactions in which the given item was purchased to a
+	 * visitor, a batch at a time.
+	 * @param item The item that was purchased in the transactions.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsByFoodItem(FoodItem item, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException
+	{
+		return streamTransactionsEverywhere("SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE productId=?", visitor, item.getId());
+	}
+
+	/**
+	 * Fetches one page of all of the transactions that have ever occurred.
+	 * Pages are ordered by timestamp and then id, and each picks up exactly
+	 * where the last one left off, however many rows came before it.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws BadArgumentException if the page size isn't positive or the
+	 * token is malformed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageAll(int pageSize, String token) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionPage("VMTransaction", "1", pageSize, token);
+	}
+
+	/**
+	 * Fetches one page of the transactions that occurred at the given vending
+	 * machine, as for getTransactionsPageAll().
+	 * @param vm The vending machine at which the transactions occurred.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByVendingMachine(VendingMachine vm, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionPage("VMTransaction", "VMTransaction.machineId=?", pageSize, token, vm.getId());
+	}
+
+	/**
+	 * Fetches one page of the transactions that occurred at the given zip
+	 * code, as for getTransactionsPageAll().
+	 * @param zipCode The zip code at which the transactions occurred.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByZipCode(int zipCode, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionPage("VMTransaction JOIN VendingMachine JOIN Location ON VMTransaction.machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId", "Location.zipCode=?", pageSize, token, zipCode);
+	}
+
+	/**
+	 * Fetches one page of the transactions that occurred in the given state,
+	 * as for getTransactionsPageAll().
+	 * @param state The state in which the transactions occurred.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByState(String state, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionPage("VMTransaction JOIN VendingMachine JOIN Location ON VMTransaction.machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId", "Location.state=?", pageSize, token, state);
+	}
+
+	/**
+	 * Fetches one page of the transactions the given customer has made, as
+	 * for getTransactionsPageAll().
+	 * @param customer The customer that performed the transactions.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByCustomer(Customer customer, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionPage("VMTransaction", "VMTransaction.customerId=?", pageSize, token, customer.getId());
+	}
+
+	/**
+	 * Fetches one page of the transactions in which the given item was
+	 * purchased, as for getTransactionsPageAll().
+	 * @param item The item that was purchased in the transactions.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByFoodItem(FoodItem item, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException
+	{
+		return loadTransactionPage("VMTransaction", "VMTransaction.productId=?", pageSize, token, item.getId());
+	}
+
+	/**
+	 * Fetches the page of transactions that follows the one a token was
+	 * issued for. Rather than skipping over earlier rows with an OFFSET, the
+	 * query seeks straight past the (timestamp, transactionId) of the last
+	 * transaction already seen, so every page costs the same however deep
+	 * into the history it is. One row more than a page is asked for, to tell
+	 * whether another page follows. Every partition that could hold
+	 * transactions after the token is asked for a page's worth, and the
+	 * results merged, since transactions recorded late with an old timestamp
+	 * may be live while others of their month are archived.
+	 * @param from The tables to select from, starting with VMTransaction.
+	 * @param filter SQL condition picking out the desired transactions.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @param params The parameters of the filter.
+	 * @return The page.
+	 **/
+	private TransactionPage loadTransactionPage(String from, String filter, int pageSize, String token, Object... params) throws SQLException, BadStateException, BadArgumentException
+	{
+		if (pageSize <= 0)
+			throw new BadArgumentException("Page size must be positive");
+		long[] after = token == null ? new long[]{Long.MIN_VALUE, Long.MIN_VALUE} : parsePageToken(token);
+
+		String sql = "SELECT VMTransaction.transactionId, VMTransaction.timestamp, VMTransaction.machineId, customerId, productId, rowX, rowY, balance FROM " + from + " WHERE " + filter + " AND VMTransaction.timestamp>=? AND (VMTransaction.timestamp>? OR VMTransaction.transactionId>?) ORDER BY VMTransaction.timestamp, VMTransaction.transactionId LIMIT ?";
+		lockArchiveForReading();
+		try
+		{
+			List<ArchivePartition> sources = partitionsFor(after[0], Long.MAX_VALUE);
+			ArrayList<long[]> rows = new ArrayList<long[]>();
+			for (ArchivePartition partition : sources)
+			{
+				int reading = connectToPartition(partition);
+				try
+				{
+					PreparedStatement stmt = prepare(partition == null ? sql : partition.retarget(sql));
+					bindSelection(stmt, 1, params);
+					stmt.setLong(params.length + 1, after[0]);
+					stmt.setLong(params.length + 2, after[0]);
+					stmt.setLong(params.length + 3, after[1]);
+					stmt.setInt(params.length + 4, pageSize + 1);
+					rows.addAll(readTransactionRows(stmt));
+				}
+				finally
+				{
+					closeReading(reading);
+				}
+			}
+			if (sources.size() > 1)
+				Collections.sort(rows, PAGE_ORDER);
+
+			LinkedList<long[]> raw = new LinkedList<long[]>(rows.subList(0, Math.min(rows.size(), pageSize + 1)));
+			ArrayList<Transaction> transactions;
+			int reading = connectForReading();
+			try
+			{
+				transactions = buildTransactions(raw);
+			}
+			finally
+			{
+				closeReading(reading);
+			}
+
+			String nextToken = null;
+			if (transactions.size() > pageSize)
+			{
+				transactions.remove(pageSize);
+				nextToken = pageToken(transactions.get(pageSize - 1));
+			}
+			return new TransactionPage(transactions, nextToken);
+		}
+		finally
+		{
+			archiveLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Encodes the position of the last transaction on a page as the token
+	 * for the page after it.
+	 * @param last The last transaction on the page.
+	 * @return The token.
+	 **/
+	static String pageToken(Transaction last) throws BadStateException
+	{
+		return Long.toString(last.getTimestamp().getTimeInMillis(), 36) + "." + Integer.toString(last.getId(), 36);
+	}
+
+	/**
+	 * Reads back the position encoded in a page token.
+	 * @param token A token issued by loadTransactionPage().
+	 * @return The timestamp and id of the last transaction before the page.
+	 * @throws BadArgumentException if the token is malformed.
+	 **/
+	static long[] parsePageToken(String token) throws BadArgumentException
+	{
+		int separator = token.indexOf('.');
+		try
+		{
+			if (separator < 0)
+				throw new NumberFormatException();
+			return new long[]{Long.parseLong(token.substring(0, separator), 36), Long.parseLong(token.substring(separator + 1), 36)};
+		}
+		catch (NumberFormatException malformed)
+		{
+			throw new BadArgumentException("Invalid page token: " + token);
+		}
+	}
+
+	/**
+	 * Totals the units sold and revenue taken by the transactions in a time
+	 * range, grouped as requested. The grouping and summing is all done by
+	 * the database, so no transaction is ever loaded. Where the grouping
+	 * allows, whole days within the range are read from the DailySales
+	 * rollups, and only the partial days at either end from the transactions
+	 * themselves. Archived months are only read for those partial days, or
+	 * when the grouping can't use the rollups, and their totals are merged
+	 * with the live ones.
+	 * @param grouping How to group the transactions.
+	 * @param from The start of the range, or null to start at the beginning.
+	 * @param to The end of the range (exclusive), or null to include
+	 * everything since the start.
+	 * @return The total for each group that made any sales, ordered by key;
+	 * for FLEET, exactly one total, even if nothing was sold.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<SalesTotal> getSalesTotals(SalesGrouping grouping, GregorianCalendar from, GregorianCalendar to) throws SQLException
+	{
+		long start = from == null ? Long.MIN_VALUE : from.getTimeInMillis();
+		long end = to == null ? Long.MAX_VALUE : to.getTimeInMillis();
+		long firstDay = from == null ? Long.MIN_VALUE : startOfDay(start) == start ? start : startOfDay(start) + DAY_LENGTH;
+		long lastDay = to == null ? Long.MAX_VALUE : startOfDay(end);
+		boolean useRollups = isRollable(grouping) && firstDay < lastDay;
+		if (!useRollups) //no whole days to speak of, so read the lot from the transactions
+			firstDay = lastDay = end;
+
+		String sql = "SELECT " + groupKey(grouping, "VMTransaction", "VMTransaction.timestamp") + " AS groupKey, " + groupName(grouping) + " AS groupName, COUNT(*) AS units, SUM(balance) AS revenue FROM VMTransaction" + groupJoin(grouping, "VMTransaction") + " WHERE (VMTransaction.timestamp>=? AND VMTransaction.timestamp<?) OR (VMTransaction.timestamp>=? AND VMTransaction.timestamp<?)";
+		if (grouping != SalesGrouping.FLEET)
+			sql += " GROUP BY 1, 2";
+		String archivedSql = sql;
+		if (useRollups)
+		{
+			sql += " UNION ALL SELECT " + groupKey(grouping, "DailySales", "DailySales.day") + ", " + groupName(grouping) + ", SUM(units), SUM(revenue) FROM DailySales" + groupJoin(grouping, "DailySales") + " WHERE DailySales.day>=? AND DailySales.day<?";
+			if (grouping != SalesGrouping.FLEET)
+				sql += " GROUP BY 1, 2";
+		}
+		sql = "SELECT groupKey, groupName, SUM(units), SUM(revenue) FROM (" + sql + ")";
+		archivedSql = "SELECT groupKey, groupName, SUM(units), SUM(revenue) FROM (" + archivedSql + ")";
+		if (grouping != SalesGrouping.FLEET)
+		{
+			sql += " GROUP BY groupKey, groupName ORDER BY groupKey, groupName";
+			archivedSql += " GROUP BY groupKey, groupName";
+		}
+
+		lockArchiveForReading();
+		try
+		{
+			ArrayList<SalesTotal> totals = new ArrayList<SalesTotal>();
+			boolean merging = false;
+			for (ArchivePartition partition : partitionsFor(start, end))
+			{
+				if (partition != null && !partition.overlaps(start, firstDay) && !partition.overlaps(lastDay, end)) //only whole days, which come from the rollups
+					continue;
+				if (partition != null)
+					merging = true;
+
+				int reading = connectToPartition(partition);
+				try
+				{
+					PreparedStatement stmt = prepare(partition == null ? sql : partition.retarget(archivedSql));
+					stmt.setLong(1, start);
+					stmt.setLong(2, firstDay);
+					stmt.setLong(3, lastDay);
+					stmt.setLong(4, end);
+					if (useRollups && partition == null)
+					{
+						stmt.setLong(5, firstDay);
+						stmt.setLong(6, lastDay);
+					}
+					ResultSet results = stmt.executeQuery();
+					while (results.next())
+						totals.add(new SalesTotal(results.getLong(1), results.getString(2), results.getInt(3), results.getLong(4)));
+					results.close();
+					release(stmt);
+				}
+				finally
+				{
+					closeReading(reading);
+				}
+			}
+			return merging ? mergeSalesTotals(totals) : totals;
+		}
+		finally
+		{
+			archiveLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Combines the totals read from different partitions, adding together
+	 * those for the same group.
+	 * @param totals The totals from every partition.
+	 * @return One total per group, ordered by key and then name.
+	 **/
+	private static ArrayList<SalesTotal> mergeSalesTotals(ArrayList<SalesTotal> totals)
+	{
+		Collections.sort(totals, SALES_ORDER);
+		ArrayList<SalesTotal> merged = new ArrayList<SalesTotal>();
+		for (SalesTotal total : totals)
+		{
+			SalesTotal last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (last != null && SALES_ORDER.compare(last, total) == 0)
+				merged.set(merged.size() - 1, new SalesTotal(last.getKey(), last.getName(), last.getUnits() + total.getUnits(), last.getRevenue() + total.getRevenue()));
+			else
+				merged.add(total);
+		}
+		return merged;
+	}
+
+	/**
+	 * Builds the SQL for the key of each sales total.
+	 * @param grouping How the transactions are grouped.
+	 * @param table The table being totalled.
+	 * @param time The column of that table holding each row's time.
+	 * @return The SQL expression.
+	 **/
+	private static String groupKey(SalesGrouping grouping, String table, String time)
+	{
+		if (grouping.isByTime())
+		{
+			long offset = grouping.getOffset();
+			return "((" + time + " + " + offset + ") / " + grouping.getPeriod() + " * " + grouping.getPeriod() + " - " + offset + ")";
+		}
+		switch (grouping)
+		{
+			case MACHINE:
+				return table + ".machineId";
+			case ITEM:
+				return table + ".productId";
+			case CUSTOMER:
+				return table + ".customerId";
+			case ZIP_CODE:
+				return "Location.zipCode";
+			default: //FLEET and STATE have no numeric key
+				return "0";
+		}
+	}
+
+	/**
+	 * Builds the SQL for the name of each sales total.
+	 * @param grouping How the transactions are grouped.
+	 * @return The SQL expression.
+	 **/
+	private static String groupName(SalesGrouping grouping)
+	{
+		return grouping == SalesGrouping.STATE ? "Location.state" : "NULL";
+	}
+
+	/**
+	 * Determines whether sales totals can be read from the DailySales
+	 * rollups, which are kept per day, machine and item.
+	 * @param grouping How the transactions are grouped.
+	 * @return Whether the groups are no finer than that.
+	 **/
+	private static boolean isRollable(SalesGrouping grouping)
+	{
+		if (grouping.isByTime())
+			return grouping.getPeriod() % DAY_LENGTH == 0;
+		return grouping != SalesGrouping.CUSTOMER;
+	}
+
+	/**
+	 * Builds the joins needed to group sales by where they were made.
+	 * @param grouping How the transactions are grouped.
+	 * @param table The table being totalled.
+	 * @return The SQL to follow the table, which is empty for groupings that
+	 * need no joins.
+	 **/
+	private static String groupJoin(SalesGrouping grouping, String table)
+	{
+		if (grouping != SalesGrouping.ZIP_CODE && grouping != SalesGrouping.STATE)
+			return "";
+		return " JOIN VendingMachine JOIN Location ON " + table + ".machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId";
+	}
+
+	/**
+	 * Finds the start of the day, in local standard time, that a time falls
+	 * on. This is how sales are divided into days in the DailySales rollups.
+	 * @param time The time, in milliseconds since the epoch.
+	 * @return The start of its day, in milliseconds since the epoch.
+	 **/
+	static long startOfDay(long time)
+	{
+		long offset = TimeZone.getDefault().getRawOffset();
+		long days = (time + offset) / DAY_LENGTH;
+		if ((time + offset) % DAY_LENGTH < 0) //division rounded towards zero
+			--days;
+		return days * DAY_LENGTH - offset;
+	}
+
+	/**
+	 * Recomputes the DailySales rollups from the full transaction history,
+	 * archived months included, in case they have been lost or the local
+	 * time zone has changed.
+	 * @return The number of rollup rows written.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int rebuildSalesRollups() throws SQLException
+	{
+		String daily = "SELECT " + groupKey(SalesGrouping.DAY, "VMTransaction", "timestamp") + ", machineId, productId, COUNT(*), SUM(balance) FROM VMTransaction GROUP BY 1, 2, 3";
+		lockArchiveForReading();
+		try
+		{
+			ArrayList<long[]> archived = new ArrayList<long[]>(); //read first, since archives can't be attached mid-transaction
+			for (ArchivePartition partition : partitions)
+			{
+				int reading = connectToPartition(partition);
+				try
+				{
+					PreparedStatement stmt = prepare(partition.retarget(daily));
+					ResultSet results = stmt.executeQuery();
+					while (results.next())
+						archived.add(new long[]{results.getLong(1), results.getLong(2), results.getLong(3), results.getLong(4), results.getLong(5)});
+					results.close();
+					release(stmt);
+				}
+				finally
+				{
+					closeReading(reading);
+				}
+			}
+
+			Connection db = connect();
+			boolean started = beginTransaction(db);
+			boolean succeeded = false;
+			int rows;
+			try
+			{
+				Statement stmt = db.createStatement();
+				stmt.executeUpdate("DELETE FROM DailySales");
+				rows = stmt.executeUpdate("INSERT INTO DailySales(day, machineId, productId, units, revenue) " + daily);
+				if (!archived.isEmpty())
+				{
+					for (long[] sales : archived)
+						addToSalesRollup(sales[0], (int)sales[1], (int)sales[2], (int)sales[3], sales[4]);
+					ResultSet count = stmt.executeQuery("SELECT COUNT(*) FROM DailySales");
+					rows = count.getInt(1);
+					count.close();
+				}
+				stmt.close();
+				succeeded = true;
+			}
+			finally
+			{
+				endTransaction(db, started, succeeded);
+				closeConnection();
+			}
+			return rows;
+		}
+		finally
 		{
-			returnValue = new FoodItem(results.getString(2), results.getInt(3), results.getInt(4), results.getInt(5) != 0);
-			returnValue.setId(results.getInt(1));
+			archiveLock.readLock().unlock();
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnValue;
 	}
 
 	/**
-	 * Gets all of the items in the database.
-	 * @return An ArrayList of all of the items in the database.
-	 * @throws SQLException in case of a database error
+	 * Moves every transaction from before a cutoff out of the live database
+	 * and into an archive file for its month, next to the live database.
+	 * Each month is moved in one database transaction, which also records
+	 * it in the TransactionArchive catalog, and moving a month again (once
+	 * the cutoff has passed more of it) adds to its file. The DailySales
+	 * rollups are left as they are, so totals over whole days never need
+	 * the archive. Queries for transactions read archived months as well
+	 * as the live ones, skipping months outside any time range they have.
+	 * @param cutoff The time before which transactions are archived.
+	 * @return The number of transactions archived.
+	 * @throws SQLException in case of a database error, or if the current
+	 * thread is in the middle of a database transaction.
 	 **/
-	public ArrayList<FoodItem> getFoodItemsAll() throws SQLException, BadStateException, BadArgumentException
+	public int archiveTransactions(GregorianCalendar cutoff) throws SQLException
 	{
-		Connection db = connect();
-		ArrayList<FoodItem> returnSet = new ArrayList<FoodItem>();
-		Statement stmt = db.createStatement();
-		ResultSet results = stmt.executeQuery("SELECT itemId, name, price, freshLength, active FROM Item");
-		while (results.next())
+		long end = cutoff.getTimeInMillis();
+		String stem = dbLocation.endsWith(".db") ? dbLocation.substring(0, dbLocation.length() - 3) : dbLocation;
+		int archived = 0;
+		archiveLock.writeLock().lock();
+		try
 		{
-			FoodItem item = new FoodItem(results.getString(2), results.getInt(3), results.getInt(4), results.getInt(5) != 0);
-			item.setId(results.getInt(1));
-			returnSet.add(item);
+			Connection db = connect();
+			try
+			{
+				ArrayList<ArchivePartition> catalog = new ArrayList<ArchivePartition>(partitions);
+				long next = Long.MIN_VALUE;
+				while (true)
+				{
+					PreparedStatement firstStmt = prepare("SELECT MIN(timestamp) FROM VMTransaction WHERE timestamp>=? AND timestamp<?");
+					firstStmt.setLong(1, next);
+					firstStmt.setLong(2, end);
+					ResultSet first = firstStmt.executeQuery();
+					long earliest = first.next() ? first.getLong(1) : 0;
+					boolean found = !first.wasNull();
+					first.close();
+					release(firstStmt);
+					if (!found)
+						break;
+
+					ArchivePartition partition = ArchivePartition.containing(earliest, stem);
+					boolean known = false;
+					for (ArchivePartition existing : catalog)
+					{
+						if (existing.getMonth() == partition.getMonth())
+						{
+							partition = existing;
+							known = true;
+						}
+					}
+					next = Math.min(partition.getEnd(), end);
+					archived += archivePartition(db, partition, next);
+					if (!known)
+					{
+						catalog.add(partition);
+						Collections.sort(catalog, new Comparator<ArchivePartition>()
+						{
+							public int compare(ArchivePartition one, ArchivePartition other)
+							{
+								return one.getStart() < other.getStart() ? -1 : one.getStart() == other.getStart() ? 0 : 1;
+							}
+						});
+					}
+					partitions = catalog;
+				}
+			}
+			finally
+			{
+				closeConnection();
+			}
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnSet;
+		finally
+		{
+			archiveLock.writeLock().unlock();
+		}
+		return archived;
 	}
 
 	/**
-	 * Updates the item in the database. If the item does not already exists
-	 * (determined by the id of the item) then the item is created. If an item
-	 * is created then the id is updated with the auto incremented one.
-	 * @param item The item to update
-	 * @throws SQLException in case of a database error
+	 * Moves the live transactions of one month, up to a cutoff, into the
+	 * month's archive file, creating it if need be. A copy left behind by an
+	 * earlier attempt that failed part-way is overwritten.
+	 * @param db The current thread's connection, not in a transaction.
+	 * @param partition The month.
+	 * @param cutoff The time before which transactions are moved.
+	 * @return The number of transactions moved.
 	 **/
-	public void updateOrCreateFoodItem(FoodItem item) throws SQLException, BadStateException, BadArgumentException
+	private int archivePartition(Connection db, ArchivePartition partition, long cutoff) throws SQLException
 	{
-		Connection db = connect();
-		if (item.isTempId())
+		attach(db, partition);
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		int moved;
+		try
 		{
-			PreparedStatement insertStmt = db.prepareStatement("INSERT INTO Item(name, price, freshLength, active) VALUES(?, ?, ?, ?)");
-			insertStmt.setString(1, item.getName());
-			insertStmt.setInt(2, item.getPrice());
-			insertStmt.setLong(3, item.getFreshLength());
-			insertStmt.setInt(4, item.isActive() ? 1 : 0);
-			insertStmt.executeUpdate();
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			int id = keys.getInt(1);
-			item.setId(id);
-			keys.close();
-			insertStmt.close();
+			Statement stmt = db.createStatement();
+			for (String sql : ARCHIVE_SCHEMA)
+				stmt.executeUpdate(String.format(sql, partition.getSchema()));
+			stmt.close();
+
+			PreparedStatement copyStmt = prepare("INSERT OR REPLACE INTO " + partition.getSchema() + ".VMTransaction SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM main.VMTransaction WHERE timestamp>=? AND timestamp<?");
+			copyStmt.setLong(1, partition.getStart());
+			copyStmt.setLong(2, cutoff);
+			copyStmt.executeUpdate();
+			release(copyStmt);
+
+			PreparedStatement deleteStmt = prepare("DELETE FROM main.VMTransaction WHERE timestamp>=? AND timestamp<?");
+			deleteStmt.setLong(1, partition.getStart());
+			deleteStmt.setLong(2, cutoff);
+			moved = deleteStmt.executeUpdate();
+			release(deleteStmt);
+
+			PreparedStatement catalogStmt = prepare("INSERT OR IGNORE INTO TransactionArchive(month, start, end, path) VALUES(?, ?, ?, ?)");
+			catalogStmt.setInt(1, partition.getMonth());
+			catalogStmt.setLong(2, partition.getStart());
+			catalogStmt.setLong(3, partition.getEnd());
+			catalogStmt.setString(4, partition.getPath());
+			catalogStmt.executeUpdate();
+			release(catalogStmt);
+			succeeded = true;
 		}
-		else
+		finally
 		{
-			PreparedStatement updateStmt = db.prepareStatement("UPDATE Item SET name=?, price=?, freshLength=?, active=? WHERE itemId=?");
-			updateStmt.setString(1, item.getName());
-			updateStmt.setInt(2, item.getPrice());
-			updateStmt.setLong(3, item.getFreshLength());
-			updateStmt.setInt(4, item.isActive() ? 1 : 0);
-			updateStmt.setInt(5, item.getId());
-			updateStmt.executeUpdate();
-			updateStmt.close();
+			endTransaction(db, started, succeeded);
 		}
-		closeConnection();
+		return moved;
 	}
 
 	/**
-	 * Fetches the VMLayout with the given id. Should only be called by the methods
-	 * inside this class that need to work with VMLayouts, which is mostly the
-	 * VendingMachine methods.
-	 * @param id The id of the VMLayout to get.
-	 * @return The VMLayout from the database with the given id or null if no such
-	 * VMLayout exists.
-	 * @throws SQLException in case of a database error.
+	 * Adds a sale to (or, with negative amounts, takes one away from) the
+	 * DailySales rollup for its day, machine and item. Must be called within
+	 * the same database transaction that records the sale.
+	 * @param timestamp When the sale was made, in milliseconds since the
+	 * epoch.
+	 * @param machineId The id of the machine sold from.
+	 * @param productId The id of the item sold.
+	 * @param units The number of units to add.
+	 * @param revenue The revenue to add, in cents.
 	 **/
-	private VMLayout getVMLayoutById(int id) throws SQLException, BadStateException, BadArgumentException
+	private void addToSalesRollup(long timestamp, int machineId, int productId, int units, long revenue) throws SQLException
 	{
-		Connection db = connect();
-		int maxX = -1;
-		int maxY = -1;
-		LinkedList<Pair<Row,Pair<Integer,Integer>>> raw = getRowsByVMLayoutId(id);
+		long day = startOfDay(timestamp);
+		PreparedStatement updateStmt = prepare("UPDATE DailySales SET units=units+?, revenue=revenue+? WHERE day=? AND machineId=? AND productId=?");
+		updateStmt.setInt(1, units);
+		updateStmt.setLong(2, revenue);
+		updateStmt.setLong(3, day);
+		updateStmt.setInt(4, machineId);
+		updateStmt.setInt(5, productId);
+		int updated = updateStmt.executeUpdate();
+		release(updateStmt);
 
-		for (Pair<Row,Pair<Integer,Integer>> entry : raw)
+		if (updated == 0)
 		{
-			maxX = Math.max(maxX, entry.second.first);
-			maxY = Math.max(maxY, entry.second.second);
+			PreparedStatement insertStmt = prepare("INSERT INTO DailySales(day, machineId, productId, units, revenue) VALUES(?, ?, ?, ?, ?)");
+			insertStmt.setLong(1, day);
+			insertStmt.setInt(2, machineId);
+			insertStmt.setInt(3, productId);
+			insertStmt.setInt(4, units);
+			insertStmt.setLong(5, revenue);
+			insertStmt.executeUpdate();
+			release(insertStmt);
 		}
-
-		if (maxX == -1 || maxY == -1)
-			return null;
-
-		Row[][] rows = new Row[maxY+1][maxX+1];
-		for (Pair<Row,Pair<Integer,Integer>> entry : raw)
-			rows[entry.second.second][entry.second.first] = entry.first;
-
-		Statement moreInfo = db.createStatement();
-		ResultSet metaData = moreInfo.executeQuery(String.format("SELECT depth, nextVisit FROM VMLayout WHERE layoutId=%d", id));
-		int depth = metaData.getInt("depth");
-		long nextVisitInt = metaData.getLong("nextVisit");
-		GregorianCalendar nextVisit = null;
-		if (!metaData.wasNull())
+		else if (units < 0)
 		{
-			nextVisit = new GregorianCalendar();
-			nextVisit.setTimeInMillis(nextVisitInt);
+			PreparedStatement deleteStmt = prepare("DELETE FROM DailySales WHERE day=? AND machineId=? AND productId=? AND units<=0");
+			deleteStmt.setLong(1, day);
+			deleteStmt.setInt(2, machineId);
+			deleteStmt.setInt(3, productId);
+			deleteStmt.executeUpdate();
+			release(deleteStmt);
 		}
-		metaData.close();
-		moreInfo.close();
-
-		VMLayout layout = new VMLayout(rows, depth);
-		layout.setNextVisit(nextVisit);
-		layout.setId(id);
-		closeConnection();
-		return layout;
 	}
 
 	/**
-	 * Updates the VMLayout and its rows if it exists in the database. If it does not exist
-	 * then it and its rows are created.
-	 * @param layout The VMLayout to update/create.
+	 * Imports records from a CSV file in bulk. The file's first record must
+	 * be the header listing the kind's columns. Records are written
+	 * IMPORT_BATCH_SIZE at a time, each batch in one database transaction
+	 * through one reused statement. Records that don't parse or are invalid
+	 * are reported and skipped, without holding up the rest.
+	 * <p>
+	 * If a checkpoint name is given, the number of records dealt with is
+	 * saved under that name in the same transaction as each batch, so an
+	 * import that is interrupted can be run again with the same name and
+	 * file and will carry on where it stopped. The checkpoint is removed
+	 * once the import completes.
+	 * @param kind The kind of records in the file.
+	 * @param csv The file's contents.
+	 * @param checkpoint The name under which to keep track of progress, or
+	 * null not to.
+	 * @return What was imported and what was rejected.
+	 * @throws BadArgumentException if the header is missing or wrong.
+	 * @throws IOException if the file could not be read.
+	 * @throws SQLException in case of a database error
 	 **/
-	private void updateOrCreateVMLayout(VMLayout layout) throws SQLException, BadStateException, BadArgumentException
+	public ImportReport bulkImport(ImportKind kind, Reader csv, String checkpoint) throws SQLException, IOException, BadArgumentException
 	{
+		CsvReader reader = new CsvReader(csv);
+		kind.checkHeader(reader.readRecord());
+		int columns = kind.getColumns().length;
+
 		Connection db = connect();
-		if (layout.isTempId())
+		long done = 0;
+		if (checkpoint != null)
 		{
-			Statement insertStmt = db.createStatement();
-			String time = layout.getNextVisit() == null ? "NULL" : layout.getNextVisit().getTimeInMillis() + "";
-			String query = String.format("INSERT INTO VMLayout(nextVisit, depth) VALUES(%s, %d)", time, layout.getDepth());
-			insertStmt.executeUpdate(query);
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			int id = keys.getInt(1);
-			layout.setId(id);
-			keys.close();
-			insertStmt.close();
+			PreparedStatement stmt = prepare("SELECT records FROM ImportCheckpoint WHERE name=?");
+			stmt.setString(1, checkpoint);
+			ResultSet results = stmt.executeQuery();
+			if (results.next())
+				done = results.getLong(1);
+			results.close();
+			release(stmt);
 		}
-		else
+		ImportReport report = new ImportReport(done);
+		long skipped = 0;
+		while (skipped < done && reader.readRecord() != null) //already imported
+			++skipped;
+
+		HashSet<Integer> machineIds = null;
+		HashSet<Integer> customerIds = null;
+		HashSet<Integer> productIds = null;
+		if (kind == ImportKind.TRANSACTIONS)
 		{
-			Statement updateStmt = db.createStatement();
-			String time = layout.getNextVisit() == null ? "NULL" : layout.getNextVisit().getTimeInMillis() + "";
-			String query = String.format("UPDATE VMLayout SET nextVisit=%s, depth=%d WHERE layoutId=%d", time, layout.getDepth(), layout.getId());
-			updateStmt.executeUpdate(query);
-			updateStmt.close();
+			machineIds = loadIds("SELECT machineId FROM VendingMachine");
+			customerIds = loadIds("SELECT customerId FROM Customer");
+			productIds = loadIds("SELECT itemId FROM Item");
 		}
 
-		Statement delStatement = db.createStatement();
-		delStatement.executeUpdate("DELETE FROM VMLayoutVMRowLink WHERE layoutId=" + layout.getId());
-		delStatement.close();
-			
-		Row[][] grid = layout.getRows();
-		PreparedStatement rowUpdateStatements = db.prepareStatement("UPDATE VMRow SET productId=?, expirationDate=?, remainingQuant=? WHERE vmRowId=?");
-		PreparedStatement rowLinkStatements = db.prepareStatement("INSERT INTO VMLayoutVMRowLink(layoutId, vmRowId, rowX, rowY) VALUES(?, ?, ?, ?)");
-		db.setAutoCommit(false);
-		for (int y=0;y<grid.length;++y)
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		try
 		{
-			for (int x=0;x<grid[y].length;++x)
+			ArrayList<Object[]> batch = new ArrayList<Object[]>(IMPORT_BATCH_SIZE);
+			ArrayList<Integer> lines = new ArrayList<Integer>(IMPORT_BATCH_SIZE);
+			long read = 0;
+			String[] record;
+			do
 			{
-				Row row = grid[y][x];
-				updateOrCreateRow(row, x, y, layout.getId(), rowUpdateStatements, rowLinkStatements);
+				record = reader.readRecord();
+				if (record != null)
+				{
+					++read;
+					try
+					{
+						if (record.length != columns)
+							throw new BadArgumentException("Expected " + columns + " fields but found " + record.length);
+						batch.add(kind.parseRecord(record, machineIds, customerIds, productIds));
+						lines.add(reader.getLineNumber());
+					}
+					catch (BadArgumentException invalid)
+					{
+						report.addError(reader.getLineNumber(), invalid.getMessage());
+					}
+					catch (NumberFormatException invalid)
+					{
+						report.addError(reader.getLineNumber(), "Not a number: " + invalid.getMessage());
+					}
+				}
+				if (read == IMPORT_BATCH_SIZE || record == null)
+				{
+					report.addImported(writeImportBatch(db, kind, batch, lines, report));
+					done += read;
+					read = 0;
+					if (checkpoint != null)
+					{
+						PreparedStatement stmt = prepare(record == null ? "DELETE FROM ImportCheckpoint WHERE name=?" : "INSERT OR REPLACE INTO ImportCheckpoint(name, records) VALUES(?, ?)");
+						stmt.setString(1, checkpoint);
+						if (record != null)
+							stmt.setLong(2, done);
+						stmt.executeUpdate();
+						release(stmt);
+					}
+					if (started)
+						db.commit();
+					batch.clear();
+					lines.clear();
+				}
 			}
+			while (record != null);
+			succeeded = true;
 		}
-		if (!db.getAutoCommit())
+		finally
 		{
-			db.commit();
-			db.setAutoCommit(true);
+			endTransaction(db, started, succeeded);
+			closeConnection();
 		}
-		rowUpdateStatements.executeBatch();
-		rowLinkStatements.executeBatch();
-		rowUpdateStatements.close();
-		rowLinkStatements.close();
-		closeConnection();
+		report.finish();
+		return report;
 	}
 
 	/**
-	 * Gets the rows associated with the given layout id
-	 * @param layoutId The id of the VMLayout
-	 * @return A LinkedList of pairs of rows and pairs of integers. The rows
-	 * are the rows (duh) and the pairs of integers are the x and y coordinates
-	 * of the row in its parent VMLayout
+	 * Reads a set of ids.
+	 * @param sql A query selecting the ids.
+	 * @return The ids.
 	 **/
-	private LinkedList<Pair<Row,Pair<Integer,Integer>>> getRowsByVMLayoutId(int layoutId) throws SQLException, BadStateException, BadArgumentException
+	private HashSet<Integer> loadIds(String sql) throws SQLException
 	{
-		Connection db = connect();
-		LinkedList<Pair<Row,Pair<Integer,Integer>>> returnSet = new LinkedList<Pair<Row,Pair<Integer,Integer>>>();
-		Statement rowStmt = db.createStatement();
-		ResultSet rowResults = rowStmt.executeQuery("SELECT VMRow.vmRowId, productId, expirationDate, remainingQuant, rowX, rowY FROM VMLayoutVMRowLink LEFT JOIN VMRow ON VMRow.vmRowId=VMLayoutVMRowLink.vmRowId WHERE layoutId=" + layoutId);
+		HashSet<Integer> ids = new HashSet<Integer>();
+		PreparedStatement stmt = prepare(sql);
+		ResultSet results = stmt.executeQuery();
+		while (results.next())
+			ids.add(results.getInt(1));
+		results.close();
+		release(stmt);
+		return ids;
+	}
 
-		while (rowResults.next())
+	/**
+	 * Gives the statement inserting one record of a bulk import.
+	 * @param kind The kind of record.
+	 * @return The statement, or null for machines, which take several.
+	 **/
+	private static String importSql(ImportKind kind)
+	{
+		switch (kind)
 		{
-			int productId = rowResults.getInt(2);
-			long dateInt = rowResults.getLong(3);
-			int rowX = rowResults.getInt(5);
-			int rowY = rowResults.getInt(6);
-
-			FoodItem item = getFoodItemById(productId);
-			
-			GregorianCalendar date = new GregorianCalendar();
-			date.setTimeInMillis(dateInt);
-
-			Row returnValue = null;
-			int rowId = rowResults.getInt(4);
-			if (!rowResults.wasNull())
-			{
-				returnValue = new Row(item, rowResults.getInt(4), date);
-				returnValue.setId(rowResults.getInt(1));
-			}
-
-			returnSet.add(new Pair<Row, Pair<Integer, Integer>>(returnValue, new Pair<Integer, Integer>(rowX, rowY)));
+			case ITEMS:
+				return "INSERT INTO Item(name, price, freshLength, active) VALUES(?, ?, ?, ?)";
+			case CUSTOMERS:
+				return "INSERT INTO Customer(name, money) VALUES(?, ?)";
+			case TRANSACTIONS:
+				return "INSERT INTO VMTransaction(timestamp, machineId, customerId, productId, rowX, rowY, balance) VALUES(?, ?, ?, ?, ?, ?, ?)";
+			default: //MACHINES
+				return null;
 		}
-		rowResults.close();
-		rowStmt.close();
-		closeConnection();
-		return returnSet;
 	}
 
 	/**
-	 * Updates a row if it exists in the datbase (determined by id) or creates it
-	 * if it does not exist. Also creates a link between the row and the parent
-	 * layout.
-	 * @param row The row to update/create
-	 * @param x The x value of the row in the grid of the parent layout
-	 * @param y The y value of the row in the grid of the parent layout
-	 * @param parentLayoutId The id of the parent layout
-	 * @param rowUpdateStatements The prepared statement to put the batch update statements in
-	 * @param rowLinkStatements The prepare statement to put the batch row layout link statements in
+	 * Writes one batch of a bulk import, within the caller's database
+	 * transaction. Ordinarily the whole batch goes through a single
+	 * statement's batch; should that fail, the batch is rolled back to a
+	 * savepoint and written again a record at a time, so that only the
+	 * records the database rejects are lost. Machines take several
+	 * statements each, so are written a record at a time to begin with.
+	 * @param db The current thread's connection.
+	 * @param kind The kind of records.
+	 * @param batch The values of each record, as parsed by
+	 * parseImportRecord().
+	 * @param lines The line on which each record started.
+	 * @param report Where to report rejected records.
+	 * @return The number of records written.
 	 **/
-	private void updateOrCreateRow(Row row, int x, int y, int parentLayoutId, PreparedStatement rowUpdateStatements, PreparedStatement rowLinkStatements) throws SQLException, BadStateException, BadArgumentException
+	private int writeImportBatch(Connection db, ImportKind kind, ArrayList<Object[]> batch, ArrayList<Integer> lines, ImportReport report) throws SQLException
 	{
-		Connection db = connect();
-		if (row != null)
+		ArrayList<Object[]> written = new ArrayList<Object[]>(batch.size());
+		Statement savepoints = db.createStatement();
+		if (kind == ImportKind.MACHINES)
+		{
+			for (int i=0;i<batch.size();++i)
+			{
+				savepoints.execute("SAVEPOINT importRecord");
+				try
+				{
+					insertImportedMachine(batch.get(i));
+					written.add(batch.get(i));
+				}
+				catch (SQLException rejected)
+				{
+					savepoints.execute("ROLLBACK TO importRecord");
+					report.addError(lines.get(i), rejected.getMessage());
+				}
+				savepoints.execute("RELEASE importRecord");
+			}
+		}
+		else if (!batch.isEmpty())
 		{
-			if(!isFoodItemValid(row.getProduct())) {
-				throw new BadArgumentException("FoodItem in Row is not in database, but it must be before the Row can be added");
+			//the driver can't run single updates on a statement once it has been batched, so the batch mustn't use the cached one
+			PreparedStatement batchStmt = db.prepareStatement(importSql(kind));
+			savepoints.execute("SAVEPOINT importBatch");
+			try
+			{
+				for (Object[] values : batch)
+				{
+					bindSelection(batchStmt, 1, values);
+					batchStmt.addBatch();
+				}
+				batchStmt.executeBatch();
+				written = batch;
 			}
-
-			if (row.isTempId())
+			catch (SQLException batchFailed)
 			{
-				Statement rowStmt = db.createStatement();
-				String rowQuery = String.format("INSERT INTO VMRow(productId, expirationDate, remainingQuant) VALUES(%d, %d, %d)", row.getProduct().getId(), row.getExpirationDate().getTimeInMillis(), row.getRemainingQuantity());
-				rowStmt.executeUpdate(rowQuery);
-				db.commit();
-				ResultSet rowKeys = rowStmt.getGeneratedKeys();
-				rowKeys.next();
-				row.setId(rowKeys.getInt(1));
-				rowKeys.close();
-				rowStmt.close();
+				savepoints.execute("ROLLBACK TO importBatch");
+				PreparedStatement insertStmt = prepare(importSql(kind));
+				for (int i=0;i<batch.size();++i)
+				{
+					bindSelection(insertStmt, 1, batch.get(i));
+					try
+					{
+						insertStmt.executeUpdate();
+						written.add(batch.get(i));
+					}
+					catch (SQLException rejected)
+					{
+						report.addError(lines.get(i), rejected.getMessage());
+					}
+				}
+				release(insertStmt);
 			}
-			else
+			finally
 			{
-
-				rowUpdateStatements.setInt(1, row.getProduct().getId());
-				rowUpdateStatements.setLong(2, row.getExpirationDate().getTimeInMillis());
-				rowUpdateStatements.setInt(3, row.getRemainingQuantity());
-				rowUpdateStatements.setInt(4, row.getId());
-				rowUpdateStatements.addBatch();
+				batchStmt.close();
 			}
+			savepoints.execute("RELEASE importBatch");
 		}
-		Statement qLink = db.createStatement();
-		String rowIdStr = row == null ? "NULL" : row.getId()+"";
-		ResultSet linkSet = qLink.executeQuery("SELECT vmRowId FROM VMLayoutVMRowLink WHERE layoutId=" + parentLayoutId + " AND vmRowId=" + rowIdStr);
-		if (!linkSet.next())
+		savepoints.close();
+
+		if (kind == ImportKind.TRANSACTIONS) //add the batch's sales to the rollups, a day, machine and item at a time
 		{
-			rowLinkStatements.setInt(1, parentLayoutId);
-			if (row == null)
-				rowLinkStatements.setNull(2, java.sql.Types.INTEGER);
-			else
-				rowLinkStatements.setInt(2, row.getId());
-			rowLinkStatements.setInt(3, x);
-			rowLinkStatements.setInt(4, y);
-			rowLinkStatements.addBatch();
+			LinkedHashMap<String, long[]> sales = new LinkedHashMap<String, long[]>();
+			for (Object[] values : written)
+			{
+				long day = startOfDay((Long)values[0]);
+				String key = day + "," + values[1] + "," + values[3];
+				long[] sale = sales.get(key);
+				if (sale == null)
+				{
+					sale = new long[]{day, (Integer)values[1], (Integer)values[3], 0, 0};
+					sales.put(key, sale);
+				}
+				++sale[3];
+				sale[4] += (Integer)values[6];
+			}
+			//make sure each rollup row exists, then add to them all, in two batches rather than a round trip per row
+			PreparedStatement createStmt = db.prepareStatement("INSERT OR IGNORE INTO DailySales(day, machineId, productId, units, revenue) VALUES(?, ?, ?, 0, 0)");
+			PreparedStatement addStmt = db.prepareStatement("UPDATE DailySales SET units=units+?, revenue=revenue+? WHERE day=? AND machineId=? AND productId=?");
+			try
+			{
+				for (long[] sale : sales.values())
+				{
+					createStmt.setLong(1, sale[0]);
+					createStmt.setLong(2, sale[1]);
+					createStmt.setLong(3, sale[2]);
+					createStmt.addBatch();
+					addStmt.setLong(1, sale[3]);
+					addStmt.setLong(2, sale[4]);
+					addStmt.setLong(3, sale[0]);
+					addStmt.setLong(4, sale[1]);
+					addStmt.setLong(5, sale[2]);
+					addStmt.addBatch();
+				}
+				if (!sales.isEmpty())
+				{
+					createStmt.executeBatch();
+					addStmt.executeBatch();
+				}
+			}
+			finally
+			{
+				createStmt.close();
+				addStmt.close();
+			}
 		}
-		linkSet.close();
-		qLink.close();
-		closeConnection();
+		return written.size();
 	}
 
 	/**
-	 * Fetches the Location with the given id. Only this class should ever need
-	 * to do that.
-	 * @param id The id of the Location to fetch.
-	 * @return The Location with the given id or null if no such Location exists.
-	 * @throws SQLException in case of a database error.
+	 * Writes one imported machine: its location, two layouts of empty
+	 * slots, and the machine itself.
+	 * @param values The machine's zipCode, state, stockingInterval, height,
+	 * width, depth and active, as parsed by ImportKind.parseRecord().
 	 **/
-	private Location getLocationById(int id) throws SQLException, BadStateException, BadArgumentException
+	private void insertImportedMachine(Object[] values) throws SQLException
 	{
-		Connection db = connect();
-		Location returnValue = null;
-		Statement locStmt = db.createStatement();
-		ResultSet locSet = locStmt.executeQuery("SELECT locationId, zipCode, state FROM Location WHERE locationId=" + id);
-		if (locSet.next())
-		{
-			Statement busStmt = db.createStatement();
-			ResultSet busSet = busStmt.executeQuery("SELECT name FROM NearbyBusiness WHERE locationId=" + id);
-			LinkedList<String> busList = new LinkedList<String>();
-			while (busSet.next())
-				busList.add(busSet.getString(1));
-			returnValue = new Location(locSet.getInt(2), locSet.getString(3), busList.toArray(new String[0]));
-			returnValue.setId(locSet.getInt(1));
-			busSet.close();
-			busStmt.close();
+		PreparedStatement locStmt = prepare("INSERT INTO Location(zipCode, state) VALUES(?, ?)");
+		locStmt.setObject(1, values[0]);
+		locStmt.setObject(2, values[1]);
+		int locationId = insertForKey(locStmt);
+		release(locStmt);
+
+		int[] layoutIds = new int[2];
+		PreparedStatement layoutStmt = prepare("INSERT INTO VMLayout(nextVisit, depth) VALUES(NULL, ?)");
+		PreparedStatement linkStmt = prepare("INSERT INTO VMLayoutVMRowLink(vmRowId, layoutId, rowX, rowY) VALUES(NULL, ?, ?, ?)");
+		for (int i=0;i<layoutIds.length;++i)
+		{
+			layoutStmt.setObject(1, values[5]);
+			layoutIds[i] = insertForKey(layoutStmt);
+			for (int y=0;y<(Integer)values[3];++y)
+			{
+				for (int x=0;x<(Integer)values[4];++x)
+				{
+					linkStmt.setInt(1, layoutIds[i]);
+					linkStmt.setInt(2, x);
+					linkStmt.setInt(3, y);
+					linkStmt.addBatch();
+				}
+			}
 		}
-		locSet.close();
-		locStmt.close();
-		closeConnection();
-		return returnValue;
+		linkStmt.executeBatch();
+		release(layoutStmt);
+		release(linkStmt);
+
+		PreparedStatement machineStmt = prepare("INSERT INTO VendingMachine(active, stockingInterval, currentLayoutId, nextLayoutId, locationId) VALUES(?, ?, ?, ?, ?)");
+		machineStmt.setObject(1, values[6]);
+		machineStmt.setObject(2, values[2]);
+		machineStmt.setInt(3, layoutIds[0]);
+		machineStmt.setInt(4, layoutIds[1]);
+		machineStmt.setInt(5, locationId);
+		machineStmt.executeUpdate();
+		release(machineStmt);
 	}
 
 	/**
-	 * Fetches all of the locations from the database
-	 * @return An ArrayList of all the locations
-	 * @throws SQLException in case of a database error.
+	 * Gives the query selecting the records of an export in a time range,
+	 * with a column for each of the kind's columns, in order.
+	 * @param kind The kind of record.
+	 * @return The query, whose parameters are the start and (exclusive) end
+	 * of the range.
 	 **/
-	public ArrayList<Location> getLocationsAll() throws SQLException, BadStateException, BadArgumentException
+	private static String exportSql(ExportKind kind)
 	{
-		Connection db = connect();
-		ArrayList<Location> returnSet = new ArrayList<Location>();
-		Statement locStmt = db.createStatement();
-		ResultSet locSet = locStmt.executeQuery("SELECT locationId, zipCode, state FROM Location");
-		while (locSet.next())
-		{
-			int id = locSet.getInt(1);
-			Statement busStmt = db.createStatement();
-			ResultSet busSet = busStmt.executeQuery("SELECT name FROM NearbyBusiness WHERE locationId=" + id);
-			LinkedList<String> busList = new LinkedList<String>();
-			while (busSet.next())
-				busList.add(busSet.getString(1));
-			Location returnValue = new Location(locSet.getInt(2), locSet.getString(3), busList.toArray(new String[0]));
-			returnValue.setId(locSet.getInt(1));
-			returnSet.add(returnValue);
-			busSet.close();
-			busStmt.close();
-		}
-		locSet.close();
-		locStmt.close();
-		closeConnection();
-		return returnSet;
+		if (kind == ExportKind.TRANSACTIONS) //every sale, with where it was made and the name and current price of what was sold
+			return "SELECT VMTransaction.transactionId, VMTransaction.timestamp, strftime('%Y-%m-%dT%H:%M:%SZ', VMTransaction.timestamp / 1000, 'unixepoch'), VMTransaction.machineId, Location.zipCode, Location.state, VMTransaction.customerId, VMTransaction.productId, Item.name, Item.price, VMTransaction.rowX, VMTransaction.rowY, VMTransaction.balance FROM VMTransaction LEFT JOIN VendingMachine ON VMTransaction.machineId = VendingMachine.machineId LEFT JOIN Location ON VendingMachine.locationId = Location.locationId LEFT JOIN Item ON VMTransaction.productId = Item.itemId WHERE VMTransaction.timestamp>=? AND VMTransaction.timestamp<? ORDER BY VMTransaction.timestamp, VMTransaction.transactionId";
+		//DAILY_SALES: the DailySales rollups, one row per day, machine and item
+		return "SELECT DailySales.day, strftime('%Y-%m-%d', DailySales.day / 1000, 'unixepoch', 'localtime'), DailySales.machineId, Location.zipCode, Location.state, DailySales.productId, Item.name, DailySales.units, DailySales.revenue FROM DailySales LEFT JOIN VendingMachine ON DailySales.machineId = VendingMachine.machineId LEFT JOIN Location ON VendingMachine.locationId = Location.locationId LEFT JOIN Item ON DailySales.productId = Item.itemId WHERE DailySales.day>=? AND DailySales.day<? ORDER BY DailySales.day, DailySales.machineId, DailySales.productId";
 	}
 
 	/**
-	 * Updates the given location if it exists in the database. If it does not
-	 * exist then it is created.
-	 * @param location The location to create/update.
-	 * @throws SQLException in case of a database error.
+	 * Writes records straight from the database to an export, never building
+	 * any model objects, so memory use doesn't grow with the size of the
+	 * history. Rows are fetched getFetchSize() at a time and handed to the
+	 * writer as they arrive. The writer is flushed, but not closed.
+	 * Transactions are exported a month of the archive at a time, followed
+	 * by the live ones, each in order of time; only transactions recorded
+	 * after their month was archived can appear out of order.
+	 * @param kind The kind of record to export.
+	 * @param from The start of the range, or null to start at the beginning.
+	 * @param to The end of the range (exclusive), or null to include
+	 * everything since the start. Daily sales are included if their day
+	 * starts within the range.
+	 * @param out The writer, created with the kind's columns.
+	 * @return The number of records written.
+	 * @throws SQLException in case of a database error
+	 * @throws IOException if the export could not be written
+	 * @throws BadArgumentException if the writer has the wrong number of
+	 * columns
 	 **/
-	private void updateOrCreateLocation(Location location) throws SQLException, BadStateException, BadArgumentException
+	public long export(ExportKind kind, GregorianCalendar from, GregorianCalendar to, ExportWriter out) throws SQLException, IOException, BadArgumentException
 	{
-		Connection db = connect();
-		if (location.isTempId())
+		long start = from == null ? Long.MIN_VALUE : from.getTimeInMillis();
+		long end = to == null ? Long.MAX_VALUE : to.getTimeInMillis();
+		long written = 0;
+		int columns = kind.getColumns().length;
+		lockArchiveForReading();
+		try
 		{
-			PreparedStatement insertStmt = db.prepareStatement("INSERT INTO Location(zipCode, state) VALUES(?, ?)");
-			insertStmt.setInt(1, location.getZipCode());
-			insertStmt.setString(2, location.getState());
-	 		
-			insertStmt.executeUpdate();
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			int id = keys.getInt(1);
-			location.setId(id);
-			insertStmt.close();
-
-			for (String business : location.getNearbyBusinesses())
+			List<ArchivePartition> sources = kind == ExportKind.TRANSACTIONS ? partitionsFor(start, end) : Collections.<ArchivePartition>singletonList(null);
+			for (ArchivePartition partition : sources)
 			{
-				PreparedStatement busStmt = db.prepareStatement("INSERT INTO NearbyBusiness(locationId, name) VALUES(?, ?)");
-				busStmt.setInt(1, location.getId());
-				busStmt.setString(2, business);
-				busStmt.executeUpdate();
-				busStmt.close();
+				int reading = connectToPartition(partition);
+				PreparedStatement stmt = prepare(partition == null ? exportSql(kind) : partition.retarget(exportSql(kind)));
+				try
+				{
+					stmt.setLong(1, start);
+					stmt.setLong(2, end);
+					stmt.setFetchSize(fetchSize);
+					ResultSet results = stmt.executeQuery();
+					try
+					{
+						while (results.next())
+						{
+							for (int col=1;col<=columns;++col)
+								out.writeField(results.getObject(col));
+							out.endRecord();
+							++written;
+						}
+					}
+					catch (IllegalStateException mismatch)
+					{
+						throw new BadArgumentException("Export of " + kind.name().toLowerCase() + " needs a writer with the columns " + Arrays.toString(kind.getColumns()));
+					}
+					finally
+					{
+						results.close();
+					}
+				}
+				finally
+				{
+					release(stmt);
+					closeReading(reading);
+				}
 			}
+			out.flush();
 		}
-		else
+		finally
 		{
-			PreparedStatement updateStmt = db.prepareStatement("UPDATE Location SET zipCode=?, state=? WHERE locationId=?");
-			updateStmt.setInt(1, location.getZipCode());
-			updateStmt.setString(2, location.getState());
-			updateStmt.setInt(3, location.getId());
-			updateStmt.executeUpdate();
-			updateStmt.close();
-
-			Statement delStatement = db.createStatement();
-			delStatement.executeUpdate("DELETE FROM NearbyBusiness WHERE locationId=" + location.getId());
-			delStatement.close();
-
-			for (String business : location.getNearbyBusinesses())
-			{
-				PreparedStatement busStmt = db.prepareStatement("INSERT INTO NearbyBusiness(locationId, name) VALUES(?, ?)");
-				busStmt.setInt(1, location.getId());
-				busStmt.setString(2, business);
-				busStmt.executeUpdate();
-				busStmt.close();
-			}
+			archiveLock.readLock().unlock();
 		}
-		closeConnection();
+		return written;
 	}
 
 	/**
-	 * Fetches the vending machine with the given id.
-	 * @param id The id of the vending machine to fetch.
-	 * @return The vending machine with the given id or null if the vending
-	 * machine does not exist.
-	 * @throws SQLException in case of a database error
+	 * Runs an insert and reads back the key it generated.
+	 * @param stmt The insert, with its parameters already bound.
+	 * @return The generated key.
 	 **/
-	public VendingMachine getVendingMachineById(int id) throws SQLException, BadStateException, BadArgumentException
+	private int insertForKey(PreparedStatement stmt) throws SQLException
 	{
-		Connection db = connect();
-		VendingMachine returnValue = null;
-		Statement vmStmt = db.createStatement();
-		ResultSet vmResults = vmStmt.executeQuery("SELECT machineId, active, currentLayoutId, nextLayoutId, locationId, stockingInterval FROM VendingMachine WHERE machineId=" + id);
-		if (vmResults.next())
-		{
-			id = vmResults.getInt(1);
-			boolean active = !(vmResults.getInt(2) == 0);
-			int interval = vmResults.getInt(6);
-			int curId = vmResults.getInt(3);
-			int nextId = vmResults.getInt(4);
-			int locationId = vmResults.getInt(5);
-			
-			VMLayout cur = getVMLayoutById(curId);
-			VMLayout next = getVMLayoutById(nextId);
-			Location loc = getLocationById(locationId);
-			returnValue = new VendingMachine(loc, interval, cur, next, active);
-			returnValue.setId(id);
-		}
-		vmResults.close();
-		vmStmt.close();
-		closeConnection();
-		return returnValue;
+		stmt.executeUpdate();
+		ResultSet keys = stmt.getGeneratedKeys();
+		keys.next();
+		int key = keys.getInt(1);
+		keys.close();
+		return key;
 	}
 
 	/**
-	 * Fetches all of the vending machines in the database.
-	 * @return ArrayList of all of the vending machines in the database.
+	 * Updates the given transaction if it exists (determined by id) or creates
+	 * it if it doesn't exist. The DailySales rollups are brought up to date
+	 * in the same database transaction.
+	 * @param transaction The transaction to create/update.
 	 * @throws SQLException in case of a database error
 	 **/
-	public ArrayList<VendingMachine> getVendingMachinesAll() throws SQLException, BadStateException, BadArgumentException
+	public void updateOrCreateTransaction(Transaction transaction) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		ArrayList<VendingMachine> returnSet = new ArrayList<VendingMachine>();
-		Statement vmStmt = db.createStatement();
-		ResultSet vmResults = vmStmt.executeQuery("SELECT machineId, active, currentLayoutId, nextLayoutId, locationId, stockingInterval FROM VendingMachine");
-		while (vmResults.next())
-		{
-			int id = vmResults.getInt(1);
-			boolean active = !(vmResults.getInt(2) == 0);
-			int interval = vmResults.getInt(6);
-			int curId = vmResults.getInt(3);
-			int nextId = vmResults.getInt(4);
-			int locationId = vmResults.getInt(5);
-			
-			VMLayout cur = getVMLayoutById(curId);
-			VMLayout next = getVMLayoutById(nextId);
-			Location loc = getLocationById(locationId);
-			VendingMachine machine = new VendingMachine(loc, interval, cur, next, active);
-			machine.setId(id);
-			returnSet.add(machine);
+		if(!isVendingMachineValid(transaction.getMachine())) {
+			throw new BadArgumentException("VendingMachine in Transaction is not in database, but it must be before the Transaction can be added");
+		}
+		if(!isCustomerValid(transaction.getCustomer())) {
+			throw new BadArgumentException("Customer in Transaction is not in database, but it must be before the Transaction can be added");
+		}
+		if(!isFoodItemValid(transaction.getProduct())) {
+			throw new BadArgumentException("FoodItem in Transaction is not in database, but it must be before the Transaction can be added");
 		}
-		vmResults.close();
-		vmStmt.close();
-		closeConnection();
-		return returnSet;
-	}
 
-	/**
-	 * Fetches all of the vending machines at a given zip code.
-	 * @param zip The zip code to fetch the vending machines from.
-	 * @return ArrayList of all of the vending machines at the given zip code.
-	 * @throws SQLException in case of a database error
-	 **/
-	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip) throws SQLException, BadStateException, BadArgumentException
-	{
 		Connection db = connect();
-		ArrayList<VendingMachine> returnSet = new ArrayList<VendingMachine>();
-		Statement vmStmt = db.createStatement();
-		ResultSet vmResults = vmStmt.executeQuery("SELECT machineId, active, currentLayoutId, nextLayoutId, VendingMachine.locationId, stockingInterval FROM VendingMachine JOIN Location ON Location.locationId = VendingMachine.locationId WHERE Location.zipCode=" + zip);
-		while (vmResults.next())
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		int id = transaction.isTempId() ? -1 : transaction.getId();
+		try
 		{
-			int id = vmResults.getInt(1);
-			boolean active = !(vmResults.getInt(2) == 0);
-			int curId = vmResults.getInt(3);
-			int nextId = vmResults.getInt(4);
-			int locationId = vmResults.getInt(5);
-			int interval = vmResults.getInt(6);
-			
-			VMLayout cur = getVMLayoutById(curId);
-			VMLayout next = getVMLayoutById(nextId);
-			Location loc = getLocationById(locationId);
-			VendingMachine machine = new VendingMachine(loc, interval, cur, next, active);
-			machine.setId(id);
-			returnSet.add(machine);
+			if (transaction.isTempId())
+			{
+				PreparedStatement insertStmt = prepare("INSERT INTO VMTransaction(timestamp, machineId, customerId, productId, rowX, rowY, balance) VALUES(?, ?, ?, ?, ?, ?, ?)");
+				bindTransaction(insertStmt, transaction);
+				insertStmt.executeUpdate();
+				ResultSet keys = insertStmt.getGeneratedKeys();
+				keys.next();
+				id = keys.getInt(1);
+				keys.close();
+				release(insertStmt);
+			}
+			else
+			{
+				PreparedStatement oldStmt = prepare("SELECT timestamp, machineId, productId, balance FROM VMTransaction WHERE transactionId=?");
+				oldStmt.setInt(1, id);
+				ResultSet old = oldStmt.executeQuery();
+				if (old.next()) //take the sale as it was out of the rollups
+					addToSalesRollup(old.getLong(1), old.getInt(2), old.getInt(3), -1, -old.getLong(4));
+				old.close();
+				release(oldStmt);
+
+				PreparedStatement updateStmt = prepare("UPDATE VMTransaction SET timestamp=?, machineId=?, customerId=?, productId=?, rowX=?, rowY=?, balance=? WHERE transactionId=?");
+				bindTransaction(updateStmt, transaction);
+				updateStmt.setInt(8, id);
+				int updated = updateStmt.executeUpdate();
+				release(updateStmt);
+				if (updated == 0)
+					throw new BadArgumentException("Transaction " + id + " is not in the live database; archived transactions can't be changed");
+			}
+			addToSalesRollup(transaction.getTimestamp().getTimeInMillis(), transaction.getMachine().getId(), transaction.getProduct().getId(), 1, transaction.getBalance());
+			succeeded = true;
 		}
-		vmResults.close();
-		vmStmt.close();
-		closeConnection();
-		return returnSet;
+		finally
+		{
+			endTransaction(db, started, succeeded);
+			closeConnection();
+		}
+		if (transaction.isTempId())
+			transaction.setId(id);
+		remember(transaction);
 	}
 
 	/**
-	 * Fetches all of the vending machines in a state.
-	 * @param state The state to fetch the vending machines from.
-	 * @return ArrayList of all of the vending machines in the given state.
+	 * Records a purchase atomically: the transaction is inserted, the
+	 * customer is charged its balance, one item is taken out of the slot it
+	 * was bought from and the sale is added to the DailySales rollups, all
+	 * within one database transaction, or within the caller's if one is
+	 * already under way. The charge
+	 * and the removal are conditional in SQL, so two kiosks racing to spend
+	 * the same balance or take the last item can't both succeed. Only once
+	 * the purchase has committed are the transaction's id, the customer's
+	 * money and the row's quantity updated in memory to match, without
+	 * marking them as changed, so saving them later doesn't write back a
+	 * stale balance or quantity over others' purchases.
+	 * @param transaction The new transaction, whose machine, customer and
+	 * product must already be in the database. Its row coordinates pick out
+	 * the slot in the machine's current layout.
+	 * @return Whether the purchase went through; false if the customer can't
+	 * afford it or the slot is empty, in which case nothing is written.
+	 * @throws BadArgumentException if the transaction has already been
+	 * recorded or its slot holds no row.
 	 * @throws SQLException in case of a database error
 	 **/
-	public ArrayList<VendingMachine> getVendingMachinesByState(String state) throws SQLException, BadStateException, BadArgumentException
+	public boolean purchase(Transaction transaction) throws SQLException, BadStateException, BadArgumentException
 	{
+		Row row = purchasedRow(transaction);
+		Customer customer = transaction.getCustomer();
+
 		Connection db = connect();
-		ArrayList<VendingMachine> returnSet = new ArrayList<VendingMachine>();
-		PreparedStatement vmStmt = db.prepareStatement("SELECT machineId, active, currentLayoutId, nextLayoutId, VendingMachine.locationId, stockingInterval FROM VendingMachine JOIN Location ON Location.locationId = VendingMachine.locationId WHERE Location.state=?");
-		vmStmt.setString(1, state);
-		ResultSet vmResults = vmStmt.executeQuery();
-		while (vmResults.next())
+		boolean started = beginTransaction(db);
+		boolean succeeded = false;
+		int id = -1;
+		try
 		{
-			int id = vmResults.getInt(1);
-			boolean active = !(vmResults.getInt(2) == 0);
-			int curId = vmResults.getInt(3);
-			int nextId = vmResults.getInt(4);
-			int locationId = vmResults.getInt(5);
-			int interval = vmResults.getInt(6);
-			
-			VMLayout cur = getVMLayoutById(curId);
-			VMLayout next = getVMLayoutById(nextId);
-			Location loc = getLocationById(locationId);
-			VendingMachine machine = new VendingMachine(loc, interval, cur, next, active);
-			machine.setId(id);
-			returnSet.add(machine);
+			Statement savepoint = db.createStatement();
+			try
+			{
+				savepoint.execute("SAVEPOINT purchase");
+				try
+				{
+					id = writePurchase(transaction, row);
+				}
+				finally
+				{
+					if (id < 0) //turned down or failed partway, so undo only what this purchase wrote
+						savepoint.execute("ROLLBACK TO purchase");
+					savepoint.execute("RELEASE purchase");
+				}
+			}
+			finally
+			{
+				savepoint.close();
+			}
+			succeeded = true;
 		}
-		vmResults.close();
-		vmStmt.close();
-		closeConnection();
-		return returnSet;
+		finally
+		{
+			endTransaction(db, started, succeeded);
+			closeConnection();
+		}
+		if (id < 0)
+			return false;
+		transaction.setId(id);
+
+		customer.deductMoney(transaction.getBalance());
+		row.decrementRemainingQuantity();
+		customer.markClean("money"); //already debited in SQL, so saving them again would undo others' purchases
+		row.markClean("remainingQuantity");
+		remember(transaction);
+		return true;
 	}
 
 	/**
-	 * Updates the given vending machine if it exists in the database (determined
-	 * by id) or creates it if it doesn't exist. If it creates a vending machine
-	 * then it will update the id with the auto incremented one. Will also
-	 * update/create the location, VMLayouts, and Rows that are associated with
-	 * the machine.
-	 * @param vm The vending machine to update or create.
-	 * @throws SQLException in case of a database error
+	 * Queues a purchase to be written in the background, if write-behind is
+	 * on, so that the caller needn't wait for the disk. The customer's money
+	 * and the row's quantity are updated in memory straight away; the
+	 * purchase is then written as by purchase(), together with whatever else
+	 * is queued, in a single database transaction. If write-behind is off, or
+	 * has just been turned off, the purchase is written before this returns.
+	 * Either way, the outcome is collected with PendingPurchase.await(),
+	 * which sets the transaction's id if it went through and puts the money
+	 * and item back if it didn't.
+	 * @param transaction The new transaction, as for purchase().
+	 * @return The purchase, which is already done (and declined) if the
+	 * customer can't afford it or the row is empty in memory.
+	 * @throws BadArgumentException if the transaction has already been
+	 * recorded or its slot holds no row.
 	 **/
-	public void updateOrCreateVendingMachine(VendingMachine vm) throws SQLException, BadStateException, BadArgumentException
+	public PendingPurchase purchaseLater(Transaction transaction) throws BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		updateOrCreateVMLayout(vm.getCurrentLayout());
-		updateOrCreateVMLayout(vm.getNextLayout());
-		updateOrCreateLocation(vm.getLocation());
+		PendingPurchase pending = new PendingPurchase(transaction, purchasedRow(transaction));
+		if (!pending.apply())
+			return pending;
 
-		if (vm.isTempId())
-		{
-			Statement insertStmt = db.createStatement();
-			String query = String.format("INSERT INTO VendingMachine(active, stockingInterval, currentLayoutId, nextLayoutId, locationId) VALUES(%d, %d, %d, %d, %d)", vm.isActive() ? 1 : 0, vm.getStockingInterval(), vm.getCurrentLayout().getId(), vm.getNextLayout().getId(), vm.getLocation().getId());
-			insertStmt.executeUpdate(query);
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			int id = keys.getInt(1);
-			vm.setId(id);
-			insertStmt.close();
-		}
-		else
+		GroupCommitQueue<PendingPurchase> queue = purchaseQueue;
+		if (queue != null)
 		{
-			Statement updateStmt = db.createStatement();
-			String query = String.format("UPDATE VendingMachine SET active=%d, stockingInterval=%d, currentLayoutId=%d, nextLayoutId=%d, locationId=%d WHERE machineId=%d", vm.isActive() ? 1 : 0, vm.getStockingInterval(),vm.getCurrentLayout().getId(), vm.getNextLayout().getId(), vm.getLocation().getId(), vm.getId());
-			updateStmt.executeUpdate(query);
-			updateStmt.close();
+			try
+			{
+				queue.submit(pending);
+				return pending;
+			}
+			catch (IllegalStateException stopped) //write-behind was turned off meanwhile
+			{
+			}
+			catch (InterruptedException impatient) //gave up waiting for room
+			{
+				Thread.currentThread().interrupt();
+			}
 		}
-		closeConnection();
+		ArrayList<PendingPurchase> alone = new ArrayList<PendingPurchase>(1);
+		alone.add(pending);
+		writePurchases(alone);
+		return pending;
 	}
 
 	/**
-	 * Fetches the customer with the given id from the database.
-	 * @param id The id of the customer to fetch.
-	 * @return The customer with given id or null if the customer does not
-	 * @throws SQLException in case of a database error
-	 * exist.
+	 * Turns on write-behind for purchaseLater(): purchases are queued and a
+	 * single background thread writes them in batches, each batch in one
+	 * database transaction, so that many purchases share the cost of every
+	 * commit. Once the queue is full, purchaseLater() waits for room. Any
+	 * purchases still queued are written when write-behind is turned off or
+	 * the program exits normally; those queued when it is killed outright are
+	 * lost, though their customers will never have been charged.
+	 * @param capacity The most purchases that may be waiting at once.
+	 * @param maxBatch The most purchases written in one transaction.
+	 * @param maxDelay How long the oldest queued purchase may be held back
+	 * for others to join it, in milliseconds; with 0, each batch is whatever
+	 * arrived while the last was being written.
+	 * @throws BadArgumentException if the capacity or batch size is not
+	 * positive or the delay is negative.
+	 * @throws InterruptedException if interrupted while waiting for the
+	 * purchases queued under earlier settings to be written.
 	 **/
-	public Customer getCustomerById(int id) throws SQLException, BadStateException, BadArgumentException
+	public synchronized void startWriteBehind(int capacity, int maxBatch, long maxDelay) throws BadArgumentException, InterruptedException
 	{
-		Connection db = connect();
-		if(id==Customer.CASH_ID) //lock out cash customers specially, since they're not database-backed
-			return new Customer();
-		
-		Customer returnValue = null;
-		Statement stmt = db.createStatement();
-		String query = "SELECT customerId, money, name FROM Customer WHERE customerId=" + id;
-		ResultSet results = stmt.executeQuery(query);
-		if (results.next())
+		if (capacity <= 0 || maxBatch <= 0 || maxDelay < 0)
+			throw new BadArgumentException("Write-behind needs a positive capacity and batch size and a delay of at least 0");
+		stopWriteBehind();
+		purchaseQueue = new GroupCommitQueue<PendingPurchase>("Purchase writer", capacity, maxBatch, maxDelay)
 		{
-			returnValue = new Customer(results.getString(3), results.getInt(2));
-			returnValue.setId(results.getInt(1));
+			protected void write(ArrayList<PendingPurchase> batch)
+			{
+				writePurchases(batch);
+			}
+		};
+		if (!purchaseQueueHooked)
+		{
+			Runtime.getRuntime().addShutdownHook(new Thread("Purchase flusher")
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						stopWriteBehind();
+					}
+					catch (InterruptedException exiting)
+					{
+					}
+				}
+			});
+			purchaseQueueHooked = true;
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnValue;
 	}
 
 	/**
-	 * Fetches all of the customers from the database
-	 * @return An ArrayList of all the managers
-	 * @throws SQLException in case of a database error.
+	 * Turns off write-behind, waiting until every queued purchase has been
+	 * written. Does nothing if it is already off.
+	 * @throws InterruptedException if interrupted while waiting.
 	 **/
-	public ArrayList<Customer> getCustomersAll() throws SQLException, BadStateException, BadArgumentException
+	public void stopWriteBehind() throws InterruptedException
 	{
-		Connection db = connect();
-		ArrayList<Customer> returnSet = new ArrayList<Customer>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT customerId, money, name FROM Customer";
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
+		GroupCommitQueue<PendingPurchase> queue;
+		synchronized (this)
 		{
-			Customer returnValue = new Customer(results.getString(3), results.getInt(2));
-			returnValue.setId(results.getInt(1));
-			returnSet.add(returnValue);
+			queue = purchaseQueue;
+			purchaseQueue = null;
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnSet;
+		if (queue != null)
+			queue.close();
 	}
 
 	/**
-	 * Updates the given customer if it exists (determined by id) or creates it
-	 * if it does not exist.
-	 * @param customer The Customer to update/create.
-	 * @throws SQLException in case of a database error
+	 * Reports whether purchaseLater() queues purchases to be written in the
+	 * background.
+	 * @return Whether write-behind is on.
 	 **/
-	public void updateOrCreateCustomer(Customer customer) throws SQLException, BadStateException, BadArgumentException
+	public boolean isWriteBehind()
 	{
-		Connection db = connect();
-		if (customer.isTempId())
-		{
-			PreparedStatement insertStmt = db.prepareStatement("INSERT INTO Customer(money, name) VALUES(?, ?)");
-			insertStmt.setInt(1, customer.getMoney());
-			insertStmt.setString(2, customer.getName());
-			insertStmt.executeUpdate();
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			customer.setId(keys.getInt(1));
-			keys.close();
-			insertStmt.close();
-		}
-		else if(!customer.isCashCustomer())
-		{
-			PreparedStatement updateStmt = db.prepareStatement("UPDATE Customer SET money=?, name=? WHERE customerId=?");
-			updateStmt.setInt(1, customer.getMoney());
-			updateStmt.setString(2, customer.getName());
-			updateStmt.setInt(3, customer.getId());
-			updateStmt.executeUpdate();
-			updateStmt.close();
-		}
-		//do NOT store cash customers under any circumstances
-		closeConnection();
+		return purchaseQueue != null;
 	}
 
 	/**
-	 * Fetches the manager with the given id.
-	 * @param id The id of the manager to fetch.
-	 * @return The manager with the given id or null if no such manager exists.
-	 * @throws SQLException in case of a database error
+	 * Waits until every purchase queued so far has been written, e.g. before
+	 * reporting on sales or handing over to another program. Returns
+	 * straight away if write-behind is off.
+	 * @throws InterruptedException if interrupted while waiting.
 	 **/
-	public Manager getManagerById(int id) throws SQLException, BadStateException, BadArgumentException
+	public void flushPurchases() throws InterruptedException
 	{
-		Connection db = connect();
-		Manager returnValue = null;
-		Statement stmt = db.createStatement();
-		String query = "SELECT managerId, password, name FROM Manager WHERE managerId=" + id;
-		ResultSet results = stmt.executeQuery(query);
-		if (results.next())
-		{
-			returnValue = new Manager(results.getString(3), results.getString(2));
-			returnValue.setId(results.getInt(1));
-		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnValue;
+		GroupCommitQueue<PendingPurchase> queue = purchaseQueue;
+		if (queue != null)
+			queue.flush();
 	}
 
 	/**
-	 * Fetches all of the managers from the database
-	 * @return An ArrayList of all the managers
-	 * @throws SQLException in case of a database error.
+	 * Finds the row a purchase takes its item from.
+	 * @param transaction The new transaction.
+	 * @return The row in its slot of the machine's current layout.
+	 * @throws BadArgumentException if the transaction has already been
+	 * recorded or its slot holds no row.
 	 **/
-	public ArrayList<Manager> getManagersAll() throws SQLException, BadStateException, BadArgumentException
+	static Row purchasedRow(Transaction transaction) throws BadArgumentException
 	{
-		Connection db = connect();
-		ArrayList<Manager> returnSet = new ArrayList<Manager>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT managerId, password, name FROM Manager";
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
+		if (!transaction.isTempId())
+			throw new BadArgumentException("Transaction has already been recorded");
+		Row[][] grid = transaction.getMachine().getCurrentLayout().getRows();
+		Pair<Integer, Integer> slot = transaction.getRow();
+		if (slot.first < 0 || slot.second < 0 || slot.first >= grid.length || slot.second >= grid[slot.first].length || grid[slot.first][slot.second] == null)
+			throw new BadArgumentException("Transaction's slot in the machine holds no row");
+		return grid[slot.first][slot.second];
+	}
+
+	/**
+	 * Writes a purchase within the current thread's database transaction:
+	 * charges the customer, takes the item from its slot, inserts the
+	 * transaction and adds it to the DailySales rollups. The charge and the
+	 * removal are conditional in SQL; if either doesn't happen, the caller
+	 * must roll back whatever was written.
+	 * @param transaction The new transaction.
+	 * @param row The row the item is taken from.
+	 * @return The transaction's new id, or -1 if the customer can't afford it
+	 * or the slot is empty.
+	 **/
+	private int writePurchase(Transaction transaction, Row row) throws SQLException, BadStateException
+	{
+		Customer customer = transaction.getCustomer();
+		if (!customer.isCashCustomer()) //cash customers aren't database-backed
 		{
-			Manager returnValue = new Manager(results.getString(3), results.getString(2));
-			returnValue.setId(results.getInt(1));
-			returnSet.add(returnValue);
+			PreparedStatement debitStmt = prepare("UPDATE Customer SET money=money-? WHERE customerId=? AND money>=?");
+			debitStmt.setInt(1, transaction.getBalance());
+			debitStmt.setInt(2, customer.getId());
+			debitStmt.setInt(3, transaction.getBalance());
+			int debited = debitStmt.executeUpdate();
+			release(debitStmt);
+			if (debited != 1)
+				return -1;
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnSet;
+
+		PreparedStatement takeStmt = prepare("UPDATE VMRow SET remainingQuant=remainingQuant-1 WHERE vmRowId=? AND remainingQuant>0");
+		takeStmt.setInt(1, row.getId());
+		int taken = takeStmt.executeUpdate();
+		release(takeStmt);
+		if (taken != 1)
+			return -1;
+
+		PreparedStatement insertStmt = prepare("INSERT INTO VMTransaction(timestamp, machineId, customerId, productId, rowX, rowY, balance) VALUES(?, ?, ?, ?, ?, ?, ?)");
+		bindTransaction(insertStmt, transaction);
+		insertStmt.executeUpdate();
+		ResultSet keys = insertStmt.getGeneratedKeys();
+		keys.next();
+		int id = keys.getInt(1);
+		keys.close();
+		release(insertStmt);
+		addToSalesRollup(transaction.getTimestamp().getTimeInMillis(), transaction.getMachine().getId(), transaction.getProduct().getId(), 1, transaction.getBalance());
+		return id;
 	}
 
 	/**
-	 * Updates the given manager if it exists (determined by id) or creates it
-	 * if it does not exist.
-	 * @param manager The manager to update/create.
-	 * @throws SQLException in case of a database error
+	 * Writes a batch of queued purchases in a single database transaction
+	 * (or, when written straight away, within the caller's if one is
+	 * already under way), each within its own savepoint so that one that is turned down or fails
+	 * leaves the others alone, then tells each purchase how it went. Nothing
+	 * is reported until the whole batch has committed; if the commit fails,
+	 * every purchase in it fails.
+	 * @param batch The purchases, oldest first.
 	 **/
-	public void updateOrCreateManager(Manager manager) throws SQLException, BadStateException, BadArgumentException
+	private void writePurchases(ArrayList<PendingPurchase> batch)
 	{
-		Connection db = connect();
-		if (manager.isTempId())
+		int[] ids = new int[batch.size()];
+		Exception[] failures = new Exception[batch.size()];
+		try
 		{
-			PreparedStatement insertStmt = db.prepareStatement("INSERT INTO Manager(password, name) VALUES(?, ?)");
-			insertStmt.setString(1, manager.getPassword());
-			insertStmt.setString(2, manager.getName());
-			insertStmt.executeUpdate();
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			manager.setId(keys.getInt(1));
-			keys.close();
-			insertStmt.close();
+			Connection db = connect();
+			boolean started = beginTransaction(db);
+			boolean succeeded = false;
+			try
+			{
+				Statement savepoints = db.createStatement();
+				try
+				{
+					for (int i=0;i<batch.size();++i)
+					{
+						savepoints.execute("SAVEPOINT purchase");
+						try
+						{
+							ids[i] = writePurchase(batch.get(i).getTransaction(), batch.get(i).getRow());
+						}
+						catch (SQLException failure)
+						{
+							failures[i] = failure;
+						}
+						catch (BadStateException failure)
+						{
+							failures[i] = failure;
+						}
+						catch (RuntimeException failure) //still has to be answered, or its owner would wait forever
+						{
+							failures[i] = failure;
+						}
+						if (failures[i] != null || ids[i] < 0)
+							savepoints.execute("ROLLBACK TO purchase");
+						savepoints.execute("RELEASE purchase");
+					}
+				}
+				finally
+				{
+					savepoints.close();
+				}
+				succeeded = true;
+			}
+			finally
+			{
+				endTransaction(db, started, succeeded);
+				closeConnection();
+			}
 		}
-		else
+		catch (SQLException batchFailed)
 		{
-			PreparedStatement updateStmt = db.prepareStatement("UPDATE Manager SET password=?, name=? WHERE managerId=?");
-			updateStmt.setString(1, manager.getPassword());
-			updateStmt.setString(2, manager.getName());
-			updateStmt.setInt(3, manager.getId());
-			updateStmt.executeUpdate();
-			updateStmt.close();
+			for (PendingPurchase pending : batch)
+				pending.fail(batchFailed);
+			return;
+		}
+
+		for (int i=0;i<batch.size();++i)
+		{
+			if (failures[i] instanceof SQLException)
+				batch.get(i).fail((SQLException)failures[i]);
+			else if (failures[i] != null)
+				batch.get(i).fail(new SQLException("Purchase could not be written", failures[i]));
+			else if (ids[i] < 0)
+				batch.get(i).decline();
+			else
+				batch.get(i).complete(ids[i]);
 		}
-		closeConnection();
 	}
 
 	/**
-	 * Fetches the transaction with the given id. I have no idea why you would
-	 * ever use this function but it exists just in case.
-	 * @param id The id of the transaction to fetch
-	 * @return The transaction with the given id or null if no such transaction
-	 * exists.
-	 * @throws SQLException in case of a database error
+	 * Binds the fields of a transaction to the first seven parameters of an
+	 * insert or update statement, in the order timestamp, machineId,
+	 * customerId, productId, rowX, rowY, balance.
+	 * @param stmt The statement to bind the parameters of.
+	 * @param transaction The transaction to bind.
 	 **/
-	public Transaction getTransactionById(int id) throws SQLException, BadStateException, BadArgumentException
+	private void bindTransaction(PreparedStatement stmt, Transaction transaction) throws SQLException, BadStateException
 	{
-		Connection db = connect();
-		Transaction returnValue = null;
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE transactionId=" + id;
-		ResultSet results = stmt.executeQuery(query);
-		if (results.next())
-		{
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer customer = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			returnValue = new Transaction(time, machine, customer, product, row, balance);
-			returnValue.setId(id);
-			
-		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return returnValue;
+		stmt.setLong(1, transaction.getTimestamp().getTimeInMillis());
+		stmt.setInt(2, transaction.getMachine().getId());
+		stmt.setInt(3, transaction.getCustomer().getId());
+		stmt.setInt(4, transaction.getProduct().getId());
+		stmt.setInt(5, transaction.getRow().first);
+		stmt.setInt(6, transaction.getRow().second);
+		stmt.setInt(7, transaction.getBalance());
 	}
 
 	/**
-	 * Fetches all of the transactions that occurred at the given vending
-	 * machine.
-	 * @param vm The vending machine at which the transactions you desire
-	 * occurred.
-	 * @return An ArrayList containing the transactions that occurred at the
-	 * given vending machine.
-	 * @throws SQLException in case of a database error
+	 * Runs a query for transactions and builds the results. The query must
+	 * select transactionId, timestamp, machineId, customerId, productId, rowX,
+	 * rowY and balance, in that order. Rather than loading the machine,
+	 * customer and item of every row separately, the distinct ones are loaded
+	 * in batches and shared by all of the transactions that refer to them,
+	 * within a session so that an item sold is the same instance as the one
+	 * stocked in its machine.
+	 * @param stmt The query, with its parameters already bound. It is
+	 * released once its results have been read.
+	 * @return An ArrayList of the transactions, in the order they were
+	 * selected.
 	 **/
-	public ArrayList<Transaction> getTransactionsByVendingMachine(VendingMachine vm) throws SQLException, BadStateException, BadArgumentException
+	private ArrayList<Transaction> loadTransactions(PreparedStatement stmt) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE machineId=" + vm.getId();
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
-		{
-			int id = results.getInt(1);
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer customer = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			Transaction transaction = new Transaction(time, machine, customer, product, row, balance);
-			transaction.setId(id);
-			transactions.add(transaction);
-		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return transactions;
+		return buildTransactions(readTransactionRows(stmt));
 	}
 
 	/**
-	 * Fetches all of the transactions that occurred at the given zip code
-	 * @param zipCode The zip code at which the desired transactions occurred.
-	 * @return An ArrayList containing the transactions that occurred at the
-	 * given zip code.
-	 * @throws SQLException in case of a database error
+	 * Runs a query for transactions and copies the columns of every row,
+	 * without building any of them.
+	 * @param stmt The query, with its parameters already bound, selecting the
+	 * same columns as for loadTransactions(). It is released once its
+	 * results have been read.
+	 * @return The columns of each row, as by readTransactionFields().
 	 **/
-	public ArrayList<Transaction> getTransactionsByZipCode(int zipCode) throws SQLException, BadStateException, BadArgumentException
+	private LinkedList<long[]> readTransactionRows(PreparedStatement stmt) throws SQLException
 	{
-		Connection db = connect();
-		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, VMTransaction.machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction JOIN VendingMachine JOIN Location ON VMTransaction.machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId WHERE Location.zipCode=" + zipCode;
-		ResultSet results = stmt.executeQuery(query);
+		LinkedList<long[]> raw = new LinkedList<long[]>();
+		ResultSet results = stmt.executeQuery();
 		while (results.next())
-		{
-			int id = results.getInt(1);
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer customer = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			Transaction transaction = new Transaction(time, machine, customer, product, row, balance);
-			transaction.setId(id);
-			transactions.add(transaction);
-		}
+			raw.add(readTransactionFields(results));
 		results.close();
-		stmt.close();
-		closeConnection();
-		return transactions;
+		release(stmt);
+		return raw;
 	}
 
 	/**
-	 * Fetches all of the transactions that occurred in the given state
-	 * @param state The state in which the desired transactions occurred.
-	 * @return An ArrayList containing the transactions that occurred in the
-	 * given state.
-	 * @throws SQLException in case of a database error
+	 * Runs a query for transactions against every archived month and then
+	 * the live transactions, building the results as by loadTransactions().
+	 * All of them are built within one session, so the transactions of
+	 * different months share their machines, customers and items.
+	 * @param sql The query, selecting FROM VMTransaction the same columns as
+	 * for loadTransactions().
+	 * @param params The parameters of the query.
+	 * @return An ArrayList of the transactions, the oldest months' first.
 	 **/
-	public ArrayList<Transaction> getTransactionsByState(String state) throws SQLException, BadStateException, BadArgumentException
+	private ArrayList<Transaction> loadTransactionsEverywhere(String sql, Object... params) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
 		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, VMTransaction.machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction JOIN VendingMachine JOIN Location ON VMTransaction.machineId = VendingMachine.machineId AND VendingMachine.locationId = Location.locationId WHERE Location.state=\"" + state + "\"";
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
+		lockArchiveForReading();
+		beginSession();
+		try
 		{
-			int id = results.getInt(1);
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer customer = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			Transaction transaction = new Transaction(time, machine, customer, product, row, balance);
-			transaction.setId(id);
-			transactions.add(transaction);
+			for (ArchivePartition partition : partitionsFor(Long.MIN_VALUE, Long.MAX_VALUE))
+			{
+				int reading = connectToPartition(partition);
+				try
+				{
+					PreparedStatement stmt = prepare(partition == null ? sql : partition.retarget(sql));
+					bindSelection(stmt, 1, params);
+					transactions.addAll(loadTransactions(stmt));
+				}
+				finally
+				{
+					closeReading(reading);
+				}
+			}
+		}
+		finally
+		{
+			endSession();
+			archiveLock.readLock().unlock();
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
 		return transactions;
 	}
 
 	/**
-	 * Fetches all of the transactions the given customer has made.
-	 * @param customer The customer that performed the transactions you desire.
-	 * @return An ArrayList containing the transactions the given customer
-	 * performed.
-	 * @throws SQLException in case of a database error
+	 * Runs a query for transactions against every archived month and then
+	 * the live transactions, streaming each to a visitor as by
+	 * streamTransactions().
+	 * @param sql The query, selecting FROM VMTransaction the same columns as
+	 * for loadTransactions().
+	 * @param visitor The visitor to hand each transaction to.
+	 * @param params The parameters of the query.
+	 * @return The number of transactions visited.
 	 **/
-	public ArrayList<Transaction> getTransactionsByCustomer(Customer customer) throws SQLException, BadStateException, BadArgumentException
+	private int streamTransactionsEverywhere(String sql, TransactionVisitor visitor, Object... params) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE customerId=" + customer.getId();
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
+		int visited = 0;
+		lockArchiveForReading();
+		try
 		{
-			int id = results.getInt(1);
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer cust = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			Transaction transaction = new Transaction(time, machine, cust, product, row, balance);
-			transaction.setId(id);
-			transactions.add(transaction);
+			for (ArchivePartition partition : partitionsFor(Long.MIN_VALUE, Long.MAX_VALUE))
+			{
+				int reading = connectToPartition(partition);
+				try
+				{
+					PreparedStatement stmt = prepare(partition == null ? sql : partition.retarget(sql));
+					bindSelection(stmt, 1, params);
+					visited += streamTransactions(stmt, visitor);
+				}
+				finally
+				{
+					closeReading(reading);
+				}
+			}
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return transactions;
+		finally
+		{
+			archiveLock.readLock().unlock();
+		}
+		return visited;
 	}
 
 	/**
-	 * Fetches all of the transactions the given customer has made.
-	 * @param item The item that was purchased in the transactions you
-	 * desire.
-	 * @return An ArrayList containing the transactions the given customer
-	 * performed.
-	 * @throws SQLException in case of a database error
+	 * Runs a query for transactions and hands them to a visitor as they are
+	 * read. Rows are pulled from the results getFetchSize() at a time, and
+	 * each batch is built as by loadTransactions() and visited before the next
+	 * is read, so only one batch is ever in memory. The results are closed
+	 * and the statement released even if the visitor throws.
+	 * @param stmt The query, with its parameters already bound, selecting the
+	 * same columns as for loadTransactions().
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
 	 **/
-	public ArrayList<Transaction> getTransactionsByFoodItem(FoodItem item) throws SQLException, BadStateException, BadArgumentException
+	private int streamTransactions(PreparedStatement stmt, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction WHERE productId=" + item.getId();
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
+		int batchSize = fetchSize;
+		int visited = 0;
+		stmt.setFetchSize(batchSize);
+		ResultSet results = stmt.executeQuery();
+		try
 		{
-			int id = results.getInt(1);
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer cust = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			Transaction transaction = new Transaction(time, machine, cust, product, row, balance);
-			transaction.setId(id);
-			transactions.add(transaction);
+			boolean more = true;
+			while (more)
+			{
+				LinkedList<long[]> raw = new LinkedList<long[]>();
+				while (raw.size() < batchSize && (more = results.next()))
+					raw.add(readTransactionFields(results));
+				for (Transaction transaction : buildTransactions(raw))
+				{
+					visitor.visit(transaction);
+					++visited;
+				}
+			}
 		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return transactions;
+		finally
+		{
+			results.close();
+			release(stmt);
+		}
+		return visited;
 	}
 
 	/**
-	 * Fetches all of the transactions that have ever occurred.
-	 * @return An ArrayList of all of the transactions.
-	 * @throws SQLException in case of a database error
+	 * Copies the columns of the current row of a query for transactions.
+	 * @param results The results, positioned at the transaction's row.
+	 * @return The transactionId, timestamp, machineId, customerId, productId,
+	 * rowX, rowY and balance, in that order.
 	 **/
-	public ArrayList<Transaction> getTransactionsAll() throws SQLException, BadStateException, BadArgumentException
+	private static long[] readTransactionFields(ResultSet results) throws SQLException
 	{
-		Connection db = connect();
-		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		Statement stmt = db.createStatement();
-		String query = "SELECT transactionId, timestamp, machineId, customerId, productId, rowX, rowY, balance FROM VMTransaction";
-		ResultSet results = stmt.executeQuery(query);
-		while (results.next())
-		{
-			int id = results.getInt(1);
-			GregorianCalendar time = new GregorianCalendar();
-			time.setTimeInMillis(results.getLong(2));
-			VendingMachine machine = getVendingMachineById(results.getInt(3));
-			Customer customer = getCustomerById(results.getInt(4));
-			FoodItem product = getFoodItemById(results.getInt(5));
-			Pair<Integer, Integer> row = new Pair<Integer, Integer>(results.getInt(6), results.getInt(7));
-			int balance = results.getInt(8);
-			Transaction transaction = new Transaction(time, machine, customer, product, row, balance);
-			transaction.setId(id);
-			transactions.add(transaction);
-		}
-		results.close();
-		stmt.close();
-		closeConnection();
-		return transactions;
+		long[] fields = new long[8];
+		for (int col=0;col<fields.length;++col)
+			fields[col] = results.getLong(col+1);
+		return fields;
 	}
 
 	/**
-	 * Updates the given transaction if it exists (determined by id) or creates
-	 * it if it doesn't exist.
-	 * @param transaction The transaction to create/update.
-	 * @throws SQLException in case of a database error
+	 * Builds transactions from their columns, loading the distinct machines,
+	 * customers and items they refer to in batches and within one session.
+	 * @param raw The columns of each transaction, as read by
+	 * readTransactionFields().
+	 * @return An ArrayList of the transactions, in the same order.
 	 **/
-	public void updateOrCreateTransaction(Transaction transaction) throws SQLException, BadStateException, BadArgumentException
+	private ArrayList<Transaction> buildTransactions(LinkedList<long[]> raw) throws SQLException, BadStateException, BadArgumentException
 	{
-		Connection db = connect();
-		if(!isVendingMachineValid(transaction.getMachine())) {
-			throw new BadArgumentException("VendingMachine in Transaction is not in database, but it must be before the Transaction can be added");
-		}
-		if(!isCustomerValid(transaction.getCustomer())) {
-			throw new BadArgumentException("Customer in Transaction is not in database, but it must be before the Transaction can be added");
-		}
-		if(!isFoodItemValid(transaction.getProduct())) {
-			throw new BadArgumentException("FoodItem in Transaction is not in database, but it must be before the Transaction can be added");
+		LinkedHashSet<Integer> machineIds = new LinkedHashSet<Integer>();
+		LinkedHashSet<Integer> customerIds = new LinkedHashSet<Integer>();
+		LinkedHashSet<Integer> productIds = new LinkedHashSet<Integer>();
+		for (long[] fields : raw)
+		{
+			machineIds.add((int)fields[2]);
+			customerIds.add((int)fields[3]);
+			productIds.add((int)fields[4]);
 		}
 
-
-		if (transaction.isTempId())
+		beginSession();
+		try
 		{
-			String query = String.format("INSERT INTO VMTransaction(timestamp, machineId, customerId, productId, rowX, rowY, balance) VALUES(%d, %d, %d, %d, %d, %d, %d)", transaction.getTimestamp().getTimeInMillis(), transaction.getMachine().getId(), transaction.getCustomer().getId(), transaction.getProduct().getId(), transaction.getRow().first, transaction.getRow().second, transaction.getBalance());
-			Statement insertStmt = db.createStatement();
-			insertStmt.executeUpdate(query);
-			ResultSet keys = insertStmt.getGeneratedKeys();
-			keys.next();
-			transaction.setId(keys.getInt(1));
-			keys.close();
-			insertStmt.close();
+			IdentityMap session = session();
+			HashMap<Integer, VendingMachine> machines = getVendingMachinesByIds(machineIds);
+			HashMap<Integer, Customer> customers = getCustomersByIds(customerIds);
+			HashMap<Integer, FoodItem> products = getFoodItemsByIds(productIds);
+
+			ArrayList<Transaction> transactions = new ArrayList<Transaction>(raw.size());
+			for (long[] fields : raw)
+			{
+				Transaction transaction = session.get(Transaction.class, (int)fields[0]);
+				if (transaction == null)
+				{
+					GregorianCalendar time = new GregorianCalendar();
+					time.setTimeInMillis(fields[1]);
+					Pair<Integer, Integer> row = new Pair<Integer, Integer>((int)fields[5], (int)fields[6]);
+					transaction = new Transaction(time, machines.get((int)fields[2]), customers.get((int)fields[3]), products.get((int)fields[4]), row, (int)fields[7]);
+					transaction.setId((int)fields[0]);
+					session.put(transaction);
+				}
+				transactions.add(transaction);
+			}
+			return transactions;
 		}
-		else
+		finally
 		{
-			String query = String.format("UPDATE VMTransaction SET timestamp=%d, machineId=%d, customerId=%d, productId=%d, rowX=%d, rowY=%d, balance=%d WHERE transactionId=%d", transaction.getTimestamp().getTimeInMillis(), transaction.getMachine().getId(), transaction.getCustomer().getId(), transaction.getProduct().getId(), transaction.getRow().first, transaction.getRow().second, transaction.getBalance(), transaction.getId());
-			Statement updateStmt = db.createStatement();
-			updateStmt.executeUpdate(query);
-			updateStmt.close();
+			endSession();
 		}
-		closeConnection();
 	}
 }
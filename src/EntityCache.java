@@ -0,0 +1,169 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe cache of rarely changing model objects, keyed by their primary keys.
+ * The cache only ever hands out and stores copies, so callers remain free to modify the instances they get without affecting anyone else.
+ * Once full, the least recently used entry is evicted to make room for each new one.
+ */
+public abstract class EntityCache<T extends ModelBase>
+{
+	/** Default maximum number of objects kept. */
+	public static final int DEFAULT_CAPACITY=256;
+
+	/** The maximum number of objects kept. */
+	private final int capacity;
+
+	/** Cached copies keyed by their primary keys, in least-recently-used order. */
+	private final LinkedHashMap<Integer, T> entries;
+
+	/** Number of lookups that found their object. */
+	private long hits;
+
+	/** Number of lookups that didn't find their object. */
+	private long misses;
+
+	/** Number of objects pushed out to make room for others. */
+	private long evictions;
+
+	/**
+	 * Creates a cache holding at most <tt>DEFAULT_CAPACITY</tt> objects.
+	 */
+	public EntityCache()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a cache holding at most <tt>capacity</tt> objects.
+	 * @param capacity the maximum number of objects to keep
+	 * @throws IllegalArgumentException if the <tt>capacity</tt> is not positive
+	 */
+	public EntityCache(int capacity)
+	{
+		if(capacity<=0)
+			throw new IllegalArgumentException("Capacity must be positive");
+
+		this.capacity=capacity;
+		entries=new LinkedHashMap<Integer, T>(16, 0.75f, true);
+		hits=0;
+		misses=0;
+		evictions=0;
+	}
+
+	/**
+	 * Looks up the object with the given primary key.
+	 * @param id the primary key
+	 * @return a fresh copy of the object, or <tt>null</tt> if it isn't cached
+	 */
+	public synchronized T get(int id)
+	{
+		T cached=entries.get(id);
+		if(cached==null)
+		{
+			++misses;
+			return null;
+		}
+
+		++hits;
+		return copy(cached);
+	}
+
+	/**
+	 * Stores a copy of an object, replacing any older copy with the same primary key.
+	 * @param entity an object that has been assigned a primary key
+	 * @throws BadStateException if the object has never been assigned a primary key
+	 */
+	public synchronized void put(T entity) throws BadStateException
+	{
+		entries.put(entity.getId(), copy(entity));
+
+		Iterator<Map.Entry<Integer, T>> eldest=entries.entrySet().iterator();
+		while(entries.size()>capacity && eldest.hasNext())
+		{
+			eldest.next();
+			eldest.remove();
+			++evictions;
+		}
+	}
+
+	/**
+	 * Forgets the object with the given primary key, if it is cached.
+	 * @param id the primary key
+	 */
+	public synchronized void invalidate(int id)
+	{
+		entries.remove(id);
+	}
+
+	/**
+	 * Forgets every object.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of lookups that found their object
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that didn't find their object
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the proportion of lookups that found their object, or 0 if there have been none
+	 */
+	public synchronized double getHitRate()
+	{
+		return hits+misses==0 ? 0 : (double)hits/(hits+misses);
+	}
+
+	/**
+	 * @return the number of objects pushed out to make room for others
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return the number of objects currently cached
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return the maximum number of objects kept
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%d/%d cached, %.1f%% hit rate, %d evicted", entries.size(), capacity, getHitRate()*100, evictions);
+	}
+
+	/**
+	 * Makes a copy of an object that shares no modifiable state with the original.
+	 * @param entity the object to copy
+	 * @return the copy
+	 */
+	protected abstract T copy(T entity);
+}
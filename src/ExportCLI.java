@@ -0,0 +1,105 @@
+import java.io.FileOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.GregorianCalendar;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Command-line tool for dumping transactions or daily sales totals to a
+ * file, e.g. for the nightly finance exports. Usage:
+ * ExportCLI kind format file [from [to]]
+ * where kind is transactions or daily_sales, format is csv or ndjson, and
+ * from and to are dates (yyyy-MM-dd, local time) bounding the export, to
+ * being exclusive. A file name ending in .gz is compressed with gzip.
+ **/
+public class ExportCLI
+{
+	/** Size in bytes of the buffer in front of the gzip compressor. */
+	private static final int GZIP_BUFFER_SIZE = 65536;
+
+	/**
+	 * Runs the export described by the arguments
+	 * @param args The kind of records, format, path of the file, and
+	 * optionally the dates bounding the export
+	 **/
+	public static void main(String[] args)
+	{
+		ExportKind kind = null;
+		ExportWriter.Format format = null;
+		GregorianCalendar from = null;
+		GregorianCalendar to = null;
+		if (args.length >= 3 && args.length <= 5)
+		{
+			for (ExportKind candidate : ExportKind.values())
+				if (candidate.name().equalsIgnoreCase(args[0]))
+					kind = candidate;
+			for (ExportWriter.Format candidate : ExportWriter.Format.values())
+				if (candidate.name().equalsIgnoreCase(args[1]))
+					format = candidate;
+			try
+			{
+				if (args.length > 3)
+					from = parseDate(args[3]);
+				if (args.length > 4)
+					to = parseDate(args[4]);
+			}
+			catch (ParseException badDate)
+			{
+				kind = null;
+			}
+		}
+		if (kind == null || format == null)
+		{
+			System.err.println("Usage: ExportCLI kind format file [from [to]]");
+			System.err.println("  kind: transactions or daily_sales");
+			System.err.println("  format: csv or ndjson");
+			System.err.println("  from, to: dates as yyyy-MM-dd; to is exclusive");
+			System.err.println("  a file name ending in .gz is compressed");
+			System.exit(1);
+		}
+
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.REPORTING);
+		StorageEngine db = Storage.getEngine();
+		try
+		{
+			WritableByteChannel channel;
+			if (args[2].endsWith(".gz"))
+				channel = Channels.newChannel(new GZIPOutputStream(new FileOutputStream(args[2]), GZIP_BUFFER_SIZE));
+			else
+				channel = new FileOutputStream(args[2]).getChannel();
+			ExportWriter out = new ExportWriter(channel, format, kind.getColumns());
+			long started = System.currentTimeMillis();
+			long written;
+			try
+			{
+				written = db.export(kind, from, to, out);
+			}
+			finally
+			{
+				out.close();
+			}
+			System.out.printf("%d exported in %.1fs\n", written, (System.currentTimeMillis() - started) / 1000.0);
+		}
+		catch (Exception failure)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.FATAL, failure);
+		}
+	}
+
+	/**
+	 * Reads a date given on the command line.
+	 * @param date The date, as yyyy-MM-dd
+	 * @return The start of that day, in local time
+	 * @throws ParseException if the date is malformed
+	 **/
+	private static GregorianCalendar parseDate(String date) throws ParseException
+	{
+		SimpleDateFormat parser = new SimpleDateFormat("yyyy-MM-dd");
+		parser.setLenient(false);
+		GregorianCalendar day = new GregorianCalendar();
+		day.setTime(parser.parse(date));
+		return day;
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * The kinds of record that can be exported, each selected by a time range.
+ **/
+public enum ExportKind
+{
+	/** Every sale, with where it was made and the name and current price of what was sold. */
+	TRANSACTIONS("transactionId", "timestamp", "time", "machineId", "zipCode", "state", "customerId", "productId", "itemName", "itemPrice", "rowX", "rowY", "balance"),
+
+	/** Units sold and revenue taken per day, machine and item, with where the machine is and what the item is called. */
+	DAILY_SALES("day", "date", "machineId", "zipCode", "state", "productId", "itemName", "units", "revenue");
+
+	/** The names of the columns of each record. */
+	private final String[] columns;
+
+	/**
+	 * @param columns the names of the columns of each record
+	 */
+	private ExportKind(String... columns)
+	{
+		this.columns=columns;
+	}
+
+	/**
+	 * @return the names of the columns of each exported record, in order
+	 */
+	public String[] getColumns()
+	{
+		return columns.clone();
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+
+/**
+ * Writes records one field at a time to a channel, as either comma-separated values or newline-delimited JSON objects.
+ * Text is encoded as UTF-8 straight into a reusable buffer, which is only handed to the channel once full, so the cost of writing a record doesn't depend on how many came before it.
+ * Numbers are written bare and everything else as text; <tt>null</tt> becomes an empty CSV field or a JSON <tt>null</tt>.
+ */
+public class ExportWriter
+{
+	/** The formats records may be written in. */
+	public static enum Format
+	{
+		/** Comma-separated values, headed by the column names. */
+		CSV,
+
+		/** One JSON object per line, keyed by the column names. */
+		NDJSON
+	}
+
+	/** Size in bytes of the output buffer. */
+	private static final int BUFFER_SIZE=65536;
+
+	/** Where the output goes. */
+	private final WritableByteChannel out;
+
+	/** The format of the output. */
+	private final Format format;
+
+	/** The names of the columns. */
+	private final String[] columns;
+
+	/** The text of the record being written. */
+	private final StringBuilder record;
+
+	/** Turns text into UTF-8. */
+	private final CharsetEncoder encoder;
+
+	/** Encoded output not yet handed to the channel. */
+	private final ByteBuffer buffer;
+
+	/** The number of fields written to the current record. */
+	private int field;
+
+	/** The number of records completed. */
+	private long records;
+
+	/**
+	 * Creates a writer. For CSV, the header is written ahead of the first record.
+	 * @param out where the output goes
+	 * @param format the format of the output
+	 * @param columns the names of the columns
+	 */
+	public ExportWriter(WritableByteChannel out, Format format, String[] columns)
+	{
+		this.out=out;
+		this.format=format;
+		this.columns=columns.clone();
+		record=new StringBuilder(256);
+		encoder=Charset.forName("UTF-8").newEncoder();
+		buffer=ByteBuffer.allocateDirect(BUFFER_SIZE);
+		field=0;
+		records=0;
+
+		if(format==Format.CSV)
+		{
+			for(int column=0; column<columns.length; ++column)
+			{
+				if(column>0)
+					record.append(',');
+				appendCsv(columns[column]);
+			}
+			record.append('\n');
+		}
+	}
+
+	/**
+	 * Writes the next field of the current record.
+	 * @param value the field's value, which may be <tt>null</tt>
+	 * @throws IllegalStateException if the record already has a value for every column
+	 * @throws IOException if the output could not be written
+	 */
+	public void writeField(Object value) throws IOException
+	{
+		if(field==columns.length)
+			throw new IllegalStateException("Record already has "+columns.length+" fields");
+
+		if(format==Format.CSV)
+		{
+			if(field>0)
+				record.append(',');
+			if(value instanceof Number)
+				record.append(value);
+			else if(value!=null)
+				appendCsv(value.toString());
+		}
+		else
+		{
+			record.append(field==0 ? '{' : ',');
+			appendJson(columns[field]);
+			record.append(':');
+			if(value instanceof Number)
+				record.append(value);
+			else if(value==null)
+				record.append("null");
+			else
+				appendJson(value.toString());
+		}
+		++field;
+	}
+
+	/**
+	 * Finishes the current record.
+	 * @throws IllegalStateException if the record lacks a value for some column
+	 * @throws IOException if the output could not be written
+	 */
+	public void endRecord() throws IOException
+	{
+		if(field!=columns.length)
+			throw new IllegalStateException("Record has "+field+" of "+columns.length+" fields");
+
+		if(format==Format.NDJSON)
+			record.append('}');
+		record.append('\n');
+		field=0;
+		++records;
+		encode();
+	}
+
+	/**
+	 * @return the number of records completed
+	 */
+	public long getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * Hands everything written so far to the channel.
+	 * @throws IOException if the output could not be written
+	 */
+	public void flush() throws IOException
+	{
+		encode();
+		buffer.flip();
+		while(buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Flushes the output and closes the channel. Any unfinished record is dropped.
+	 * @throws IOException if the output could not be written
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			if(field>0)
+			{
+				record.setLength(0);
+				field=0;
+			}
+			flush();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Moves the pending text into the buffer, handing the buffer to the channel whenever it fills up.
+	 * @throws IOException if the output could not be written
+	 */
+	private void encode() throws IOException
+	{
+		CharBuffer text=CharBuffer.wrap(record);
+		CoderResult result;
+		while((result=encoder.encode(text, buffer, true)).isOverflow())
+		{
+			buffer.flip();
+			while(buffer.hasRemaining())
+				out.write(buffer);
+			buffer.clear();
+		}
+		if(result.isError())
+			result.throwException();
+		encoder.reset();
+		record.setLength(0);
+	}
+
+	/**
+	 * Appends a CSV field, quoting it if it contains anything that would otherwise be misread.
+	 * @param text the field
+	 */
+	private void appendCsv(String text)
+	{
+		boolean quote=false;
+		for(int at=0; at<text.length() && !quote; ++at)
+		{
+			char c=text.charAt(at);
+			quote=c==',' || c=='"' || c=='\n' || c=='\r';
+		}
+		if(!quote)
+		{
+			record.append(text);
+			return;
+		}
+
+		record.append('"');
+		for(int at=0; at<text.length(); ++at)
+		{
+			char c=text.charAt(at);
+			if(c=='"')
+				record.append('"');
+			record.append(c);
+		}
+		record.append('"');
+	}
+
+	/**
+	 * Appends a JSON string.
+	 * @param text the string's contents
+	 */
+	private void appendJson(String text)
+	{
+		record.append('"');
+		for(int at=0; at<text.length(); ++at)
+		{
+			char c=text.charAt(at);
+			switch(c)
+			{
+				case '"':
+					record.append("\\\"");
+					break;
+				case '\\':
+					record.append("\\\\");
+					break;
+				case '\n':
+					record.append("\\n");
+					break;
+				case '\r':
+					record.append("\\r");
+					break;
+				case '\t':
+					record.append("\\t");
+					break;
+				default:
+					if(c<0x20)
+						record.append(String.format("\\u%04x", (int)c));
+					else
+						record.append(c);
+			}
+		}
+		record.append('"');
+	}
+}
@@ -94,6 +94,7 @@ public class FoodItem extends ModelBase {
 			throw new BadArgumentException("Name must not be null");
 		
 		this.name = name;
+		markDirty("name");
 	}
 
 	/**
@@ -106,6 +107,7 @@ public class FoodItem extends ModelBase {
 			throw new BadArgumentException("Price must not be negative");
 		
 		this.price = price;
+		markDirty("price");
 	}
 
 	/**
@@ -118,6 +120,7 @@ public class FoodItem extends ModelBase {
 			throw new BadArgumentException("Fresh length must be positive");
 		
 		this.freshLength = freshLength;
+		markDirty("freshLength");
 	}
 
 	/**
@@ -126,6 +129,7 @@ public class FoodItem extends ModelBase {
 	public void makeActive(boolean active)
 	{
 		this.active=active;
+		markDirty("active");
 	}
 
 	/**
@@ -136,7 +140,9 @@ public class FoodItem extends ModelBase {
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof FoodItem))
+		if(this==another)
+			return true;
+		else if(!(another instanceof FoodItem))
 			return false;
 		FoodItem other=(FoodItem)another;
 		
@@ -0,0 +1,92 @@
+/**
+ * The outcome of a garbage collection: how many layouts and rows no
+ * machine could reach any more were deleted, and how many pages of the
+ * database file were given back to the file system.
+ **/
+public class GarbageReport
+{
+	/** Number of layouts deleted because no machine used them. */
+	private final int layouts;
+
+	/** Number of rows deleted because no layout held them. */
+	private final int rows;
+
+	/** Number of free pages trimmed from the end of the database file. */
+	private final int pages;
+
+	/** Number of free pages left in the file for a later collection. */
+	private final int pagesLeft;
+
+	/** Whether no pages could be trimmed because the database was busy. */
+	private final boolean deferred;
+
+	/**
+	 * Creates a report.
+	 * @param layouts Number of layouts deleted.
+	 * @param rows Number of rows deleted.
+	 * @param pages Number of free pages trimmed from the file.
+	 * @param pagesLeft Number of free pages left in the file.
+	 * @param deferred Whether no pages could be trimmed because the
+	 * database was busy.
+	 **/
+	public GarbageReport(int layouts, int rows, int pages, int pagesLeft, boolean deferred)
+	{
+		this.layouts = layouts;
+		this.rows = rows;
+		this.pages = pages;
+		this.pagesLeft = pagesLeft;
+		this.deferred = deferred;
+	}
+
+	/**
+	 * @return Number of layouts deleted because no machine used them.
+	 **/
+	public int getLayouts()
+	{
+		return layouts;
+	}
+
+	/**
+	 * @return Number of rows deleted because no layout held them.
+	 **/
+	public int getRows()
+	{
+		return rows;
+	}
+
+	/**
+	 * @return Number of free pages trimmed from the end of the database file.
+	 **/
+	public int getPages()
+	{
+		return pages;
+	}
+
+	/**
+	 * @return Number of free pages left in the file for a later collection.
+	 **/
+	public int getPagesLeft()
+	{
+		return pagesLeft;
+	}
+
+	/**
+	 * @return Whether no pages could be trimmed because other connections
+	 * were using the database while the file was to be converted to
+	 * incremental vacuuming; collecting again later will try again.
+	 **/
+	public boolean isDeferred()
+	{
+		return deferred;
+	}
+
+	/**
+	 * @return A summary of the collection.
+	 **/
+	@Override
+	public String toString()
+	{
+		String summary = String.format("%d layouts and %d rows deleted, %d pages freed (%d left)", layouts, rows, pages, pagesLeft);
+		return deferred ? summary + "; the database was busy, so try again later to free the rest" : summary;
+	}
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A bounded queue of records drained by a single background thread, which hands them on to be written in batches.
+ * Whatever arrives while one batch is being written is written together in the next, so the cost of each commit is shared by every record in it.
+ * Producers that find the queue full wait for room, so a writer that falls behind slows them down instead of letting the backlog grow without bound.
+ * Records are written in the order they were submitted.
+ */
+public abstract class GroupCommitQueue<T>
+{
+	/** The maximum number of records waiting to be written. */
+	private final int capacity;
+
+	/** The maximum number of records written together. */
+	private final int maxBatch;
+
+	/** How long the oldest waiting record may be held back for others to join its batch, in milliseconds. */
+	private final long maxDelay;
+
+	/** The records waiting to be written, oldest first. */
+	private final LinkedList<T> waiting;
+
+	/** The thread writing the records. */
+	private final Thread writer;
+
+	/** Number of records ever submitted. */
+	private long submitted;
+
+	/** Number of records ever handed to <tt>write()</tt> and finished with. */
+	private long written;
+
+	/** Number of batches written. */
+	private long batches;
+
+	/** Whether <tt>close()</tt> has been called. */
+	private boolean closed;
+
+	/**
+	 * Creates a queue and starts its writer thread.
+	 * @param name the name of the writer thread
+	 * @param capacity the maximum number of records waiting to be written
+	 * @param maxBatch the maximum number of records written together
+	 * @param maxDelay how long the oldest waiting record may be held back for others to join its batch, in milliseconds; 0 writes whatever has arrived as soon as the writer is free
+	 * @throws IllegalArgumentException if the <tt>capacity</tt> or <tt>maxBatch</tt> is not positive or the <tt>maxDelay</tt> is negative
+	 */
+	public GroupCommitQueue(String name, int capacity, int maxBatch, long maxDelay)
+	{
+		if(capacity<=0 || maxBatch<=0)
+			throw new IllegalArgumentException("Capacity and batch size must be positive");
+		if(maxDelay<0)
+			throw new IllegalArgumentException("Delay must not be negative");
+
+		this.capacity=capacity;
+		this.maxBatch=maxBatch;
+		this.maxDelay=maxDelay;
+		waiting=new LinkedList<T>();
+		submitted=0;
+		written=0;
+		batches=0;
+		closed=false;
+
+		writer=new Thread(name)
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		};
+		writer.setDaemon(true); //a shutdown hook calling close() is what lets the last records out
+		writer.start();
+	}
+
+	/**
+	 * Queues a record to be written, waiting for room if the queue is full.
+	 * @param record the record
+	 * @throws IllegalStateException if the queue has been closed
+	 * @throws InterruptedException if the thread was interrupted while waiting for room, in which case the record was not queued
+	 */
+	public synchronized void submit(T record) throws InterruptedException
+	{
+		while(!closed && waiting.size()>=capacity)
+			wait();
+		if(closed)
+			throw new IllegalStateException("Queue has been closed");
+
+		waiting.add(record);
+		++submitted;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every record submitted before this call has been written.
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public synchronized void flush() throws InterruptedException
+	{
+		long target=submitted;
+		while(written<target && writer.isAlive())
+			wait();
+	}
+
+	/**
+	 * Stops accepting records, writes those still waiting without any further delay, and stops the writer thread.
+	 * Does nothing if the queue has already been closed.
+	 * @throws InterruptedException if the thread was interrupted while waiting for the writer to finish
+	 */
+	public void close() throws InterruptedException
+	{
+		synchronized(this)
+		{
+			closed=true;
+			notifyAll();
+		}
+		if(Thread.currentThread()!=writer)
+			writer.join();
+	}
+
+	/**
+	 * @return the number of records waiting to be written
+	 */
+	public synchronized int size()
+	{
+		return waiting.size();
+	}
+
+	/**
+	 * @return the number of records written so far
+	 */
+	public synchronized long getWritten()
+	{
+		return written;
+	}
+
+	/**
+	 * @return the number of batches written so far
+	 */
+	public synchronized long getBatches()
+	{
+		return batches;
+	}
+
+	/**
+	 * @return whether <tt>close()</tt> has been called
+	 */
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * Writes batches until the queue is closed and empty.
+	 */
+	private void drain()
+	{
+		ArrayList<T> batch=new ArrayList<T>(maxBatch);
+		while(true)
+		{
+			synchronized(this)
+			{
+				try
+				{
+					while(!closed && waiting.isEmpty())
+						wait();
+					long deadline=System.currentTimeMillis()+maxDelay;
+					long remaining;
+					while(!closed && waiting.size()<maxBatch && (remaining=deadline-System.currentTimeMillis())>0)
+						wait(remaining);
+				}
+				catch(InterruptedException stop) //write what's there and carry on unless closed
+				{
+				}
+				if(closed && waiting.isEmpty())
+				{
+					notifyAll();
+					return;
+				}
+
+				while(batch.size()<maxBatch && !waiting.isEmpty())
+					batch.add(waiting.removeFirst());
+				notifyAll(); //there's room again
+			}
+
+			try
+			{
+				write(batch);
+			}
+			catch(RuntimeException bug)
+			{
+				System.err.println("ERROR: Unable to write a batch of "+batch.size()+" records");
+				bug.printStackTrace();
+			}
+
+			synchronized(this)
+			{
+				written+=batch.size();
+				++batches;
+				notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes a batch of records, typically within a single database transaction.
+	 * Called only ever on the writer thread. Any failure should be reported to whoever is waiting on the records, as nothing will be retried.
+	 * @param batch the records, oldest first
+	 */
+	protected abstract void write(ArrayList<T> batch);
+}
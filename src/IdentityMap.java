@@ -0,0 +1,113 @@
+import java.util.HashMap;
+
+/**
+ * Keeps track of the model instances built while loading from the database, so that each stored object is represented by only one instance.
+ * Within a single load scope, asking for the same primary key of the same type twice yields the very same instance instead of a fresh copy.
+ * Instances are not thread-safe; each thread should work within its own map.
+ */
+public class IdentityMap
+{
+	/** The instances seen so far, by type and then by primary key. */
+	private final HashMap<Class<?>, HashMap<Integer, ModelBase>> instances;
+
+	/** Number of enclosing scopes that have not yet been exited. */
+	private int depth;
+
+	/**
+	 * Creates an empty map.
+	 */
+	public IdentityMap()
+	{
+		instances=new HashMap<Class<?>, HashMap<Integer, ModelBase>>();
+		depth=0;
+	}
+
+	/**
+	 * Looks up the instance of the given type with the given primary key.
+	 * @param type the exact class of the instance
+	 * @param id the primary key
+	 * @return the instance, or <tt>null</tt> if none has been recorded
+	 */
+	public <T extends ModelBase> T get(Class<T> type, int id)
+	{
+		HashMap<Integer, ModelBase> ofType=instances.get(type);
+
+		return ofType==null ? null : type.cast(ofType.get(id));
+	}
+
+	/**
+	 * Determines whether an instance of the given type with the given primary key has been recorded.
+	 * @param type the exact class of the instance
+	 * @param id the primary key
+	 * @return whether it has
+	 */
+	public boolean contains(Class<? extends ModelBase> type, int id)
+	{
+		HashMap<Integer, ModelBase> ofType=instances.get(type);
+
+		return ofType!=null && ofType.containsKey(id);
+	}
+
+	/**
+	 * Records an instance, replacing any other instance of the same type with the same primary key.
+	 * @param instance an instance that has been assigned a primary key
+	 * @throws BadStateException if the instance has never been assigned a primary key
+	 */
+	public void put(ModelBase instance) throws BadStateException
+	{
+		HashMap<Integer, ModelBase> ofType=instances.get(instance.getClass());
+		if(ofType==null)
+		{
+			ofType=new HashMap<Integer, ModelBase>();
+			instances.put(instance.getClass(), ofType);
+		}
+
+		ofType.put(instance.getId(), instance);
+	}
+
+	/**
+	 * Finds the one instance that represents the same stored object as the supplied one.
+	 * If none has been recorded yet, the supplied instance is recorded and becomes the representative.
+	 * @param instance an instance that has been assigned a primary key
+	 * @return the representative instance
+	 * @throws BadStateException if the instance has never been assigned a primary key
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends ModelBase> T canonical(T instance) throws BadStateException
+	{
+		T existing=(T)get(instance.getClass(), instance.getId());
+		if(existing!=null)
+			return existing;
+
+		put(instance);
+		return instance;
+	}
+
+	/**
+	 * @return the number of instances recorded
+	 */
+	public int size()
+	{
+		int size=0;
+		for(HashMap<Integer, ModelBase> ofType : instances.values())
+			size+=ofType.size();
+		return size;
+	}
+
+	/**
+	 * Enters a (possibly nested) scope using this map.
+	 */
+	public void enter()
+	{
+		++depth;
+	}
+
+	/**
+	 * Exits a scope using this map.
+	 * @return whether that was the outermost scope, after which the map should be discarded
+	 */
+	public boolean exit()
+	{
+		return --depth<=0;
+	}
+}
@@ -0,0 +1,65 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Command-line tool for bulk importing items, customers, machines, or
+ * historical transactions from a CSV file, e.g. when onboarding a new
+ * region. Usage: ImportCLI kind file.csv
+ * where kind is one of items, customers, machines, or transactions. Each
+ * file's first line must be the header given by its kind. An interrupted
+ * import of the same file carries on where it left off when run again.
+ **/
+public class ImportCLI
+{
+	/**
+	 * Runs the import described by the arguments
+	 * @param args The kind of records and the path of the file
+	 **/
+	public static void main(String[] args)
+	{
+		ImportKind kind = null;
+		if (args.length == 2)
+		{
+			for (ImportKind candidate : ImportKind.values())
+				if (candidate.name().equalsIgnoreCase(args[0]))
+					kind = candidate;
+		}
+		if (kind == null)
+		{
+			System.err.println("Usage: ImportCLI kind file.csv");
+			for (ImportKind candidate : ImportKind.values())
+			{
+				StringBuilder header = new StringBuilder();
+				for (String column : candidate.getColumns())
+					header.append(header.length() == 0 ? "" : ",").append(column);
+				System.err.printf("  %s, with the header %s\n", candidate.name().toLowerCase(), header);
+			}
+			System.exit(1);
+		}
+
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.REPORTING);
+		StorageEngine db = Storage.getEngine();
+		try
+		{
+			Reader csv = new InputStreamReader(new FileInputStream(args[1]), "UTF-8");
+			ImportReport report;
+			try
+			{
+				report = db.bulkImport(kind, csv, new File(args[1]).getAbsolutePath());
+			}
+			finally
+			{
+				csv.close();
+			}
+			for (String error : report.getErrors())
+				System.out.println(error);
+			System.out.println(report.toString());
+		}
+		catch (Exception failure)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.FATAL, failure);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+import java.util.Set;
+
+/**
+ * The kinds of record that can be bulk imported, and the CSV columns of each.
+ **/
+public enum ImportKind
+{
+	/** Items for sale; active is true or false. */
+	ITEMS("name", "price", "freshLength", "active"),
+
+	/** Customer accounts. */
+	CUSTOMERS("name", "money"),
+
+	/** Machines, each at a new location and with a current and next layout of empty slots. */
+	MACHINES("zipCode", "state", "stockingInterval", "height", "width", "depth", "active"),
+
+	/** Historical sales; timestamp is in milliseconds since the epoch, and the ids must already be stored. */
+	TRANSACTIONS("timestamp", "machineId", "customerId", "productId", "rowX", "rowY", "balance");
+
+	/** The expected header of the CSV file. */
+	private final String[] columns;
+
+	/**
+	 * @param columns the expected header of the CSV file
+	 */
+	private ImportKind(String... columns)
+	{
+		this.columns=columns;
+	}
+
+	/**
+	 * @return the columns each CSV file of this kind must have, in order
+	 */
+	public String[] getColumns()
+	{
+		return columns.clone();
+	}
+
+	/**
+	 * Checks that a bulk import file starts with this kind's header.
+	 * @param header the file's first record, or <tt>null</tt> if it is empty
+	 * @throws BadArgumentException if the header is missing or wrong
+	 */
+	public void checkHeader(String[] header) throws BadArgumentException
+	{
+		boolean headed=header!=null && header.length==columns.length;
+		for(int col=0; headed && col<header.length; ++col)
+			headed=header[col].trim().equalsIgnoreCase(columns[col]);
+		if(!headed)
+		{
+			StringBuilder expected=new StringBuilder(columns[0]);
+			for(int col=1; col<columns.length; ++col)
+				expected.append(',').append(columns[col]);
+			throw new BadArgumentException("Expected the header "+expected);
+		}
+	}
+
+	/**
+	 * Parses and checks one record of this kind.
+	 * @param record its fields, in the order of the columns
+	 * @param machineIds the ids of every machine, for checking transactions; otherwise <tt>null</tt>
+	 * @param customerIds the ids of every customer, likewise
+	 * @param productIds the ids of every item, likewise
+	 * @return the values to store, in the order of the columns, with true and false as 1 and 0:
+	 * for items, name, price, freshLength and active;
+	 * for customers, name and money;
+	 * for machines, zipCode, state, stockingInterval, height, width, depth and active;
+	 * for transactions, a Long timestamp followed by Integers
+	 * @throws BadArgumentException if the record is invalid
+	 * @throws NumberFormatException if a numeric field isn't a number
+	 */
+	public Object[] parseRecord(String[] record, Set<Integer> machineIds, Set<Integer> customerIds, Set<Integer> productIds) throws BadArgumentException
+	{
+		switch(this)
+		{
+			case ITEMS:
+				FoodItem item=new FoodItem(record[0], Integer.parseInt(record[1].trim()), Long.parseLong(record[2].trim()), parseBoolean(record[3]));
+				return new Object[]{item.getName(), item.getPrice(), item.getFreshLength(), item.isActive() ? 1 : 0};
+			case CUSTOMERS:
+				Customer customer=new Customer(record[0], Integer.parseInt(record[1].trim()));
+				return new Object[]{customer.getName(), customer.getMoney()};
+			case MACHINES:
+				int interval=Integer.parseInt(record[2].trim());
+				if(interval<=0)
+					throw new BadArgumentException("Stocking interval must be positive");
+				VMLayout layout=new VMLayout(Integer.parseInt(record[3].trim()), Integer.parseInt(record[4].trim()), Integer.parseInt(record[5].trim()));
+				return new Object[]{Integer.parseInt(record[0].trim()), record[1], interval, layout.getRows().length, layout.getRows()[0].length, layout.getDepth(), parseBoolean(record[6]) ? 1 : 0};
+			default: //TRANSACTIONS
+				Object[] values=new Object[7];
+				values[0]=Long.parseLong(record[0].trim());
+				for(int col=1; col<values.length; ++col)
+				{
+					int value=Integer.parseInt(record[col].trim());
+					if(value<0)
+						throw new BadArgumentException(columns[col]+" cannot be negative");
+					values[col]=value;
+				}
+				if(!machineIds.contains(values[1]))
+					throw new BadArgumentException("No machine has the id "+values[1]);
+				if(!customerIds.contains(values[2]))
+					throw new BadArgumentException("No customer has the id "+values[2]);
+				if(!productIds.contains(values[3]))
+					throw new BadArgumentException("No item has the id "+values[3]);
+				return values;
+		}
+	}
+
+	/**
+	 * Parses a true/false field.
+	 * @param field the field, which may be true, false, 1, or 0
+	 * @return its value
+	 * @throws BadArgumentException if it is none of those
+	 */
+	private static boolean parseBoolean(String field) throws BadArgumentException
+	{
+		String value=field.trim();
+		if(value.equalsIgnoreCase("true") || value.equals("1"))
+			return true;
+		else if(value.equalsIgnoreCase("false") || value.equals("0"))
+			return false;
+		throw new BadArgumentException("Expected true or false but found "+field);
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+
+/**
+ * The outcome of a bulk import: how many records were imported, how many
+ * had already been imported by an earlier, interrupted run, and what was
+ * wrong with each record that was rejected.
+ **/
+public class ImportReport
+{
+	/** Number of records skipped because an earlier run had imported them. */
+	private final long resumed;
+
+	/** Number of records imported by this run. */
+	private long imported;
+
+	/** A description of each rejected record, including its line number. */
+	private final ArrayList<String> errors;
+
+	/** When the import started, in milliseconds since the epoch. */
+	private final long started;
+
+	/** How long the import took, in milliseconds, once it has finished. */
+	private long elapsed;
+
+	/**
+	 * Starts a report.
+	 * @param resumed Number of records already imported by an earlier run.
+	 **/
+	public ImportReport(long resumed)
+	{
+		this.resumed = resumed;
+		imported = 0;
+		errors = new ArrayList<String>();
+		started = System.currentTimeMillis();
+		elapsed = 0;
+	}
+
+	/**
+	 * Counts records as imported.
+	 * @param count The number of records.
+	 **/
+	public void addImported(long count)
+	{
+		imported += count;
+	}
+
+	/**
+	 * Records that a record was rejected.
+	 * @param line The line on which the record started.
+	 * @param reason What was wrong with it.
+	 **/
+	public void addError(int line, String reason)
+	{
+		errors.add("Line " + line + ": " + reason);
+	}
+
+	/**
+	 * Marks the import as finished, fixing its elapsed time.
+	 **/
+	public void finish()
+	{
+		elapsed = System.currentTimeMillis() - started;
+	}
+
+	/**
+	 * @return Number of records skipped because an earlier run had imported
+	 * them.
+	 **/
+	public long getResumed()
+	{
+		return resumed;
+	}
+
+	/**
+	 * @return Number of records imported by this run.
+	 **/
+	public long getImported()
+	{
+		return imported;
+	}
+
+	/**
+	 * @return A description of each rejected record, including its line
+	 * number.
+	 **/
+	public ArrayList<String> getErrors()
+	{
+		return errors;
+	}
+
+	/**
+	 * @return How long the import took, in milliseconds.
+	 **/
+	public long getElapsed()
+	{
+		return elapsed;
+	}
+
+	/**
+	 * @return A summary of the import.
+	 **/
+	@Override
+	public String toString()
+	{
+		return String.format("%d imported (%d already done), %d rejected, in %.1fs (%.0f per second)", imported, resumed, errors.size(), elapsed / 1000.0, elapsed == 0 ? 0.0 : imported * 1000.0 / elapsed);
+	}
+}
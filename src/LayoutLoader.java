@@ -0,0 +1,18 @@
+import java.sql.SQLException;
+
+/**
+ * Source of a vending machine's layouts for machines fetched without them,
+ * so that the layouts, with every row and item in them, are only read from
+ * the database if somebody actually looks at them.
+ **/
+public interface LayoutLoader
+{
+	/**
+	 * Gets called the first time either layout of such a machine is needed.
+	 * @param currentLayoutId The id of the machine's current layout.
+	 * @param nextLayoutId The id of the machine's next layout.
+	 * @return The current and next layouts, in that order.
+	 * @throws SQLException in case of a database error
+	 **/
+	public VMLayout[] loadLayouts(int currentLayoutId, int nextLayoutId) throws SQLException, BadStateException, BadArgumentException;
+}
@@ -73,6 +73,7 @@ public class Location extends ModelBase {
 			throw new BadArgumentException("ZIP code must not be negative");
 		
 		this.zipCode = zipCode;
+		markDirty("zipCode");
 	}
 
 	/**
@@ -85,6 +86,7 @@ public class Location extends ModelBase {
 			throw new BadArgumentException("State must not be null");
 		
 		this.state = state;
+		markDirty("state");
 	}
 
 	/**
@@ -97,6 +99,7 @@ public class Location extends ModelBase {
 			throw new BadArgumentException("Nearby businesses must not be null");
 		
 		this.nearbyBusinesses = nearbyBusinesses;
+		markDirty("nearbyBusinesses");
 	}
 
 	/**
@@ -116,7 +119,9 @@ public class Location extends ModelBase {
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof Location))
+		if(this==another)
+			return true;
+		else if(!(another instanceof Location))
 			return false;
 		Location other=(Location)another;
 		
@@ -0,0 +1,119 @@
+import java.util.GregorianCalendar;
+
+/**
+ * What a list of vending machines shows about each of them, read straight
+ * from the database without building the machine, its layouts, rows or
+ * items. Once one has been picked, the whole machine can be fetched by id.
+ **/
+public class MachineSummary
+{
+	/** The machine's id. */
+	private final int id;
+
+	/** Whether the machine is active. */
+	private final boolean active;
+
+	/** Number of days between restockings. */
+	private final int stockingInterval;
+
+	/** Zip code of the machine's location. */
+	private final int zipCode;
+
+	/** State of the machine's location. */
+	private final String state;
+
+	/** When the machine is next due to be restocked, or null if it hasn't been scheduled. */
+	private final GregorianCalendar nextVisit;
+
+	/** How full the machine's current layout is, as a percentage of its capacity. */
+	private final int fillPercentage;
+
+	/**
+	 * Creates a summary.
+	 * @param id The machine's id.
+	 * @param active Whether the machine is active.
+	 * @param stockingInterval Number of days between restockings.
+	 * @param zipCode Zip code of the machine's location.
+	 * @param state State of the machine's location.
+	 * @param nextVisit When the machine is next due to be restocked, or null.
+	 * @param fillPercentage How full the machine's current layout is, from 0
+	 * to 100.
+	 **/
+	public MachineSummary(int id, boolean active, int stockingInterval, int zipCode, String state, GregorianCalendar nextVisit, int fillPercentage)
+	{
+		this.id = id;
+		this.active = active;
+		this.stockingInterval = stockingInterval;
+		this.zipCode = zipCode;
+		this.state = state;
+		this.nextVisit = nextVisit;
+		this.fillPercentage = fillPercentage;
+	}
+
+	/**
+	 * @return The machine's id.
+	 **/
+	public int getId()
+	{
+		return id;
+	}
+
+	/**
+	 * @return Whether the machine is active.
+	 **/
+	public boolean isActive()
+	{
+		return active;
+	}
+
+	/**
+	 * @return Number of days between restockings.
+	 **/
+	public int getStockingInterval()
+	{
+		return stockingInterval;
+	}
+
+	/**
+	 * @return Zip code of the machine's location.
+	 **/
+	public int getZipCode()
+	{
+		return zipCode;
+	}
+
+	/**
+	 * @return State of the machine's location.
+	 **/
+	public String getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return When the machine is next due to be restocked, or null if it
+	 * hasn't been scheduled.
+	 **/
+	public GregorianCalendar getNextVisit()
+	{
+		return nextVisit == null ? null : (GregorianCalendar)nextVisit.clone();
+	}
+
+	/**
+	 * @return How full the machine's current layout is, from 0 to 100.
+	 **/
+	public int getFillPercentage()
+	{
+		return fillPercentage;
+	}
+
+	/**
+	 * @return A description of the machine, laid out like that of the
+	 * VendingMachine it summarizes.
+	 **/
+	@Override
+	public String toString()
+	{
+		return String.format("%" + ModelBase.ID_SPACES + "d %s vending machine in %s (%05d), restocked every %d days, %d%% full", id, active ? "Active" : "Inactive", state, zipCode, stockingInterval, fillPercentage);
+	}
+}
@@ -45,6 +45,7 @@ public class Manager extends User
 			throw new BadArgumentException("Password must not be null");
 		
 		this.password=password;
+		markDirty("password");
 	}
 
 	/**
@@ -73,7 +74,9 @@ public class Manager extends User
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof Manager))
+		if(this==another)
+			return true;
+		else if(!(another instanceof Manager))
 			return false;
 		Manager other=(Manager)another;
 		
@@ -10,7 +10,7 @@ import java.util.GregorianCalendar;
 public class ManagerAlterLayoutScreen {
 
 	/** the database */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** the current machine */
 	ArrayList<VendingMachine> machines;
@@ -21,7 +21,7 @@ public class ManagerAlterLayoutScreen {
 	public ManagerAlterLayoutScreen() {
 		try
 		{
-			machines = db.getVendingMachinesAll();
+			machines = db.getVendingMachinesAll(true); //every one's next layout is shown and changed
 		}
 		catch (Exception generalFault)
 		{
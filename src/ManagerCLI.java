@@ -9,6 +9,18 @@ import java.util.ArrayList;
  */
 public class ManagerCLI
 {
+	/**
+	 * Prints each transaction it is handed as it is read, so that long
+	 * histories needn't be loaded all at once
+	 **/
+	private static final TransactionVisitor SALE_PRINTER = new TransactionVisitor()
+	{
+		public void visit(Transaction transaction)
+		{
+			System.out.println(transaction.toString());
+		}
+	};
+
 	/**
 	 * Handles manager login stuff
 	 **/
@@ -108,6 +120,9 @@ public class ManagerCLI
 				"View transactions by machine",
 				"View transactions by purchaser",
 				"View transactions by product",
+				"View sales totals",
+				"Rebuild sales totals",
+				"Archive old transactions",
 				"Return Home");
 			switch (choice)
 			{
@@ -124,6 +139,18 @@ public class ManagerCLI
 					viewStatsProduct(screen);
 					break;
 				case 4:
+					viewStatsTotals(screen);
+					break;
+				case 5:
+					if (screen.rebuildSalesTotals())
+						System.out.println("Sales totals rebuilt.");
+					break;
+				case 6:
+					int archived = screen.archiveTransactions(CLIUtilities.promptInt("Months to keep live before this one", true));
+					if (archived >= 0)
+						System.out.println(archived + " transactions archived.");
+					break;
+				case 7:
 					return;
 			}
 		}
@@ -134,9 +161,8 @@ public class ManagerCLI
 	 **/
 	private static void viewStatsAll(ManagerReportStatsScreen screen)
 	{
-		ArrayList<Transaction> sales = screen.listSalesAll();
 		System.out.println("\n\nAll Sales:");
-		CLIUtilities.printCollection(sales);
+		screen.visitSalesAll(SALE_PRINTER);
 	}
 
 	/**
@@ -190,9 +216,8 @@ public class ManagerCLI
 	{
 		ArrayList<VendingMachine> machines = screen.listMachines();
 		VendingMachine selected = vmChooser(machines);
-		ArrayList<Transaction> sales = screen.listMachineSales(selected);
 		System.out.printf("\n\nSales from vending machine %s:\n", selected.toString());
-		CLIUtilities.printCollection(sales);
+		screen.visitMachineSales(selected, SALE_PRINTER);
 	}
 
 	/**
@@ -202,9 +227,8 @@ public class ManagerCLI
 	{
 		ArrayList<Customer> customers = screen.listCustomers();
 		Customer selected = customerChooser(customers);
-		ArrayList<Transaction> sales = screen.listCustomerSales(selected);
 		System.out.printf("\n\nSales by customer %s:\n", selected.toString());
-		CLIUtilities.printCollection(sales);
+		screen.visitCustomerSales(selected, SALE_PRINTER);
 	}
 
 	/**
@@ -214,9 +238,36 @@ public class ManagerCLI
 	{
 		ArrayList<FoodItem> items = screen.listFoodItems();
 		FoodItem selected = foodItemChooser(items);
-		ArrayList<Transaction> sales = screen.listFoodItemSales(selected);
 		System.out.printf("\n\nSales including item %s:\n", selected.toString());
-		CLIUtilities.printCollection(sales);
+		screen.visitFoodItemSales(selected, SALE_PRINTER);
+	}
+
+	/**
+	 * Displays the fleet's sales totals, broken down however the user chooses
+	 **/
+	private static void viewStatsTotals(ManagerReportStatsScreen screen)
+	{
+		ArrayList<SalesTotal> fleet = screen.listSalesTotals(SalesGrouping.FLEET, null, null);
+		if (fleet == null)
+			return;
+		System.out.printf("\n\nAll machines: %s\n", fleet.get(0).toString());
+
+		SalesGrouping[] groupings = SalesGrouping.values();
+		ArrayList<String> choices = new ArrayList<String>();
+		for (int i=1;i<groupings.length;++i)
+			choices.add("By " + groupings[i].toString().toLowerCase().replace('_', ' '));
+		SalesGrouping grouping = groupings[CLIUtilities.option(choices) + 1];
+		ArrayList<SalesTotal> totals = screen.listSalesTotals(grouping, null, null);
+		if (totals == null)
+			return;
+		boolean byTime = grouping == SalesGrouping.HOUR || grouping == SalesGrouping.DAY || grouping == SalesGrouping.WEEK;
+		for (SalesTotal total : totals)
+		{
+			if (byTime)
+				System.out.printf("%tF %<tR: %d sold for $%d.%02d\n", total.getKey(), total.getUnits(), total.getRevenue() / 100, total.getRevenue() % 100);
+			else
+				System.out.println(total.toString());
+		}
 	}
 
 	/**
@@ -384,6 +435,7 @@ public class ManagerCLI
 				"Deactivate Machine",
 				"Change Machine Location",
 				"Change Machine Stocking Interval",
+				"Reclaim Unused Storage",
 				"Return Home");
 			switch (choice)
 			{
@@ -407,6 +459,11 @@ public class ManagerCLI
 					changeMachineStockingInterval(screen);
 					break;
 				case 6:
+					GarbageReport collected = screen.reclaimStorage(Integer.MAX_VALUE);
+					if (collected != null)
+						System.out.println(collected);
+					break;
+				case 7:
 					return;
 			}
 		}
@@ -464,7 +521,15 @@ public class ManagerCLI
 			}
 		}
 		else
-			layout = new VMLayout(screen.listMachinessAll().get(0).getNextLayout());
+		{
+			VMLayout shared=screen.getSharedNextLayout();
+			if(shared==null)
+			{
+				System.out.println("An error occurred while loading the layout of the existing machines");
+				return;
+			}
+			layout=new VMLayout(shared);
+		}
 		
 		boolean success = screen.addMachine(zipcode, state, busArray, restocking, layout) != -1;
 		if (success)
@@ -765,6 +830,7 @@ public class ManagerCLI
 	 **/
 	public static void main(String[] args)
 	{
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.REPORTING);
 		login();
 		System.out.println("Goodbye!");
 	}
@@ -15,6 +15,7 @@ public class ManagerGUI
 	 **/
 	public static void main(String[] args) throws Exception
 	{
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.REPORTING);
 		GUIUtilities.setNativeLookAndFeel();
 		BaseGUI base = new BaseGUI("HCLC's Smart VM Manager");
 		ManagerLoginScreen controller = new ManagerLoginScreen();
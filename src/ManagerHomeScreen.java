@@ -11,7 +11,7 @@ public class ManagerHomeScreen {
 	private Manager manny;
 
 	/** The database. */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();	
+	private static StorageEngine db = Storage.getEngine();	
 
 	/**
 	 * The base constructor.
@@ -7,7 +7,7 @@
 public class ManagerLoginScreen {
 	
 	/** the database */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 	
 	/** 
 	 * base constructor
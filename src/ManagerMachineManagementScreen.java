@@ -9,7 +9,7 @@ import java.util.*;
 public class ManagerMachineManagementScreen {
 
 	/** the database */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** the machines */
 	private ArrayList<VendingMachine> storefronts; // are we running a bank making operation in the back or something?
@@ -46,6 +46,23 @@ public class ManagerMachineManagementScreen {
 		return vms;
 	}
 
+	/**
+	 * gets the next layout the machines share, which a new machine must
+	 * start out with as well
+	 * @return the layout, or null if there are no machines or their layouts
+	 * couldn't be loaded
+	 */
+	public VMLayout getSharedNextLayout() {
+		if ( storefronts.isEmpty() )
+			return null;
+		try {
+			return storefronts.get( 0 ).getNextLayout();
+		} catch ( IllegalStateException databaseProblem ) {
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.WARN, databaseProblem);
+			return null;
+		}
+	}
+
 	/**
 	 * @return An array list with all of the deactivated vending machines
 	 **/
@@ -193,6 +210,22 @@ public class ManagerMachineManagementScreen {
 		}
 	}
 	
+	/**
+	 * deletes the layouts and rows left behind by restocking and layout
+	 * changes, and shrinks the database file to match
+	 * @param maxSteps the most steps of DatabaseLayer.VACUUM_STEP_PAGES
+	 * pages each to trim from the file
+	 * @return what was collected, or null on failure
+	 */
+	public GarbageReport reclaimStorage( int maxSteps ) {
+		try {
+			return db.collectGarbage( maxSteps );
+		} catch ( Exception databaseProblem ) {
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.WARN, databaseProblem);
+			return null;
+		}
+	}
+
 	/**
 	 * changes a machines location
 	 * @param vm The vending machine to change
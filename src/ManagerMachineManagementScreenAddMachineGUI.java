@@ -115,7 +115,7 @@ public class ManagerMachineManagementScreenAddMachineGUI extends JPanel implemen
 			@Override
 			public boolean checkCondition()
 			{
-				return stockingIntervalField.areContentsValid() && rowField.areContentsValid() && colField.areContentsValid() && depthField.areContentsValid();
+				return stockingIntervalField.areContentsValid() && rowField.areContentsValid() && colField.areContentsValid() && depthField.areContentsValid() && (oldLayout != null || controller.listMachinessAll().size() == 0);
 			}
 		});
 
@@ -140,18 +140,25 @@ public class ManagerMachineManagementScreenAddMachineGUI extends JPanel implemen
 		{
 			// Set old layout to the first machine's next layout because all
 			// machines must have the same next layout.
-			VendingMachine machine = machines.get(0);
-			oldLayout = machine.getNextLayout();
-
-			// Get the attributes of the layout
-			int rows = oldLayout.getRows()[0].length;
-			int cols = oldLayout.getRows().length;
-			int depth = oldLayout.getDepth();
-
-			// Display the information to the manager.
-			rowField.setText(rows+"");
-			colField.setText(cols+"");
-			depthField.setText(depth+"");
+			oldLayout = controller.getSharedNextLayout();
+
+			if (oldLayout == null)
+			{
+				// Without the layout, no machine can be added that matches it.
+				master.getStatusBar().setStatus("Unable to load the layout of the existing machines", StatusBar.STATUS_BAD_COLOR);
+			}
+			else
+			{
+				// Get the attributes of the layout
+				int rows = oldLayout.getRows()[0].length;
+				int cols = oldLayout.getRows().length;
+				int depth = oldLayout.getDepth();
+
+				// Display the information to the manager.
+				rowField.setText(rows+"");
+				colField.setText(cols+"");
+				depthField.setText(depth+"");
+			}
 
 			// Don't allow him to change the information
 			rowField.setEnabled(false);
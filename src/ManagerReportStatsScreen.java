@@ -1,5 +1,6 @@
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.GregorianCalendar;
 
 /**
  * 
@@ -10,7 +11,7 @@ import java.util.ArrayList;
 public class ManagerReportStatsScreen {
 
 	/** the database */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** all the machines */
 	private ArrayList<VendingMachine> machines;
@@ -134,4 +135,154 @@ public class ManagerReportStatsScreen {
 		}
 
 	}
+
+	/**
+	 * Totals sales across all machines without loading any transactions.
+	 * @param grouping How to group the sales.
+	 * @param from The start of the period to total, or null for all time.
+	 * @param to The end of the period to total (exclusive), or null for all
+	 * time.
+	 * @return The total for each group, or null if they couldn't be read.
+	 **/
+	public ArrayList<SalesTotal> listSalesTotals(SalesGrouping grouping, GregorianCalendar from, GregorianCalendar to)
+	{
+		try
+		{
+			return db.getSalesTotals(grouping, from, to);
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.INFO, databaseProblem);
+			return null;
+		}
+	}
+
+	/**
+	 * Recomputes the daily sales totals from the full history of
+	 * transactions, for use should they ever fall out of step.
+	 * @return Whether they could be rebuilt.
+	 **/
+	public boolean rebuildSalesTotals()
+	{
+		try
+		{
+			db.rebuildSalesRollups();
+			return true;
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.WARN, databaseProblem);
+			return false;
+		}
+	}
+
+	/**
+	 * Moves the transactions from before the last few months out of the live
+	 * database and into monthly archive files. They still show up in every
+	 * listing and total.
+	 * @param monthsToKeep How many months before the current one to keep
+	 * live.
+	 * @return The number of transactions archived, or -1 if they couldn't
+	 * be.
+	 **/
+	public int archiveTransactions(int monthsToKeep)
+	{
+		GregorianCalendar cutoff = new GregorianCalendar();
+		cutoff.set(GregorianCalendar.DAY_OF_MONTH, 1);
+		cutoff.set(GregorianCalendar.HOUR_OF_DAY, 0);
+		cutoff.set(GregorianCalendar.MINUTE, 0);
+		cutoff.set(GregorianCalendar.SECOND, 0);
+		cutoff.set(GregorianCalendar.MILLISECOND, 0);
+		cutoff.add(GregorianCalendar.MONTH, -monthsToKeep);
+		try
+		{
+			return db.archiveTransactions(cutoff);
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.WARN, databaseProblem);
+			return -1;
+		}
+	}
+
+	/**
+	 * Walks all of the transactions from all VendingMachines one at a time,
+	 * so that histories too long to hold in memory can still be reported.
+	 * @param visitor Gets handed each transaction in turn.
+	 * @return Whether every transaction could be read.
+	 **/
+	public boolean visitSalesAll(TransactionVisitor visitor)
+	{
+		try
+		{
+			db.visitTransactionsAll(visitor);
+			return true;
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.INFO, databaseProblem);
+			return false;
+		}
+	}
+
+	/**
+	 * Walks the transactions made at a specific machine one at a time.
+	 * @param machine the machine in question
+	 * @param visitor Gets handed each transaction in turn.
+	 * @return Whether every transaction could be read.
+	 **/
+	public boolean visitMachineSales(VendingMachine machine, TransactionVisitor visitor)
+	{
+		try
+		{
+			db.visitTransactionsByVendingMachine(machine, visitor);
+			return true;
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.INFO, databaseProblem);
+			return false;
+		}
+	}
+
+	/**
+	 * Walks the transactions by a specific customer one at a time.
+	 * @param customer The customer that completed the transactions
+	 * @param visitor Gets handed each transaction in turn.
+	 * @return Whether every transaction could be read.
+	 **/
+	public boolean visitCustomerSales(Customer customer, TransactionVisitor visitor)
+	{
+		try
+		{
+			db.visitTransactionsByCustomer(customer, visitor);
+			return true;
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.INFO, databaseProblem);
+			return false;
+		}
+	}
+
+	/**
+	 * Walks the transactions during which a specific item was bought one at
+	 * a time.
+	 * @param item The item that was purchased
+	 * @param visitor Gets handed each transaction in turn.
+	 * @return Whether every transaction could be read.
+	 **/
+	public boolean visitFoodItemSales(FoodItem item, TransactionVisitor visitor)
+	{
+		try
+		{
+			db.visitTransactionsByFoodItem(item, visitor);
+			return true;
+		}
+		catch (Exception databaseProblem)
+		{
+			ControllerExceptionHandler.registerConcern(ControllerExceptionHandler.Verbosity.INFO, databaseProblem);
+			return false;
+		}
+	}
 }
@@ -12,7 +12,7 @@ public class ManagerStockedItemsScreen {
 	public static final int FAILURE_KEY=-1;
 
 	/** the database */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** all the fooditems */
 	private ArrayList<FoodItem> stockpile;
@@ -9,7 +9,7 @@ import java.util.*;
 public class ManagerUserAccountsScreen {
 	
 	/** the database */
-	private static DatabaseLayer db = DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** the customers */
 	private ArrayList<Customer> customers;
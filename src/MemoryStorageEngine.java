@@ -0,0 +1,2094 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A StorageEngine that keeps everything in memory, and nothing on disk, for
+ * simulations and benchmarks that should measure the controllers rather
+ * than SQLite. Each table is a concurrent hash map from id to an immutable
+ * record of what is stored, and transactions are also indexed by time and
+ * by their machine, customer and item, so that paging and reporting never
+ * scan the whole history. Writes take a lock of their own, so a machine is
+ * always saved or purchased from in one piece; loads share the lock, and
+ * build fresh model objects from the records just as DatabaseLayer builds
+ * them from rows, so callers can't change what is stored behind its back.
+ * <p>
+ * Purchases are written as they are made, since there is no disk to wait
+ * for, and archived transactions simply can't be changed any more. What
+ * is stored is lost when the program exits.
+ **/
+public class MemoryStorageEngine implements StorageEngine
+{
+	/** Orders transactions by timestamp and then id, as pages are. */
+	private static final Comparator<TransactionRecord> TIME_ORDER=new Comparator<TransactionRecord>()
+	{
+		public int compare(TransactionRecord one, TransactionRecord other)
+		{
+			if (one.timestamp != other.timestamp)
+				return one.timestamp < other.timestamp ? -1 : 1;
+			return one.id < other.id ? -1 : one.id == other.id ? 0 : 1;
+		}
+	};
+
+	/** Orders the keys of daily sales by day, then machine, then item. */
+	private static final Comparator<long[]> DAILY_ORDER=new Comparator<long[]>()
+	{
+		public int compare(long[] one, long[] other)
+		{
+			for (int col=0;col<one.length;++col)
+				if (one[col] != other[col])
+					return one[col] < other[col] ? -1 : 1;
+			return 0;
+		}
+	};
+
+	/** A stored location. */
+	private static class LocationRecord
+	{
+		/** The zip code. */
+		public final int zipCode;
+
+		/** The state. */
+		public final String state;
+
+		/** The nearby businesses, in order. */
+		public final String[] businesses;
+
+		/**
+		 * @param location The location to store, which is copied.
+		 **/
+		public LocationRecord(Location location)
+		{
+			zipCode = location.getZipCode();
+			state = location.getState();
+			businesses = location.getNearbyBusinesses().clone();
+		}
+
+		/**
+		 * @param zipCode The zip code.
+		 * @param state The state.
+		 **/
+		public LocationRecord(int zipCode, String state)
+		{
+			this.zipCode = zipCode;
+			this.state = state;
+			businesses = new String[0];
+		}
+	}
+
+	/** A stored row. */
+	private static class RowRecord
+	{
+		/** The id of the item stocked. */
+		public final int productId;
+
+		/** The expiration date, in milliseconds since the epoch. */
+		public final long expirationDate;
+
+		/** The number of items left. */
+		public final int remainingQuant;
+
+		/**
+		 * @param row The row to store, whose item must already have an id.
+		 **/
+		public RowRecord(Row row) throws BadStateException
+		{
+			this(row.getProduct().getId(), row.getExpirationDate().getTimeInMillis(), row.getRemainingQuantity());
+		}
+
+		/**
+		 * @param productId The id of the item stocked.
+		 * @param expirationDate The expiration date.
+		 * @param remainingQuant The number of items left.
+		 **/
+		public RowRecord(int productId, long expirationDate, int remainingQuant)
+		{
+			this.productId = productId;
+			this.expirationDate = expirationDate;
+			this.remainingQuant = remainingQuant;
+		}
+
+		/**
+		 * @param other Another stored row, or null.
+		 * @return Whether the two hold the same contents.
+		 **/
+		public boolean matches(RowRecord other)
+		{
+			return other != null && productId == other.productId && expirationDate == other.expirationDate && remainingQuant == other.remainingQuant;
+		}
+	}
+
+	/** A stored layout. */
+	private static class LayoutRecord
+	{
+		/** The size of each row. */
+		public final int depth;
+
+		/** The next visit, in milliseconds since the epoch, or null if there is none. */
+		public final Long nextVisit;
+
+		/** The id of the row in each slot, by y and then x, or -1 where it is empty. */
+		public final int[][] rowIds;
+
+		/**
+		 * @param depth The size of each row.
+		 * @param nextVisit The next visit, or null.
+		 * @param rowIds The id of the row in each slot.
+		 **/
+		public LayoutRecord(int depth, Long nextVisit, int[][] rowIds)
+		{
+			this.depth = depth;
+			this.nextVisit = nextVisit;
+			this.rowIds = rowIds;
+		}
+	}
+
+	/** A stored vending machine. */
+	private static class MachineRecord
+	{
+		/** Whether it is active. */
+		public final boolean active;
+
+		/** The number of days between restockings. */
+		public final int stockingInterval;
+
+		/** The id of its current layout. */
+		public final int currentLayoutId;
+
+		/** The id of its next layout. */
+		public final int nextLayoutId;
+
+		/** The id of its location. */
+		public final int locationId;
+
+		/**
+		 * @param active Whether it is active.
+		 * @param stockingInterval The number of days between restockings.
+		 * @param currentLayoutId The id of its current layout.
+		 * @param nextLayoutId The id of its next layout.
+		 * @param locationId The id of its location.
+		 **/
+		public MachineRecord(boolean active, int stockingInterval, int currentLayoutId, int nextLayoutId, int locationId)
+		{
+			this.active = active;
+			this.stockingInterval = stockingInterval;
+			this.currentLayoutId = currentLayoutId;
+			this.nextLayoutId = nextLayoutId;
+			this.locationId = locationId;
+		}
+	}
+
+	/** A stored transaction. */
+	private static class TransactionRecord
+	{
+		/** The id. */
+		public final int id;
+
+		/** The time of the sale, in milliseconds since the epoch. */
+		public final long timestamp;
+
+		/** The id of the machine sold from. */
+		public final int machineId;
+
+		/** The id of the customer who bought. */
+		public final int customerId;
+
+		/** The id of the item sold. */
+		public final int productId;
+
+		/** The x value of the slot sold from. */
+		public final int rowX;
+
+		/** The y value of the slot sold from. */
+		public final int rowY;
+
+		/** The amount paid. */
+		public final int balance;
+
+		/**
+		 * @param id The id the transaction is stored under.
+		 * @param transaction The transaction, whose machine, customer and
+		 * item must already have ids.
+		 **/
+		public TransactionRecord(int id, Transaction transaction) throws BadStateException
+		{
+			this(id, transaction.getTimestamp().getTimeInMillis(), transaction.getMachine().getId(), transaction.getCustomer().getId(), transaction.getProduct().getId(), transaction.getRow().first, transaction.getRow().second, transaction.getBalance());
+		}
+
+		/**
+		 * @param id The id.
+		 * @param timestamp The time of the sale.
+		 * @param machineId The id of the machine sold from.
+		 * @param customerId The id of the customer who bought.
+		 * @param productId The id of the item sold.
+		 * @param rowX The x value of the slot sold from.
+		 * @param rowY The y value of the slot sold from.
+		 * @param balance The amount paid.
+		 **/
+		public TransactionRecord(int id, long timestamp, int machineId, int customerId, int productId, int rowX, int rowY, int balance)
+		{
+			this.id = id;
+			this.timestamp = timestamp;
+			this.machineId = machineId;
+			this.customerId = customerId;
+			this.productId = productId;
+			this.rowX = rowX;
+			this.rowY = rowY;
+			this.balance = balance;
+		}
+
+		/**
+		 * Makes a record to look up positions in the time index with.
+		 * @param timestamp The time to look up.
+		 * @param id The id to look up at that time.
+		 * @return The record, which isn't stored anywhere.
+		 **/
+		public static TransactionRecord probe(long timestamp, int id)
+		{
+			return new TransactionRecord(id, timestamp, 0, 0, 0, 0, 0, 0);
+		}
+	}
+
+	/**
+	 * Loads the layouts of vending machines that were loaded without them,
+	 * once the first is needed, in the session the machines were loaded in,
+	 * so that rows and items are still shared with them.
+	 **/
+	private class SessionLayoutLoader implements LayoutLoader
+	{
+		/** The session the machines were loaded in. */
+		private final IdentityMap session;
+
+		/**
+		 * @param session The session the machines are being loaded in.
+		 **/
+		public SessionLayoutLoader(IdentityMap session)
+		{
+			this.session = session;
+		}
+
+		/** @inheritDoc */
+		@Override
+		public VMLayout[] loadLayouts(int currentLayoutId, int nextLayoutId) throws SQLException, BadStateException, BadArgumentException
+		{
+			synchronized (session) //other loaders from the same session may be loading on other threads
+			{
+				lock.readLock().lock();
+				try
+				{
+					return new VMLayout[] {buildLayout(session, currentLayoutId), buildLayout(session, nextLayoutId)};
+				}
+				finally
+				{
+					lock.readLock().unlock();
+				}
+			}
+		}
+	}
+
+	/** The items, by id. */
+	private final ConcurrentHashMap<Integer, FoodItem> items = new ConcurrentHashMap<Integer, FoodItem>();
+
+	/** The locations, by id. */
+	private final ConcurrentHashMap<Integer, LocationRecord> locations = new ConcurrentHashMap<Integer, LocationRecord>();
+
+	/** The layouts, by id. */
+	private final ConcurrentHashMap<Integer, LayoutRecord> layouts = new ConcurrentHashMap<Integer, LayoutRecord>();
+
+	/** The rows, by id. */
+	private final ConcurrentHashMap<Integer, RowRecord> rows = new ConcurrentHashMap<Integer, RowRecord>();
+
+	/** The vending machines, by id. */
+	private final ConcurrentHashMap<Integer, MachineRecord> machines = new ConcurrentHashMap<Integer, MachineRecord>();
+
+	/** The customers, by id. */
+	private final ConcurrentHashMap<Integer, Customer> customers = new ConcurrentHashMap<Integer, Customer>();
+
+	/** The managers, by id. */
+	private final ConcurrentHashMap<Integer, Manager> managers = new ConcurrentHashMap<Integer, Manager>();
+
+	/** The transactions, by id. */
+	private final ConcurrentHashMap<Integer, TransactionRecord> transactions = new ConcurrentHashMap<Integer, TransactionRecord>();
+
+	/** Every transaction, by timestamp and then id. */
+	private final ConcurrentSkipListSet<TransactionRecord> timeline = new ConcurrentSkipListSet<TransactionRecord>(TIME_ORDER);
+
+	/** The transactions of each machine, by timestamp and then id. */
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<TransactionRecord>> transactionsByMachine = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<TransactionRecord>>();
+
+	/** The transactions of each customer, by timestamp and then id. */
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<TransactionRecord>> transactionsByCustomer = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<TransactionRecord>>();
+
+	/** The transactions of each item, by timestamp and then id. */
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<TransactionRecord>> transactionsByProduct = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<TransactionRecord>>();
+
+	/** The ids of the machines at each location. */
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>> machinesByLocation = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>>();
+
+	/** The ids of the locations at each zip code. */
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>> locationsByZip = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>>();
+
+	/** The ids of the locations in each state. */
+	private final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> locationsByState = new ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>();
+
+	/** The ids of the transactions that have been archived. */
+	private final Set<Integer> archived = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/** How far each interrupted bulk import got, by name. */
+	private final ConcurrentHashMap<String, Long> checkpoints = new ConcurrentHashMap<String, Long>();
+
+	/** The last id handed out for each kind of record, which is never handed out again. */
+	private final AtomicInteger itemIds = new AtomicInteger(), locationIds = new AtomicInteger(), layoutIds = new AtomicInteger(), rowIds = new AtomicInteger(), machineIds = new AtomicInteger(), customerIds = new AtomicInteger(), managerIds = new AtomicInteger(), transactionIds = new AtomicInteger();
+
+	/** Held alone by writes, and shared by loads, so loads never see half a write. */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** The identity map of each thread's load session, if it has begun one. */
+	private final ThreadLocal<IdentityMap> sessions = new ThreadLocal<IdentityMap>();
+
+	/** Number of transactions built at a time when they are streamed. */
+	private volatile int fetchSize = DatabaseLayer.DEFAULT_FETCH_SIZE;
+
+	/** Whether write-behind has been turned on. */
+	private volatile boolean writeBehind = false;
+
+	/**
+	 * Creates an empty engine.
+	 **/
+	public MemoryStorageEngine()
+	{
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void nuke()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			items.clear();
+			locations.clear();
+			layouts.clear();
+			rows.clear();
+			machines.clear();
+			customers.clear();
+			managers.clear();
+			transactions.clear();
+			timeline.clear();
+			transactionsByMachine.clear();
+			transactionsByCustomer.clear();
+			transactionsByProduct.clear();
+			machinesByLocation.clear();
+			locationsByZip.clear();
+			locationsByState.clear();
+			archived.clear();
+			checkpoints.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Deletes the layouts no machine uses any more, and the rows no layout
+	 * holds any more. There is no file to give space back to, so no pages
+	 * are ever reported.
+	 * @param maxSteps Ignored, but still checked.
+	 * @return What was collected.
+	 * @throws BadArgumentException if the number of steps is negative.
+	 **/
+	@Override
+	public GarbageReport collectGarbage(int maxSteps) throws BadArgumentException
+	{
+		if (maxSteps < 0)
+			throw new BadArgumentException("The number of vacuum steps can't be negative");
+
+		lock.writeLock().lock();
+		try
+		{
+			HashSet<Integer> usedLayouts = new HashSet<Integer>();
+			for (MachineRecord machine : machines.values())
+			{
+				usedLayouts.add(machine.currentLayoutId);
+				usedLayouts.add(machine.nextLayoutId);
+			}
+			int layoutCount = layouts.size();
+			layouts.keySet().retainAll(usedLayouts);
+
+			HashSet<Integer> usedRows = new HashSet<Integer>();
+			for (LayoutRecord layout : layouts.values())
+				for (int[] line : layout.rowIds)
+					for (int rowId : line)
+						usedRows.add(rowId);
+			int rowCount = rows.size();
+			rows.keySet().retainAll(usedRows);
+			return new GarbageReport(layoutCount - layouts.size(), rowCount - rows.size(), 0, 0, false);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void beginSession()
+	{
+		IdentityMap session = sessions.get();
+		if (session == null)
+		{
+			session = new IdentityMap();
+			sessions.set(session);
+		}
+		session.enter();
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void endSession()
+	{
+		IdentityMap session = sessions.get();
+		if (session != null && session.exit())
+			sessions.remove();
+	}
+
+	/**
+	 * Fetches the identity map of the current thread's load session.
+	 * @return The identity map, or an empty one that will be thrown away if
+	 * no session has been begun.
+	 **/
+	private IdentityMap session()
+	{
+		IdentityMap session = sessions.get();
+		return session == null ? new IdentityMap() : session;
+	}
+
+	/**
+	 * Records an object that was just saved in the current thread's load
+	 * session, if there is one, so that later loads within the session
+	 * return it rather than a copy.
+	 * @param model The object saved, which must have been assigned an id.
+	 **/
+	private void remember(ModelBase model) throws BadStateException
+	{
+		IdentityMap session = sessions.get();
+		if (session != null)
+			session.put(model);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void setFetchSize(int size) throws BadArgumentException
+	{
+		if (size <= 0)
+			throw new BadArgumentException("Fetch size must be positive");
+		fetchSize = size;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public int getFetchSize()
+	{
+		return fetchSize;
+	}
+
+	/**
+	 * Lists the ids in a table in the order they were handed out.
+	 * @param table The table.
+	 * @return Its ids, in ascending order.
+	 **/
+	private static ArrayList<Integer> sortedIds(Map<Integer, ?> table)
+	{
+		ArrayList<Integer> ids = new ArrayList<Integer>(table.keySet());
+		Collections.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Files an id under a key of an index.
+	 * @param index The index.
+	 * @param key The key to file it under.
+	 * @param value The id or record to file.
+	 **/
+	private static <K, V> void indexUnder(ConcurrentHashMap<K, ConcurrentSkipListSet<V>> index, K key, V value, Comparator<V> order)
+	{
+		ConcurrentSkipListSet<V> values = index.get(key);
+		if (values == null)
+		{
+			values = new ConcurrentSkipListSet<V>(order);
+			ConcurrentSkipListSet<V> raced = index.putIfAbsent(key, values);
+			if (raced != null)
+				values = raced;
+		}
+		values.add(value);
+	}
+
+	/**
+	 * Takes an id out from under a key of an index.
+	 * @param index The index.
+	 * @param key The key it is filed under.
+	 * @param value The id or record to take out.
+	 **/
+	private static <K, V> void unindexUnder(ConcurrentHashMap<K, ConcurrentSkipListSet<V>> index, K key, V value)
+	{
+		ConcurrentSkipListSet<V> values = index.get(key);
+		if (values != null)
+			values.remove(value);
+	}
+
+	/**
+	 * Looks up what is filed under a key of an index.
+	 * @param index The index.
+	 * @param key The key.
+	 * @return What is filed under it, which is empty if nothing ever was.
+	 **/
+	private static <K, V> NavigableSet<V> indexed(ConcurrentHashMap<K, ConcurrentSkipListSet<V>> index, K key)
+	{
+		ConcurrentSkipListSet<V> values = index.get(key);
+		return values == null ? new TreeSet<V>() : values;
+	}
+
+	/**
+	 * Builds the item with the given id, unless the session already has an
+	 * instance of it. Must be called with the lock held.
+	 * @param session The identity map of the current session.
+	 * @param id The id of the item.
+	 * @return The session's instance of the item, or null if there is none.
+	 **/
+	private FoodItem buildFoodItem(IdentityMap session, int id) throws BadStateException
+	{
+		FoodItem item = session.get(FoodItem.class, id);
+		if (item == null)
+		{
+			FoodItem stored = items.get(id);
+			if (stored == null)
+				return null;
+			item = new FoodItem(stored);
+			session.put(item);
+		}
+		return item;
+	}
+
+	/**
+	 * Builds the location with the given id, unless the session already has
+	 * an instance of it. Must be called with the lock held.
+	 * @param session The identity map of the current session.
+	 * @param id The id of the location.
+	 * @return The session's instance of the location, or null if there is
+	 * none.
+	 **/
+	private Location buildLocation(IdentityMap session, int id) throws BadStateException, BadArgumentException
+	{
+		Location location = session.get(Location.class, id);
+		if (location == null)
+		{
+			LocationRecord stored = locations.get(id);
+			if (stored == null)
+				return null;
+			location = new Location(stored.zipCode, stored.state, stored.businesses.clone());
+			location.setId(id);
+			location.markClean();
+			session.put(location);
+		}
+		return location;
+	}
+
+	/**
+	 * Builds the layout with the given id, along with its rows and their
+	 * items, unless the session already has an instance of it. Must be
+	 * called with the lock held.
+	 * @param session The identity map of the current session.
+	 * @param id The id of the layout.
+	 * @return The session's instance of the layout, or null if there is
+	 * none.
+	 **/
+	private VMLayout buildLayout(IdentityMap session, int id) throws BadStateException, BadArgumentException
+	{
+		VMLayout layout = session.get(VMLayout.class, id);
+		if (layout != null)
+			return layout;
+		LayoutRecord stored = layouts.get(id);
+		if (stored == null)
+			return null;
+
+		Row[][] grid = new Row[stored.rowIds.length][];
+		for (int y=0;y<grid.length;++y)
+		{
+			grid[y] = new Row[stored.rowIds[y].length];
+			for (int x=0;x<grid[y].length;++x)
+			{
+				int rowId = stored.rowIds[y][x];
+				Row row = rowId < 0 ? null : session.get(Row.class, rowId);
+				RowRecord contents = rowId < 0 || row != null ? null : rows.get(rowId);
+				if (contents != null)
+				{
+					GregorianCalendar date = new GregorianCalendar();
+					date.setTimeInMillis(contents.expirationDate);
+					row = new Row(buildFoodItem(session, contents.productId), contents.remainingQuant, date);
+					row.setId(rowId);
+					session.put(row);
+				}
+				grid[y][x] = row;
+			}
+		}
+
+		layout = new VMLayout(grid, stored.depth);
+		if (stored.nextVisit != null)
+		{
+			GregorianCalendar nextVisit = new GregorianCalendar();
+			nextVisit.setTimeInMillis(stored.nextVisit);
+			layout.setNextVisit(nextVisit);
+		}
+		layout.setId(id);
+		layout.markClean();
+		session.put(layout);
+		return layout;
+	}
+
+	/**
+	 * Builds the vending machine with the given id, along with its location
+	 * and, if asked for, its layouts, unless the session already has an
+	 * instance of it. Must be called with the lock held.
+	 * @param session The identity map of the current session.
+	 * @param id The id of the vending machine.
+	 * @param loader Where to get the layouts from once they are needed, or
+	 * null to build them straight away.
+	 * @return The session's instance of the vending machine, or null if
+	 * there is none.
+	 **/
+	private VendingMachine buildMachine(IdentityMap session, int id, LayoutLoader loader) throws BadStateException, BadArgumentException
+	{
+		VendingMachine machine = session.get(VendingMachine.class, id);
+		if (machine != null)
+			return machine;
+		MachineRecord stored = machines.get(id);
+		if (stored == null)
+			return null;
+
+		Location location = buildLocation(session, stored.locationId);
+		if (loader == null)
+			machine = new VendingMachine(location, stored.stockingInterval, buildLayout(session, stored.currentLayoutId), buildLayout(session, stored.nextLayoutId), stored.active);
+		else
+			machine = new VendingMachine(location, stored.stockingInterval, stored.currentLayoutId, stored.nextLayoutId, stored.active, loader);
+		machine.setId(id);
+		machine.markClean();
+		session.put(machine);
+		return machine;
+	}
+
+	/**
+	 * Builds the customer with the given id, unless the session already has
+	 * an instance of it; the cash customer id yields a fresh cash customer.
+	 * Must be called with the lock held.
+	 * @param session The identity map of the current session.
+	 * @param id The id of the customer.
+	 * @return The customer, or null if there is none.
+	 **/
+	private Customer buildCustomer(IdentityMap session, int id) throws BadStateException, BadArgumentException
+	{
+		if (id == Customer.CASH_ID) //cash customers are never stored
+			return new Customer();
+
+		Customer customer = session.get(Customer.class, id);
+		if (customer == null)
+		{
+			Customer stored = customers.get(id);
+			if (stored == null)
+				return null;
+			customer = new Customer(stored);
+			session.put(customer);
+		}
+		return customer;
+	}
+
+	/**
+	 * Builds the manager with the given id, unless the session already has
+	 * an instance of it. Must be called with the lock held.
+	 * @param session The identity map of the current session.
+	 * @param id The id of the manager.
+	 * @return The session's instance of the manager, or null if there is
+	 * none.
+	 **/
+	private Manager buildManager(IdentityMap session, int id) throws BadStateException
+	{
+		Manager manager = session.get(Manager.class, id);
+		if (manager == null)
+		{
+			Manager stored = managers.get(id);
+			if (stored == null)
+				return null;
+			manager = new Manager(stored);
+			session.put(manager);
+		}
+		return manager;
+	}
+
+	/**
+	 * Builds transactions from their records, within one session so that
+	 * they share their machines, customers and items. Must be called with
+	 * the lock held.
+	 * @param records The records.
+	 * @return An ArrayList of the transactions, in the same order.
+	 **/
+	private ArrayList<Transaction> buildTransactions(Collection<TransactionRecord> records) throws BadStateException, BadArgumentException
+	{
+		beginSession();
+		try
+		{
+			IdentityMap session = session();
+			LayoutLoader loader = new SessionLayoutLoader(session);
+			ArrayList<Transaction> built = new ArrayList<Transaction>(records.size());
+			for (TransactionRecord record : records)
+			{
+				Transaction transaction = session.get(Transaction.class, record.id);
+				if (transaction == null)
+				{
+					GregorianCalendar time = new GregorianCalendar();
+					time.setTimeInMillis(record.timestamp);
+					Pair<Integer, Integer> row = new Pair<Integer, Integer>(record.rowX, record.rowY);
+					transaction = new Transaction(time, buildMachine(session, record.machineId, loader), buildCustomer(session, record.customerId), buildFoodItem(session, record.productId), row, record.balance);
+					transaction.setId(record.id);
+					session.put(transaction);
+				}
+				built.add(transaction);
+			}
+			return built;
+		}
+		finally
+		{
+			endSession();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public FoodItem getFoodItemById(int id) throws BadStateException
+	{
+		lock.readLock().lock();
+		try
+		{
+			return buildFoodItem(session(), id);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<FoodItem> getFoodItemsAll() throws BadStateException
+	{
+		lock.readLock().lock();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<FoodItem> returnSet = new ArrayList<FoodItem>();
+			for (int id : sortedIds(items))
+				returnSet.add(buildFoodItem(session, id));
+			return returnSet;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void updateOrCreateFoodItem(FoodItem item) throws BadStateException, BadArgumentException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			boolean write = item.isTempId() || item.isDirty() && items.containsKey(item.getId());
+			if (item.isTempId())
+				item.setId(itemIds.incrementAndGet());
+			if (write)
+			{
+				FoodItem stored = new FoodItem(item);
+				stored.markClean();
+				items.put(item.getId(), stored);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		item.markClean();
+		remember(item);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public Location getLocationById(int id) throws BadStateException, BadArgumentException
+	{
+		lock.readLock().lock();
+		try
+		{
+			return buildLocation(session(), id);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Location> getLocationsAll() throws BadStateException, BadArgumentException
+	{
+		lock.readLock().lock();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<Location> returnSet = new ArrayList<Location>();
+			for (int id : sortedIds(locations))
+				returnSet.add(buildLocation(session, id));
+			return returnSet;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the vending machines with the given ids within one session, so
+	 * that they share whatever they have in common.
+	 * @param ids The ids of the machines, in the order to return them.
+	 * @param withLayouts Whether to build their layouts straight away, rather
+	 * than when they are first needed.
+	 * @return The machines, leaving out ids with no such machine.
+	 **/
+	private ArrayList<VendingMachine> loadVendingMachines(Collection<Integer> ids, boolean withLayouts) throws BadStateException, BadArgumentException
+	{
+		beginSession();
+		lock.readLock().lock();
+		try
+		{
+			IdentityMap session = session();
+			LayoutLoader loader = withLayouts ? null : new SessionLayoutLoader(session);
+			ArrayList<VendingMachine> returnSet = new ArrayList<VendingMachine>(ids.size());
+			for (int id : ids)
+			{
+				VendingMachine machine = buildMachine(session, id, loader);
+				if (machine != null)
+					returnSet.add(machine);
+			}
+			return returnSet;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+			endSession();
+		}
+	}
+
+	/**
+	 * Finds the machines at some locations.
+	 * @param locationIds The ids of the locations.
+	 * @return The ids of the machines there, in ascending order.
+	 **/
+	private TreeSet<Integer> machinesAt(Collection<Integer> locationIds)
+	{
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for (int locationId : locationIds)
+			ids.addAll(indexed(machinesByLocation, locationId));
+		return ids;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public VendingMachine getVendingMachineById(int id) throws BadStateException, BadArgumentException
+	{
+		return getVendingMachineById(id, false);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public VendingMachine getVendingMachineById(int id, boolean withLayouts) throws BadStateException, BadArgumentException
+	{
+		ArrayList<VendingMachine> returnSet = loadVendingMachines(Collections.singletonList(id), withLayouts);
+		return returnSet.isEmpty() ? null : returnSet.get(0);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<VendingMachine> getVendingMachinesAll() throws BadStateException, BadArgumentException
+	{
+		return getVendingMachinesAll(false);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<VendingMachine> getVendingMachinesAll(boolean withLayouts) throws BadStateException, BadArgumentException
+	{
+		return loadVendingMachines(sortedIds(machines), withLayouts);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip) throws BadStateException, BadArgumentException
+	{
+		return getVendingMachinesByZip(zip, false);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip, boolean withLayouts) throws BadStateException, BadArgumentException
+	{
+		return loadVendingMachines(machinesAt(indexed(locationsByZip, zip)), withLayouts);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<VendingMachine> getVendingMachinesByState(String state) throws BadStateException, BadArgumentException
+	{
+		return getVendingMachinesByState(state, false);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<VendingMachine> getVendingMachinesByState(String state, boolean withLayouts) throws BadStateException, BadArgumentException
+	{
+		return loadVendingMachines(machinesAt(indexed(locationsByState, state)), withLayouts);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<MachineSummary> getMachineSummaries(boolean onlyActive)
+	{
+		lock.readLock().lock();
+		try
+		{
+			ArrayList<MachineSummary> returnSet = new ArrayList<MachineSummary>();
+			for (int id : sortedIds(machines))
+			{
+				MachineRecord machine = machines.get(id);
+				if (onlyActive && !machine.active)
+					continue;
+				LocationRecord location = locations.get(machine.locationId);
+				LayoutRecord layout = layouts.get(machine.currentLayoutId);
+				GregorianCalendar nextVisit = null;
+				long capacity = 0;
+				long stocked = 0;
+				if (layout != null)
+				{
+					if (layout.nextVisit != null)
+					{
+						nextVisit = new GregorianCalendar();
+						nextVisit.setTimeInMillis(layout.nextVisit);
+					}
+					for (int[] line : layout.rowIds)
+					{
+						for (int rowId : line)
+						{
+							RowRecord row = rowId < 0 ? null : rows.get(rowId);
+							capacity += layout.depth;
+							if (row != null)
+								stocked += row.remainingQuant;
+						}
+					}
+				}
+				int fill = capacity == 0 ? 0 : (int)(stocked * 100 / capacity);
+				returnSet.add(new MachineSummary(id, machine.active, machine.stockingInterval, location == null ? 0 : location.zipCode, location == null ? null : location.state, nextVisit, fill));
+			}
+			return returnSet;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks that every row of a layout about to be saved stocks an item
+	 * that is stored.
+	 * @param layout The layout.
+	 * @throws BadArgumentException if one doesn't.
+	 **/
+	private void checkRows(VMLayout layout) throws BadStateException, BadArgumentException
+	{
+		if (!layout.isTempId() && !layout.isDirty())
+			return;
+		for (Row[] line : layout.getRows())
+			for (Row row : line)
+				if (row != null && (row.getProduct().isTempId() || !items.containsKey(row.getProduct().getId())))
+					throw new BadArgumentException("FoodItem in Row is not in database, but it must be before the Row can be added");
+	}
+
+	/**
+	 * Stores a layout and its rows, unless it hasn't changed since it was
+	 * loaded or last saved. Rows are only written if they are new or their
+	 * contents changed. Must be called with the write lock held, once its
+	 * rows have been checked.
+	 * @param layout The layout to update or create.
+	 **/
+	private void updateOrCreateVMLayout(VMLayout layout) throws BadStateException, BadArgumentException
+	{
+		if (!layout.isTempId() && !layout.isDirty())
+		{
+			remember(layout);
+			return;
+		}
+
+		Row[][] grid = layout.getRows();
+		int[][] slots = new int[grid.length][];
+		for (int y=0;y<grid.length;++y)
+		{
+			slots[y] = new int[grid[y].length];
+			for (int x=0;x<grid[y].length;++x)
+			{
+				Row row = grid[y][x];
+				if (row == null)
+				{
+					slots[y][x] = -1;
+					continue;
+				}
+				if (row.isTempId())
+					row.setId(rowIds.incrementAndGet());
+				RowRecord contents = new RowRecord(row);
+				if (row.isDirty() && !contents.matches(rows.get(row.getId()))) //unchanged rows may have been sold from since
+					rows.put(row.getId(), contents);
+				slots[y][x] = row.getId();
+			}
+		}
+
+		if (layout.isTempId())
+			layout.setId(layoutIds.incrementAndGet());
+		Long nextVisit = layout.getNextVisit() == null ? null : layout.getNextVisit().getTimeInMillis();
+		layouts.put(layout.getId(), new LayoutRecord(layout.getDepth(), nextVisit, slots));
+		layout.markClean();
+		remember(layout);
+	}
+
+	/**
+	 * Stores a location if it is new or has changed, and files it under its
+	 * zip code and state. Must be called with the write lock held.
+	 * @param location The location to update or create.
+	 **/
+	private void updateOrCreateLocation(Location location) throws BadStateException, BadArgumentException
+	{
+		boolean created = location.isTempId();
+		if (created)
+			location.setId(locationIds.incrementAndGet());
+		int id = location.getId();
+		LocationRecord old = locations.get(id);
+		if (created || location.isDirty() && old != null)
+		{
+			LocationRecord stored = new LocationRecord(location);
+			locations.put(id, stored);
+			if (old != null)
+			{
+				unindexUnder(locationsByZip, old.zipCode, id);
+				unindexUnder(locationsByState, old.state, id);
+			}
+			indexUnder(locationsByZip, stored.zipCode, id, null);
+			indexUnder(locationsByState, stored.state, id, null);
+		}
+		location.markClean();
+		remember(location);
+	}
+
+	/**
+	 * Creates the vending machine if it is new, or otherwise writes whatever
+	 * has changed about it, along with its location, layouts and rows, all
+	 * at once. Layouts that were never loaded are left as they are stored.
+	 * @param vm The vending machine to update or create.
+	 **/
+	@Override
+	public void updateOrCreateVendingMachine(VendingMachine vm) throws BadStateException, BadArgumentException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			boolean layoutsLoaded = vm.areLayoutsLoaded(); //layouts never fetched can't have changed
+			if (layoutsLoaded)
+			{
+				checkRows(vm.getCurrentLayout());
+				checkRows(vm.getNextLayout());
+				updateOrCreateVMLayout(vm.getCurrentLayout());
+				updateOrCreateVMLayout(vm.getNextLayout());
+			}
+			updateOrCreateLocation(vm.getLocation());
+
+			MachineRecord old = vm.isTempId() ? null : machines.get(vm.getId());
+			if (vm.isTempId() || old != null)
+			{
+				if (vm.isTempId())
+					vm.setId(machineIds.incrementAndGet());
+				int currentLayoutId = layoutsLoaded ? vm.getCurrentLayout().getId() : old.currentLayoutId;
+				int nextLayoutId = layoutsLoaded ? vm.getNextLayout().getId() : old.nextLayoutId;
+				MachineRecord stored = new MachineRecord(vm.isActive(), vm.getStockingInterval(), currentLayoutId, nextLayoutId, vm.getLocation().getId());
+				machines.put(vm.getId(), stored);
+				if (old != null)
+					unindexUnder(machinesByLocation, old.locationId, vm.getId());
+				indexUnder(machinesByLocation, stored.locationId, vm.getId(), null);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		vm.markClean();
+		remember(vm);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public Customer getCustomerById(int id) throws BadStateException, BadArgumentException
+	{
+		lock.readLock().lock();
+		try
+		{
+			return buildCustomer(session(), id);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Customer> getCustomersAll() throws BadStateException, BadArgumentException
+	{
+		lock.readLock().lock();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<Customer> returnSet = new ArrayList<Customer>();
+			for (int id : sortedIds(customers))
+				returnSet.add(buildCustomer(session, id));
+			return returnSet;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void updateOrCreateCustomer(Customer customer) throws BadStateException, BadArgumentException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			boolean write = customer.isTempId() || !customer.isCashCustomer() && customer.isDirty() && customers.containsKey(customer.getId());
+			if (customer.isTempId())
+				customer.setId(customerIds.incrementAndGet());
+			if (write)
+			{
+				Customer stored = new Customer(customer);
+				Customer old = customers.get(customer.getId());
+				if (old != null && !customer.isDirty("money")) //may have been spent since this copy was loaded
+					stored.setMoney(old.getMoney());
+				stored.markClean();
+				customers.put(customer.getId(), stored);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		//do NOT store cash customers under any circumstances
+		if (!customer.isCashCustomer())
+		{
+			customer.markClean();
+			remember(customer);
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public Manager getManagerById(int id) throws BadStateException
+	{
+		lock.readLock().lock();
+		try
+		{
+			return buildManager(session(), id);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Manager> getManagersAll() throws BadStateException
+	{
+		lock.readLock().lock();
+		try
+		{
+			IdentityMap session = session();
+			ArrayList<Manager> returnSet = new ArrayList<Manager>();
+			for (int id : sortedIds(managers))
+				returnSet.add(buildManager(session, id));
+			return returnSet;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void updateOrCreateManager(Manager manager) throws BadStateException, BadArgumentException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			boolean write = manager.isTempId() || manager.isDirty() && managers.containsKey(manager.getId());
+			if (manager.isTempId())
+				manager.setId(managerIds.incrementAndGet());
+			if (write)
+			{
+				Manager stored = new Manager(manager);
+				stored.markClean();
+				managers.put(manager.getId(), stored);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		manager.markClean();
+		remember(manager);
+	}
+
+	/**
+	 * Stores a transaction and files it in every index. Must be called with
+	 * the write lock held.
+	 * @param record The transaction.
+	 **/
+	private void store(TransactionRecord record)
+	{
+		transactions.put(record.id, record);
+		timeline.add(record);
+		indexUnder(transactionsByMachine, record.machineId, record, TIME_ORDER);
+		indexUnder(transactionsByCustomer, record.customerId, record, TIME_ORDER);
+		indexUnder(transactionsByProduct, record.productId, record, TIME_ORDER);
+	}
+
+	/**
+	 * Takes a stored transaction out of every index, ahead of replacing it.
+	 * Must be called with the write lock held.
+	 * @param record The transaction as it is stored.
+	 **/
+	private void unstore(TransactionRecord record)
+	{
+		transactions.remove(record.id);
+		timeline.remove(record);
+		unindexUnder(transactionsByMachine, record.machineId, record);
+		unindexUnder(transactionsByCustomer, record.customerId, record);
+		unindexUnder(transactionsByProduct, record.productId, record);
+	}
+
+	/**
+	 * Selects the transactions in a time range.
+	 * @param start The start of the range.
+	 * @param end The end of the range (exclusive).
+	 * @return The transactions, by timestamp and then id.
+	 **/
+	private NavigableSet<TransactionRecord> during(long start, long end)
+	{
+		if (start >= end)
+			return new TreeSet<TransactionRecord>(TIME_ORDER);
+		return timeline.subSet(TransactionRecord.probe(start, Integer.MIN_VALUE), true, TransactionRecord.probe(end, Integer.MIN_VALUE), false);
+	}
+
+	/**
+	 * Gathers the transactions of the machines at some locations.
+	 * @param locationIds The ids of the locations.
+	 * @return The transactions, by timestamp and then id.
+	 **/
+	private NavigableSet<TransactionRecord> transactionsAt(Collection<Integer> locationIds)
+	{
+		TreeSet<TransactionRecord> records = new TreeSet<TransactionRecord>(TIME_ORDER);
+		for (int machineId : machinesAt(locationIds))
+			records.addAll(indexed(transactionsByMachine, machineId));
+		return records;
+	}
+
+	/**
+	 * Builds every transaction in a selection.
+	 * @param records The selection.
+	 * @return An ArrayList of the transactions, in the same order.
+	 **/
+	private ArrayList<Transaction> loadTransactions(Collection<TransactionRecord> records) throws BadStateException, BadArgumentException
+	{
+		lock.readLock().lock();
+		try
+		{
+			return buildTransactions(new ArrayList<TransactionRecord>(records));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public Transaction getTransactionById(int id) throws BadStateException, BadArgumentException
+	{
+		TransactionRecord record = transactions.get(id);
+		if (record == null)
+			return null;
+		return loadTransactions(Collections.singletonList(record)).get(0);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Transaction> getTransactionsByVendingMachine(VendingMachine vm) throws BadStateException, BadArgumentException
+	{
+		return loadTransactions(indexed(transactionsByMachine, vm.getId()));
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Transaction> getTransactionsByZipCode(int zipCode) throws BadStateException, BadArgumentException
+	{
+		return loadTransactions(transactionsAt(indexed(locationsByZip, zipCode)));
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Transaction> getTransactionsByState(String state) throws BadStateException, BadArgumentException
+	{
+		return loadTransactions(transactionsAt(indexed(locationsByState, state)));
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Transaction> getTransactionsByCustomer(Customer customer) throws BadStateException, BadArgumentException
+	{
+		return loadTransactions(indexed(transactionsByCustomer, customer.getId()));
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Transaction> getTransactionsByFoodItem(FoodItem item) throws BadStateException, BadArgumentException
+	{
+		return loadTransactions(indexed(transactionsByProduct, item.getId()));
+	}
+
+	/** @inheritDoc */
+	@Override
+	public ArrayList<Transaction> getTransactionsAll() throws BadStateException, BadArgumentException
+	{
+		return loadTransactions(timeline);
+	}
+
+	/**
+	 * Hands every transaction in a selection to a visitor, building
+	 * getFetchSize() of them at a time. The lock isn't held while the
+	 * visitor runs, so it is free to save things.
+	 * @param index The selection.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 **/
+	private int visitTransactions(Collection<TransactionRecord> index, TransactionVisitor visitor) throws BadStateException, BadArgumentException
+	{
+		ArrayList<TransactionRecord> records;
+		lock.readLock().lock();
+		try
+		{
+			records = new ArrayList<TransactionRecord>(index);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		int batchSize = fetchSize;
+		int visited = 0;
+		for (int start=0;start<records.size();start+=batchSize)
+		{
+			for (Transaction transaction : loadTransactions(records.subList(start, Math.min(records.size(), start + batchSize))))
+			{
+				visitor.visit(transaction);
+				++visited;
+			}
+		}
+		return visited;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public int visitTransactionsAll(TransactionVisitor visitor) throws BadStateException, BadArgumentException
+	{
+		return visitTransactions(timeline, visitor);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public int visitTransactionsByVendingMachine(VendingMachine vm, TransactionVisitor visitor) throws BadStateException, BadArgumentException
+	{
+		return visitTransactions(indexed(transactionsByMachine, vm.getId()), visitor);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public int visitTransactionsByCustomer(Customer customer, TransactionVisitor visitor) throws BadStateException, BadArgumentException
+	{
+		return visitTransactions(indexed(transactionsByCustomer, customer.getId()), visitor);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public int visitTransactionsByFoodItem(FoodItem item, TransactionVisitor visitor) throws BadStateException, BadArgumentException
+	{
+		return visitTransactions(indexed(transactionsByProduct, item.getId()), visitor);
+	}
+
+	/**
+	 * Fetches the page of transactions that follows the one a token was
+	 * issued for, by seeking straight past the last transaction already seen
+	 * in an index ordered the same way as the pages. One transaction more
+	 * than a page is read, to tell whether another page follows.
+	 * @param index The transactions to page through.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 **/
+	private TransactionPage loadTransactionPage(NavigableSet<TransactionRecord> index, int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		if (pageSize <= 0)
+			throw new BadArgumentException("Page size must be positive");
+		NavigableSet<TransactionRecord> rest = index;
+		if (token != null)
+		{
+			long[] after = DatabaseLayer.parsePageToken(token);
+			rest = index.tailSet(TransactionRecord.probe(after[0], (int)after[1]), false);
+		}
+
+		lock.readLock().lock();
+		try
+		{
+			ArrayList<TransactionRecord> records = new ArrayList<TransactionRecord>();
+			for (TransactionRecord record : rest)
+			{
+				records.add(record);
+				if (records.size() > pageSize)
+					break;
+			}
+			ArrayList<Transaction> page = buildTransactions(records);
+
+			String nextToken = null;
+			if (page.size() > pageSize)
+			{
+				page.remove(pageSize);
+				nextToken = DatabaseLayer.pageToken(page.get(pageSize - 1));
+			}
+			return new TransactionPage(page, nextToken);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @inheritDoc */
+	@Override
+	public TransactionPage getTransactionsPageAll(int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		return loadTransactionPage(timeline, pageSize, token);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public TransactionPage getTransactionsPageByVendingMachine(VendingMachine vm, int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		return loadTransactionPage(indexed(transactionsByMachine, vm.getId()), pageSize, token);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public TransactionPage getTransactionsPageByZipCode(int zipCode, int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		return loadTransactionPage(transactionsAt(indexed(locationsByZip, zipCode)), pageSize, token);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public TransactionPage getTransactionsPageByState(String state, int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		return loadTransactionPage(transactionsAt(indexed(locationsByState, state)), pageSize, token);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public TransactionPage getTransactionsPageByCustomer(Customer customer, int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		return loadTransactionPage(indexed(transactionsByCustomer, customer.getId()), pageSize, token);
+	}
+
+	/** @inheritDoc */
+	@Override
+	public TransactionPage getTransactionsPageByFoodItem(FoodItem item, int pageSize, String token) throws BadStateException, BadArgumentException
+	{
+		return loadTransactionPage(indexed(transactionsByProduct, item.getId()), pageSize, token);
+	}
+
+	/**
+	 * Works out which group a sale is totalled under. Must be called with the
+	 * lock held.
+	 * @param grouping How the transactions are grouped.
+	 * @param record The sale.
+	 * @return A total of nothing for the sale's group, or null if the sale
+	 * belongs to none, as when its machine has no location.
+	 **/
+	private SalesTotal salesGroup(SalesGrouping grouping, TransactionRecord record)
+	{
+		switch (grouping)
+		{
+			case FLEET:
+				return new SalesTotal(0, null, 0, 0);
+			case MACHINE:
+				return new SalesTotal(record.machineId, null, 0, 0);
+			case ITEM:
+				return new SalesTotal(record.productId, null, 0, 0);
+			case CUSTOMER:
+				return new SalesTotal(record.customerId, null, 0, 0);
+			case ZIP_CODE:
+			case STATE:
+				MachineRecord machine = machines.get(record.machineId);
+				LocationRecord location = machine == null ? null : locations.get(machine.locationId);
+				if (location == null)
+					return null;
+				return grouping == SalesGrouping.ZIP_CODE ? new SalesTotal(location.zipCode, null, 0, 0) : new SalesTotal(0, location.state, 0, 0);
+			default: //by time
+				return new SalesTotal(grouping.periodKey(record.timestamp), null, 0, 0);
+		}
+	}
+
+	/**
+	 * Totals the units sold and revenue taken by the transactions in a time
+	 * range, grouped as requested, straight from the time index. There are
+	 * no rollups to keep up to date, so the totals are always exact.
+	 * @param grouping How to group the transactions.
+	 * @param from The start of the range, or null to start at the beginning.
+	 * @param to The end of the range (exclusive), or null to include
+	 * everything since the start.
+	 * @return The total for each group that made any sales, ordered by key
+	 * and then name; for FLEET, exactly one total, even if nothing was sold.
+	 **/
+	@Override
+	public ArrayList<SalesTotal> getSalesTotals(SalesGrouping grouping, GregorianCalendar from, GregorianCalendar to)
+	{
+		long start = from == null ? Long.MIN_VALUE : from.getTimeInMillis();
+		long end = to == null ? Long.MAX_VALUE : to.getTimeInMillis();
+		TreeMap<SalesTotal, long[]> groups = new TreeMap<SalesTotal, long[]>(DatabaseLayer.SALES_ORDER);
+		if (grouping == SalesGrouping.FLEET)
+			groups.put(new SalesTotal(0, null, 0, 0), new long[2]);
+
+		lock.readLock().lock();
+		try
+		{
+			for (TransactionRecord record : during(start, end))
+			{
+				SalesTotal group = salesGroup(grouping, record);
+				if (group == null)
+					continue;
+				long[] sums = groups.get(group);
+				if (sums == null)
+				{
+					sums = new long[2];
+					groups.put(group, sums);
+				}
+				++sums[0];
+				sums[1] += record.balance;
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+
+		ArrayList<SalesTotal> totals = new ArrayList<SalesTotal>(groups.size());
+		for (Map.Entry<SalesTotal, long[]> group : groups.entrySet())
+			totals.add(new SalesTotal(group.getKey().getKey(), group.getKey().getName(), (int)group.getValue()[0], group.getValue()[1]));
+		return totals;
+	}
+
+	/**
+	 * Totals the units sold and revenue taken per day, machine and item, for
+	 * the days starting in a time range. Must be called with the lock held.
+	 * @param start The start of the range.
+	 * @param end The end of the range (exclusive).
+	 * @return A map from each day, machine id and item id to its units and
+	 * revenue, in that order.
+	 **/
+	private TreeMap<long[], long[]> dailySales(long start, long end)
+	{
+		TreeMap<long[], long[]> sales = new TreeMap<long[], long[]>(DAILY_ORDER);
+		long last = end > Long.MAX_VALUE - SalesGrouping.DAY.getPeriod() ? Long.MAX_VALUE : end + SalesGrouping.DAY.getPeriod(); //the last day's sales run on past its start
+		for (TransactionRecord record : during(start, last))
+		{
+			long day = SalesGrouping.DAY.periodKey(record.timestamp);
+			if (day < start || day >= end)
+				continue;
+			long[] key = new long[]{day, record.machineId, record.productId};
+			long[] sums = sales.get(key);
+			if (sums == null)
+			{
+				sums = new long[2];
+				sales.put(key, sums);
+			}
+			++sums[0];
+			sums[1] += record.balance;
+		}
+		return sales;
+	}
+
+	/**
+	 * Counts the days, machines and items that made any sales. Daily sales
+	 * are totalled as they are asked for, so there is nothing to rebuild.
+	 * @return The number of days, machines and items that made any sales.
+	 **/
+	@Override
+	public int rebuildSalesRollups()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return dailySales(Long.MIN_VALUE, Long.MAX_VALUE).size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Archives every transaction from before a cutoff. There is no database
+	 * file to keep small, so archived transactions stay where they are, but
+	 * they can't be changed any more.
+	 * @param cutoff The time before which transactions are archived.
+	 * @return The number of transactions archived that weren't already.
+	 **/
+	@Override
+	public int archiveTransactions(GregorianCalendar cutoff)
+	{
+		int count = 0;
+		lock.writeLock().lock();
+		try
+		{
+			for (TransactionRecord record : during(Long.MIN_VALUE, cutoff.getTimeInMillis()))
+				if (archived.add(record.id))
+					++count;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * Imports records from a CSV file in bulk, as DatabaseLayer does. Each
+	 * record is stored as soon as it is read, and the checkpoint, if any,
+	 * moves on with it.
+	 * @param kind The kind of records in the file.
+	 * @param csv The file's contents, starting with the kind's header.
+	 * @param checkpoint The name under which to keep track of progress, or
+	 * null not to.
+	 * @return What was imported and what was rejected.
+	 * @throws BadArgumentException if the header is missing or wrong.
+	 * @throws IOException if the file could not be read.
+	 * @throws SQLException if a record could not be stored.
+	 **/
+	@Override
+	public ImportReport bulkImport(ImportKind kind, Reader csv, String checkpoint) throws SQLException, IOException, BadArgumentException
+	{
+		CsvReader reader = new CsvReader(csv);
+		kind.checkHeader(reader.readRecord());
+		int columns = kind.getColumns().length;
+
+		Long resumed = checkpoint == null ? null : checkpoints.get(checkpoint);
+		long done = resumed == null ? 0 : resumed;
+		ImportReport report = new ImportReport(done);
+		long skipped = 0;
+		while (skipped < done && reader.readRecord() != null) //already imported
+			++skipped;
+
+		HashSet<Integer> machineIds = null;
+		HashSet<Integer> customerIds = null;
+		HashSet<Integer> productIds = null;
+		if (kind == ImportKind.TRANSACTIONS)
+		{
+			machineIds = new HashSet<Integer>(machines.keySet());
+			customerIds = new HashSet<Integer>(customers.keySet());
+			productIds = new HashSet<Integer>(items.keySet());
+		}
+
+		String[] record;
+		while ((record = reader.readRecord()) != null)
+		{
+			try
+			{
+				if (record.length != columns)
+					throw new BadArgumentException("Expected " + columns + " fields but found " + record.length);
+				importRecord(kind, kind.parseRecord(record, machineIds, customerIds, productIds));
+				report.addImported(1);
+			}
+			catch (BadArgumentException invalid)
+			{
+				report.addError(reader.getLineNumber(), invalid.getMessage());
+			}
+			catch (NumberFormatException invalid)
+			{
+				report.addError(reader.getLineNumber(), "Not a number: " + invalid.getMessage());
+			}
+			catch (BadStateException impossible) //only fresh objects are given ids
+			{
+				throw new SQLException("Record could not be imported", impossible);
+			}
+			if (checkpoint != null)
+				checkpoints.put(checkpoint, ++done);
+		}
+		if (checkpoint != null)
+			checkpoints.remove(checkpoint);
+		report.finish();
+		return report;
+	}
+
+	/**
+	 * Stores one record of a bulk import.
+	 * @param kind The kind of record.
+	 * @param values Its values, as parsed by DatabaseLayer.parseImportRecord().
+	 **/
+	private void importRecord(ImportKind kind, Object[] values) throws BadStateException, BadArgumentException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			switch (kind)
+			{
+				case ITEMS:
+					FoodItem item = new FoodItem((String)values[0], (Integer)values[1], (Long)values[2], (Integer)values[3] != 0);
+					item.setId(itemIds.incrementAndGet());
+					items.put(item.getId(), item);
+					break;
+				case CUSTOMERS:
+					Customer customer = new Customer((String)values[0], (Integer)values[1]);
+					customer.setId(customerIds.incrementAndGet());
+					customers.put(customer.getId(), customer);
+					break;
+				case MACHINES:
+					int locationId = locationIds.incrementAndGet();
+					LocationRecord location = new LocationRecord((Integer)values[0], (String)values[1]);
+					locations.put(locationId, location);
+					indexUnder(locationsByZip, location.zipCode, locationId, null);
+					indexUnder(locationsByState, location.state, locationId, null);
+
+					int[] layoutIds = new int[2];
+					for (int i=0;i<layoutIds.length;++i)
+					{
+						int[][] slots = new int[(Integer)values[3]][(Integer)values[4]];
+						for (int[] line : slots)
+							Arrays.fill(line, -1);
+						layoutIds[i] = this.layoutIds.incrementAndGet();
+						layouts.put(layoutIds[i], new LayoutRecord((Integer)values[5], null, slots));
+					}
+
+					int machineId = machineIds.incrementAndGet();
+					machines.put(machineId, new MachineRecord((Integer)values[6] != 0, (Integer)values[2], layoutIds[0], layoutIds[1], locationId));
+					indexUnder(machinesByLocation, locationId, machineId, null);
+					break;
+				default: //TRANSACTIONS
+					store(new TransactionRecord(transactionIds.incrementAndGet(), (Long)values[0], (Integer)values[1], (Integer)values[2], (Integer)values[3], (Integer)values[4], (Integer)values[5], (Integer)values[6]));
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes one record of an export.
+	 * @param out The writer.
+	 * @param fields The record's fields, in order.
+	 * @throws IllegalStateException if the writer has a different number of
+	 * columns.
+	 **/
+	private static void writeRecord(ExportWriter out, Object... fields) throws IOException
+	{
+		for (Object field : fields)
+			out.writeField(field);
+		out.endRecord();
+	}
+
+	/** @inheritDoc */
+	@Override
+	public long export(ExportKind kind, GregorianCalendar from, GregorianCalendar to, ExportWriter out) throws IOException, BadArgumentException
+	{
+		long start = from == null ? Long.MIN_VALUE : from.getTimeInMillis();
+		long end = to == null ? Long.MAX_VALUE : to.getTimeInMillis();
+		long written = 0;
+		lock.readLock().lock();
+		try
+		{
+			try
+			{
+				if (kind == ExportKind.TRANSACTIONS)
+				{
+					SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+					utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+					for (TransactionRecord record : during(start, end))
+					{
+						MachineRecord machine = machines.get(record.machineId);
+						LocationRecord location = machine == null ? null : locations.get(machine.locationId);
+						FoodItem item = items.get(record.productId);
+						writeRecord(out, record.id, record.timestamp, utc.format(new Date(record.timestamp)), record.machineId, location == null ? null : location.zipCode, location == null ? null : location.state, record.customerId, record.productId, item == null ? null : item.getName(), item == null ? null : item.getPrice(), record.rowX, record.rowY, record.balance);
+						++written;
+					}
+				}
+				else //DAILY_SALES
+				{
+					SimpleDateFormat local = new SimpleDateFormat("yyyy-MM-dd");
+					for (Map.Entry<long[], long[]> sales : dailySales(start, end).entrySet())
+					{
+						long[] key = sales.getKey();
+						MachineRecord machine = machines.get((int)key[1]);
+						LocationRecord location = machine == null ? null : locations.get(machine.locationId);
+						FoodItem item = items.get((int)key[2]);
+						writeRecord(out, key[0], local.format(new Date(key[0])), (int)key[1], location == null ? null : location.zipCode, location == null ? null : location.state, (int)key[2], item == null ? null : item.getName(), (int)sales.getValue()[0], sales.getValue()[1]);
+						++written;
+					}
+				}
+			}
+			catch (IllegalStateException mismatch)
+			{
+				throw new BadArgumentException("Export of " + kind.name().toLowerCase() + " needs a writer with the columns " + Arrays.toString(kind.getColumns()));
+			}
+			out.flush();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return written;
+	}
+
+	/**
+	 * Checks that a model object is stored.
+	 * @param model The object.
+	 * @param table The table it would be stored in.
+	 * @return Whether it has been given an id that is stored in the table.
+	 **/
+	private static boolean isStored(ModelBase model, Map<Integer, ?> table) throws BadStateException
+	{
+		return !model.isTempId() && table.containsKey(model.getId());
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void updateOrCreateTransaction(Transaction transaction) throws BadStateException, BadArgumentException
+	{
+		if (!isStored(transaction.getMachine(), machines))
+			throw new BadArgumentException("VendingMachine in Transaction is not in database, but it must be before the Transaction can be added");
+		if (!transaction.getCustomer().isCashCustomer() && !isStored(transaction.getCustomer(), customers))
+			throw new BadArgumentException("Customer in Transaction is not in database, but it must be before the Transaction can be added");
+		if (!isStored(transaction.getProduct(), items))
+			throw new BadArgumentException("FoodItem in Transaction is not in database, but it must be before the Transaction can be added");
+
+		int id;
+		lock.writeLock().lock();
+		try
+		{
+			if (transaction.isTempId())
+				id = transactionIds.incrementAndGet();
+			else
+			{
+				id = transaction.getId();
+				TransactionRecord old = transactions.get(id);
+				if (old == null || archived.contains(id))
+					throw new BadArgumentException("Transaction " + id + " is not in the live database; archived transactions can't be changed");
+				unstore(old);
+			}
+			store(new TransactionRecord(id, transaction));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		if (transaction.isTempId())
+			transaction.setId(id);
+		remember(transaction);
+	}
+
+	/**
+	 * Writes a purchase: charges the customer, takes the item from its slot
+	 * and stores the transaction, or does none of them if the customer can't
+	 * afford it or the slot is empty, going by what is stored rather than
+	 * the model objects. Must be called with the write lock held.
+	 * @param transaction The new transaction.
+	 * @param row The row the item is taken from.
+	 * @return The transaction's new id, or -1 if the purchase was turned
+	 * down.
+	 **/
+	private int writePurchase(Transaction transaction, Row row) throws BadStateException, BadArgumentException
+	{
+		Customer customer = transaction.getCustomer();
+		Customer account = null;
+		if (!customer.isCashCustomer()) //cash customers aren't stored
+		{
+			account = customers.get(customer.getId());
+			if (account == null || account.getMoney() < transaction.getBalance())
+				return -1;
+		}
+		RowRecord stock = rows.get(row.getId());
+		if (stock == null || stock.remainingQuant <= 0)
+			return -1;
+
+		if (account != null)
+		{
+			Customer charged = new Customer(account);
+			charged.setMoney(account.getMoney() - transaction.getBalance());
+			charged.markClean();
+			customers.put(customer.getId(), charged);
+		}
+		rows.put(row.getId(), new RowRecord(stock.productId, stock.expirationDate, stock.remainingQuant - 1));
+		int id = transactionIds.incrementAndGet();
+		store(new TransactionRecord(id, transaction));
+		return id;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public boolean purchase(Transaction transaction) throws BadStateException, BadArgumentException
+	{
+		Row row = DatabaseLayer.purchasedRow(transaction);
+		int id;
+		lock.writeLock().lock();
+		try
+		{
+			id = writePurchase(transaction, row);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		if (id < 0)
+			return false;
+
+		transaction.setId(id);
+		transaction.getCustomer().deductMoney(transaction.getBalance());
+		row.decrementRemainingQuantity();
+		transaction.getCustomer().markClean("money"); //already stored, so saving them again would undo others' purchases
+		row.markClean("remainingQuantity");
+		remember(transaction);
+		return true;
+	}
+
+	/**
+	 * Records a purchase as by purchase(), but with the customer's money and
+	 * the row's quantity updated before it is written. Writing to memory is
+	 * as quick as queueing would be, so the purchase is always written
+	 * before this returns, whether or not write-behind is on.
+	 * @param transaction The new transaction, as for purchase().
+	 * @return The purchase, which is already done.
+	 * @throws BadArgumentException if the transaction has already been
+	 * recorded or its slot holds no row.
+	 **/
+	@Override
+	public PendingPurchase purchaseLater(Transaction transaction) throws BadStateException, BadArgumentException
+	{
+		PendingPurchase pending = new PendingPurchase(transaction, DatabaseLayer.purchasedRow(transaction));
+		if (!pending.apply())
+			return pending;
+
+		lock.writeLock().lock();
+		try
+		{
+			int id = writePurchase(transaction, pending.getRow());
+			if (id < 0)
+				pending.decline();
+			else
+				pending.complete(id);
+		}
+		catch (BadStateException failure)
+		{
+			pending.fail(new SQLException("Purchase could not be written", failure));
+		}
+		catch (BadArgumentException failure)
+		{
+			pending.fail(new SQLException("Purchase could not be written", failure));
+		}
+		catch (RuntimeException failure) //still has to be answered, or its owner would wait forever
+		{
+			pending.fail(new SQLException("Purchase could not be written", failure));
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		return pending;
+	}
+
+	/**
+	 * Turns on write-behind, which only changes what isWriteBehind() reports,
+	 * since purchases are always written straight away.
+	 * @param capacity The most purchases that may be waiting at once.
+	 * @param maxBatch The most purchases written at once.
+	 * @param maxDelay How long a purchase may be held back, in milliseconds.
+	 * @throws BadArgumentException if the capacity or batch size is not
+	 * positive or the delay is negative.
+	 **/
+	@Override
+	public void startWriteBehind(int capacity, int maxBatch, long maxDelay) throws BadArgumentException
+	{
+		if (capacity <= 0 || maxBatch <= 0 || maxDelay < 0)
+			throw new BadArgumentException("Write-behind needs a positive capacity and batch size and a delay of at least 0");
+		writeBehind = true;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public void stopWriteBehind()
+	{
+		writeBehind = false;
+	}
+
+	/** @inheritDoc */
+	@Override
+	public boolean isWriteBehind()
+	{
+		return writeBehind;
+	}
+
+	/**
+	 * Returns straight away, since no purchase is ever left waiting.
+	 **/
+	@Override
+	public void flushPurchases()
+	{
+	}
+}
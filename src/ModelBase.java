@@ -1,6 +1,11 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * The base class for data representations.
  * It keeps track of and manages access to each type's primary keys.
+ * It also keeps track of which fields have changed since the instance was last loaded from or saved to the database, so that unchanged data needn't be written again.
  * @author Sol Boucher <slb1566@rit.edu>
  */
 public abstract class ModelBase
@@ -17,6 +22,9 @@ public abstract class ModelBase
 	/** The instance's primary key. */
 	private int id;
 
+	/** The names of the fields changed since the instance was last marked clean, or <tt>null</tt> if it never has been. */
+	private HashSet<String> dirtyFields;
+
 	/**
 	 * Default constructor.
 	 * Does not assign a primary key, instead allowing it to be changed once in the future.
@@ -24,6 +32,7 @@ public abstract class ModelBase
 	public ModelBase()
 	{
 		id=TEMP_ID;
+		dirtyFields=null;
 	}
 
 	/**
@@ -34,6 +43,7 @@ public abstract class ModelBase
 	public ModelBase(ModelBase existing)
 	{
 		this.id=existing.id;
+		this.dirtyFields=existing.dirtyFields==null ? null : new HashSet<String>(existing.dirtyFields);
 	}
 
 	/**
@@ -52,6 +62,15 @@ public abstract class ModelBase
 		this.id=id;
 	}
 
+	/**
+	 * Takes back a primary key that turned out not to be permanent, e.g. because the database transaction that generated it was rolled back.
+	 * Only the database layer should ever need this.
+	 */
+	void clearId()
+	{
+		id=TEMP_ID;
+	}
+
 	/**
 	 * This method may only be used to obtain the primary key if one has actually been set.
 	 * @return the primary key
@@ -74,6 +93,62 @@ public abstract class ModelBase
 		return id==TEMP_ID;
 	}
 
+	/**
+	 * Records that a field has changed.
+	 * Subclasses' mutators should call this whenever they modify a field.
+	 * @param field the name of the field
+	 */
+	protected void markDirty(String field)
+	{
+		if(dirtyFields!=null) //otherwise, everything is already considered dirty
+			dirtyFields.add(field);
+	}
+
+	/**
+	 * Declares the instance to match what is stored in the database, e.g. because it has just been loaded or saved.
+	 */
+	public void markClean()
+	{
+		dirtyFields=new HashSet<String>();
+	}
+
+	/**
+	 * Declares one field to match what is stored in the database, e.g. because the database layer has just updated it there itself.
+	 * Does nothing if the instance has never been marked clean, since nothing is known about what else is stored.
+	 * @param field the name of the field
+	 */
+	public void markClean(String field)
+	{
+		if(dirtyFields!=null)
+			dirtyFields.remove(field);
+	}
+
+	/**
+	 * Instances that have never been marked clean are always dirty, since nothing is known about what is stored.
+	 * @return whether anything has changed since the instance was last marked clean
+	 */
+	public boolean isDirty()
+	{
+		return dirtyFields==null || !dirtyFields.isEmpty();
+	}
+
+	/**
+	 * @param field the name of a field
+	 * @return whether that field has changed since the instance was last marked clean
+	 */
+	public boolean isDirty(String field)
+	{
+		return dirtyFields==null || dirtyFields.contains(field);
+	}
+
+	/**
+	 * @return the names of the fields changed since the instance was last marked clean, or <tt>null</tt> if it never has been
+	 */
+	public Set<String> getDirtyFields()
+	{
+		return dirtyFields==null ? null : Collections.unmodifiableSet(dirtyFields);
+	}
+
 	/**
 	 * Checks whether two instances' IDs are the same.
 	 * Database-backable instances whose IDs are both unassigned are considered to have matching IDs.
@@ -83,7 +158,7 @@ public abstract class ModelBase
 	@Override
 	public boolean equals(Object another)
 	{
-		return another instanceof ModelBase && this.id==((ModelBase)another).id;
+		return this==another || another instanceof ModelBase && this.id==((ModelBase)another).id; //instances shared through an IdentityMap are trivially equal
 	}
 
 	/** @inheritDoc */
@@ -0,0 +1,172 @@
+import java.sql.SQLException;
+
+/**
+ * A purchase that has been queued to be written to the database in the background.
+ * The customer's money and the row's quantity are updated as soon as the purchase is queued, on the assumption that it will go through.
+ * Whoever queued it may later wait for the outcome with <tt>await()</tt>, which gives the transaction its id if it was recorded and puts the money and item back if it wasn't.
+ */
+public class PendingPurchase
+{
+	/** The purchase. */
+	private final Transaction transaction;
+
+	/** The row the item was taken from. */
+	private final Row row;
+
+	/** Whether the outcome is known. */
+	private boolean done;
+
+	/** Whether the purchase was recorded, once it is done. */
+	private boolean recorded;
+
+	/** The transaction's id, if it was recorded. */
+	private int id;
+
+	/** What went wrong, if writing it failed. */
+	private SQLException failure;
+
+	/** Whether the model objects have been brought into line with the outcome. */
+	private boolean reconciled;
+
+	/**
+	 * Creates a pending purchase.
+	 * @param transaction the purchase
+	 * @param row the row the item was taken from
+	 */
+	public PendingPurchase(Transaction transaction, Row row)
+	{
+		this.transaction=transaction;
+		this.row=row;
+		done=false;
+		recorded=false;
+		id=-1;
+		failure=null;
+		reconciled=false;
+	}
+
+	/**
+	 * @return the purchase
+	 */
+	public Transaction getTransaction()
+	{
+		return transaction;
+	}
+
+	/**
+	 * @return the row the item was taken from
+	 */
+	public Row getRow()
+	{
+		return row;
+	}
+
+	/**
+	 * Takes the money and the item in memory, ahead of the purchase being written.
+	 * If the customer can't afford it or the row is empty, nothing is taken and the purchase is turned down straight away.
+	 * @return whether the money and item were taken
+	 */
+	public synchronized boolean apply()
+	{
+		if(transaction.getCustomer().deductMoney(transaction.getBalance()))
+		{
+			if(row.decrementRemainingQuantity())
+				return true;
+			transaction.getCustomer().deductMoney(-transaction.getBalance());
+		}
+
+		done=true;
+		reconciled=true;
+		notifyAll();
+		return false;
+	}
+
+	/**
+	 * @return whether the outcome is known yet
+	 */
+	public synchronized boolean isDone()
+	{
+		return done;
+	}
+
+	/**
+	 * Records that the purchase was written. For use by the database layer.
+	 * @param id the transaction's new id
+	 */
+	public synchronized void complete(int id)
+	{
+		this.id=id;
+		recorded=true;
+		done=true;
+		notifyAll();
+	}
+
+	/**
+	 * Records that the purchase was turned down, because the customer couldn't afford it or the slot was empty. For use by the database layer.
+	 */
+	public synchronized void decline()
+	{
+		done=true;
+		notifyAll();
+	}
+
+	/**
+	 * Records that writing the purchase failed. For use by the database layer.
+	 * @param failure what went wrong
+	 */
+	public synchronized void fail(SQLException failure)
+	{
+		this.failure=failure;
+		done=true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the purchase has been written or turned down, then brings the model objects into line with the outcome.
+	 * The customer's money and the row's quantity are left marked clean, since the database already holds the outcome.
+	 * Must be called on the thread that owns the transaction, customer and row.
+	 * @return whether the purchase was recorded
+	 * @throws SQLException if it could not be written, in which case the money and item have been put back
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public synchronized boolean await() throws SQLException, InterruptedException
+	{
+		while(!done)
+			wait();
+
+		if(!reconciled)
+		{
+			reconciled=true;
+			if(recorded)
+			{
+				try
+				{
+					transaction.setId(id);
+				}
+				catch(BadStateException alreadyRecorded) //only ever queued with a temporary id
+				{
+				}
+				catch(BadArgumentException impossible) //ids from the database are never negative
+				{
+				}
+			}
+			else
+			{
+				transaction.getCustomer().deductMoney(-transaction.getBalance());
+				try
+				{
+					row.setRemainingQuantity(row.getRemainingQuantity()+1);
+				}
+				catch(BadArgumentException impossible) //it was one more than this before being taken
+				{
+				}
+			}
+			//either way, the database layer has already stored the outcome, so saving these again would undo others' purchases
+			transaction.getCustomer().markClean("money");
+			row.markClean("remainingQuantity");
+		}
+
+		if(failure!=null)
+			throw failure;
+		return recorded;
+	}
+}
@@ -12,13 +12,15 @@ import java.util.TreeSet;
 public class RestockerCLI {
 
 	/** Instantiating a new RestockerMachinePickerScreen */
-	private static RestockerMachinePickerScreen restockerMachinePickerScreen = new RestockerMachinePickerScreen();
+	private static RestockerMachinePickerScreen restockerMachinePickerScreen;
 
 	/** The entry point to the program.
 	 * 
 	 * @param args Arguments required to create String arrays in Java
 	 */
 	public static void main(String[] args) {
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.KIOSK);
+		restockerMachinePickerScreen = new RestockerMachinePickerScreen();
 		System.out.println("Welcome to HCLC, LLC's Smart Vending Machine Restocker Interface!\n---\n");
 		pickMachine(restockerMachinePickerScreen);
 	}
@@ -75,7 +77,7 @@ public class RestockerCLI {
 	 * @param restockerMachinePickerScreen The state of the RestockerMachinePickerScreen
 	 */
 	private static void pickMachine(RestockerMachinePickerScreen restockerMachinePickerScreen) {
-		ArrayList<VendingMachine> vms = RestockerMachinePickerScreen.listActiveMachines();
+		ArrayList<MachineSummary> vms = RestockerMachinePickerScreen.listActiveMachines();
 		if ( vms.size() == 0 ) {
 			System.out.println("There are no machines to restock.");
 			return;
@@ -90,7 +92,7 @@ public class RestockerCLI {
 		RestockerTaskListScreen restockerTaskListScreen = null;
 
 		while (restockerTaskListScreen == null){
-			idNumber = CLIUtilities.option(vms)+1;
+			idNumber = vms.get(CLIUtilities.option(vms)).getId();
 
 			restockerTaskListScreen = restockerMachinePickerScreen.tryMachine(idNumber);
 		}
@@ -10,6 +10,7 @@ public class RestockerGUI
 	 **/
 	public static void main(String[] args) throws Exception
 	{
+		DatabaseLayer.setDatabaseProfile(DatabaseLayer.Profile.KIOSK);
 		GUIUtilities.setNativeLookAndFeel();
 		BaseGUI base = new BaseGUI("HCLC's Smart VM Restocker");
 		RestockerMachinePickerScreen controller = new  RestockerMachinePickerScreen();
@@ -12,8 +12,8 @@ import java.util.*;
 
 public class RestockerMachinePickerScreen {
 	
-	/** The DatabaseLayer object */
-	private static DatabaseLayer db=DatabaseLayer.getInstance();
+	/** The storage engine */
+	private static StorageEngine db = Storage.getEngine();
 
 	/**
  	 * attempts to find the specified machine in the database
@@ -26,7 +26,7 @@ public class RestockerMachinePickerScreen {
 	{
 		try
 		{
-			VendingMachine vm = db.getVendingMachineById(id);
+			VendingMachine vm = db.getVendingMachineById(id, true);
 			if ( vm == null || !vm.isActive() )
 				return null;
 
@@ -41,17 +41,11 @@ public class RestockerMachinePickerScreen {
 
 	/**
 	 * Fetches a list of active vending machines.
-	 * @return the machine instances, which are not to be modified ( or null on an error )
+	 * @return summaries of the machines, to be passed by id to <tt>tryMachine()</tt> ( or null on an error )
 	 */
-	public static ArrayList<VendingMachine> listActiveMachines() {
+	public static ArrayList<MachineSummary> listActiveMachines() {
 		try {
-			ArrayList<VendingMachine> allMach = db.getVendingMachinesAll();
-			Iterator<VendingMachine> trimmer = allMach.iterator();
-			while ( trimmer.hasNext() ) {
-				if ( !trimmer.next().isActive() )
-					trimmer.remove();
-			}	
-			return allMach;
+			return db.getMachineSummaries(true);
 		}
 		catch ( Exception uhOh ) {
 			ControllerExceptionHandler.registerConcern( 
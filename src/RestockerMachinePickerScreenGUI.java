@@ -124,18 +124,13 @@ public class RestockerMachinePickerScreenGUI extends JPanel
 		selectButton.addActionListener(new ActionListener()
 		{
 			public void actionPerformed(ActionEvent e){
-				try {
-					RestockerTaskListScreen next = controller.tryMachine( 
-						((VendingMachine)machines.getSelectedValue()).getId());
-					if ( next == null )
-						master.getStatusBar().setStatus("Vending machine not found", StatusBar.STATUS_BAD_COLOR);
-					else {
-						RestockerTaskListScreenGUI nextGUI = new RestockerTaskListScreenGUI( next, master );
-						master.pushContentPanel( nextGUI );
-					}
-				} catch (BadStateException impossible) {
-					System.err.println("oops?");
-					//I can't think of a way around this...
+				RestockerTaskListScreen next = controller.tryMachine( 
+					((MachineSummary)machines.getSelectedValue()).getId());
+				if ( next == null )
+					master.getStatusBar().setStatus("Vending machine not found", StatusBar.STATUS_BAD_COLOR);
+				else {
+					RestockerTaskListScreenGUI nextGUI = new RestockerTaskListScreenGUI( next, master );
+					master.pushContentPanel( nextGUI );
 				}
 			}
 		});
@@ -18,7 +18,7 @@ import java.util.GregorianCalendar;
 public class RestockerTaskListScreen {
 
 	/** The Database */
-	private static DatabaseLayer db=DatabaseLayer.getInstance();
+	private static StorageEngine db = Storage.getEngine();
 
 	/** the vending machine the restocker is working on */
 	private VendingMachine vm;
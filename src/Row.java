@@ -93,6 +93,7 @@ public class Row extends ModelBase
 			throw new BadArgumentException("Product cannot be null");
 		
 		this.product=product;
+		markDirty("product");
 	}
 
 	/**
@@ -114,6 +115,7 @@ public class Row extends ModelBase
 			throw new BadArgumentException("Quantity cannot be negative");
 		
 		this.remainingQuantity=remainingQuantity;
+		markDirty("remainingQuantity");
 	}
 
 	/**
@@ -134,6 +136,7 @@ public class Row extends ModelBase
 			throw new BadArgumentException("Expiration date cannot be null");
 		
 		this.expirationDate=expirationDate;
+		markDirty("expirationDate");
 	}
 
 	/**
@@ -154,6 +157,7 @@ public class Row extends ModelBase
 		if(remainingQuantity>0)
 		{
 			--remainingQuantity;
+			markDirty("remainingQuantity");
 			
 			return true;
 		}
@@ -170,7 +174,9 @@ public class Row extends ModelBase
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof Row))
+		if(this==another)
+			return true;
+		else if(!(another instanceof Row))
 			return false;
 		Row other=(Row)another;
 		
@@ -0,0 +1,85 @@
+import java.util.TimeZone;
+
+/**
+ * Ways of grouping transactions when totalling sales.
+ **/
+public enum SalesGrouping
+{
+	/** Everything together, as a single fleet-wide total. */
+	FLEET(0, 0),
+
+	/** By the id of the machine sold from. */
+	MACHINE(0, 0),
+
+	/** By the id of the item sold. */
+	ITEM(0, 0),
+
+	/** By the id of the customer who bought. */
+	CUSTOMER(0, 0),
+
+	/** By the zip code of the machine sold from. */
+	ZIP_CODE(0, 0),
+
+	/** By the state of the machine sold from, which becomes each total's name. */
+	STATE(0, 0),
+
+	/** By the hour (in local standard time) of the sale. */
+	HOUR(3600000L, 0),
+
+	/** By the day (in local standard time) of the sale. */
+	DAY(86400000L, 0),
+
+	/** By the week, starting on Monday, of the sale. */
+	WEEK(7 * 86400000L, 3 * 86400000L); //the epoch was a Thursday
+
+	/** Length of each time period in milliseconds, or 0 if not grouping by time. */
+	private final long period;
+
+	/** How far after the epoch the first period started, in milliseconds. */
+	private final long alignment;
+
+	/**
+	 * @param period length of each time period in milliseconds, or 0 if not grouping by time
+	 * @param alignment how far after the epoch the first period started, in milliseconds
+	 */
+	private SalesGrouping(long period, long alignment)
+	{
+		this.period=period;
+		this.alignment=alignment;
+	}
+
+	/**
+	 * @return whether sales are grouped by when they were made
+	 */
+	public boolean isByTime()
+	{
+		return period!=0;
+	}
+
+	/**
+	 * @return the length of each time period in milliseconds, or 0 if not grouping by time
+	 */
+	public long getPeriod()
+	{
+		return period;
+	}
+
+	/**
+	 * @return the offset, in milliseconds, that starts each period on its boundary in local standard time
+	 */
+	long getOffset()
+	{
+		return TimeZone.getDefault().getRawOffset()+alignment;
+	}
+
+	/**
+	 * Works out the key a sale falls under when grouping by time.
+	 * @param time the time of the sale, in milliseconds since the epoch
+	 * @return the start of its period, in milliseconds since the epoch
+	 */
+	public long periodKey(long time)
+	{
+		long offset=getOffset();
+		return (time+offset)/period*period-offset;
+	}
+}
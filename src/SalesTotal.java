@@ -0,0 +1,80 @@
+/**
+ * Sales totalled over one group of transactions, such as those made at one
+ * machine or during one day. Only the group's key and sums are kept, not
+ * the transactions or the objects they refer to.
+ **/
+public class SalesTotal
+{
+	/**
+	 * The group's key: the id of its machine, item or customer, its zip
+	 * code, or the start of its time period in milliseconds since the epoch.
+	 **/
+	private final long key;
+
+	/** The group's name, for groups keyed by text such as a state; otherwise null. */
+	private final String name;
+
+	/** Number of items sold. */
+	private final int units;
+
+	/** Total money taken, in cents. */
+	private final long revenue;
+
+	/**
+	 * Creates a total.
+	 * @param key The group's numeric key, or 0 if it has none.
+	 * @param name The group's textual key, or null if it has none.
+	 * @param units Number of items sold.
+	 * @param revenue Total money taken, in cents.
+	 **/
+	public SalesTotal(long key, String name, int units, long revenue)
+	{
+		this.key = key;
+		this.name = name;
+		this.units = units;
+		this.revenue = revenue;
+	}
+
+	/**
+	 * @return The id of the group's machine, item or customer, its zip code,
+	 * or the start of its time period in milliseconds since the epoch; 0 for
+	 * groups that have no numeric key.
+	 **/
+	public long getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * @return The group's textual key, such as its state, or null.
+	 **/
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return Number of items sold.
+	 **/
+	public int getUnits()
+	{
+		return units;
+	}
+
+	/**
+	 * @return Total money taken, in cents.
+	 **/
+	public long getRevenue()
+	{
+		return revenue;
+	}
+
+	/**
+	 * @return A description of the total.
+	 **/
+	@Override
+	public String toString()
+	{
+		return String.format("%s: %d sold for $%d.%02d", name == null ? String.valueOf(key) : name, units, revenue / 100, revenue % 100);
+	}
+}
@@ -0,0 +1,90 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Brings a database's schema up to date by applying whichever of an ordered list of migrations it hasn't yet seen.
+ * The number of migrations already applied is kept in the database's <tt>user_version</tt>, so each one runs exactly once per database file.
+ * Each migration runs in its own transaction together with the version bump, so a failure leaves the database at the previous version.
+ * Migrations may only ever be appended to the list: editing or reordering one that has shipped would leave existing databases out of step.
+ */
+public class SchemaMigrator
+{
+	/** The SQL statements making up each migration, oldest first. */
+	private final String[][] migrations;
+
+	/**
+	 * Creates a migrator for the given migrations.
+	 * @param migrations the SQL statements making up each migration, oldest first
+	 */
+	public SchemaMigrator(String[][] migrations)
+	{
+		this.migrations=migrations;
+	}
+
+	/**
+	 * @return the schema version reached once every migration has been applied
+	 */
+	public int getLatestVersion()
+	{
+		return migrations.length;
+	}
+
+	/**
+	 * Reads the schema version of a database.
+	 * @param db a connection to the database
+	 * @return the number of migrations already applied to it
+	 * @throws SQLException in case of a database error
+	 */
+	public static int getVersion(Connection db) throws SQLException
+	{
+		Statement stmt=db.createStatement();
+		ResultSet results=stmt.executeQuery("PRAGMA user_version");
+		int version=results.next() ? results.getInt(1) : 0;
+		results.close();
+		stmt.close();
+		return version;
+	}
+
+	/**
+	 * Applies every migration the database hasn't yet seen, in order.
+	 * A database already written by a newer version of the program is left alone.
+	 * @param db a connection to the database, which must be in autocommit mode
+	 * @return the number of migrations applied
+	 * @throws SQLException if a migration failed, in which case it has been rolled back
+	 */
+	public int migrate(Connection db) throws SQLException
+	{
+		int version=getVersion(db);
+		if(version>migrations.length)
+		{
+			System.err.println("WARNING: The database schema (version "+version+") is newer than this program expects (version "+migrations.length+")");
+			return 0;
+		}
+
+		for(int next=version; next<migrations.length; ++next)
+		{
+			db.setAutoCommit(false);
+			Statement stmt=db.createStatement();
+			try
+			{
+				for(String sql : migrations[next])
+					stmt.executeUpdate(sql);
+				stmt.executeUpdate("PRAGMA user_version = "+(next+1));
+				db.commit();
+			}
+			catch(SQLException failure)
+			{
+				db.rollback();
+				throw new SQLException("Schema migration "+(next+1)+" failed", failure);
+			}
+			finally
+			{
+				stmt.close();
+				db.setAutoCommit(true);
+			}
+		}
+		return migrations.length-version;
+	}
+}
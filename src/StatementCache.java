@@ -0,0 +1,163 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps one connection's prepared statements compiled between uses, keyed by their SQL text.
+ * Statements obtained from <tt>prepare(String)</tt> must be handed back to <tt>release(PreparedStatement)</tt> rather than closed.
+ * If the same SQL is prepared again before its statement has been released (e.g. by a nested query), a one-off statement is handed out instead so the two can't clobber each other's results.
+ * Instances are not thread-safe; they are meant to be used only by the thread currently holding their connection.
+ */
+public class StatementCache
+{
+	/** Default maximum number of statements kept compiled. */
+	public static final int DEFAULT_CAPACITY=64;
+
+	/** The connection whose statements are cached. */
+	private final Connection connection;
+
+	/** The maximum number of statements kept compiled. */
+	private final int capacity;
+
+	/** Compiled statements keyed by their SQL text, in least-recently-used order. */
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	/** Statements handed out and not yet released, mapped to whether they are one-offs that must be closed. */
+	private final IdentityHashMap<PreparedStatement, Boolean> inUse;
+
+	/** Number of requests served by an already-compiled statement. */
+	private volatile long hits;
+
+	/** Number of requests that had to compile a statement. */
+	private volatile long misses;
+
+	/**
+	 * Creates a cache holding at most <tt>DEFAULT_CAPACITY</tt> statements.
+	 * @param connection the connection on which to prepare statements
+	 */
+	public StatementCache(Connection connection)
+	{
+		this(connection, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a cache holding at most <tt>capacity</tt> statements.
+	 * @param connection the connection on which to prepare statements
+	 * @param capacity the maximum number of statements to keep compiled
+	 * @throws IllegalArgumentException if the <tt>capacity</tt> is not positive
+	 */
+	public StatementCache(Connection connection, int capacity)
+	{
+		if(capacity<=0)
+			throw new IllegalArgumentException("Capacity must be positive");
+
+		this.connection=connection;
+		this.capacity=capacity;
+		statements=new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+		inUse=new IdentityHashMap<PreparedStatement, Boolean>();
+		hits=0;
+		misses=0;
+	}
+
+	/**
+	 * Obtains a statement for the given SQL, compiling it only if necessary.
+	 * @param sql the parameterized SQL text
+	 * @return a statement ready to have its parameters bound
+	 * @throws SQLException in case of a database error
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException
+	{
+		PreparedStatement stmt=statements.get(sql);
+		if(stmt!=null && !inUse.containsKey(stmt))
+		{
+			++hits;
+			inUse.put(stmt, false);
+			return stmt;
+		}
+
+		++misses;
+		PreparedStatement fresh=connection.prepareStatement(sql);
+		if(stmt!=null) //the cached copy is busy, so this one is a one-off
+		{
+			inUse.put(fresh, true);
+			return fresh;
+		}
+
+		statements.put(sql, fresh);
+		inUse.put(fresh, false);
+		evictOverflow();
+		return fresh;
+	}
+
+	/**
+	 * Hands a statement back once its results are no longer needed.
+	 * Its parameters and any pending batch are cleared for the next user.
+	 * @param stmt a statement previously obtained from <tt>prepare(String)</tt>
+	 * @throws SQLException in case of a database error
+	 */
+	public void release(PreparedStatement stmt) throws SQLException
+	{
+		Boolean oneOff=inUse.remove(stmt);
+		if(oneOff==null || oneOff || !statements.containsValue(stmt)) //not (or no longer) ours to keep
+			stmt.close();
+		else
+			stmt.clearParameters();
+	}
+
+	/**
+	 * Closes every cached statement.
+	 * @throws SQLException in case of a database error
+	 */
+	public void close() throws SQLException
+	{
+		for(PreparedStatement stmt : statements.values())
+			stmt.close();
+		statements.clear();
+		inUse.clear();
+	}
+
+	/**
+	 * @return the number of requests served by an already-compiled statement
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return the number of requests that had to compile a statement
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return the number of statements currently compiled
+	 */
+	public int size()
+	{
+		return statements.size();
+	}
+
+	/**
+	 * Closes the least recently used idle statements until the cache is back within its capacity.
+	 * Statements still in use are left for <tt>release(PreparedStatement)</tt> to close.
+	 * @throws SQLException in case of a database error
+	 */
+	private void evictOverflow() throws SQLException
+	{
+		Iterator<Map.Entry<String, PreparedStatement>> eldest=statements.entrySet().iterator();
+		while(statements.size()>capacity && eldest.hasNext())
+		{
+			PreparedStatement stmt=eldest.next().getValue();
+			eldest.remove();
+			if(!inUse.containsKey(stmt))
+				stmt.close();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Decides which storage engine the controllers use. Unless told otherwise,
+ * it is the SQLite database; simulations and benchmarks can swap in a
+ * MemoryStorageEngine instead, before any controller is loaded.
+ **/
+public class Storage
+{
+	/** The engine in use, or null if none has been chosen yet. */
+	private static StorageEngine engine=null;
+
+	/** Whether the engine has been handed out, after which it can't change. */
+	private static boolean engaged=false;
+
+	/**
+	 * Selects the storage engine.
+	 * This is only useful if <tt>getEngine()</tt> has not yet been called; otherwise, it does nothing.
+	 * @param chosen the engine to use
+	 * @return whether the engine could be set (i.e. <tt>getEngine()</tt> has never been called)
+	 */
+	public static synchronized boolean setEngine(StorageEngine chosen)
+	{
+		if(engaged || chosen==null)
+			return false;
+
+		engine=chosen;
+		return true;
+	}
+
+	/**
+	 * Fetches the storage engine, which is the DatabaseLayer unless another was chosen beforehand.
+	 * @return the engine in use
+	 */
+	public static synchronized StorageEngine getEngine()
+	{
+		if(engine==null)
+			engine=DatabaseLayer.getInstance();
+		engaged=true;
+		return engine;
+	}
+}
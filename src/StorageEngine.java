@@ -0,0 +1,509 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+
+/**
+ * Everything the controllers need of wherever the items, machines, users
+ * and transactions are kept. DatabaseLayer keeps them in a SQLite file;
+ * MemoryStorageEngine keeps them in memory only, for simulations and
+ * benchmarks that shouldn't wait on the disk. Storage decides which one
+ * the controllers get.
+ * <p>
+ * Objects are loaded as fresh instances each time, except within a load
+ * session, in which loading the same object twice yields the very same
+ * instance. Saving an object gives it an id if it is new, and afterwards
+ * it counts as clean. Methods that can't fail for want of a database still
+ * declare SQLException, so that callers needn't care which engine they
+ * have.
+ **/
+public interface StorageEngine
+{
+	/**
+	 * Deletes everything that is stored. Meant for testing purposes only!
+	 * @throws SQLException in case of a database error
+	 **/
+	public void nuke() throws SQLException;
+
+	/**
+	 * Deletes the layouts no machine uses any more, and the rows no layout
+	 * holds any more, and gives the space they took back.
+	 * @param maxSteps The most steps to take in giving the space back.
+	 * @return What was collected.
+	 * @throws BadArgumentException if the number of steps is negative.
+	 * @throws SQLException in case of a database error
+	 **/
+	public GarbageReport collectGarbage(int maxSteps) throws SQLException, BadArgumentException;
+
+	/**
+	 * Begins a load session for the current thread, or joins the one it has
+	 * already begun. Every call must be matched by a call to endSession().
+	 **/
+	public void beginSession();
+
+	/**
+	 * Ends the current thread's hold on its load session.
+	 **/
+	public void endSession();
+
+	/**
+	 * Sets how many transactions the visitTransactions methods build at a
+	 * time.
+	 * @param size The number of transactions per batch.
+	 * @throws BadArgumentException if the size is not positive.
+	 **/
+	public void setFetchSize(int size) throws BadArgumentException;
+
+	/**
+	 * @return The number of transactions streamed at a time.
+	 **/
+	public int getFetchSize();
+
+	/**
+	 * Fetches the item with a given id.
+	 * @param id The id of the item to fetch.
+	 * @return The item, or null if there is no item with that id.
+	 * @throws SQLException in case of a database error
+	 **/
+	public FoodItem getFoodItemById(int id) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @return Every item, in the order they were created.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<FoodItem> getFoodItemsAll() throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Creates the item if it is new, or otherwise writes whatever has
+	 * changed about it.
+	 * @param item The item to update or create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateFoodItem(FoodItem item) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches the location with the given id, along with its nearby
+	 * businesses.
+	 * @param id The id of the location to fetch.
+	 * @return The location, or null if there isn't one.
+	 * @throws SQLException in case of a database error
+	 **/
+	public Location getLocationById(int id) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @return Every location, in the order they were created.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Location> getLocationsAll() throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches the vending machine with the given id. The layouts are only
+	 * fetched once they are first needed.
+	 * @param id The id of the vending machine to fetch.
+	 * @return The vending machine, or null if there isn't one.
+	 * @throws SQLException in case of a database error
+	 **/
+	public VendingMachine getVendingMachineById(int id) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches the vending machine with the given id.
+	 * @param id The id of the vending machine to fetch.
+	 * @param withLayouts Whether to fetch its layouts straight away, rather
+	 * than when they are first needed.
+	 * @return The vending machine, or null if there isn't one.
+	 * @throws SQLException in case of a database error
+	 **/
+	public VendingMachine getVendingMachineById(int id, boolean withLayouts) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @return Every vending machine, in the order they were created, with
+	 * their layouts fetched once they are first needed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesAll() throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param withLayouts Whether to fetch their layouts straight away.
+	 * @return Every vending machine, in the order they were created.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesAll(boolean withLayouts) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param zip The zip code to fetch the vending machines from.
+	 * @return The vending machines at the zip code, with their layouts
+	 * fetched once they are first needed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param zip The zip code to fetch the vending machines from.
+	 * @param withLayouts Whether to fetch their layouts straight away.
+	 * @return The vending machines at the zip code.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByZip(int zip, boolean withLayouts) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param state The state to fetch the vending machines from.
+	 * @return The vending machines in the state, with their layouts fetched
+	 * once they are first needed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByState(String state) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param state The state to fetch the vending machines from.
+	 * @param withLayouts Whether to fetch their layouts straight away.
+	 * @return The vending machines in the state.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<VendingMachine> getVendingMachinesByState(String state, boolean withLayouts) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Summarizes each vending machine, for lists to pick a machine from,
+	 * without building any of them.
+	 * @param onlyActive Whether to leave out the inactive machines.
+	 * @return The summaries, in the order the machines were created.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<MachineSummary> getMachineSummaries(boolean onlyActive) throws SQLException;
+
+	/**
+	 * Creates the vending machine if it is new, or otherwise writes whatever
+	 * has changed about it, along with its location, layouts and rows, all
+	 * at once.
+	 * @param vm The vending machine to update or create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateVendingMachine(VendingMachine vm) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches the customer with the given id; the cash customer id yields a
+	 * fresh cash customer.
+	 * @param id The id of the customer to fetch.
+	 * @return The customer, or null if there isn't one.
+	 * @throws SQLException in case of a database error
+	 **/
+	public Customer getCustomerById(int id) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @return Every customer, in the order they were created.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Customer> getCustomersAll() throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Creates the customer if it is new, or otherwise writes whatever has
+	 * changed about it. Cash customers are never stored.
+	 * @param customer The customer to update or create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateCustomer(Customer customer) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches the manager with the given id.
+	 * @param id The id of the manager to fetch.
+	 * @return The manager, or null if there isn't one.
+	 * @throws SQLException in case of a database error
+	 **/
+	public Manager getManagerById(int id) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @return Every manager, in the order they were created.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Manager> getManagersAll() throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Creates the manager if it is new, or otherwise writes whatever has
+	 * changed about it.
+	 * @param manager The manager to update or create.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateManager(Manager manager) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches the transaction with the given id, archived or not.
+	 * @param id The id of the transaction to fetch.
+	 * @return The transaction, or null if there isn't one.
+	 * @throws SQLException in case of a database error
+	 **/
+	public Transaction getTransactionById(int id) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param vm The vending machine at which the transactions occurred.
+	 * @return The transactions that occurred there.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByVendingMachine(VendingMachine vm) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param zipCode The zip code at which the transactions occurred.
+	 * @return The transactions that occurred there.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByZipCode(int zipCode) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param state The state in which the transactions occurred.
+	 * @return The transactions that occurred there.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByState(String state) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param customer The customer that made the transactions.
+	 * @return The transactions the customer made.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByCustomer(Customer customer) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @param item The item that was purchased in the transactions.
+	 * @return The transactions in which the item was purchased.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsByFoodItem(FoodItem item) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * @return Every transaction that has ever occurred.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<Transaction> getTransactionsAll() throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Streams every transaction to a visitor, getFetchSize() at a time.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsAll(TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Streams the transactions that occurred at a vending machine to a
+	 * visitor.
+	 * @param vm The vending machine at which the transactions occurred.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsByVendingMachine(VendingMachine vm, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Streams the transactions a customer has made to a visitor.
+	 * @param customer The customer that made the transactions.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsByCustomer(Customer customer, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Streams the transactions in which an item was purchased to a visitor.
+	 * @param item The item that was purchased in the transactions.
+	 * @param visitor The visitor to hand each transaction to.
+	 * @return The number of transactions visited.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int visitTransactionsByFoodItem(FoodItem item, TransactionVisitor visitor) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches one page of every transaction, ordered by timestamp and then
+	 * id. Each page picks up exactly where the last one left off.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws BadArgumentException if the page size isn't positive or the
+	 * token is malformed.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageAll(int pageSize, String token) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches one page of the transactions that occurred at a vending
+	 * machine, as for getTransactionsPageAll().
+	 * @param vm The vending machine at which the transactions occurred.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByVendingMachine(VendingMachine vm, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches one page of the transactions that occurred at a zip code, as
+	 * for getTransactionsPageAll().
+	 * @param zipCode The zip code at which the transactions occurred.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByZipCode(int zipCode, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches one page of the transactions that occurred in a state, as for
+	 * getTransactionsPageAll().
+	 * @param state The state in which the transactions occurred.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByState(String state, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches one page of the transactions a customer has made, as for
+	 * getTransactionsPageAll().
+	 * @param customer The customer that made the transactions.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByCustomer(Customer customer, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Fetches one page of the transactions in which an item was purchased,
+	 * as for getTransactionsPageAll().
+	 * @param item The item that was purchased in the transactions.
+	 * @param pageSize The maximum number of transactions on the page.
+	 * @param token The token from the previous page, or null for the first.
+	 * @return The page.
+	 * @throws SQLException in case of a database error
+	 **/
+	public TransactionPage getTransactionsPageByFoodItem(FoodItem item, int pageSize, String token) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Totals the units sold and revenue taken by the transactions in a time
+	 * range, grouped as requested, without building any transactions.
+	 * @param grouping How to group the transactions.
+	 * @param from The start of the range, or null to start at the beginning.
+	 * @param to The end of the range (exclusive), or null to include
+	 * everything since the start.
+	 * @return The total for each group that made any sales, ordered by key
+	 * and then name; for FLEET, exactly one total, even if nothing was sold.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ArrayList<SalesTotal> getSalesTotals(SalesGrouping grouping, GregorianCalendar from, GregorianCalendar to) throws SQLException;
+
+	/**
+	 * Recomputes the daily sales totals from the full transaction history.
+	 * @return The number of days, machines and items that made any sales.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int rebuildSalesRollups() throws SQLException;
+
+	/**
+	 * Sets aside every transaction from before a cutoff. Archived
+	 * transactions are still found by every query, but can't be changed.
+	 * @param cutoff The time before which transactions are archived.
+	 * @return The number of transactions archived.
+	 * @throws SQLException in case of a database error
+	 **/
+	public int archiveTransactions(GregorianCalendar cutoff) throws SQLException;
+
+	/**
+	 * Imports records from a CSV file in bulk, skipping and reporting the
+	 * ones that are invalid. If a checkpoint name is given, an import that
+	 * is interrupted can be run again with the same name and file and will
+	 * carry on where it stopped.
+	 * @param kind The kind of records in the file.
+	 * @param csv The file's contents, starting with the kind's header.
+	 * @param checkpoint The name under which to keep track of progress, or
+	 * null not to.
+	 * @return What was imported and what was rejected.
+	 * @throws BadArgumentException if the header is missing or wrong.
+	 * @throws IOException if the file could not be read.
+	 * @throws SQLException in case of a database error
+	 **/
+	public ImportReport bulkImport(ImportKind kind, Reader csv, String checkpoint) throws SQLException, IOException, BadArgumentException;
+
+	/**
+	 * Writes the records in a time range to an export, without building any
+	 * model objects. The writer is flushed, but not closed.
+	 * @param kind The kind of record to export.
+	 * @param from The start of the range, or null to start at the beginning.
+	 * @param to The end of the range (exclusive), or null to include
+	 * everything since the start.
+	 * @param out The writer, created with the kind's columns.
+	 * @return The number of records written.
+	 * @throws SQLException in case of a database error
+	 * @throws IOException if the export could not be written
+	 * @throws BadArgumentException if the writer has the wrong number of
+	 * columns
+	 **/
+	public long export(ExportKind kind, GregorianCalendar from, GregorianCalendar to, ExportWriter out) throws SQLException, IOException, BadArgumentException;
+
+	/**
+	 * Creates the transaction if it is new, or otherwise rewrites it.
+	 * @param transaction The transaction to update or create, whose machine,
+	 * customer and item must already be stored.
+	 * @throws BadArgumentException if something it refers to isn't stored,
+	 * or it has been archived.
+	 * @throws SQLException in case of a database error
+	 **/
+	public void updateOrCreateTransaction(Transaction transaction) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Records a purchase atomically: the transaction is stored, the customer
+	 * is charged and one item is taken out of its slot, or else nothing
+	 * happens at all. Only once it has gone through are the transaction's
+	 * id, the customer's money and the row's quantity updated to match.
+	 * @param transaction The new transaction, whose row coordinates pick out
+	 * the slot in the machine's current layout.
+	 * @return Whether the purchase went through; false if the customer can't
+	 * afford it or the slot is empty.
+	 * @throws BadArgumentException if the transaction has already been
+	 * recorded or its slot holds no row.
+	 * @throws SQLException in case of a database error
+	 **/
+	public boolean purchase(Transaction transaction) throws SQLException, BadStateException, BadArgumentException;
+
+	/**
+	 * Records a purchase as by purchase(), but in the background if
+	 * write-behind is on. The customer's money and the row's quantity are
+	 * updated straight away, and put back by PendingPurchase.await() if the
+	 * purchase doesn't go through.
+	 * @param transaction The new transaction, as for purchase().
+	 * @return The purchase.
+	 * @throws BadArgumentException if the transaction has already been
+	 * recorded or its slot holds no row.
+	 **/
+	public PendingPurchase purchaseLater(Transaction transaction) throws BadStateException, BadArgumentException;
+
+	/**
+	 * Turns on write-behind for purchaseLater().
+	 * @param capacity The most purchases that may be waiting at once.
+	 * @param maxBatch The most purchases written at once.
+	 * @param maxDelay How long the oldest queued purchase may be held back
+	 * for others to join it, in milliseconds.
+	 * @throws BadArgumentException if the capacity or batch size is not
+	 * positive or the delay is negative.
+	 * @throws InterruptedException if interrupted while waiting for the
+	 * purchases queued under earlier settings to be written.
+	 **/
+	public void startWriteBehind(int capacity, int maxBatch, long maxDelay) throws BadArgumentException, InterruptedException;
+
+	/**
+	 * Turns off write-behind, waiting until every queued purchase has been
+	 * written.
+	 * @throws InterruptedException if interrupted while waiting.
+	 **/
+	public void stopWriteBehind() throws InterruptedException;
+
+	/**
+	 * @return Whether purchaseLater() queues purchases to be written in the
+	 * background.
+	 **/
+	public boolean isWriteBehind();
+
+	/**
+	 * Waits until every purchase queued so far has been written.
+	 * @throws InterruptedException if interrupted while waiting.
+	 **/
+	public void flushPurchases() throws InterruptedException;
+}
@@ -131,7 +131,9 @@ public class Transaction extends ModelBase {
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof Transaction))
+		if(this==another)
+			return true;
+		else if(!(another instanceof Transaction))
 			return false;
 		Transaction other=(Transaction)another;
 		
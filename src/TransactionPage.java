@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+
+/**
+ * One page of transactions, in order of timestamp and then id, along with
+ * the token from which the following page carries on.
+ **/
+public class TransactionPage
+{
+	/** The transactions on this page. */
+	private final ArrayList<Transaction> transactions;
+
+	/** Token for the following page, or null if this is the last one. */
+	private final String nextToken;
+
+	/**
+	 * Creates a page.
+	 * @param transactions The transactions on the page, in order.
+	 * @param nextToken Token for the following page, or null if this is the
+	 * last one.
+	 **/
+	public TransactionPage(ArrayList<Transaction> transactions, String nextToken)
+	{
+		this.transactions = transactions;
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * @return The transactions on this page, in order.
+	 **/
+	public ArrayList<Transaction> getTransactions()
+	{
+		return transactions;
+	}
+
+	/**
+	 * @return The continuation token to pass back for the following page, or
+	 * null if this is the last one. Its contents are not meant to be
+	 * interpreted.
+	 **/
+	public String getNextToken()
+	{
+		return nextToken;
+	}
+
+	/**
+	 * @return Whether there may be another page after this one.
+	 **/
+	public boolean hasNext()
+	{
+		return nextToken != null;
+	}
+}
@@ -0,0 +1,15 @@
+/**
+ * Callback handed each transaction in turn as the DatabaseLayer streams
+ * them out of the database, so that histories too large to hold in memory
+ * can still be walked.
+ **/
+public interface TransactionVisitor
+{
+	/**
+	 * Gets called once for each transaction, in the order they are selected.
+	 * Only the transactions of the current batch are kept in memory, so
+	 * the visitor should not hold on to them unless it needs to.
+	 * @param transaction The next transaction.
+	 **/
+	public void visit(Transaction transaction);
+}
@@ -42,6 +42,7 @@ public abstract class User extends ModelBase
 			throw new BadArgumentException("Name cannot be null");
 		
 		this.name=name;
+		markDirty("name");
 	}
 
 	/**
@@ -60,7 +61,9 @@ public abstract class User extends ModelBase
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof User))
+		if(this==another)
+			return true;
+		else if(!(another instanceof User))
 			return false;
 		User other=(User)another;
 		
@@ -25,6 +25,9 @@ public class VMLayout extends ModelBase
 	/** When the next restocking is due (<tt>null</tt> if unset). */
 	private GregorianCalendar nextVisit;
 
+	/** The row that was in each slot when the layout was last marked clean, or <tt>null</tt> if it never has been. */
+	private Row[][] cleanRows;
+
 	/**
 	 * Dimension specification constructor.
 	 * Creates an instance of the specified size.
@@ -150,6 +153,7 @@ public class VMLayout extends ModelBase
 	public void setNextVisit(GregorianCalendar nextVisit)
 	{
 		this.nextVisit=nextVisit;
+		markDirty("nextVisit");
 	}
 
 	/**
@@ -182,6 +186,59 @@ public class VMLayout extends ModelBase
 		return contents;
 	}
 
+	/**
+	 * Declares the layout, including each of its rows, to match what is stored in the database.
+	 */
+	@Override
+	public void markClean()
+	{
+		super.markClean();
+		cleanRows=new Row[rows.length][];
+		for(int row=0; row<rows.length; ++row)
+		{
+			cleanRows[row]=rows[row].clone();
+			for(Row slot : rows[row])
+				if(slot!=null)
+					slot.markClean();
+		}
+	}
+
+	/**
+	 * Because the grid from <tt>getRows()</tt> may be modified directly, a layout is also dirty whenever any of its slots has been given a different row, or any of its rows is dirty.
+	 * @return whether anything has changed since the layout was last marked clean
+	 */
+	@Override
+	public boolean isDirty()
+	{
+		if(super.isDirty() || areSlotsDirty())
+			return true;
+
+		for(Row[] line : rows)
+			for(Row slot : line)
+				if(slot!=null && slot.isDirty())
+					return true;
+		return false;
+	}
+
+	/**
+	 * @return whether any slot holds a different row than when the layout was last marked clean
+	 */
+	public boolean areSlotsDirty()
+	{
+		if(cleanRows==null || cleanRows.length!=rows.length)
+			return true;
+
+		for(int row=0; row<rows.length; ++row)
+		{
+			if(cleanRows[row].length!=rows[row].length)
+				return true;
+			for(int col=0; col<rows[row].length; ++col)
+				if(cleanRows[row][col]!=rows[row][col])
+					return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Checks whether two instances contain the same data.
 	 * Note: instances sharing a deep-copy operation are<b>n't</b> <tt>equal</tt>.
@@ -191,7 +248,9 @@ public class VMLayout extends ModelBase
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof VMLayout))
+		if(this==another)
+			return true;
+		else if(!(another instanceof VMLayout))
 			return false;
 		VMLayout other=(VMLayout)another;
 		
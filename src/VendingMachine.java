@@ -21,6 +21,15 @@ public class VendingMachine extends ModelBase
 	/** The machine's queued product layout, which will be instated upon restocking. */
 	private VMLayout nextLayout;
 
+	/** Where to get the layouts from when they are first needed, or <tt>null</tt> if they are already here. */
+	private LayoutLoader layoutLoader;
+
+	/** The primary key of the current layout, while it has yet to be loaded. */
+	private int currentLayoutId;
+
+	/** The primary key of the next layout, while it has yet to be loaded. */
+	private int nextLayoutId;
+
 	/**
 	 * Thorough constructor.
 	 * Creates an instance with the specified <tt>location</tt> and layout.
@@ -51,6 +60,38 @@ public class VendingMachine extends ModelBase
 		this.currentLayout=currentLayout;
 		this.active=active;
 		this.nextLayout = nextLayout;
+		this.layoutLoader=null;
+	}
+
+	/**
+	 * Lazy constructor.
+	 * Creates an instance whose layouts are only fetched, by the supplied <tt>loader</tt>, once one of them is first needed.
+	 * This is intended for use by the database layer.
+	 * @param location the <tt>VendingMachine</tt>'s abode
+	 * @param stockingInterval how many days between consecutive restockings
+	 * @param currentLayoutId the primary key of the <tt>VendingMachine</tt>'s present layout
+	 * @param nextLayoutId the primary key of the <tt>VendingMachine</tt>'s future layout
+	 * @param active whether the <tt>VendingMachine</tt> is currently activated
+	 * @param loader where to get the layouts from
+	 * @throws BadArgumentException if the <tt>location</tt> or <tt>loader</tt> is <tt>null</tt> or <tt>stockingInterval</tt> is not positive
+	 */
+	public VendingMachine(Location location, int stockingInterval, int currentLayoutId, int nextLayoutId, boolean active, LayoutLoader loader) throws BadArgumentException
+	{
+		if(location==null)
+			throw new BadArgumentException("Location cannot be null");
+		else if(stockingInterval<=0)
+			throw new BadArgumentException("Stocking interval must be positive");
+		else if(loader==null)
+			throw new BadArgumentException("Layout loader cannot be null");
+
+		this.location=location;
+		this.stockingInterval=stockingInterval;
+		this.active=active;
+		this.currentLayout=null;
+		this.nextLayout=null;
+		this.layoutLoader=loader;
+		this.currentLayoutId=currentLayoutId;
+		this.nextLayoutId=nextLayoutId;
 	}
 
 	/**
@@ -80,6 +121,9 @@ public class VendingMachine extends ModelBase
 		this.stockingInterval=existing.stockingInterval;
 		this.currentLayout=existing.currentLayout;
 		this.nextLayout=existing.nextLayout;
+		this.layoutLoader=existing.layoutLoader;
+		this.currentLayoutId=existing.currentLayoutId;
+		this.nextLayoutId=existing.nextLayoutId;
 	}
 
 	/**
@@ -88,6 +132,7 @@ public class VendingMachine extends ModelBase
 	public void makeActive(boolean active)
 	{
 		this.active=active;
+		markDirty("active");
 	}
 
 	/**
@@ -108,6 +153,7 @@ public class VendingMachine extends ModelBase
 			throw new BadArgumentException("Location cannot be null");
 		
 		this.location=location;
+		markDirty("location");
 	}
 
 	/**
@@ -124,6 +170,7 @@ public class VendingMachine extends ModelBase
 	 * However, in all other cases, the next stocking takes place at the earlier proposed time to prevent items from expiring while in the machine.
 	 * @param stockingInterval replacement stocking interval, in days
 	 * @throws BadArgumentException if supplied with a nonpositive value
+	 * @throws IllegalStateException if the layouts had yet to be loaded and couldn't be
 	 */
 	public void setStockingInterval(int stockingInterval) throws BadArgumentException
 	{
@@ -132,11 +179,12 @@ public class VendingMachine extends ModelBase
 		
 		GregorianCalendar latestStocking=VendingMachine.lastPossibleVisit(stockingInterval);
 		
-		if(currentLayout.getNextVisit().compareTo(latestStocking)>0) //we now want to visit sooner
+		if(getCurrentLayout().getNextVisit().compareTo(latestStocking)>0) //we now want to visit sooner
 			currentLayout.setNextVisit(latestStocking);
 		//otherwise, we're trying to postpone a prescheduled visit, which could allow products to expire while in the machine!
 		
 		this.stockingInterval=stockingInterval;
+		markDirty("stockingInterval");
 	}
 
 	/**
@@ -149,34 +197,79 @@ public class VendingMachine extends ModelBase
 
 	/**
 	 * This retrieves the current layout, which is guaranteed to have its next restocking visit defined.
+	 * For a machine fetched without its layouts, this is when they are loaded, so controllers must be ready for that to fail.
 	 * @return the current layout
+	 * @throws IllegalStateException if the layouts had yet to be loaded and couldn't be
 	 */
 	public VMLayout getCurrentLayout()
 	{
+		loadLayouts();
 		return currentLayout;
 	}
 
 	/**
 	 * @param nextLayout a replacement future layout
 	 * @throws BadArgumentException if supplied with a <tt>null</tt> value
+	 * @throws IllegalStateException if the layouts had yet to be loaded and couldn't be
 	 */
 	public void setNextLayout(VMLayout nextLayout) throws BadArgumentException
 	{
 		if(nextLayout==null)
 			throw new BadArgumentException("Next layout cannot be null");
 		
+		loadLayouts(); //so the current one isn't left unloaded with nowhere to come from
 		this.nextLayout=nextLayout;
+		markDirty("nextLayout");
 	}
 
 	/**
 	 * This retrieves the queued layout, which is not guaranteed to have a next restocking visit.
+	 * For a machine fetched without its layouts, this is when they are loaded, so controllers must be ready for that to fail.
 	 * @return the next layout
+	 * @throws IllegalStateException if the layouts had yet to be loaded and couldn't be
 	 */
 	public VMLayout getNextLayout()
 	{
+		loadLayouts();
 		return nextLayout;
 	}
 
+	/**
+	 * Indicates whether the layouts are in memory, i.e. the machine was created or fetched with them, or they have since been needed.
+	 * @return whether they are
+	 */
+	public boolean areLayoutsLoaded()
+	{
+		return layoutLoader==null;
+	}
+
+	/**
+	 * Fetches the layouts, if they have yet to be loaded.
+	 * The current layout is given a next restocking visit if it lacks one, just as for a machine created with it.
+	 * @throws IllegalStateException if they couldn't be fetched
+	 */
+	private void loadLayouts()
+	{
+		if(layoutLoader==null)
+			return;
+
+		try
+		{
+			VMLayout[] layouts=layoutLoader.loadLayouts(currentLayoutId, nextLayoutId);
+			if(layouts[0]==null || layouts[1]==null)
+				throw new BadStateException("Layouts of vending machine "+getId()+" are missing");
+			if(layouts[0].getNextVisit()==null)
+				layouts[0].setNextVisit(lastPossibleVisit(stockingInterval));
+			currentLayout=layouts[0];
+			nextLayout=layouts[1];
+			layoutLoader=null;
+		}
+		catch(Exception failure)
+		{
+			throw new IllegalStateException("Unable to load the layouts of a vending machine", failure);
+		}
+	}
+
 	/**
 	 * Swaps the next layout into the current layout.
 	 * This process automatically sets the layout's next stocking visit.
@@ -184,9 +277,12 @@ public class VendingMachine extends ModelBase
 	 */
 	public void swapInNextLayout( VMLayout next )
 	{
+		layoutLoader=null; //both are being replaced
 		currentLayout=next;
 		nextLayout=new VMLayout(currentLayout, true); //deep copy
 		currentLayout.setNextVisit(VendingMachine.lastPossibleVisit(stockingInterval)); //visit after stockingInterval
+		markDirty("currentLayout");
+		markDirty("nextLayout");
 	}
 
 	/**
@@ -211,11 +307,13 @@ public class VendingMachine extends ModelBase
 	@Override
 	public boolean equals(Object another)
 	{
-		if(!(another instanceof VendingMachine))
+		if(this==another)
+			return true;
+		else if(!(another instanceof VendingMachine))
 			return false;
 		VendingMachine other=(VendingMachine)another;
 		
-		return super.equals(another) && this.active==other.active && location.equals(other.location) && this.stockingInterval==other.stockingInterval && currentLayout.equals(other.currentLayout) && nextLayout.equals(other.nextLayout);
+		return super.equals(another) && this.active==other.active && location.equals(other.location) && this.stockingInterval==other.stockingInterval && getCurrentLayout().equals(other.getCurrentLayout()) && getNextLayout().equals(other.getNextLayout());
 	}
 
 	/** @inheritDoc */
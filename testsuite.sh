@@ -0,0 +1,3 @@
+-e #!/bin/sh
+cd tbin
+java -cp ../tbin:../bin:../lib/junit-4.11.jar:../lib/sqlite-jdbc-3.7.2.jar org.junit.runner.JUnitCore CashCustomerPurchaseScreenTest ConnectionPoolTest CsvReaderTest CustomerLoginScreenTest CustomerPurchaseScreenTest CustomerTest EntityCacheTest ExportWriterTest FoodItemTest GroupCommitQueueTest IdentityMapTest LocationTest ManagerAlterLayoutScreenTest ManagerHomeScreenTest ManagerLoginScreenTest ManagerMachineManagementScreenTest ManagerReportStatsScreenTest ManagerStockedItemsScreenTest ManagerTest ManagerUserAccountsScreenTest ModelBaseTest PairTest RestockerMachinePickerScreenTest RestockerTaskListScreenTest RowTest SchemaMigratorTest StatementCacheTest TestDatabaseLayer TransactionTest VMLayoutTest VendingMachineTest